@@ -0,0 +1,240 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import sgp4.SGP4Satellite;
+import sgp4.SGP4State;
+import sgp4.TLE;
+
+/**
+ * Propagates a whole catalog of TLEs with SGP4 on a fork join pool.  Objects are split
+ * across the workers and each worker uses its own SGP4State so the TLEs are shared without
+ * copies or locks.  Errors are recorded per object and never thrown, an object without an
+ * initialized satellite gets ERR_NO_SATELLITE.
+ *
+ * All element sets are propagated with SGP4, the same as TLE.getRV.
+ *
+ * @author aholinch
+ *
+ */
+public class CatalogPropagator
+{
+	// aim for several tasks per worker so uneven objects balance out
+	protected static final int TASKS_PER_THREAD = 8;
+
+	// error recorded for an object whose TLE is missing or did not parse, sgp4 errors are 1 to 6
+	public static final int ERR_NO_SATELLITE = -1;
+
+	protected TLE tles[] = null;
+	protected ForkJoinPool pool = null;
+
+	public CatalogPropagator(List<TLE> tles)
+	{
+		this(tles, ForkJoinPool.commonPool());
+	}
+
+	public CatalogPropagator(List<TLE> tles, ForkJoinPool pool)
+	{
+		this.tles = tles.toArray(new TLE[tles.size()]);
+		this.pool = pool;
+	}
+
+	public int getNumObjects()
+	{
+		return tles.length;
+	}
+
+	public TLE getTLE(int obj)
+	{
+		return tles[obj];
+	}
+
+	/**
+	 * Positions of all objects at one time.
+	 *
+	 * @param d
+	 * @return
+	 */
+	public CatalogStates propagate(Date d)
+	{
+		return propagate(new long[]{d.getTime()});
+	}
+
+	/**
+	 * All objects from d1 to d2 at the given step.  The sampling matches EphemerisUtil.getCarts
+	 * so d2 is always included.
+	 *
+	 * @param d1
+	 * @param d2
+	 * @param tStepSec
+	 * @return
+	 */
+	public CatalogStates propagate(Date d1, Date d2, double tStepSec)
+	{
+    	long tstep = (long)(1000.0d*tStepSec);
+		return propagate(EphemerisUtil.getSampleTimes(d1.getTime(), d2.getTime(), tstep));
+	}
+
+	/**
+	 * All objects at the given times in ms.
+	 *
+	 * @param times
+	 * @return
+	 */
+	public CatalogStates propagate(long times[])
+	{
+		CatalogStates out = new CatalogStates(tles.length, times.length);
+		System.arraycopy(times, 0, out.times, 0, times.length);
+		propagate(out);
+		return out;
+	}
+
+	/**
+	 * Fill preallocated buffers for the times already set in out.  Lets the same buffers
+	 * be reused for repeated snapshots.
+	 *
+	 * @param out
+	 */
+	public void propagate(CatalogStates out)
+	{
+		if(out.numObjects != tles.length)
+		{
+			throw new IllegalArgumentException("Expected " + tles.length + " objects but buffers hold " + out.numObjects);
+		}
+
+		if(tles.length == 0) return;
+
+		int numTasks = pool.getParallelism()*TASKS_PER_THREAD;
+		int threshold = Math.max(1, tles.length/numTasks);
+
+		pool.invoke(new PropagateTask(out, 0, tles.length, threshold));
+	}
+
+	/**
+	 * Propagate objects [start,end) into out.
+	 *
+	 * @param out
+	 * @param start
+	 * @param end
+	 */
+	protected void propagateRange(CatalogStates out, int start, int end)
+	{
+		SGP4State st = new SGP4State();
+		double r[] = new double[3];
+		double v[] = new double[3];
+
+		int nt = out.numTimes;
+		long times[] = out.times;
+
+		TLE tle = null;
+		SGP4Satellite sat = null;
+		double epoch = 0;
+		double t = 0;
+		int ind = 0;
+		int err = 0;
+
+		for(int obj=start; obj<end; obj++)
+		{
+			tle = tles[obj];
+			ind = obj*nt;
+			sat = null;
+			if(tle != null)
+			{
+				sat = tle.getSatellite();
+				out.ids[obj] = tle.getObjectID();
+			}
+			else
+			{
+				out.ids[obj] = null;
+			}
+
+			if(sat == null || tle.getEpoch() == null)
+			{
+				// nothing to propagate, clear the states in case the buffers are reused
+				Arrays.fill(out.rx, ind, ind+nt, 0);
+				Arrays.fill(out.ry, ind, ind+nt, 0);
+				Arrays.fill(out.rz, ind, ind+nt, 0);
+				Arrays.fill(out.vx, ind, ind+nt, 0);
+				Arrays.fill(out.vy, ind, ind+nt, 0);
+				Arrays.fill(out.vz, ind, ind+nt, 0);
+				out.errors[obj] = ERR_NO_SATELLITE;
+				continue;
+			}
+			epoch = tle.getEpoch().getTime();
+
+			err = 0;
+			for(int it=0; it<nt; it++)
+			{
+				t = times[it];
+				t -= epoch;
+				t /= 60000;
+
+				r[0] = r[1] = r[2] = 0;
+				v[0] = v[1] = v[2] = 0;
+
+				sat.propagate(st, t, r, v);
+				if(err == 0) err = st.error;
+
+	    		out.rx[ind] = r[0];
+	    		out.ry[ind] = r[1];
+	    		out.rz[ind] = r[2];
+	    		out.vx[ind] = v[0];
+	    		out.vy[ind] = v[1];
+	    		out.vz[ind] = v[2];
+	    		ind++;
+			}
+			out.errors[obj] = err;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	protected class PropagateTask extends RecursiveAction
+	{
+		protected CatalogStates out;
+		protected int start;
+		protected int end;
+		protected int threshold;
+
+		public PropagateTask(CatalogStates out, int start, int end, int threshold)
+		{
+			this.out = out;
+			this.start = start;
+			this.end = end;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(end-start <= threshold)
+			{
+				propagateRange(out, start, end);
+				return;
+			}
+
+			int mid = (start+end) >>> 1;
+			invokeAll(new PropagateTask(out, start, mid, threshold), new PropagateTask(out, mid, end, threshold));
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.util.Date;
+
+/**
+ * Positions and velocities for many objects on a shared time grid stored in columns.
+ * The value for object obj at time index it is stored at obj*numTimes+it.
+ *
+ * @author aholinch
+ *
+ */
+public class CatalogStates
+{
+	// largest array most JVMs will allocate
+	public static final int MAX_SIZE = Integer.MAX_VALUE-8;
+
+	public String ids[] = null;
+	public long times[] = null;
+
+	public int numObjects = 0;
+	public int numTimes = 0;
+
+    public double rx[] = null;
+    public double ry[] = null;
+    public double rz[] = null;
+    public double vx[] = null;
+    public double vy[] = null;
+    public double vz[] = null;
+
+    // first sgp4 error for each object, 0 if none
+    public int errors[] = null;
+
+    public CatalogStates(int numObjects, int numTimes)
+    {
+    	long lsize = ((long)numObjects)*numTimes;
+    	if(numObjects < 0 || numTimes < 0 || lsize > MAX_SIZE)
+    	{
+    		throw new IllegalArgumentException(numObjects + " objects by " + numTimes + " times is " + lsize +
+    				" states, more than the " + MAX_SIZE + " a column can hold, split the objects or times");
+    	}
+
+    	this.numObjects = numObjects;
+    	this.numTimes = numTimes;
+
+    	ids = new String[numObjects];
+    	times = new long[numTimes];
+    	errors = new int[numObjects];
+
+    	int size = (int)lsize;
+    	rx = new double[size];
+    	ry = new double[size];
+    	rz = new double[size];
+    	vx = new double[size];
+    	vy = new double[size];
+    	vz = new double[size];
+    }
+
+    public int getIndex(int obj, int it)
+    {
+    	return obj*numTimes+it;
+    }
+
+    public int getError(int obj)
+    {
+    	return errors[obj];
+    }
+
+    public String getID(int obj)
+    {
+    	return ids[obj];
+    }
+
+    public Date getDate(int it)
+    {
+    	return new java.sql.Timestamp(times[it]);
+    }
+
+    /**
+     * Returns the state of one object at one time.
+     *
+     * @param obj
+     * @param it
+     * @return
+     */
+    public CartesianState getCartesian(int obj, int it)
+    {
+    	int ind = getIndex(obj,it);
+
+    	CartesianState cart = new CartesianState();
+    	cart.setEpoch(getDate(it));
+    	cart.setRVec(rx[ind],ry[ind],rz[ind]);
+    	cart.vx = vx[ind];
+    	cart.vy = vy[ind];
+    	cart.vz = vz[ind];
+
+    	return cart;
+    }
+}
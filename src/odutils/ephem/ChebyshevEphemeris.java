@@ -0,0 +1,627 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.hipparchus.linear.Array2DRowRealMatrix;
+import org.hipparchus.linear.QRDecomposition;
+import org.hipparchus.linear.RealMatrix;
+
+/**
+ * Ephemeris stored as Chebyshev polynomials of position over equal length segments, like
+ * SPK type 2.  Velocity is the derivative of the position polynomial.  Finding the segment
+ * is one division and evaluating it is O(degree) with no allocation in getRV(long, r, v).
+ *
+ * fit samples any CartesianSource and halves the segment length until the position is within
+ * the tolerance everywhere it checks.  A day of 1 second Ephemerides, seven arrays of 86401
+ * doubles, usually becomes a few hundred coefficients per axis.
+ *
+ * <pre>
+ * binary form  int magic, int version, UTF id, UTF frame, long start ms, long end ms,
+ *              int degree, int number of segments, then per segment the x, y and z
+ *              coefficients in km
+ * </pre>
+ *
+ * @author aholinch
+ *
+ */
+public class ChebyshevEphemeris implements CartesianSource
+{
+	public static final int MAGIC = 0x43484542; // CHEB
+	public static final int VERSION = 1;
+
+	public static final int DEFAULT_DEGREE = 12;
+
+	// segments are not made shorter than this when fitting
+	public static final double MIN_SEGMENT_SEC = 1.0;
+
+	protected String id = null;
+	protected String frame = null;
+
+	protected long t1 = 0;
+	protected long t2 = 0;
+
+	protected int degree = DEFAULT_DEGREE;
+	protected int numSegments = 0;
+
+	// seconds per segment
+	protected double segLen = 0;
+
+	// per segment degree+1 coefficients for x, then y, then z
+	protected double coeffs[] = null;
+
+	// largest errors found by fit, km and km/s
+	protected double maxPosError = 0;
+	protected double maxVelError = 0;
+
+	protected ChebyshevEphemeris()
+	{
+
+	}
+
+	public ChebyshevEphemeris(String id, String frame, long t1, long t2, int degree, int numSegments, double coeffs[])
+	{
+		this.id = id;
+		this.frame = frame;
+		this.t1 = t1;
+		this.t2 = t2;
+		this.degree = degree;
+		this.numSegments = numSegments;
+		this.coeffs = coeffs;
+		calcSegLen();
+
+		if(coeffs.length != numSegments*3*(degree+1))
+		{
+			throw new IllegalArgumentException("Expected " + (numSegments*3*(degree+1)) + " coefficients but got " + coeffs.length);
+		}
+	}
+
+	protected void calcSegLen()
+	{
+		segLen = (t2-t1)/1000.0d/numSegments;
+	}
+
+	/**
+	 * Fit the ephemerides over their whole span.
+	 *
+	 * @param eph
+	 * @param tolKm
+	 * @return
+	 */
+	public static ChebyshevEphemeris fit(Ephemerides eph, double tolKm)
+	{
+		ChebyshevEphemeris out = fit(eph, new Date(eph.t1), new Date(eph.t2), tolKm, DEFAULT_DEGREE);
+		out.id = eph.id;
+		return out;
+	}
+
+	public static ChebyshevEphemeris fit(CartesianSource src, Date d1, Date d2, double tolKm)
+	{
+		return fit(src, d1, d2, tolKm, DEFAULT_DEGREE);
+	}
+
+	/**
+	 * Fit the source from d1 to d2 so the position is within tolKm at the points checked,
+	 * 2*(degree+1) per segment between the points fit and the segment ends.  If the tolerance
+	 * can not be met with segments of MIN_SEGMENT_SEC the closest fit is returned, see
+	 * getMaxPositionError.
+	 *
+	 * @param src
+	 * @param d1
+	 * @param d2
+	 * @param tolKm
+	 * @param degree
+	 * @return
+	 */
+	public static ChebyshevEphemeris fit(CartesianSource src, Date d1, Date d2, double tolKm, int degree)
+	{
+		long t1 = d1.getTime();
+		long t2 = d2.getTime();
+		if(t2 <= t1)
+		{
+			throw new IllegalArgumentException("End must be after start");
+		}
+
+		ChebyshevEphemeris best = null;
+		ChebyshevEphemeris ce = null;
+
+		int numSegments = 1;
+		while(true)
+		{
+			ce = fit(src, t1, t2, degree, numSegments, tolKm);
+			if(ce.maxPosError <= tolKm)
+			{
+				return ce;
+			}
+			if(best == null || ce.maxPosError < best.maxPosError)
+			{
+				best = ce;
+			}
+			if(ce.segLen/2.0d < MIN_SEGMENT_SEC)
+			{
+				System.err.println("ChebyshevEphemeris could not reach " + tolKm + " km, error " + best.maxPosError);
+				// finish the closest fit, it stopped at the first segment over the tolerance
+				return fit(src, t1, t2, degree, best.numSegments, Double.MAX_VALUE);
+			}
+			numSegments *= 2;
+		}
+	}
+
+	/**
+	 * Fit with the number of segments given, stopping after the first segment with an error
+	 * over tolKm.
+	 */
+	protected static ChebyshevEphemeris fit(CartesianSource src, long t1, long t2, int degree, int numSegments, double tolKm)
+	{
+		ChebyshevEphemeris ce = new ChebyshevEphemeris();
+		ce.frame = src.getFrame();
+		ce.t1 = t1;
+		ce.t2 = t2;
+		ce.degree = degree;
+		ce.numSegments = numSegments;
+		ce.coeffs = new double[numSegments*3*(degree+1)];
+		ce.calcSegLen();
+
+		int numFit = 2*(degree+1);
+		for(int seg=0; seg<numSegments; seg++)
+		{
+			ce.fitSegment(src, seg, numFit);
+			ce.checkSegment(src, seg, numFit);
+			if(ce.maxPosError > tolKm)
+			{
+				break;
+			}
+		}
+		return ce;
+	}
+
+	/**
+	 * Least squares fit of one segment to the source at numFit Chebyshev nodes.  The source
+	 * is sampled on whole ms so the fit uses the times actually sampled.
+	 */
+	protected void fitSegment(CartesianSource src, int seg, int numFit)
+	{
+		int nc = degree+1;
+		RealMatrix a = new Array2DRowRealMatrix(numFit, nc);
+		RealMatrix b = new Array2DRowRealMatrix(numFit, 3);
+		double tk[] = new double[nc];
+
+		double start = seg*segLen;
+		CartesianState cart = null;
+		long t = 0;
+		double x = 0;
+		for(int j=0; j<numFit; j++)
+		{
+			x = -Math.cos(Math.PI*(j+0.5d)/numFit);
+			t = getTime(seg, x);
+			cart = src.getCartesian(new Date(t));
+			if(cart == null)
+			{
+				throw new IllegalArgumentException("Source has no state at " + new Date(t) + " to fit");
+			}
+
+			x = getX(seg, (t-t1)/1000.0d-start);
+			chebyshev(x, tk);
+			for(int k=0; k<nc; k++) a.setEntry(j, k, tk[k]);
+			b.setEntry(j, 0, cart.rx);
+			b.setEntry(j, 1, cart.ry);
+			b.setEntry(j, 2, cart.rz);
+		}
+
+		RealMatrix c = new QRDecomposition(a).getSolver().solve(b);
+		int off = seg*3*nc;
+		for(int d=0; d<3; d++)
+		{
+			for(int k=0; k<nc; k++)
+			{
+				coeffs[off+d*nc+k] = c.getEntry(k, d);
+			}
+		}
+	}
+
+	/**
+	 * Compare to the source at the segment ends and between the fit nodes.
+	 */
+	protected void checkSegment(CartesianSource src, int seg, int numFit)
+	{
+		double r[] = new double[3];
+		double v[] = new double[3];
+		CartesianState cart = null;
+		long t = 0;
+		double x = 0;
+		for(int j=0; j<=numFit; j++)
+		{
+			if(j == 0)
+			{
+				x = -1;
+			}
+			else if(j == numFit)
+			{
+				x = 1;
+			}
+			else
+			{
+				// half way between nodes j-1 and j
+				x = -Math.cos(Math.PI*j/numFit);
+			}
+			t = getTime(seg, x);
+			cart = src.getCartesian(new Date(t));
+			if(cart == null) continue;
+
+			eval(seg, getX(seg, (t-t1)/1000.0d-seg*segLen), r, v);
+			maxPosError = Math.max(maxPosError, cart.getDist(r[0], r[1], r[2]));
+			maxVelError = Math.max(maxVelError, Math.sqrt((cart.vx-v[0])*(cart.vx-v[0])+(cart.vy-v[1])*(cart.vy-v[1])+(cart.vz-v[2])*(cart.vz-v[2])));
+		}
+	}
+
+	/**
+	 * Time in ms of x in [-1,1] in the segment, clamped to the span.
+	 */
+	protected long getTime(int seg, double x)
+	{
+		long t = t1 + Math.round(1000.0d*segLen*(seg+0.5d*(x+1.0d)));
+		if(t < t1) t = t1;
+		if(t > t2) t = t2;
+		return t;
+	}
+
+	protected double getX(int seg, double secIntoSeg)
+	{
+		return 2.0d*secIntoSeg/segLen - 1.0d;
+	}
+
+	protected static void chebyshev(double x, double tk[])
+	{
+		tk[0] = 1;
+		if(tk.length > 1) tk[1] = x;
+		for(int k=2; k<tk.length; k++)
+		{
+			tk[k] = 2.0d*x*tk[k-1]-tk[k-2];
+		}
+	}
+
+	/**
+	 * Position and velocity at the time, no allocation.
+	 *
+	 * @param t ms
+	 * @param r km
+	 * @param v km/s
+	 * @return false if the time is outside the span
+	 */
+	public boolean getRV(long t, double r[], double v[])
+	{
+		if(t < t1 || t > t2)
+		{
+			return false;
+		}
+
+		double sec = (t-t1)/1000.0d;
+		int seg = (int)(sec/segLen);
+		if(seg >= numSegments) seg = numSegments-1;
+
+		eval(seg, getX(seg, sec-seg*segLen), r, v);
+		return true;
+	}
+
+	/**
+	 * Same as Ephemerides.getRV.
+	 *
+	 * @param t
+	 * @return
+	 */
+	public double[][] getRV(long t)
+	{
+		double r[] = new double[3];
+		double v[] = new double[3];
+		if(!getRV(t, r, v))
+		{
+			return null;
+		}
+		return new double[][]{r, v};
+	}
+
+	/**
+	 * Clenshaw sums of the series and its derivative for each axis.
+	 */
+	protected void eval(int seg, double x, double r[], double v[])
+	{
+		int nc = degree+1;
+		int off = seg*3*nc;
+		double scale = 2.0d/segLen;
+		double x2 = 2.0d*x;
+
+		double b1, b2, d1, d2, tmp, c;
+		for(int d=0; d<3; d++)
+		{
+			b1 = 0;
+			b2 = 0;
+			d1 = 0;
+			d2 = 0;
+			for(int k=nc-1; k>=1; k--)
+			{
+				c = coeffs[off+k];
+				// derivative first, it needs the b values from the step before
+				tmp = 2.0d*b1 + x2*d1 - d2;
+				d2 = d1;
+				d1 = tmp;
+				tmp = c + x2*b1 - b2;
+				b2 = b1;
+				b1 = tmp;
+			}
+			r[d] = coeffs[off] + x*b1 - b2;
+			v[d] = (b1 + x*d1 - d2)*scale;
+			off += nc;
+		}
+	}
+
+	@Override
+	public CartesianState getCartesian(Date d)
+	{
+		double r[] = new double[3];
+		double v[] = new double[3];
+		if(!getRV(d.getTime(), r, v))
+		{
+			return null;
+		}
+
+		CartesianState cs = new CartesianState();
+		cs.setEpoch(new java.sql.Timestamp(d.getTime()));
+		cs.setRVec(r);
+		cs.setVVec(v);
+		return cs;
+	}
+
+	@Override
+	public List<CartesianState> getCartesians(Date d1, Date d2, double tStepSec)
+	{
+		long tstep = (long)(1000.0d*tStepSec);
+		long t = d1.getTime();
+		long t2 = d2.getTime();
+		List<CartesianState> carts = new ArrayList<CartesianState>();
+
+		while(t < t2)
+		{
+			carts.add(getCartesian(new java.sql.Timestamp(t)));
+			t += tstep;
+		}
+
+		// ensure last date is included regardless of steps
+		carts.add(getCartesian(new java.sql.Timestamp(t2)));
+		return carts;
+	}
+
+	@Override
+	public String getFrame()
+	{
+		return frame;
+	}
+
+	public void setFrame(String f)
+	{
+		frame = f;
+	}
+
+	public String getId()
+	{
+		return id;
+	}
+
+	public void setId(String id)
+	{
+		this.id = id;
+	}
+
+	public long getStartMillis()
+	{
+		return t1;
+	}
+
+	public long getEndMillis()
+	{
+		return t2;
+	}
+
+	public int getDegree()
+	{
+		return degree;
+	}
+
+	public int getNumSegments()
+	{
+		return numSegments;
+	}
+
+	public double getSegmentSeconds()
+	{
+		return segLen;
+	}
+
+	public double[] getCoefficients()
+	{
+		return coeffs;
+	}
+
+	/**
+	 * Largest position error in km found by fit, 0 if this was not fit.
+	 *
+	 * @return
+	 */
+	public double getMaxPositionError()
+	{
+		return maxPosError;
+	}
+
+	/**
+	 * Largest velocity error in km/s found by fit, 0 if this was not fit.
+	 *
+	 * @return
+	 */
+	public double getMaxVelocityError()
+	{
+		return maxVelError;
+	}
+
+	@Override
+	public boolean supportsUpdates()
+	{
+		return false;
+	}
+
+	@Override
+	public void setFromEquinoctal(double params[])
+	{
+		// nothing to do
+	}
+
+	@Override
+	public void setFromVector(double params[])
+	{
+		// nothing to do
+	}
+
+	@Override
+	public void setMeanAnomaly(double val)
+	{
+		// nothing to do
+	}
+
+	/**
+	 * Write the binary form described in the class comment.
+	 *
+	 * @param os
+	 * @throws IOException
+	 */
+	public void write(OutputStream os) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(id == null?"":id);
+		out.writeUTF(frame == null?"":frame);
+		out.writeLong(t1);
+		out.writeLong(t2);
+		out.writeInt(degree);
+		out.writeInt(numSegments);
+		for(int i=0; i<coeffs.length; i++)
+		{
+			out.writeDouble(coeffs[i]);
+		}
+		out.flush();
+	}
+
+	public static ChebyshevEphemeris read(InputStream is) throws IOException
+	{
+		DataInputStream in = new DataInputStream(is);
+		if(in.readInt() != MAGIC) throw new IOException("Not a Chebyshev ephemeris");
+		int version = in.readInt();
+		if(version != VERSION) throw new IOException("Unsupported Chebyshev ephemeris version " + version);
+
+		String id = in.readUTF();
+		String frame = in.readUTF();
+		long t1 = in.readLong();
+		long t2 = in.readLong();
+		int degree = in.readInt();
+		int numSegments = in.readInt();
+		if(degree < 0 || numSegments < 1 || t2 <= t1)
+		{
+			throw new IOException("Bad Chebyshev ephemeris header, degree " + degree + " segments " + numSegments + " span " + t1 + " to " + t2);
+		}
+		long perSegment = 3L*(degree+1L);
+		if(numSegments > (Integer.MAX_VALUE-8)/perSegment)
+		{
+			throw new IOException("Bad Chebyshev ephemeris header, " + perSegment + " coefficients for each of " + numSegments + " segments");
+		}
+
+		// grown as the values arrive so a bad count runs out of data before memory
+		int num = (int)(perSegment*numSegments);
+		double coeffs[] = new double[Math.min(num, 65536)];
+		for(int i=0; i<num; i++)
+		{
+			if(i == coeffs.length)
+			{
+				coeffs = Arrays.copyOf(coeffs, (int)Math.min(num, 2L*coeffs.length));
+			}
+			coeffs[i] = in.readDouble();
+		}
+
+		return new ChebyshevEphemeris(id.length() == 0?null:id, frame.length() == 0?null:frame, t1, t2, degree, numSegments, coeffs);
+	}
+
+	public byte[] toBytes()
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64+8*coeffs.length);
+		try
+		{
+			write(baos);
+		}
+		catch(IOException ex)
+		{
+			// not thrown by a byte array
+			throw new RuntimeException(ex);
+		}
+		return baos.toByteArray();
+	}
+
+	public static ChebyshevEphemeris fromBytes(byte bytes[]) throws IOException
+	{
+		return read(new ByteArrayInputStream(bytes));
+	}
+
+	public void write(String file) throws IOException
+	{
+		OutputStream out = null;
+		try
+		{
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			write(out);
+		}
+		finally
+		{
+			if(out != null) try{out.close();}catch(Exception ex){};
+		}
+	}
+
+	public static ChebyshevEphemeris read(String file) throws IOException
+	{
+		InputStream in = null;
+		try
+		{
+			in = new BufferedInputStream(new FileInputStream(file));
+			return read(in);
+		}
+		finally
+		{
+			if(in != null) try{in.close();}catch(Exception ex){};
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import sgp4.TLE;
+
+/**
+ * Fits ChebyshevEphemeris to a day of 1 second Ephemerides for a few orbits and compares
+ * accuracy, size and lookup speed.  Prints PASS or FAIL for each check.
+ *
+ * Usage: ChebyshevEphemerisTest [tolerance km]
+ *
+ * @author aholinch
+ *
+ */
+public class ChebyshevEphemerisTest
+{
+	public static final String lines[][] = {
+		{"1 25544U 98067A   08264.51782528 -.00002182  00000-0 -11606-4 0  2927","2 25544  51.6416 247.4627 0006703 130.5360 325.0288 15.72125391563537"},
+		{"1 00005U 58002B   00179.78495062  .00000023  00000-0  28098-4 0  4753","2 00005  34.2682 348.7242 1859667 331.7664  19.3264 10.82419157413667"},
+		{"1 28626U 05008A   06176.46683397 -.00000205  00000-0  10000-3 0  2190","2 28626   0.0019 286.9433 0000335  13.7918  55.6504  1.00270176  4891"}
+	};
+
+	protected static int failed = 0;
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	public static void test(TLE tle, double tol) throws Exception
+	{
+		Date d1 = tle.getEpoch();
+		Date d2 = new Date(d1.getTime()+86400000L);
+		Ephemerides eph = new Ephemerides(tle, d1, d2, 1.0);
+		eph.setFrame("teme");
+
+		long t0 = System.currentTimeMillis();
+		ChebyshevEphemeris ce = ChebyshevEphemeris.fit(eph, tol);
+		long fitMs = System.currentTimeMillis()-t0;
+
+		byte bytes[] = ce.toBytes();
+		long ephBytes = 7L*8L*eph.ts.length;
+		System.out.println(eph.id + "\tsegments " + ce.getNumSegments() + " of " + ce.getSegmentSeconds() + " s\tbytes " + bytes.length +
+				" vs " + ephBytes + "\tfit ms " + fitMs + "\tfit pos err km " + ce.getMaxPositionError() + "\tvel err km/s " + ce.getMaxVelocityError());
+
+		// random times, checked against the ephemerides
+		Random rand = new Random(11);
+		int num = 20000;
+		long times[] = new long[num];
+		long span = eph.t2-eph.t1;
+		for(int i=0; i<num; i++) times[i] = eph.t1 + (long)(span*rand.nextDouble());
+		times[0] = eph.t1;
+		times[1] = eph.t2;
+
+		double r[] = new double[3];
+		double v[] = new double[3];
+		double posErr = 0;
+		double velErr = 0;
+		double rv[][] = null;
+		for(int i=0; i<num; i++)
+		{
+			ce.getRV(times[i], r, v);
+			rv = eph.getRV(times[i]);
+			for(int j=0; j<3; j++)
+			{
+				posErr = Math.max(posErr, Math.abs(r[j]-rv[0][j]));
+				velErr = Math.max(velErr, Math.abs(v[j]-rv[1][j]));
+			}
+		}
+		System.out.println("\trandom times pos err km " + posErr + "\tvel err km/s " + velErr);
+		check(eph.id + " within twice the tolerance at random times", posErr < 2*tol);
+		check(eph.id + " smaller than the ephemerides", bytes.length*10 < ephBytes);
+
+		ChebyshevEphemeris ce2 = ChebyshevEphemeris.fromBytes(bytes);
+		boolean same = ce2.getNumSegments() == ce.getNumSegments() && eph.id.equals(ce2.getId()) && "teme".equals(ce2.getFrame());
+		double r2[] = new double[3];
+		double v2[] = new double[3];
+		for(int i=0; i<num; i++)
+		{
+			ce.getRV(times[i], r, v);
+			ce2.getRV(times[i], r2, v2);
+			for(int j=0; j<3; j++) same = same && r[j] == r2[j] && v[j] == v2[j];
+		}
+		check(eph.id + " binary round trip", same);
+
+		CartesianSource src = ce;
+		List<CartesianState> carts = src.getCartesians(d1, d2, 60);
+		check(eph.id + " as a CartesianSource", carts.size() == 1441 && carts.get(1440) != null && src.getCartesian(new Date(d2.getTime()+1)) == null);
+
+		for(int rep=0; rep<2; rep++)
+		{
+			double sum = 0;
+			long n0 = System.nanoTime();
+			for(int i=0; i<num; i++)
+			{
+				ce.getRV(times[i], r, v);
+				sum += r[0];
+			}
+			long n1 = System.nanoTime();
+			for(int i=0; i<num; i++)
+			{
+				sum += eph.getRV(times[i])[0][0];
+			}
+			long n2 = System.nanoTime();
+			if(sum == 0) System.out.print("");
+			System.out.println("\tns per lookup chebyshev " + (n1-n0)/num + "\tephemerides " + (n2-n1)/num);
+		}
+	}
+
+	/**
+	 * Bad headers and sources with gaps fail with an exception saying so.
+	 */
+	public static void testBadInput(TLE tle) throws Exception
+	{
+		Date d1 = tle.getEpoch();
+		Date d2 = new Date(d1.getTime()+3600000L);
+		Ephemerides eph = new Ephemerides(tle, d1, d2, 1.0);
+		byte bytes[] = ChebyshevEphemeris.fit(eph, 1e-3).toBytes();
+
+		// degree and number of segments are the two ints before the coefficients, the last
+		// count fits in an int but is 2.4 GB of doubles the data does not have
+		ChebyshevEphemeris ce = ChebyshevEphemeris.fromBytes(bytes);
+		int off = bytes.length-8*ce.coeffs.length-8;
+		int vals[][] = {{-1,1},{12,-5},{12,0},{Integer.MAX_VALUE,Integer.MAX_VALUE},{1000000,100000},{1000,100000}};
+		for(int i=0; i<vals.length; i++)
+		{
+			ByteBuffer.wrap(bytes, off, 8).putInt(vals[i][0]).putInt(vals[i][1]);
+			boolean threw = false;
+			try
+			{
+				ChebyshevEphemeris.fromBytes(bytes);
+			}
+			catch(IOException ex)
+			{
+				threw = true;
+			}
+			check("degree " + vals[i][0] + " segments " + vals[i][1] + " throws IOException", threw);
+		}
+
+		boolean threw = false;
+		try
+		{
+			ChebyshevEphemeris.fit(eph, d1, new Date(d2.getTime()+3600000L), 1e-3);
+		}
+		catch(IllegalArgumentException ex)
+		{
+			threw = ex.getMessage().startsWith("Source has no state");
+		}
+		check("fit past the end of the source throws IllegalArgumentException", threw);
+	}
+
+	public static void main(String args[])
+	{
+		double tol = 1e-3;
+		if(args.length > 0) tol = Double.parseDouble(args[0]);
+
+		try
+		{
+			for(int i=0; i<lines.length; i++)
+			{
+				test(new TLE(lines[i][0], lines[i][1]), tol);
+			}
+			testBadInput(new TLE(lines[0][0], lines[0][1]));
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			failed++;
+		}
+
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
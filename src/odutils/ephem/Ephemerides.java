@@ -24,6 +24,13 @@ import java.util.List;
 
 import odutils.util.InterpUtil;
 
+import sgp4.TLE;
+
+/**
+ * Cartesian states sampled in time and interpolated between.  The sample bracketing a time
+ * is found directly when the samples are evenly spaced and by binary search otherwise, a
+ * Cursor reuses the last sample found for increasing times.
+ */
 public class Ephemerides implements CartesianSource
 {
     public String id;
@@ -46,12 +53,33 @@ public class Ephemerides implements CartesianSource
     
     protected String frame = null;
     
+    // seconds between samples if they are evenly spaced, otherwise 0
+    protected double step = 0;
+    
+    // points used by the interpolation
+    public static final int NUM_INTERP = 6;
+    
     public Ephemerides(List<CartesianState> carts, String id)
     {
     	this.id = id;
     	buildArrays(carts);
     }
     
+    /**
+     * Propagate the TLE with SGP4 from d1 to d2 filling the arrays directly.
+     * The sampling matches EphemerisUtil.getCarts.
+     * 
+     * @param tle
+     * @param d1
+     * @param d2
+     * @param tStepSec
+     */
+    public Ephemerides(TLE tle, Date d1, Date d2, double tStepSec)
+    {
+    	this.id = tle.getObjectID();
+    	buildArrays(tle, d1, d2, tStepSec);
+    }
+    
     public void setFrame(String f)
     {
     	frame = f;
@@ -84,11 +112,6 @@ public class Ephemerides implements CartesianSource
     	double dt = 0;
     	double milli2Sec = 1.0d/1000.0;
     	
-    	minR = Double.MAX_VALUE;
-    	maxR = -10000000;
-    	minV = Double.MAX_VALUE;
-    	maxV = -10000000;
-    	double mag = 0;
     	for(int i=0; i<size; i++)
     	{
     		cart = carts.get(i);
@@ -102,8 +125,63 @@ public class Ephemerides implements CartesianSource
     		vxs[i]=cart.vx;
     		vys[i]=cart.vy;
     		vzs[i]=cart.vz;
-    		
-    		mag = cart.getRmag();
+    	}
+    	
+    	carts = null;
+    	
+    	calcLimits();
+    	calcStep();
+    }
+    
+    protected void buildArrays(TLE tle, Date d1, Date d2, double tStepSec)
+    {
+    	long tstep = (long)(1000.0d*tStepSec);
+    	long times[] = EphemerisUtil.getSampleTimes(d1.getTime(), d2.getTime(), tstep);
+    	double mins[] = EphemerisUtil.getMinutesAfterEpoch(tle, times);
+    	
+    	int size = times.length;
+    	
+    	t1 = times[0];
+    	t2 = times[size-1];
+    	
+    	ts = new double[size];
+    	rxs = new double[size];
+    	rys = new double[size];
+    	rzs = new double[size];
+    	vxs = new double[size];
+    	vys = new double[size];
+    	vzs = new double[size];
+    	
+    	double dt = 0;
+    	double milli2Sec = 1.0d/1000.0;
+    	for(int i=0; i<size; i++)
+    	{
+    		dt = times[i]-t1;
+    		dt *= milli2Sec;
+    		ts[i]=dt;
+    	}
+    	
+    	tle.getRVs(mins, rxs, rys, rzs, vxs, vys, vzs, null);
+    	
+    	calcLimits();
+    	calcStep();
+    }
+    
+    /**
+     * Find the min and max of the position and velocity magnitudes.
+     */
+    protected void calcLimits()
+    {
+    	minR = Double.MAX_VALUE;
+    	maxR = -10000000;
+    	minV = Double.MAX_VALUE;
+    	maxV = -10000000;
+    	double mag = 0;
+    	
+    	int size = ts.length;
+    	for(int i=0; i<size; i++)
+    	{
+    		mag = Math.sqrt(rxs[i]*rxs[i]+rys[i]*rys[i]+rzs[i]*rzs[i]);
     		if(mag < minR)
     		{
     			minR = mag;
@@ -113,7 +191,7 @@ public class Ephemerides implements CartesianSource
     			maxR = mag;
     		}
     		
-    		mag = cart.getVmag();
+    		mag = Math.sqrt(vxs[i]*vxs[i]+vys[i]*vys[i]+vzs[i]*vzs[i]);
     		if(mag < minV)
     		{
     			minV = mag;
@@ -123,8 +201,70 @@ public class Ephemerides implements CartesianSource
     			maxV = mag;
     		}
     	}
+    }
+    
+    /**
+     * Check if the samples are evenly spaced, to within a microsecond of ms sampling.
+     */
+    protected void calcStep()
+    {
+    	step = 0;
+    	int size = ts.length;
+    	if(size < 2) return;
     	
-    	carts = null;
+    	double h = (ts[size-1]-ts[0])/(size-1);
+    	if(!(h > 0)) return;
+    	
+    	for(int i=1; i<size; i++)
+    	{
+    		if(Math.abs(ts[i]-ts[0]-i*h) > 1e-6)
+    		{
+    			return;
+    		}
+    	}
+    	step = h;
+    }
+    
+    /**
+     * Seconds between samples if they are evenly spaced, otherwise 0.
+     * 
+     * @return
+     */
+    public double getStep()
+    {
+    	return step;
+    }
+    
+    /**
+     * First sample index with ts[i] >= dt.  Computed from the step when the samples are evenly
+     * spaced, then corrected by the neighbours so it is the same index a scan finds.
+     * 
+     * @param dt seconds from t1
+     * @return
+     */
+    public int findIndex(double dt)
+    {
+    	int size = ts.length;
+    	if(step <= 0)
+    	{
+    		return InterpUtil.upperIndex(ts, dt);
+    	}
+    	
+    	int ind = (int)Math.ceil((dt-ts[0])/step);
+    	if(ind < 0) ind = 0;
+    	if(ind > size) ind = size;
+    	return correctIndex(ind, dt);
+    }
+    
+    /**
+     * Move a nearby index to the first one with ts[i] >= dt.
+     */
+    protected int correctIndex(int ind, double dt)
+    {
+    	int size = ts.length;
+    	while(ind > 0 && ts[ind-1] >= dt) ind--;
+    	while(ind < size && ts[ind] < dt) ind++;
+    	return ind;
     }
     
     public long getTimeMS(int ind)
@@ -155,7 +295,7 @@ public class Ephemerides implements CartesianSource
     	double dt = t-t1;
     	dt = dt/1000.0d;
     	
-    	double vals[][] = InterpUtil.hermiteWFD3D(ts, rxs, rys, rzs, vxs, vys, vzs, 6, dt);
+    	double vals[][] = InterpUtil.hermiteWFD3D(ts, rxs, rys, rzs, vxs, vys, vzs, NUM_INTERP, dt, findIndex(dt));
     	
     	double rv[] = vals[0];
     	double vv[] = vals[1];
@@ -177,10 +317,97 @@ public class Ephemerides implements CartesianSource
     	double dt = t-t1;
     	dt = dt/1000.0d;
     	
-    	double vals[][] = InterpUtil.hermiteWFD3D(ts, rxs, rys, rzs, vxs, vys, vzs, 6, dt);
+    	double vals[][] = InterpUtil.hermiteWFD3D(ts, rxs, rys, rzs, vxs, vys, vzs, NUM_INTERP, dt, findIndex(dt));
     	
     	return vals;
     }
+    
+    /**
+     * A cursor for a run of lookups with increasing times.
+     * 
+     * @return
+     */
+    public Cursor cursor()
+    {
+    	return new Cursor();
+    }
+    
+    /**
+     * Remembers the last sample found, so a lookup at a later time only steps forward from it.
+     * Only irregular samples use that, evenly spaced ones compute the index as findIndex does.
+     * Times can go backwards, that lookup is just not faster.  Not thread safe, each thread
+     * should use its own.
+     */
+    public class Cursor
+    {
+    	protected int ind = 0;
+    	
+    	protected Cursor()
+    	{
+    		
+    	}
+    	
+    	protected int find(double dt)
+    	{
+    		if(step > 0)
+    		{
+    			// the arithmetic index is cheaper than checking the hint
+    			return findIndex(dt);
+    		}
+    		
+    		int size = ts.length;
+    		if(ind < size && ts[ind] < dt && (ind+8 >= size || ts[ind+8] >= dt))
+    		{
+    			// a few samples ahead
+    			ind = correctIndex(ind, dt);
+    		}
+    		else if(!(ind < size && ts[ind] >= dt && (ind == 0 || ts[ind-1] < dt)))
+    		{
+    			ind = findIndex(dt);
+    		}
+    		return ind;
+    	}
+    	
+    	/**
+    	 * Same as Ephemerides.getRV.
+    	 * 
+    	 * @param t
+    	 * @return
+    	 */
+    	public double[][] getRV(long t)
+    	{
+        	if(t<t1 || t > t2)
+        	{
+        		return null;
+        	}
+        	
+        	double dt = t-t1;
+        	dt = dt/1000.0d;
+        	
+        	return InterpUtil.hermiteWFD3D(ts, rxs, rys, rzs, vxs, vys, vzs, NUM_INTERP, dt, find(dt));
+    	}
+    	
+    	/**
+    	 * Same as Ephemerides.getCartesian.
+    	 * 
+    	 * @param d
+    	 * @return
+    	 */
+    	public CartesianState getCartesian(Date d)
+    	{
+    		double vals[][] = getRV(d.getTime());
+    		if(vals == null)
+    		{
+    			return null;
+    		}
+    		
+        	CartesianState cs = new CartesianState();
+        	cs.setEpoch(new java.sql.Timestamp(d.getTime()));
+        	cs.setRVec(vals[0]);
+        	cs.setVVec(vals[1]);
+        	return cs;
+    	}
+    }
 
     public boolean supportsUpdates()
     {
@@ -222,13 +449,13 @@ public class Ephemerides implements CartesianSource
     	
     	long t2 = d2.getTime();
     	t = d1.getTime();
-    	double rv[][] = null;
+    	Cursor cursor = cursor();
     	
    
 		while(t < t2)
 		{
 			d = new java.sql.Timestamp(t);
-			cart = getCartesian(d);
+			cart = cursor.getCartesian(d);
 			carts.add(cart);
 			
 			t+=tstep;
@@ -236,7 +463,7 @@ public class Ephemerides implements CartesianSource
 		
 		// ensure last date is included regardless of steps
 		d = new java.sql.Timestamp(t2);
-		cart = getCartesian(d);
+		cart = cursor.getCartesian(d);
 		carts.add(cart);
 
 		return carts;
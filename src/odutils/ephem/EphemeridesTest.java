@@ -0,0 +1,163 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import odutils.util.InterpUtil;
+import sgp4.TLE;
+
+/**
+ * Compares the Ephemerides lookups, evenly spaced, binary search and cursor, to the scan in
+ * InterpUtil.hermiteWFD3D for accuracy and speed on a day of 1 second samples.  The lookups
+ * must give exactly the scan's values.  Prints PASS or FAIL for each check.
+ *
+ * Usage: EphemeridesTest [queries]
+ *
+ * @author aholinch
+ *
+ */
+public class EphemeridesTest
+{
+	public static final String line1 = "1 25544U 98067A   08264.51782528 -.00002182  00000-0 -11606-4 0  2927";
+	public static final String line2 = "2 25544  51.6416 247.4627 0006703 130.5360 325.0288 15.72125391563537";
+
+	protected static int failed = 0;
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	/**
+	 * Largest difference from the scan over the query times.
+	 */
+	public static double compare(Ephemerides eph, long times[], boolean useCursor)
+	{
+		Ephemerides.Cursor cursor = eph.cursor();
+		double err = 0;
+		double vals[][] = null;
+		double ref[][] = null;
+		double dt = 0;
+		for(int i=0; i<times.length; i++)
+		{
+			dt = (times[i]-eph.t1)/1000.0d;
+			ref = InterpUtil.hermiteWFD3D(eph.ts, eph.rxs, eph.rys, eph.rzs, eph.vxs, eph.vys, eph.vzs, Ephemerides.NUM_INTERP, dt);
+			vals = useCursor?cursor.getRV(times[i]):eph.getRV(times[i]);
+			for(int j=0; j<3; j++)
+			{
+				err = Math.max(err, Math.abs(vals[0][j]-ref[0][j]));
+				err = Math.max(err, Math.abs(vals[1][j]-ref[1][j]));
+			}
+		}
+		return err;
+	}
+
+	public static long timeScan(Ephemerides eph, long times[])
+	{
+		double sum = 0;
+		long t0 = System.nanoTime();
+		for(int i=0; i<times.length; i++)
+		{
+			double dt = (times[i]-eph.t1)/1000.0d;
+			sum += InterpUtil.hermiteWFD3D(eph.ts, eph.rxs, eph.rys, eph.rzs, eph.vxs, eph.vys, eph.vzs, Ephemerides.NUM_INTERP, dt)[0][0];
+		}
+		long t = System.nanoTime()-t0;
+		if(sum == 0) System.out.print("");
+		return t;
+	}
+
+	public static long timeLookup(Ephemerides eph, long times[], boolean useCursor)
+	{
+		Ephemerides.Cursor cursor = eph.cursor();
+		double sum = 0;
+		long t0 = System.nanoTime();
+		for(int i=0; i<times.length; i++)
+		{
+			sum += (useCursor?cursor.getRV(times[i]):eph.getRV(times[i]))[0][0];
+		}
+		long t = System.nanoTime()-t0;
+		if(sum == 0) System.out.print("");
+		return t;
+	}
+
+	public static void run(String name, Ephemerides eph, long sorted[], long random[])
+	{
+		System.out.println(name + "\tsamples " + eph.ts.length + "\tstep " + eph.getStep());
+		double diff = compare(eph, random, false);
+		check(name + " lookup random max diff " + diff, diff == 0);
+		diff = compare(eph, sorted, true);
+		check(name + " cursor sorted max diff " + diff, diff == 0);
+		diff = compare(eph, random, true);
+		check(name + " cursor random max diff " + diff, diff == 0);
+
+		for(int rep=0; rep<2; rep++)
+		{
+			double n = random.length;
+			System.out.println("\tns per lookup, scan random " + timeScan(eph, random)/n + "\tlookup random " + timeLookup(eph, random, false)/n +
+					"\tscan sorted " + timeScan(eph, sorted)/n + "\tlookup sorted " + timeLookup(eph, sorted, false)/n +
+					"\tcursor sorted " + timeLookup(eph, sorted, true)/n);
+		}
+	}
+
+	public static void main(String args[])
+	{
+		int num = 20000;
+		if(args.length > 0) num = Integer.parseInt(args[0]);
+
+		TLE tle = new TLE(line1, line2);
+		Date d1 = tle.getEpoch();
+		Date d2 = new Date(d1.getTime()+86400000L);
+
+		Ephemerides even = new Ephemerides(tle, d1, d2, 1.0);
+
+		// the same span with uneven samples
+		Random rand = new Random(7);
+		List<CartesianState> carts = new ArrayList<CartesianState>();
+		long t = d1.getTime();
+		while(t < d2.getTime())
+		{
+			double rv[][] = tle.getRV(new Date(t));
+			CartesianState cart = new CartesianState();
+			cart.setEpoch(new Date(t));
+			cart.setRVec(rv[0]);
+			cart.setVVec(rv[1]);
+			carts.add(cart);
+			t += 500 + rand.nextInt(1000);
+		}
+		Ephemerides uneven = new Ephemerides(carts, "uneven");
+
+		long span = uneven.t2-uneven.t1;
+		long sorted[] = new long[num];
+		long random[] = new long[num];
+		for(int i=0; i<num; i++)
+		{
+			sorted[i] = uneven.t1 + (long)(span*((double)i)/num);
+			random[i] = uneven.t1 + (long)(span*rand.nextDouble());
+		}
+
+		run("even", even, sorted, random);
+		run("uneven", uneven, sorted, random);
+
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
@@ -17,8 +17,6 @@ limitations under the License.
 */
 package odutils.ephem;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
@@ -141,9 +139,18 @@ public class EphemerisUtil
 	
     public static Ephemerides buildEphemerides(TLE tle, Date d1, Date d2, double tStepSec)
     {
-    	List<CartesianState> carts = getCarts(tle,d1,d2,tStepSec,true);
+    	Ephemerides eph = null;
     	
-    	Ephemerides eph = new Ephemerides(carts,tle.getObjectID());
+    	if(tle.getElType()<4)
+    	{
+    		// fill the arrays directly without building the list of carts
+    		eph = new Ephemerides(tle,d1,d2,tStepSec);
+    	}
+    	else
+    	{
+	    	List<CartesianState> carts = getCarts(tle,d1,d2,tStepSec,true);
+	    	eph = new Ephemerides(carts,tle.getObjectID());
+    	}
     	
     	return eph;
     }
@@ -174,52 +181,94 @@ public class EphemerisUtil
 		return cart;
     }
     
-    public static List<CartesianState> getCarts(TLE tle, Date d1, Date d2, double tStepSec, boolean makej2k)
+    /**
+     * Returns the times in ms from t1 up to but not including t2 at the given step
+     * followed by t2 itself.  This is the sampling used by getCarts.
+     * 
+     * @param t1
+     * @param t2
+     * @param tstep
+     * @return
+     */
+    public static long[] getSampleTimes(long t1, long t2, long tstep)
     {
-    	double dt = d2.getTime()-d1.getTime();
-    	dt = dt/(tStepSec*1000.0);
+    	int size = 1;
+    	if(t2 > t1)
+    	{
+    		size += (int)((t2-t1+tstep-1)/tstep);
+    	}
     	
-    	int size = (int)(dt+1);
+    	long times[] = new long[size];
+    	long t = t1;
+    	for(int i=0; i<size-1; i++)
+    	{
+    		times[i] = t;
+    		t += tstep;
+    	}
     	
-    	List<CartesianState> carts = new ArrayList<CartesianState>(size);
+    	// ensure last date is included regardless of steps
+    	times[size-1] = t2;
     	
-    	CartesianState cart = null;
-    	Date d = null;
-    	long t = 0;
+    	return times;
+    }
+    
+    /**
+     * Convert times in ms to minutes after the epoch of the TLE.
+     * 
+     * @param tle
+     * @param times
+     * @return
+     */
+    public static double[] getMinutesAfterEpoch(TLE tle, long times[])
+    {
+    	double epoch = tle.getEpoch().getTime();
+    	double mins[] = new double[times.length];
     	
-    	long tstep = (long)(1000.0d*tStepSec);
+    	double t = 0;
+    	for(int i=0; i<times.length; i++)
+    	{
+    		t = times[i];
+    		t -= epoch;
+    		t/= 60000;
+    		mins[i] = t;
+    	}
+    	
+    	return mins;
+    }
+    
+    public static List<CartesianState> getCarts(TLE tle, Date d1, Date d2, double tStepSec, boolean makej2k)
+    {
+    	List<CartesianState> carts = null;
     	
-    	long t2 = d2.getTime();
-    	t = d1.getTime();
-    	double rv[][] = null;
+    	long tstep = (long)(1000.0d*tStepSec);
     	
     	if(tle.getElType()<4)
     	{
-			while(t < t2)
-			{
-				d = new java.sql.Timestamp(t);
+    		long times[] = getSampleTimes(d1.getTime(), d2.getTime(), tstep);
+    		double mins[] = getMinutesAfterEpoch(tle, times);
+    		
+    		int size = times.length;
+    		double rx[] = new double[size];
+    		double ry[] = new double[size];
+    		double rz[] = new double[size];
+    		double vx[] = new double[size];
+    		double vy[] = new double[size];
+    		double vz[] = new double[size];
+    		
+    		tle.getRVs(mins, rx, ry, rz, vx, vy, vz, null);
+    		
+    		carts = new ArrayList<CartesianState>(size);
+    		CartesianState cart = null;
+    		for(int i=0; i<size; i++)
+    		{
 				cart = new CartesianState();
-				cart.setEpoch(d);
-				
-				rv = tle.getRV(d);
-				
-				cart.setRVec(rv[0]);
-				cart.setVVec(rv[1]);
+				cart.setEpoch(new java.sql.Timestamp(times[i]));
+				cart.setRVec(rx[i],ry[i],rz[i]);
+				cart.vx = vx[i];
+				cart.vy = vy[i];
+				cart.vz = vz[i];
 				carts.add(cart);
-				
-				t+=tstep;
-			}
-			
-			// ensure last date is included regardless of steps
-			d = new java.sql.Timestamp(t2);
-			cart = new CartesianState();
-			cart.setEpoch(d);
-			
-			rv = tle.getRV(d);
-			
-			cart.setRVec(rv[0]);
-			cart.setVVec(rv[1]);
-			carts.add(cart);
+    		}
     	}
     	else
     	{
@@ -269,45 +318,18 @@ public class EphemerisUtil
     	return out;
     }
     
+    /**
+     * Every "1 " line followed by a "2 " line, the satellite numbers need not match.  Read
+     * in parallel by TLECatalogReader.
+     * 
+     * @param file
+     * @return
+     */
     public static List<TLE> parseTLEs(String file)
     {
-    	List<TLE> tles = new ArrayList<TLE>(30000);
-    	
-    	BufferedReader br = null;
-    	FileReader fr = null;
-    	TLE tle = null;
-    	try
-    	{
-    		fr = new FileReader(file);
-    		br = new BufferedReader(fr);
-    		
-    		String line1 = null;
-    		String line2 = null;
-    		
-    		line1 = br.readLine();
-    		line2 = br.readLine();
-    		while(line2 != null)
-    		{
-    			if(line1.startsWith("1 ") && line2.startsWith("2 "))
-    			{
-    				tle = new TLE(line1,line2);
-    				tles.add(tle);
-    			}
-    			line1 = line2;
-    			line2 = br.readLine();
-    		}
-    	}
-    	catch(Exception ex)
-    	{
-    		br = null;
-    	}
-    	finally
-    	{
-    		if(fr != null)try{fr.close();}catch(Exception ex){}
-    		if(br != null)try{br.close();}catch(Exception ex){}
-    	}
-    	
-    	return tles;
+    	TLECatalogReader reader = new TLECatalogReader(file);
+    	reader.setMatchIds(false);
+    	return reader.readTLEs();
     }
 
     /**
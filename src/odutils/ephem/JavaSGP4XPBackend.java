@@ -0,0 +1,179 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import odutils.util.DateUtil;
+import sgp4.SGP4State;
+import sgp4.TLE;
+
+/**
+ * Stand in for the native library using the java SGP4.  Element type 4 lines are propagated
+ * as regular SGP4, so the numbers are not SGP4-XP, but the keys and calls behave like the
+ * native ones, including refusing a second satellite with the same number and epoch.  Useful
+ * for testing without the USSF binaries.
+ *
+ * @author aholinch
+ *
+ */
+public class JavaSGP4XPBackend implements SGP4XPBackend
+{
+	protected static final long T1950 = DateUtil.getDate(1950, 1, 1).getTime();
+
+	protected AtomicLong nextKey = new AtomicLong(1);
+	protected Map<Long,TLE> loaded = new ConcurrentHashMap<Long,TLE>();
+	protected Map<Long,TLE> initialized = new ConcurrentHashMap<Long,TLE>();
+
+	// satellite number and epoch of each loaded key
+	protected Map<String,Long> satIds = new ConcurrentHashMap<String,Long>();
+	protected Map<Long,String> keyIds = new ConcurrentHashMap<Long,String>();
+
+	// calls made, to compare with the cache metrics
+	protected AtomicLong numAdds = new AtomicLong();
+	protected AtomicLong numInits = new AtomicLong();
+	protected AtomicLong numProps = new AtomicLong();
+	protected AtomicLong numRemoves = new AtomicLong();
+
+	@Override
+	public long addSat(String line1, String line2)
+	{
+		numAdds.incrementAndGet();
+		TLE tle = null;
+		try
+		{
+			tle = new TLE(line1,line2);
+		}
+		catch(Exception ex)
+		{
+			return -1;
+		}
+		if(tle.getEpoch() == null)
+		{
+			return -1;
+		}
+		long satKey = nextKey.getAndIncrement();
+		String id = SGP4XPSatCache.getSatId(line1);
+		if(satIds.putIfAbsent(id, satKey) != null)
+		{
+			// already loaded
+			return -1;
+		}
+		keyIds.put(satKey, id);
+		loaded.put(satKey, tle);
+		return satKey;
+	}
+
+	@Override
+	public int initSat(long satKey)
+	{
+		numInits.incrementAndGet();
+		TLE tle = loaded.get(satKey);
+		if(tle == null)
+		{
+			return 1;
+		}
+		initialized.put(satKey, tle);
+		return tle.getSgp4Error();
+	}
+
+	@Override
+	public int propMse(long satKey, double minSinceEpoch, double ds50UTC[], double pos[], double vel[])
+	{
+		numProps.incrementAndGet();
+		TLE tle = initialized.get(satKey);
+		if(tle == null)
+		{
+			return 1;
+		}
+
+		SGP4State st = new SGP4State();
+		tle.getRV(st, minSinceEpoch, pos, vel);
+
+		double t = tle.getEpoch().getTime() + minSinceEpoch*60000.0d;
+		ds50UTC[0] = (t-T1950)/86400000.0d + 1.0d;
+		return st.error;
+	}
+
+	@Override
+	public int propMse(long satKey, double minSinceEpoch[], double out[])
+	{
+		double ds50UTC[] = new double[1];
+		double pos[] = new double[3];
+		double vel[] = new double[3];
+		int errCode = 0;
+		int err = 0;
+		int ind = 0;
+		for(int i=0; i<minSinceEpoch.length; i++)
+		{
+			err = propMse(satKey, minSinceEpoch[i], ds50UTC, pos, vel);
+			if(errCode == 0) errCode = err;
+			ind = i*STATE_SIZE;
+			out[ind] = ds50UTC[0];
+			out[ind+1] = pos[0];
+			out[ind+2] = pos[1];
+			out[ind+3] = pos[2];
+			out[ind+4] = vel[0];
+			out[ind+5] = vel[1];
+			out[ind+6] = vel[2];
+		}
+		return errCode;
+	}
+
+	@Override
+	public void removeSat(long satKey)
+	{
+		numRemoves.incrementAndGet();
+		loaded.remove(satKey);
+		initialized.remove(satKey);
+		String id = keyIds.remove(satKey);
+		if(id != null) satIds.remove(id, satKey);
+	}
+
+	/**
+	 * Satellites loaded and not removed.
+	 *
+	 * @return
+	 */
+	public int getLoadedCount()
+	{
+		return loaded.size();
+	}
+
+	public long getAddCount()
+	{
+		return numAdds.get();
+	}
+
+	public long getInitCount()
+	{
+		return numInits.get();
+	}
+
+	public long getPropCount()
+	{
+		return numProps.get();
+	}
+
+	public long getRemoveCount()
+	{
+		return numRemoves.get();
+	}
+}
@@ -17,6 +17,8 @@ limitations under the License.
 */
 package odutils.ephem;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -25,13 +27,32 @@ import java.util.GregorianCalendar;
 import odutils.util.DateUtil;
 
 import sgp4.ElsetRec;
+import sgp4.SGP4Satellite;
+import sgp4.SGP4State;
 import sgp4.TLE;
+import sgp4.TLEParser;
 
+/**
+ * A TLE whose elements can be changed.  By default commit() writes the two lines and parses
+ * them again.  With direct init the elements go straight to a new ElsetRec and sgp4init,
+ * and the lines are only written when getLine1() or getLine2() is called.  Quantizing rounds
+ * the elements the same way the lines would so the results match the text form exactly.
+ * 
+ * @author aholinch
+ *
+ */
 public class MutableTLE extends TLE
 {
     protected TLE tle = null;
     protected boolean needsCommit = false;
     
+    protected boolean directInit = false;
+    protected boolean quantize = false;
+    protected boolean epochChanged = false;
+    
+    // epoch the lines are written from after quantizing
+    protected Date lineEpoch = null;
+    
     public MutableTLE()
     {
     	needsCommit = true;
@@ -43,13 +64,248 @@ public class MutableTLE extends TLE
     	setLines(line1,line2);
     }
     
+    /**
+     * Copy the elements of base without parsing its lines.  The copy uses direct init since
+     * it has no lines until they are asked for.  The epoch values are read from the record
+     * of base, which is not changed.
+     * 
+     * @param base
+     */
+    public MutableTLE(TLE base)
+    {
+    	tle = new TLE();
+    	if(base.getElsetRec() != null) tle.setElsetRec(base.getElsetRec());
+    	tle.setIntlID(base.getIntlID());
+    	tle.setObjectID(base.getObjectID());
+    	tle.setEpoch(base.getEpoch());
+    	tle.setNDot(base.getNDot());
+    	tle.setNDDot(base.getNDDot());
+    	tle.setBstar(base.getBstar());
+    	tle.setElType(base.getElType());
+    	tle.setElNum(base.getElNum());
+    	tle.setIncDeg(base.getIncDeg());
+    	tle.setRaanDeg(base.getRaanDeg());
+    	tle.setEcc(base.getEcc());
+    	tle.setArgpDeg(base.getArgpDeg());
+    	tle.setMaDeg(base.getMaDeg());
+    	tle.setN(base.getN());
+    	tle.setRevNum(base.getRevNum());
+    	
+    	directInit = true;
+    	needsCommit = true;
+    }
+    
     public void setLines(String line1, String line2)
     {
     	tle = new TLE(line1,line2);
+    	this.line1 = line1;
+    	this.line2 = line2;
     	needsCommit = false;
+    	epochChanged = false;
+    	lineEpoch = null;
+    }
+    
+    public boolean getDirectInit()
+    {
+    	return directInit;
+    }
+    
+    /**
+     * When true commit() runs sgp4init from the elements without writing and parsing the
+     * lines.
+     * 
+     * @param flag
+     */
+    public void setDirectInit(boolean flag)
+    {
+    	if(flag && !directInit)
+    	{
+    		line1 = tle.getLine1();
+    		line2 = tle.getLine2();
+    	}
+    	else if(!flag && directInit)
+    	{
+    		// the parsed lines no longer match
+    		needsCommit = true;
+    	}
+    	directInit = flag;
+    }
+    
+    public boolean getQuantize()
+    {
+    	return quantize;
+    }
+    
+    /**
+     * When true direct init first rounds the elements and epoch to the digits the lines
+     * hold.  The text form always does this.
+     * 
+     * @param flag
+     */
+    public void setQuantize(boolean flag)
+    {
+    	if(flag != quantize) needsCommit = true;
+    	quantize = flag;
     }
     
     public void commit()
+    {
+    	lineEpoch = null;
+    	if(directInit)
+    	{
+    		initDirect();
+    	}
+    	else
+    	{
+    		String lines[] = formatLines();
+    		tle = new TLE(lines[0],lines[1]);
+    	}
+    	epochChanged = false;
+    	needsCommit = false;
+    }
+    
+    /**
+     * Set the elements on a new ElsetRec and run sgp4init.  Without quantizing the epoch
+     * values are kept from the current record unless the epoch was changed.
+     */
+    protected void initDirect()
+    {
+    	if(quantize) quantizeElements();
+    	
+    	ElsetRec old = tle.getElsetRec();
+    	ElsetRec er = new ElsetRec();
+    	// the text form rounds the epoch date again on every commit
+    	if(quantize || epochChanged || old == null)
+    	{
+    		setEpochVals(er);
+    	}
+    	else
+    	{
+    		er.epochyr = old.epochyr;
+    		er.epochdays = old.epochdays;
+    		er.jdsatepoch = old.jdsatepoch;
+    		er.jdsatepochF = old.jdsatepochF;
+    	}
+    	er.classification = 'U';
+    	
+    	tle.initRec(er);
+    	
+    	line1 = null;
+    	line2 = null;
+    }
+    
+    /**
+     * Round the elements to the precision of the lines.  Each value is what parsing the
+     * formatted text would give.
+     */
+    protected void quantizeElements()
+    {
+    	tle.setIncDeg(quantizeAngle(tle.getIncDeg()));
+    	tle.setRaanDeg(quantizeAngle(tle.getRaanDeg()));
+    	tle.setArgpDeg(quantizeAngle(tle.getArgpDeg()));
+    	tle.setMaDeg(quantizeAngle(tle.getMaDeg()));
+    	tle.setEcc(roundDigits(tle.getEcc(),7)/1e7);
+    	tle.setN(roundDigits(tle.getN(),8)/1e8);
+    	
+    	double val = tle.getNDot();
+    	double num = roundDigits(Math.abs(val),8)/1e8;
+    	if(val < 0) num *= -1.0d;
+    	tle.setNDot(num);
+    	
+    	tle.setNDDot(quantizeImpDec(tle.getNDDot()));
+    	tle.setBstar(quantizeImpDec(tle.getBstar()));
+    }
+    
+    protected double quantizeAngle(double val)
+    {
+    	return Math.copySign(roundDigits(Math.abs(val),4)/1e4, val);
+    }
+    
+    /**
+     * Value of an implied decimal field as written by formatImpDec and parsed back.
+     * 
+     * @param val
+     * @return
+     */
+    protected double quantizeImpDec(double val)
+    {
+    	double av = Math.abs(val);
+    	int exp = impDecExponent(av);
+    	long mantissa = Math.round(av * Math.pow(10.0d, 5-exp));
+    	
+    	double num = mantissa/1e5;
+    	if(val < 0) num *= -1.0d;
+    	num *= Math.pow(10.0d, exp);
+    	return num;
+    }
+    
+    /**
+     * Round a non-negative value to the given number of decimal digits the same way
+     * DecimalFormat does, half even on the exact binary value.
+     * 
+     * @param val
+     * @param digits
+     * @return the rounded value times 10^digits
+     */
+    protected static long roundDigits(double val, int digits)
+    {
+    	double scaled = val*Math.pow(10.0d, digits);
+    	double fl = Math.floor(scaled);
+    	double rem = scaled-fl;
+    	if(Math.abs(rem-0.5d) > 1e-6)
+    	{
+    		return (long)(rem < 0.5d ? fl : fl+1);
+    	}
+    	
+    	// too close to a tie to trust the scaled value
+    	return new BigDecimal(val).setScale(digits, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+    }
+    
+    /**
+     * Set the epoch values of er from the epoch date.  When quantizing the fraction of day
+     * is rounded to the eight digits of line 1 and the epoch date is updated to match, the
+     * lines are still written from the date before rounding as the text form would.
+     * 
+     * @param er
+     */
+    protected void setEpochVals(ElsetRec er)
+    {
+    	long ms = tle.getEpoch().getTime();
+    	if(!quantize)
+    	{
+    		TLEParser.setEpoch(er, ms);
+    		return;
+    	}
+    	
+    	long day = Math.floorDiv(ms, 86400000L);
+    	long msOfDay = ms - day*86400000L;
+    	int year = TLEParser.yearFromDays(day);
+    	int doy = (int)(day - TLEParser.daysFromCivil(year, 1, 1)) + 1;
+    	
+    	// same steps as formatEpochDate
+    	double dfrac = msOfDay%1000;
+    	dfrac /= 1000.0d;
+    	dfrac += (msOfDay/1000)%60;
+    	dfrac /= 60.0d;
+    	dfrac += (msOfDay/60000)%60;
+    	dfrac /= 60.0d;
+    	dfrac += msOfDay/3600000;
+    	dfrac /= 24.0d;
+    	
+    	// a fraction that rounds up to a whole day is written as .00000000 on the same day
+    	long mant = roundDigits(dfrac,8) % 100000000L;
+    	
+    	int yy = year < 2000 ? year-1900 : year-2000;
+    	lineEpoch = tle.getEpoch();
+    	tle.setEpoch(TLEParser.setEpoch(er, yy, doy, mant/1e8));
+    }
+    
+    /**
+     * Write the two lines from the current elements.
+     * 
+     * @return
+     */
+    protected String[] formatLines()
     {
     	// we need to write the two lines
     	//          1         2         3         4         5         6
@@ -76,7 +332,7 @@ public class MutableTLE extends TLE
     	if(str.length()>8)str = str.substring(0,8);
     	while(str.length()<8)str = str+" ";
     	l1 += str;
-    	l1 += " "+formatEpochDate(tle.getEpoch());
+    	l1 += " "+formatEpochDate(lineEpoch != null?lineEpoch:tle.getEpoch());
     	
     	String sgn = "+";
     	DecimalFormat df1 = new DecimalFormat("0.00000000");
@@ -115,28 +371,14 @@ public class MutableTLE extends TLE
     	//System.out.println(l1);
     	//System.out.println(l2);
     	
-    	tle = new TLE(l1,l2);
-    	needsCommit = false;
+    	return new String[]{l1,l2};
     }
     
     protected String formatImpDec(double val)
     {
     	double av = Math.abs(val);
-    	int exp = (av < 1e-9) ? -9 : (int)Math.floor(Math.log10(av));
+    	int exp = impDecExponent(av);
     	long mantissa = Math.round(av * Math.pow(10.0d, 5-exp));
-    	
-    	if(mantissa == 0)
-    	{
-    		exp = 0;
-    	}
-    	else if (mantissa > (Math.pow(10, 5) - 1))
-    	{
-    	    // rare case: if d has a single digit like d = 1.0e-4 with mantissaSize = 5
-    		// the above computation finds exponent = -4 and mantissa = 100000 which
-    		// doesn't fit in a 5 digits string
-    		exp++;
-    		mantissa = Math.round(av * Math.pow(10.0, 5 - exp));
-    	}
 
     	String str = String.valueOf(mantissa);
     	while(str.length()<5)str = "0"+str;
@@ -158,6 +400,31 @@ public class MutableTLE extends TLE
     	return str;
     }
     
+    /**
+     * Exponent for the five digit mantissa of an implied decimal field.
+     * 
+     * @param av absolute value
+     * @return
+     */
+    protected int impDecExponent(double av)
+    {
+    	int exp = (av < 1e-9) ? -9 : (int)Math.floor(Math.log10(av));
+    	long mantissa = Math.round(av * Math.pow(10.0d, 5-exp));
+    	
+    	if(mantissa == 0)
+    	{
+    		exp = 0;
+    	}
+    	else if (mantissa > (Math.pow(10, 5) - 1))
+    	{
+    	    // rare case: if d has a single digit like d = 1.0e-4 with mantissaSize = 5
+    		// the above computation finds exponent = -4 and mantissa = 100000 which
+    		// doesn't fit in a 5 digits string
+    		exp++;
+    	}
+    	return exp;
+    }
+    
     protected String formatEpochDate(Date d)
     {
     	DateUtil.setDefaultTimeZone();
@@ -205,7 +472,7 @@ public class MutableTLE extends TLE
     	}
     	
     	// we don't do type 6 but type 4 can be handled
-    	CartesianState cs = USSFSGP4.getCart(d, tle);
+    	CartesianState cs = USSFSGP4.getCart(d, this);
     	
     	double rv[][] = new double[][]{cs.getRVec(),cs.getVVec()};
     	return rv;
@@ -222,7 +489,7 @@ public class MutableTLE extends TLE
     	}
     	
     	// we don't do type 6 but type 4 can be handled
-    	CartesianState cs = USSFSGP4.getCart(minutesAfterEpoch, tle.getLine1(), tle.getLine2());
+    	CartesianState cs = USSFSGP4.getCart(minutesAfterEpoch, getLine1(), getLine2());
     	
     	double rv[][] = new double[][]{cs.getRVec(),cs.getVVec()};
     	return rv;
@@ -257,6 +524,53 @@ public class MutableTLE extends TLE
     	return USSFSGP4.getCart(0, getLine1(), getLine2());
     }
     
+    public void getRVs(double minutesAfterEpoch[], double rx[], double ry[], double rz[], 
+    		double vx[], double vy[], double vz[], int errors[])
+    {
+    	if(needsCommit) commit();
+    	
+    	if(tle.getElType() < 4)
+    	{
+    		tle.getRVs(minutesAfterEpoch, rx, ry, rz, vx, vy, vz, errors);
+    		return;
+    	}
+    	
+    	double rv[][] = null;
+    	for(int i=0; i<minutesAfterEpoch.length; i++)
+    	{
+    		rv = getRV(minutesAfterEpoch[i]);
+    		rx[i] = rv[0][0];
+    		ry[i] = rv[0][1];
+    		rz[i] = rv[0][2];
+    		vx[i] = rv[1][0];
+    		vy[i] = rv[1][1];
+    		vz[i] = rv[1][2];
+    		if(errors != null) errors[i] = 0;
+    	}
+    }
+    
+    public void getRVs(SGP4State st, double minutesAfterEpoch[], int off, int len, 
+    		double rx[], double ry[], double rz[], double vx[], double vy[], double vz[], int errors[])
+    {
+    	if(needsCommit) commit();
+    	
+    	tle.getRVs(st, minutesAfterEpoch, off, len, rx, ry, rz, vx, vy, vz, errors);
+    }
+    
+    public boolean getRV(SGP4State st, double minutesAfterEpoch, double r[], double v[])
+    {
+    	if(needsCommit) commit();
+    	
+    	return tle.getRV(st, minutesAfterEpoch, r, v);
+    }
+    
+    public SGP4Satellite getSatellite()
+    {
+    	if(needsCommit) commit();
+    	
+    	return tle.getSatellite();
+    }
+    
     public int getSgp4Error()
     {
     	return tle.getSgp4Error();
@@ -314,6 +628,8 @@ public class MutableTLE extends TLE
     public void setEpoch(Date d)
     {
     	needsCommit = true;
+    	epochChanged = true;
+    	lineEpoch = null;
     	tle.setEpoch(d);
     }
     
@@ -464,14 +780,39 @@ public class MutableTLE extends TLE
     
     public String getLine1()
     {
+    	if(directInit)
+    	{
+    		writeLines();
+    		return line1;
+    	}
     	return tle.getLine1();
     }
     
     public String getLine2()
     {
+    	if(directInit)
+    	{
+    		writeLines();
+    		return line2;
+    	}
     	return tle.getLine2();
     }
     
+    /**
+     * With direct init the lines are only written when they are needed.
+     */
+    protected void writeLines()
+    {
+    	if(needsCommit) commit();
+    	
+    	if(line1 == null || line2 == null)
+    	{
+    		String lines[] = formatLines();
+    		line1 = lines[0];
+    		line2 = lines[1];
+    	}
+    }
+    
     protected double inRange(double val,double max)
     {
     	while(val<0)val+=max;
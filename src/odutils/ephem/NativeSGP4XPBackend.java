@@ -0,0 +1,96 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import com.sun.jna.ptr.DoubleByReference;
+
+import afspc.astrostds.wrappers.JnaSgp4Prop;
+import afspc.astrostds.wrappers.JnaTle;
+
+/**
+ * The USSF SGP4 library through the AstroStds JNA wrappers.  The library is loaded on the
+ * first call.
+ *
+ * @author aholinch
+ *
+ */
+public class NativeSGP4XPBackend implements SGP4XPBackend
+{
+	@Override
+	public long addSat(String line1, String line2)
+	{
+		return JnaTle.TleAddSatFrLines(line1,line2);
+	}
+
+	@Override
+	public int initSat(long satKey)
+	{
+		return JnaSgp4Prop.Sgp4InitSat(satKey);
+	}
+
+	@Override
+	public int propMse(long satKey, double minSinceEpoch, double ds50UTC[], double pos[], double vel[])
+	{
+		DoubleByReference ds50 = new DoubleByReference();
+		double[] llh = new double[3];   // Latitude(deg), Longitude(deg), Height above Geoid (km)
+
+		// see Sgp4Prop dll document
+		int errCode = JnaSgp4Prop.Sgp4PropMse(satKey, minSinceEpoch, ds50, pos, vel, llh);
+		ds50UTC[0] = ds50.getValue();
+		return errCode;
+	}
+
+	@Override
+	public int propMse(long satKey, double minSinceEpoch[], double out[])
+	{
+		// one set of buffers for every time
+		DoubleByReference ds50 = new DoubleByReference();
+		double pos[] = new double[3];
+		double vel[] = new double[3];
+		double llh[] = new double[3];
+		int errCode = 0;
+		int err = 0;
+		int ind = 0;
+		for(int i=0; i<minSinceEpoch.length; i++)
+		{
+			err = JnaSgp4Prop.Sgp4PropMse(satKey, minSinceEpoch[i], ds50, pos, vel, llh);
+			if(errCode == 0) errCode = err;
+			ind = i*STATE_SIZE;
+			out[ind] = ds50.getValue();
+			out[ind+1] = pos[0];
+			out[ind+2] = pos[1];
+			out[ind+3] = pos[2];
+			out[ind+4] = vel[0];
+			out[ind+5] = vel[1];
+			out[ind+6] = vel[2];
+		}
+		return errCode;
+	}
+
+	@Override
+	public void removeSat(long satKey)
+	{
+		try{
+			JnaTle.TleRemoveSat(satKey);   // remove loaded TLE from memory
+		}catch(Exception ex){};
+
+		try{
+			JnaSgp4Prop.Sgp4RemoveSat(satKey);  // remove initialized TLE from memory
+		}catch(Exception ex){};
+	}
+}
@@ -0,0 +1,540 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the backend calls in a pool of child JVMs, each with its own copy of the native library,
+ * so propagation can use more than one core.  Each satellite lives in one worker, picked in
+ * turn when it is added, and the keys returned are this backend's, not the workers'.
+ *
+ * Requests go over the worker's stdin and stdout, see SGP4XPWorker.  A worker talks to one
+ * thread at a time, different workers run at the same time.  If a worker dies it is started
+ * again and the satellites it held are loaded again from their lines before the call is
+ * retried once.  A worker that does not answer within the timeout is killed and handled the
+ * same way.  Workers are started on first use and exit when this JVM does.
+ *
+ * @author aholinch
+ *
+ */
+public class ProcessSGP4XPBackend implements SGP4XPBackend, Closeable
+{
+	protected String backendClass = null;
+	protected List<String> jvmArgs = new ArrayList<String>();
+	protected String javaCommand = null;
+
+	protected Worker workers[] = null;
+	protected AtomicInteger nextWorker = new AtomicInteger();
+	protected AtomicLong nextKey = new AtomicLong(1);
+	protected Map<Long,Sat> sats = new ConcurrentHashMap<Long,Sat>();
+	protected AtomicLong restarts = new AtomicLong();
+
+	public static final long DEFAULT_TIMEOUT_MS = 60000;
+
+	// 0 waits forever
+	protected volatile long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+	// kills workers that miss their deadline
+	protected static ScheduledThreadPoolExecutor watchdog = null;
+
+	/**
+	 * One native worker per core.
+	 */
+	public ProcessSGP4XPBackend()
+	{
+		this(Runtime.getRuntime().availableProcessors(), NativeSGP4XPBackend.class.getName());
+	}
+
+	/**
+	 * @param numWorkers
+	 * @param backendClass class the workers run, with a no argument constructor
+	 */
+	public ProcessSGP4XPBackend(int numWorkers, String backendClass)
+	{
+		this.backendClass = backendClass;
+		javaCommand = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+		// the workers need to find the same native libraries
+		String props[] = {"jna.library.path","java.library.path"};
+		String val = null;
+		for(int i=0; i<props.length; i++)
+		{
+			val = System.getProperty(props[i]);
+			if(val != null) jvmArgs.add("-D" + props[i] + "=" + val);
+		}
+
+		numWorkers = Math.max(1, numWorkers);
+		workers = new Worker[numWorkers];
+		for(int i=0; i<numWorkers; i++)
+		{
+			workers[i] = new Worker(i);
+		}
+	}
+
+	/**
+	 * Extra arguments for the worker JVMs, used by workers started after this.
+	 *
+	 * @param args
+	 */
+	public void setJvmArgs(List<String> args)
+	{
+		jvmArgs = new ArrayList<String>(args);
+	}
+
+	public List<String> getJvmArgs()
+	{
+		return jvmArgs;
+	}
+
+	public void setJavaCommand(String cmd)
+	{
+		javaCommand = cmd;
+	}
+
+	/**
+	 * Longest a worker may take to answer one request before it is killed and started again,
+	 * 0 to wait forever.  Propagating many times is one request.
+	 *
+	 * @param ms
+	 */
+	public void setTimeout(long ms)
+	{
+		timeoutMs = Math.max(0, ms);
+	}
+
+	public long getTimeout()
+	{
+		return timeoutMs;
+	}
+
+	protected static synchronized ScheduledThreadPoolExecutor getWatchdog()
+	{
+		if(watchdog == null)
+		{
+			watchdog = new ScheduledThreadPoolExecutor(1, r -> {
+				Thread t = new Thread(r, "sgp4xp-watchdog");
+				t.setDaemon(true);
+				return t;
+			});
+			watchdog.setRemoveOnCancelPolicy(true);
+		}
+		return watchdog;
+	}
+
+	public int getWorkerCount()
+	{
+		return workers.length;
+	}
+
+	/**
+	 * Number of times a worker was started again, after failing or after close.
+	 *
+	 * @return
+	 */
+	public long getRestarts()
+	{
+		return restarts.get();
+	}
+
+	@Override
+	public long addSat(String line1, String line2)
+	{
+		int ind = Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+		Sat sat = new Sat(workers[ind], line1, line2);
+		try
+		{
+			// the first call loads the satellite
+			call(sat, (w, k) -> k);
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+			return -1;
+		}
+		if(sat.localKey <= 0)
+		{
+			return sat.localKey;
+		}
+
+		long satKey = nextKey.getAndIncrement();
+		sats.put(satKey, sat);
+		return satKey;
+	}
+
+	@Override
+	public int initSat(long satKey)
+	{
+		Sat sat = sats.get(satKey);
+		if(sat == null) return 1;
+		try
+		{
+			int errCode = call(sat, (w, k) -> w.init(k));
+			sat.initialized = true;
+			return errCode;
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+			return -1;
+		}
+	}
+
+	@Override
+	public int propMse(long satKey, double minSinceEpoch, double ds50UTC[], double pos[], double vel[])
+	{
+		double out[] = new double[STATE_SIZE];
+		int errCode = propMse(satKey, new double[]{minSinceEpoch}, out);
+		ds50UTC[0] = out[0];
+		pos[0] = out[1];
+		pos[1] = out[2];
+		pos[2] = out[3];
+		vel[0] = out[4];
+		vel[1] = out[5];
+		vel[2] = out[6];
+		return errCode;
+	}
+
+	@Override
+	public int propMse(long satKey, double minSinceEpoch[], double out[])
+	{
+		Sat sat = sats.get(satKey);
+		if(sat == null) return 1;
+		try
+		{
+			return call(sat, (w, k) -> w.prop(k, minSinceEpoch, out));
+		}
+		catch(IOException ex)
+		{
+			ex.printStackTrace();
+			return -1;
+		}
+	}
+
+	@Override
+	public void removeSat(long satKey)
+	{
+		Sat sat = sats.remove(satKey);
+		if(sat == null) return;
+
+		Worker w = sat.worker;
+		synchronized(w)
+		{
+			// nothing to remove if the worker was started again since
+			if(sat.generation != w.generation || !w.isAlive()) return;
+			try
+			{
+				w.remove(sat.localKey);
+			}
+			catch(IOException ex)
+			{
+				w.stop();
+			}
+		}
+	}
+
+	/**
+	 * Run a call on the satellite's worker, starting the worker and loading the satellite if
+	 * needed.  A worker that fails is started again and the call is tried once more.
+	 *
+	 * @param sat
+	 * @param c
+	 * @return
+	 * @throws IOException
+	 */
+	protected <T> T call(Sat sat, WorkerCall<T> c) throws IOException
+	{
+		Worker w = sat.worker;
+		synchronized(w)
+		{
+			for(int attempt=0; ; attempt++)
+			{
+				try
+				{
+					if(!w.isAlive())
+					{
+						if(w.generation > 0) restarts.incrementAndGet();
+						w.start();
+					}
+					if(sat.generation != w.generation)
+					{
+						sat.localKey = w.add(sat.line1, sat.line2);
+						if(sat.initialized && sat.localKey > 0) w.init(sat.localKey);
+						sat.generation = w.generation;
+					}
+					return c.run(w, sat.localKey);
+				}
+				catch(IOException ex)
+				{
+					System.err.println("SGP4-XP worker " + w.index + " failed: " + ex.getMessage());
+					w.stop();
+					if(attempt > 0) throw ex;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop every worker.  They are started again if the backend is used after this.
+	 */
+	@Override
+	public void close()
+	{
+		for(int i=0; i<workers.length; i++)
+		{
+			synchronized(workers[i])
+			{
+				workers[i].exit();
+			}
+		}
+	}
+
+	/**
+	 * Kill a worker's process as if it crashed.
+	 *
+	 * @param ind
+	 */
+	protected void kill(int ind)
+	{
+		Process p = workers[ind].process;
+		if(p != null)
+		{
+			p.destroyForcibly();
+			try{p.waitFor();}catch(InterruptedException ex){Thread.currentThread().interrupt();};
+		}
+	}
+
+	protected interface WorkerCall<T>
+	{
+		public T run(Worker w, long localKey) throws IOException;
+	}
+
+	/**
+	 * A satellite held by a worker.  Guarded by the worker.
+	 */
+	protected static class Sat
+	{
+		protected Worker worker = null;
+		protected String line1 = null;
+		protected String line2 = null;
+		protected long localKey = -1;
+		protected boolean initialized = false;
+
+		// the worker generation the key belongs to
+		protected int generation = -1;
+
+		protected Sat(Worker worker, String line1, String line2)
+		{
+			this.worker = worker;
+			this.line1 = line1;
+			this.line2 = line2;
+		}
+	}
+
+	/**
+	 * One child process, used by one thread at a time.
+	 */
+	protected class Worker
+	{
+		protected int index = 0;
+		protected Process process = null;
+		protected DataInputStream in = null;
+		protected DataOutputStream out = null;
+
+		// incremented every time a process is started
+		protected int generation = 0;
+
+		protected Worker(int index)
+		{
+			this.index = index;
+		}
+
+		protected boolean isAlive()
+		{
+			return process != null && process.isAlive();
+		}
+
+		protected void start() throws IOException
+		{
+			stop();
+
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(javaCommand);
+			cmd.addAll(jvmArgs);
+			cmd.add("-cp");
+			cmd.add(System.getProperty("java.class.path"));
+			cmd.add(SGP4XPWorker.class.getName());
+			cmd.add(backendClass);
+
+			ProcessBuilder pb = new ProcessBuilder(cmd);
+			pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+			process = pb.start();
+			in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+			generation++;
+
+			ScheduledFuture<?> deadline = watch();
+			try
+			{
+				out.writeInt(SGP4XPWorker.OP_PING);
+				out.flush();
+				in.readInt();
+			}
+			finally
+			{
+				done(deadline);
+			}
+		}
+
+		/**
+		 * Kill the process if the request started now is not answered in time, the blocked
+		 * read then fails.  Give the result to done once answered.
+		 *
+		 * @return
+		 */
+		protected ScheduledFuture<?> watch()
+		{
+			long ms = timeoutMs;
+			if(ms <= 0) return null;
+
+			final Process p = process;
+			return getWatchdog().schedule(() -> {
+				System.err.println("SGP4-XP worker " + index + " did not answer in " + ms + " ms, killing it");
+				p.destroyForcibly();
+			}, ms, TimeUnit.MILLISECONDS);
+		}
+
+		protected void done(ScheduledFuture<?> deadline)
+		{
+			if(deadline != null) deadline.cancel(false);
+		}
+
+		protected void stop()
+		{
+			if(process != null)
+			{
+				process.destroyForcibly();
+			}
+			process = null;
+			in = null;
+			out = null;
+		}
+
+		protected void exit()
+		{
+			if(isAlive())
+			{
+				try
+				{
+					out.writeInt(SGP4XPWorker.OP_EXIT);
+					out.flush();
+				}
+				catch(IOException ex)
+				{
+					// killed below
+				}
+			}
+			stop();
+		}
+
+		protected long add(String line1, String line2) throws IOException
+		{
+			ScheduledFuture<?> deadline = watch();
+			try
+			{
+				out.writeInt(SGP4XPWorker.OP_ADD);
+				out.writeUTF(line1);
+				out.writeUTF(line2);
+				out.flush();
+				return in.readLong();
+			}
+			finally
+			{
+				done(deadline);
+			}
+		}
+
+		protected int init(long localKey) throws IOException
+		{
+			ScheduledFuture<?> deadline = watch();
+			try
+			{
+				out.writeInt(SGP4XPWorker.OP_INIT);
+				out.writeLong(localKey);
+				out.flush();
+				return in.readInt();
+			}
+			finally
+			{
+				done(deadline);
+			}
+		}
+
+		protected int prop(long localKey, double mse[], double vals[]) throws IOException
+		{
+			ScheduledFuture<?> deadline = watch();
+			try
+			{
+				out.writeInt(SGP4XPWorker.OP_PROP);
+				out.writeLong(localKey);
+				out.writeInt(mse.length);
+				SGP4XPWorker.writeDoubles(out, mse, mse.length);
+				out.flush();
+
+				int errCode = in.readInt();
+				SGP4XPWorker.readDoubles(in, vals, mse.length*STATE_SIZE);
+				return errCode;
+			}
+			finally
+			{
+				done(deadline);
+			}
+		}
+
+		protected void remove(long localKey) throws IOException
+		{
+			ScheduledFuture<?> deadline = watch();
+			try
+			{
+				out.writeInt(SGP4XPWorker.OP_REMOVE);
+				out.writeLong(localKey);
+				out.flush();
+				in.readInt();
+			}
+			finally
+			{
+				done(deadline);
+			}
+		}
+	}
+}
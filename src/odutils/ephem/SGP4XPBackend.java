@@ -0,0 +1,79 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+/**
+ * The satellite calls USSFSGP4 makes.  The native library keeps loaded satellites in its own
+ * memory under a key until they are removed.
+ *
+ * @author aholinch
+ *
+ */
+public interface SGP4XPBackend
+{
+	// values per time from the batch propagation
+	public static final int STATE_SIZE = 7;
+
+	/**
+	 * Load a satellite from two lines.
+	 *
+	 * @param line1
+	 * @param line2
+	 * @return the key, 0 or less on failure
+	 */
+	public long addSat(String line1, String line2);
+
+	/**
+	 * Initialize a loaded satellite for propagation.
+	 *
+	 * @param satKey
+	 * @return error code, 0 on success
+	 */
+	public int initSat(long satKey);
+
+	/**
+	 * Propagate an initialized satellite.  Different keys may be propagated from different
+	 * threads at the same time.
+	 *
+	 * @param satKey
+	 * @param minSinceEpoch
+	 * @param ds50UTC first entry is set to the time in days since 1950 UTC
+	 * @param pos km in TEME
+	 * @param vel km/s in TEME
+	 * @return error code, 0 on success
+	 */
+	public int propMse(long satKey, double minSinceEpoch, double ds50UTC[], double pos[], double vel[]);
+
+	/**
+	 * Propagate an initialized satellite to each time.  The results are STATE_SIZE values per
+	 * time in out, days since 1950 UTC then position and velocity.
+	 *
+	 * @param satKey
+	 * @param minSinceEpoch
+	 * @param out
+	 * @return the first nonzero error code, 0 on success
+	 */
+	public int propMse(long satKey, double minSinceEpoch[], double out[]);
+
+	/**
+	 * Free everything held for the key.
+	 *
+	 * @param satKey
+	 */
+	public void removeSat(long satKey);
+}
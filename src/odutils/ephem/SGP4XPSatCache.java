@@ -0,0 +1,394 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Initialized satellites kept in the backend so repeated propagation of the same TLE only
+ * loads and initializes it once.  The library knows a satellite by its number and epoch,
+ * loading other lines with the same number and epoch fails or reuses the resident one, so
+ * entries are keyed the same way.  Lines that differ from the resident entry's replace it
+ * once it is no longer in use.
+ *
+ * Callers acquire an entry, propagate with its key, then release it.  An acquired entry is
+ * never removed from the backend.  When there are more than capacity entries the least
+ * recently used ones that are not acquired are removed, so the cache can go over capacity
+ * while everything in it is in use.
+ *
+ * Loading and initializing are done outside the cache lock, callers wanting the same satellite
+ * number and epoch wait for the load to finish.  Removing is done while holding the lock.
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4XPSatCache
+{
+	public static final int DEFAULT_CAPACITY = 128;
+
+	protected SGP4XPBackend backend = null;
+	protected int capacity = DEFAULT_CAPACITY;
+
+	// access ordered, the eldest entry is the least recently used
+	protected LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16,0.75f,true);
+
+	// cleared while in use, still in the backend until released
+	protected Map<String,Entry> retired = new HashMap<String,Entry>();
+
+	protected long hits = 0;
+	protected long misses = 0;
+	protected long evictions = 0;
+	protected long failures = 0;
+
+	public SGP4XPSatCache(SGP4XPBackend backend)
+	{
+		this(backend, DEFAULT_CAPACITY);
+	}
+
+	public SGP4XPSatCache(SGP4XPBackend backend, int capacity)
+	{
+		this.backend = backend;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	public SGP4XPBackend getBackend()
+	{
+		return backend;
+	}
+
+	public synchronized void setCapacity(int num)
+	{
+		capacity = Math.max(1, num);
+		trim();
+	}
+
+	public synchronized int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * The satellite number and epoch columns of line 1, how the library tells satellites
+	 * apart.  Lines too short to hold them are used whole.
+	 *
+	 * @param line1
+	 * @return
+	 */
+	public static String getSatId(String line1)
+	{
+		if(line1 == null || line1.length() < 32) return line1;
+		return line1.substring(2,7) + line1.substring(18,32);
+	}
+
+	/**
+	 * The initialized satellite for the lines, loading it on a miss.  If other lines with the
+	 * same satellite number and epoch are in use this waits for them to be released.  The
+	 * entry must be given to release when the caller is done with it.
+	 *
+	 * @param line1
+	 * @param line2
+	 * @return null if the backend could not load the lines
+	 */
+	public Entry acquire(String line1, String line2)
+	{
+		String id = getSatId(line1);
+		Entry entry = null;
+		synchronized(this)
+		{
+			entry = reserve(id, line1, line2);
+			if(entry == null || !entry.loading) return entry;
+		}
+
+		long satKey = backend.addSat(line1, line2);
+		int errCode = 0;
+		if(satKey > 0)
+		{
+			errCode = backend.initSat(satKey);
+		}
+
+		synchronized(this)
+		{
+			entry.loading = false;
+			notifyAll();
+			if(satKey <= 0)
+			{
+				failures++;
+				entries.remove(id, entry);
+				retired.remove(id, entry);
+				System.err.println("USSFSGP4 could not load TLE, satKey = " + satKey);
+				return null;
+			}
+
+			if(errCode != 0)
+			{
+				// kept so the error is only reported once, propagation reports its own errors
+				System.err.println("USSFSGP4 errCode = " + errCode);
+			}
+			entry.satKey = satKey;
+			entry.initError = errCode;
+			trim();
+		}
+
+		return entry;
+	}
+
+	/**
+	 * A loaded entry for the lines with its count taken, or a new entry for this caller to
+	 * load.  Waits while the number and epoch are loading or held by other lines.
+	 *
+	 * @param id
+	 * @param line1
+	 * @param line2
+	 * @return null if interrupted
+	 */
+	protected Entry reserve(String id, String line1, String line2)
+	{
+		Entry entry = null;
+		while(true)
+		{
+			entry = entries.get(id);
+			if(entry != null && !entry.loading && entry.isFor(line1, line2))
+			{
+				hits++;
+				entry.refCount++;
+				return entry;
+			}
+
+			if(entry != null && entry.refCount == 0)
+			{
+				// same number and epoch, different elements, the library can only hold one
+				entries.remove(id);
+				entry.removed = true;
+				backend.removeSat(entry.satKey);
+				evictions++;
+				entry = null;
+			}
+
+			if(entry == null && !retired.containsKey(id))
+			{
+				break;
+			}
+
+			try
+			{
+				wait();
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				System.err.println("USSFSGP4 interrupted waiting for satellite " + id);
+				return null;
+			}
+		}
+
+		misses++;
+		entry = new Entry(id, line1, line2);
+		entry.refCount = 1;
+		entry.loading = true;
+		entries.put(id, entry);
+		return entry;
+	}
+
+	/**
+	 * Give back an entry from acquire.
+	 *
+	 * @param entry
+	 */
+	public synchronized void release(Entry entry)
+	{
+		if(entry == null) return;
+
+		entry.refCount--;
+		if(entry.refCount > 0) return;
+
+		if(entry.removed)
+		{
+			// cleared while in use
+			backend.removeSat(entry.satKey);
+			if(retired.get(entry.id) == entry) retired.remove(entry.id);
+		}
+		else
+		{
+			trim();
+		}
+
+		// callers may be waiting for this number and epoch
+		notifyAll();
+	}
+
+	/**
+	 * Remove least recently used entries that are not in use until the cache fits.
+	 */
+	protected void trim()
+	{
+		if(entries.size() <= capacity) return;
+
+		Iterator<Entry> iter = entries.values().iterator();
+		Entry entry = null;
+		while(entries.size() > capacity && iter.hasNext())
+		{
+			entry = iter.next();
+			if(entry.refCount == 0)
+			{
+				iter.remove();
+				entry.removed = true;
+				backend.removeSat(entry.satKey);
+				evictions++;
+			}
+		}
+	}
+
+	/**
+	 * Remove every entry from the backend.  Entries in use are removed when released.
+	 */
+	public synchronized void clear()
+	{
+		List<Entry> list = new ArrayList<Entry>(entries.values());
+		entries.clear();
+
+		Entry entry = null;
+		for(int i=0; i<list.size(); i++)
+		{
+			entry = list.get(i);
+			entry.removed = true;
+			if(entry.refCount == 0)
+			{
+				backend.removeSat(entry.satKey);
+			}
+			else
+			{
+				retired.put(entry.id, entry);
+			}
+		}
+	}
+
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Entries acquired and not released.
+	 *
+	 * @return
+	 */
+	public synchronized int getInUseCount()
+	{
+		int cnt = 0;
+		for(Entry entry : entries.values())
+		{
+			if(entry.refCount > 0) cnt++;
+		}
+		return cnt;
+	}
+
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	/**
+	 * Lines the backend could not load.
+	 *
+	 * @return
+	 */
+	public synchronized long getFailures()
+	{
+		return failures;
+	}
+
+	public synchronized double getHitRate()
+	{
+		long total = hits+misses;
+		if(total == 0) return 0;
+		return ((double)hits)/((double)total);
+	}
+
+	public synchronized void resetStats()
+	{
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		failures = 0;
+	}
+
+	public synchronized String toString()
+	{
+		return "size " + entries.size() + " capacity " + capacity + " hits " + hits + " misses " + misses +
+				" evictions " + evictions + " failures " + failures;
+	}
+
+	/**
+	 * An initialized satellite in the backend.
+	 */
+	public static class Entry
+	{
+		protected String id = null;
+		protected String line1 = null;
+		protected String line2 = null;
+		protected long satKey = -1;
+		protected int initError = 0;
+
+		// guarded by the cache
+		protected int refCount = 0;
+		protected boolean removed = false;
+		protected boolean loading = false;
+
+		protected Entry(String id, String line1, String line2)
+		{
+			this.id = id;
+			this.line1 = line1;
+			this.line2 = line2;
+		}
+
+		protected boolean isFor(String line1, String line2)
+		{
+			return this.line1.equals(line1) && this.line2.equals(line2);
+		}
+
+		public long getSatKey()
+		{
+			return satKey;
+		}
+
+		/**
+		 * Error code from initializing, 0 on success.
+		 *
+		 * @return
+		 */
+		public int getInitError()
+		{
+			return initError;
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sgp4.TLE;
+import sgp4.TLEBinary;
+
+/**
+ * Checks SGP4XPSatCache and USSFSGP4 against the java stand in backend, no USSF binaries
+ * needed.  Prints PASS or FAIL for each check.
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4XPSatCacheTest
+{
+	public static final String lines[][] = {
+		{"1 25544U 98067A   08264.51782528 -.00002182  00000-0 -11606-4 0  2927","2 25544  51.6416 247.4627 0006703 130.5360 325.0288 15.72125391563537"},
+		{"1 06251U 62025E   06176.82412014  .00008885  00000-0  12808-3 0  3985","2 06251  58.0579  54.0425 0030035 139.1568 221.1854 15.56387291  6774"},
+		{"1 28057U 03049A   06177.78615833  .00000060  00000-0  35940-4 0  1836","2 28057  98.4283 247.6961 0000884  88.1964 271.9322 14.35478080140550"},
+		{"1 28626U 05008A   06176.46683397 -.00000205  00000-0  10000-3 0  2190","2 28626   0.0019 286.9433 0000335  13.7918  55.6504  1.00270176  4891"}
+	};
+
+	protected static int failed = 0;
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	public static void testPropagation(JavaSGP4XPBackend backend)
+	{
+		SGP4XPSatCache cache = USSFSGP4.getCache();
+		cache.resetStats();
+
+		TLE tle = new TLE(lines[0][0],lines[0][1]);
+		double maxErr = 0;
+		for(int i=0; i<100; i++)
+		{
+			double mse = i*10.0d;
+			CartesianState cart = USSFSGP4.getCart(mse, lines[0][0], lines[0][1]);
+			double rv[][] = tle.getRV(mse);
+			maxErr = Math.max(maxErr, cart.getDist(rv[0][0], rv[0][1], rv[0][2]));
+			if(i == 50)
+			{
+				long t = tle.getEpoch().getTime() + (long)(mse*60000.0d);
+				check("epoch from ds50", Math.abs(cart.getEpoch().getTime()-t) <= 1);
+			}
+		}
+		check("positions match java sgp4, max err " + maxErr, maxErr < 1e-9);
+		check("one miss then hits, " + cache, cache.getMisses() == 1 && cache.getHits() == 99);
+		check("one native init", backend.getInitCount() == 1);
+
+		List<Double> mses = new ArrayList<Double>();
+		for(int i=0; i<10; i++) mses.add(i*1.0d);
+		List<CartesianState> carts = USSFSGP4.getCarts(mses, tle);
+		check("list propagation hits the cache", carts.size() == 10 && cache.getHits() == 100);
+	}
+
+	public static void testEviction(JavaSGP4XPBackend backend)
+	{
+		// the backend holds one satellite per number and epoch, so another cache on it
+		// can not share the lines USSFSGP4 still has loaded
+		USSFSGP4.getCache().clear();
+		SGP4XPSatCache cache = new SGP4XPSatCache(backend, 2);
+		int loaded = backend.getLoadedCount();
+
+		SGP4XPSatCache.Entry e0 = cache.acquire(lines[0][0],lines[0][1]);
+		SGP4XPSatCache.Entry e1 = cache.acquire(lines[1][0],lines[1][1]);
+		SGP4XPSatCache.Entry e2 = cache.acquire(lines[2][0],lines[2][1]);
+		check("entries in use are not evicted", cache.size() == 3 && cache.getEvictions() == 0);
+
+		cache.release(e1);
+		check("released entry evicted when over capacity", cache.size() == 2 && cache.getEvictions() == 1);
+
+		double pos[] = new double[3];
+		double vel[] = new double[3];
+		double ds50[] = new double[1];
+		check("in use keys still propagate", backend.propMse(e0.getSatKey(), 0, ds50, pos, vel) == 0 &&
+				backend.propMse(e2.getSatKey(), 0, ds50, pos, vel) == 0);
+		check("evicted key removed", backend.propMse(e1.getSatKey(), 0, ds50, pos, vel) != 0);
+
+		cache.release(e0);
+		SGP4XPSatCache.Entry e3 = cache.acquire(lines[3][0],lines[3][1]);
+		check("least recently used evicted", cache.size() == 2 && cache.getEvictions() == 2 &&
+				backend.propMse(e0.getSatKey(), 0, ds50, pos, vel) != 0);
+
+		SGP4XPSatCache.Entry e2b = cache.acquire(lines[2][0],lines[2][1]);
+		check("same lines share a key", e2b.getSatKey() == e2.getSatKey());
+
+		cache.clear();
+		check("clear keeps keys in use", backend.propMse(e3.getSatKey(), 0, ds50, pos, vel) == 0);
+		cache.release(e2);
+		cache.release(e2b);
+		cache.release(e3);
+		check("keys removed on release after clear", backend.getLoadedCount() == loaded);
+
+		check("bad lines fail", cache.acquire("1 bad", "2 bad") == null && cache.getFailures() == 1);
+	}
+
+	/**
+	 * Line 2 of the first TLE with another inclination, same satellite number and epoch.
+	 */
+	public static String getOtherLine2()
+	{
+		StringBuilder sb = new StringBuilder(lines[0][1]);
+		sb.replace(8, 16, " 51.9000");
+		sb.setLength(68);
+		sb.append(TLEBinary.checksum(sb));
+		return sb.toString();
+	}
+
+	public static boolean propagatesAs(JavaSGP4XPBackend backend, SGP4XPSatCache.Entry e, TLE tle)
+	{
+		double pos[] = new double[3];
+		double vel[] = new double[3];
+		double ds50[] = new double[1];
+		if(e == null || backend.propMse(e.getSatKey(), 100, ds50, pos, vel) != 0) return false;
+		double rv[][] = tle.getRV(100);
+		return Math.abs(pos[0]-rv[0][0]) < 1e-9 && Math.abs(pos[1]-rv[0][1]) < 1e-9 && Math.abs(pos[2]-rv[0][2]) < 1e-9;
+	}
+
+	public static void testSameSatId(JavaSGP4XPBackend backend) throws Exception
+	{
+		String l1 = lines[0][0];
+		String l2a = lines[0][1];
+		String l2b = getOtherLine2();
+		TLE a = new TLE(l1, l2a);
+		TLE b = new TLE(l1, l2b);
+		check("other lines differ in position", Math.abs(a.getRV(100)[0][2]-b.getRV(100)[0][2]) > 1);
+
+		long k1 = backend.addSat(l1, l2a);
+		long k2 = backend.addSat(l1, l2b);
+		check("backend refuses the same number and epoch", k1 > 0 && k2 <= 0);
+		backend.removeSat(k1);
+		k2 = backend.addSat(l1, l2b);
+		check("backend takes it once removed", k2 > 0);
+		backend.removeSat(k2);
+
+		final SGP4XPSatCache cache = new SGP4XPSatCache(backend, 8);
+		int loaded = backend.getLoadedCount();
+
+		SGP4XPSatCache.Entry ea = cache.acquire(l1, l2a);
+		check("first lines propagate", propagatesAs(backend, ea, a));
+		cache.release(ea);
+		SGP4XPSatCache.Entry eb = cache.acquire(l1, l2b);
+		check("other lines replace the idle entry", propagatesAs(backend, eb, b) && cache.size() == 1 && cache.getEvictions() == 1);
+
+		// in use, the other lines wait for the release
+		final SGP4XPSatCache.Entry got[] = new SGP4XPSatCache.Entry[1];
+		Thread th = new Thread(() -> {
+			got[0] = cache.acquire(l1, l2a);
+		});
+		th.start();
+		th.join(300);
+		check("other lines wait while in use", th.isAlive() && propagatesAs(backend, eb, b));
+		cache.release(eb);
+		th.join(5000);
+		check("other lines loaded after release", !th.isAlive() && propagatesAs(backend, got[0], a));
+
+		// cleared while in use, still resident until released
+		cache.clear();
+		th = new Thread(() -> {
+			got[0] = cache.acquire(l1, l2b);
+		});
+		th.start();
+		th.join(300);
+		check("cleared entry in use still blocks", th.isAlive());
+		SGP4XPSatCache.Entry old = got[0];
+		cache.release(old);
+		th.join(5000);
+		check("loaded after the cleared entry is released", !th.isAlive() && got[0] != old && propagatesAs(backend, got[0], b));
+		cache.release(got[0]);
+		cache.clear();
+		check("nothing leaked", backend.getLoadedCount() == loaded && cache.getFailures() == 0);
+	}
+
+	/**
+	 * A slow load must not hold up other satellites, callers for the same lines wait for it.
+	 */
+	public static void testSlowLoad() throws Exception
+	{
+		final String slow[] = lines[1];
+		JavaSGP4XPBackend backend = new JavaSGP4XPBackend() {
+			@Override
+			public long addSat(String line1, String line2)
+			{
+				if(line1.equals(slow[0]))
+				{
+					try{Thread.sleep(1000);}catch(InterruptedException ex){};
+				}
+				return super.addSat(line1, line2);
+			}
+		};
+		final SGP4XPSatCache cache = new SGP4XPSatCache(backend, 8);
+		final SGP4XPSatCache.Entry got[] = new SGP4XPSatCache.Entry[2];
+
+		Thread t1 = new Thread(() -> { got[0] = cache.acquire(slow[0], slow[1]); });
+		t1.start();
+		Thread.sleep(100);
+		Thread t2 = new Thread(() -> { got[1] = cache.acquire(slow[0], slow[1]); });
+		t2.start();
+
+		long t0 = System.currentTimeMillis();
+		SGP4XPSatCache.Entry e = cache.acquire(lines[2][0], lines[2][1]);
+		long ms = System.currentTimeMillis()-t0;
+		check("other satellites load during a slow load, ms " + ms, ms < 500 && t1.isAlive());
+
+		t1.join();
+		t2.join();
+		check("same lines wait for the load and share it", got[0] != null && got[0] == got[1] && backend.getAddCount() == 2 &&
+				cache.getMisses() == 2 && cache.getHits() == 1);
+
+		cache.release(e);
+		cache.release(got[0]);
+		cache.release(got[1]);
+		cache.clear();
+		check("nothing leaked", backend.getLoadedCount() == 0);
+	}
+
+	public static void testThreads(JavaSGP4XPBackend backend) throws Exception
+	{
+		final SGP4XPSatCache cache = new SGP4XPSatCache(backend, 2);
+		int loaded = backend.getLoadedCount();
+		final int errors[] = new int[1];
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t=0; t<4; t++)
+		{
+			final int off = t;
+			Thread th = new Thread(() -> {
+				double pos[] = new double[3];
+				double vel[] = new double[3];
+				double ds50[] = new double[1];
+				for(int i=0; i<2000; i++)
+				{
+					String l[] = lines[(i+off)%lines.length];
+					SGP4XPSatCache.Entry e = cache.acquire(l[0], l[1]);
+					if(backend.propMse(e.getSatKey(), i, ds50, pos, vel) != 0)
+					{
+						synchronized(errors) { errors[0]++; }
+					}
+					cache.release(e);
+				}
+			});
+			threads.add(th);
+			th.start();
+		}
+		for(Thread th : threads) th.join();
+
+		check("no key removed while in use across threads, " + cache, errors[0] == 0);
+		check("nothing left in use", cache.getInUseCount() == 0 && cache.size() <= 2);
+		cache.clear();
+		check("nothing leaked", backend.getLoadedCount() == loaded);
+	}
+
+	public static void main(String args[])
+	{
+		try
+		{
+			JavaSGP4XPBackend backend = new JavaSGP4XPBackend();
+			USSFSGP4.setBackend(backend);
+
+			testPropagation(backend);
+			testEviction(backend);
+			testThreads(backend);
+			testSameSatId(backend);
+			testSlowLoad();
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			failed++;
+		}
+
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
@@ -0,0 +1,184 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Main class of a ProcessSGP4XPBackend worker.  Reads requests from stdin, runs them on its own
+ * backend, by default the native library, and writes the answers to stdout.  Exits when stdin
+ * closes, so workers do not outlive the parent.
+ *
+ * Usage: SGP4XPWorker [backend class]
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4XPWorker
+{
+	public static final int OP_EXIT = 0;
+	public static final int OP_ADD = 1;
+	public static final int OP_INIT = 2;
+	public static final int OP_PROP = 3;
+	public static final int OP_REMOVE = 4;
+	public static final int OP_PING = 5;
+
+	public static void main(String args[])
+	{
+		String backendClass = NativeSGP4XPBackend.class.getName();
+		if(args.length > 0) backendClass = args[0];
+
+		// stdout carries the answers, anything printed goes to stderr
+		PrintStream stdout = System.out;
+		System.setOut(System.err);
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stdout));
+
+		try
+		{
+			SGP4XPBackend backend = (SGP4XPBackend)Class.forName(backendClass).getDeclaredConstructor().newInstance();
+			serve(backend, in, out);
+		}
+		catch(EOFException ex)
+		{
+			// parent closed the pipe
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	public static void serve(SGP4XPBackend backend, DataInputStream in, DataOutputStream out) throws IOException
+	{
+		int op = 0;
+		long satKey = 0;
+		double mse[] = null;
+		double vals[] = null;
+		while(true)
+		{
+			op = in.readInt();
+			switch(op)
+			{
+				case OP_EXIT:
+					return;
+				case OP_ADD:
+					String line1 = in.readUTF();
+					String line2 = in.readUTF();
+					try
+					{
+						satKey = backend.addSat(line1, line2);
+					}
+					catch(Throwable ex)
+					{
+						ex.printStackTrace();
+						satKey = -1;
+					}
+					out.writeLong(satKey);
+					break;
+				case OP_INIT:
+					satKey = in.readLong();
+					out.writeInt(init(backend, satKey));
+					break;
+				case OP_PROP:
+					satKey = in.readLong();
+					int n = in.readInt();
+					if(mse == null || mse.length != n)
+					{
+						mse = new double[n];
+						vals = new double[n*SGP4XPBackend.STATE_SIZE];
+					}
+					readDoubles(in, mse, n);
+					out.writeInt(prop(backend, satKey, mse, vals));
+					writeDoubles(out, vals, vals.length);
+					break;
+				case OP_REMOVE:
+					satKey = in.readLong();
+					try
+					{
+						backend.removeSat(satKey);
+					}
+					catch(Throwable ex)
+					{
+						ex.printStackTrace();
+					}
+					out.writeInt(0);
+					break;
+				case OP_PING:
+					out.writeInt(0);
+					break;
+				default:
+					throw new IOException("Unknown op " + op);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Write n doubles in one block, the same bytes as writeDouble for each.
+	 */
+	public static void writeDoubles(DataOutputStream out, double vals[], int n) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(8*n);
+		buf.asDoubleBuffer().put(vals, 0, n);
+		out.write(buf.array());
+	}
+
+	public static void readDoubles(DataInputStream in, double vals[], int n) throws IOException
+	{
+		byte bytes[] = new byte[8*n];
+		in.readFully(bytes);
+		ByteBuffer.wrap(bytes).asDoubleBuffer().get(vals, 0, n);
+	}
+
+	protected static int init(SGP4XPBackend backend, long satKey)
+	{
+		try
+		{
+			return backend.initSat(satKey);
+		}
+		catch(Throwable ex)
+		{
+			ex.printStackTrace();
+			return -1;
+		}
+	}
+
+	protected static int prop(SGP4XPBackend backend, long satKey, double mse[], double vals[])
+	{
+		try
+		{
+			return backend.propMse(satKey, mse, vals);
+		}
+		catch(Throwable ex)
+		{
+			ex.printStackTrace();
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sgp4.TLE;
+
+/**
+ * Checks SerialSGP4XPBackend and ProcessSGP4XPBackend with workers running the java stand in
+ * backend, no USSF binaries needed.  Prints PASS or FAIL for each check and the time to
+ * propagate from several threads with each backend.
+ *
+ * Usage: SGP4XPWorkerTest [workers] [threads]
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4XPWorkerTest
+{
+	protected static int failed = 0;
+
+	// times before this never answer, for the worker timeout
+	public static final double HANG_MSE = -1e9;
+
+	/**
+	 * Never returns from propagating to HANG_MSE.
+	 */
+	public static class HangingBackend extends JavaSGP4XPBackend
+	{
+		@Override
+		public int propMse(long satKey, double minSinceEpoch[], double out[])
+		{
+			if(minSinceEpoch.length > 0 && minSinceEpoch[0] <= HANG_MSE)
+			{
+				try{Thread.sleep(Long.MAX_VALUE);}catch(InterruptedException ex){};
+			}
+			return super.propMse(satKey, minSinceEpoch, out);
+		}
+	}
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	public static double[] getTimes(int num, double step)
+	{
+		double mse[] = new double[num];
+		for(int i=0; i<num; i++) mse[i] = i*step;
+		return mse;
+	}
+
+	/**
+	 * Largest difference between the backend's states and the java SGP4's.
+	 */
+	public static double maxError(SGP4XPBackend backend, String line1, String line2, double mse[])
+	{
+		long satKey = backend.addSat(line1, line2);
+		backend.initSat(satKey);
+		double out[] = new double[mse.length*SGP4XPBackend.STATE_SIZE];
+		int errCode = backend.propMse(satKey, mse, out);
+		backend.removeSat(satKey);
+		if(errCode != 0) return Double.MAX_VALUE;
+
+		TLE tle = new TLE(line1, line2);
+		double err = 0;
+		double rv[][] = null;
+		int ind = 0;
+		for(int i=0; i<mse.length; i++)
+		{
+			rv = tle.getRV(mse[i]);
+			ind = i*SGP4XPBackend.STATE_SIZE;
+			for(int j=0; j<3; j++)
+			{
+				err = Math.max(err, Math.abs(out[ind+1+j]-rv[0][j]));
+				err = Math.max(err, Math.abs(out[ind+4+j]-rv[1][j]));
+			}
+		}
+		return err;
+	}
+
+	public static void testSerial()
+	{
+		final List<String> names = new ArrayList<String>();
+		JavaSGP4XPBackend inner = new JavaSGP4XPBackend() {
+			@Override
+			public int initSat(long satKey)
+			{
+				synchronized(names) { names.add(Thread.currentThread().getName()); }
+				return super.initSat(satKey);
+			}
+		};
+		SerialSGP4XPBackend backend = new SerialSGP4XPBackend(inner);
+		String l[] = SGP4XPSatCacheTest.lines[0];
+		check("serial matches java sgp4", maxError(backend, l[0], l[1], getTimes(100, 10)) == 0);
+		check("serial runs on its own thread", names.size() == 1 && names.get(0).equals("sgp4xp-native"));
+		backend.shutdown();
+	}
+
+	public static void testProcess(int numWorkers)
+	{
+		ProcessSGP4XPBackend backend = new ProcessSGP4XPBackend(numWorkers, JavaSGP4XPBackend.class.getName());
+		String lines[][] = SGP4XPSatCacheTest.lines;
+		double mse[] = getTimes(100, 10);
+
+		double err = 0;
+		for(int i=0; i<lines.length; i++)
+		{
+			err = Math.max(err, maxError(backend, lines[i][0], lines[i][1], mse));
+		}
+		check("workers match java sgp4", err == 0);
+
+		// a satellite on worker 0 survives the worker crashing
+		long satKey = 0;
+		do
+		{
+			satKey = backend.addSat(lines[0][0], lines[0][1]);
+			backend.initSat(satKey);
+		}
+		while(backend.sats.get(satKey).worker.index != 0);
+
+		double out[] = new double[SGP4XPBackend.STATE_SIZE];
+		double out2[] = new double[SGP4XPBackend.STATE_SIZE];
+		backend.propMse(satKey, new double[]{100}, out);
+		backend.kill(0);
+		int errCode = backend.propMse(satKey, new double[]{100}, out2);
+		boolean same = errCode == 0;
+		for(int i=0; i<out.length; i++) same = same && out[i] == out2[i];
+		check("worker restarted after crash, restarts " + backend.getRestarts(), same && backend.getRestarts() == 1);
+
+		backend.removeSat(satKey);
+		check("bad lines fail in the worker", backend.addSat("1 bad", "2 bad") <= 0);
+		backend.close();
+	}
+
+	/**
+	 * A worker that stops answering is killed and started again.
+	 */
+	public static void testTimeout()
+	{
+		ProcessSGP4XPBackend backend = new ProcessSGP4XPBackend(1, HangingBackend.class.getName());
+		backend.setTimeout(2000);
+		String l[] = SGP4XPSatCacheTest.lines[0];
+		long satKey = backend.addSat(l[0], l[1]);
+		backend.initSat(satKey);
+
+		double out[] = new double[SGP4XPBackend.STATE_SIZE];
+		long t0 = System.currentTimeMillis();
+		int errCode = backend.propMse(satKey, new double[]{HANG_MSE}, out);
+		long ms = System.currentTimeMillis()-t0;
+		check("hung call fails after the timeout and one retry, ms " + ms, errCode != 0 && ms >= 4000 && ms < 20000);
+
+		errCode = backend.propMse(satKey, new double[]{100}, out);
+		check("worker answers again, restarts " + backend.getRestarts(), errCode == 0 && backend.getRestarts() == 2);
+
+		backend.removeSat(satKey);
+		backend.close();
+	}
+
+	/**
+	 * Propagate from several threads through USSFSGP4.
+	 */
+	public static long timeThreads(int numThreads, final int reps) throws Exception
+	{
+		final TLE tles[] = new TLE[SGP4XPSatCacheTest.lines.length];
+		for(int i=0; i<tles.length; i++)
+		{
+			tles[i] = new TLE(SGP4XPSatCacheTest.lines[i][0], SGP4XPSatCacheTest.lines[i][1]);
+		}
+		final List<Double> mse = new ArrayList<Double>();
+		for(int i=0; i<1440; i++) mse.add(i*1.0d);
+
+		long t0 = System.currentTimeMillis();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t=0; t<numThreads; t++)
+		{
+			final int off = t;
+			Thread th = new Thread(() -> {
+				for(int i=0; i<reps; i++)
+				{
+					USSFSGP4.getCarts(mse, tles[(i+off)%tles.length]);
+				}
+			});
+			threads.add(th);
+			th.start();
+		}
+		for(Thread th : threads) th.join();
+		return System.currentTimeMillis()-t0;
+	}
+
+	public static void main(String args[])
+	{
+		int numWorkers = 2;
+		int numThreads = 4;
+		if(args.length > 0) numWorkers = Integer.parseInt(args[0]);
+		if(args.length > 1) numThreads = Integer.parseInt(args[1]);
+
+		try
+		{
+			testSerial();
+			testProcess(numWorkers);
+			testTimeout();
+
+			int reps = 200;
+			USSFSGP4.setBackend(new SerialSGP4XPBackend(new JavaSGP4XPBackend()));
+			timeThreads(numThreads, 20);
+			System.out.println("serial\t" + timeThreads(numThreads, reps) + " ms");
+
+			ProcessSGP4XPBackend pool = new ProcessSGP4XPBackend(numWorkers, JavaSGP4XPBackend.class.getName());
+			USSFSGP4.setBackend(pool);
+			timeThreads(numThreads, 20);
+			System.out.println(numWorkers + " workers\t" + timeThreads(numThreads, reps) + " ms");
+			pool.close();
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			failed++;
+		}
+
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
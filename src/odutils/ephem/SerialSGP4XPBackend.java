@@ -0,0 +1,126 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs every call of another backend on one dedicated thread, for libraries like AstroStds
+ * that are not safe to call from several threads.  Callers wait for their call to finish.
+ * Use the batch propagation where possible, every call is a hand off between threads.
+ *
+ * @author aholinch
+ *
+ */
+public class SerialSGP4XPBackend implements SGP4XPBackend
+{
+	protected SGP4XPBackend backend = null;
+	protected ExecutorService executor = null;
+	protected volatile Thread thread = null;
+
+	public SerialSGP4XPBackend(SGP4XPBackend backend)
+	{
+		this.backend = backend;
+		executor = Executors.newSingleThreadExecutor(r -> {
+			Thread th = new Thread(r, "sgp4xp-native");
+			th.setDaemon(true);
+			thread = th;
+			return th;
+		});
+	}
+
+	public SGP4XPBackend getBackend()
+	{
+		return backend;
+	}
+
+	protected <T> T call(Callable<T> task)
+	{
+		try
+		{
+			if(Thread.currentThread() == thread)
+			{
+				return task.call();
+			}
+			Future<T> future = executor.submit(task);
+			return future.get();
+		}
+		catch(InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		}
+		catch(ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if(cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+		catch(RuntimeException ex)
+		{
+			throw ex;
+		}
+		catch(Exception ex)
+		{
+			throw new RuntimeException(ex);
+		}
+	}
+
+	@Override
+	public long addSat(String line1, String line2)
+	{
+		return call(() -> backend.addSat(line1, line2));
+	}
+
+	@Override
+	public int initSat(long satKey)
+	{
+		return call(() -> backend.initSat(satKey));
+	}
+
+	@Override
+	public int propMse(long satKey, double minSinceEpoch, double ds50UTC[], double pos[], double vel[])
+	{
+		return call(() -> backend.propMse(satKey, minSinceEpoch, ds50UTC, pos, vel));
+	}
+
+	@Override
+	public int propMse(long satKey, double minSinceEpoch[], double out[])
+	{
+		return call(() -> backend.propMse(satKey, minSinceEpoch, out));
+	}
+
+	@Override
+	public void removeSat(long satKey)
+	{
+		call(() -> {backend.removeSat(satKey); return null;});
+	}
+
+	/**
+	 * Stop the thread, calls after this fail.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+}
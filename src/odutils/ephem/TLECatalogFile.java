@@ -0,0 +1,517 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import sgp4.TLE;
+import sgp4.TLEBinary;
+
+/**
+ * Binary TLE catalog.  Records are TLEBinary records sorted by object number then epoch,
+ * preceded by an index with the first record, count and epoch range of every object.  The
+ * reader maps the file and only builds a TLE when one is asked for, so the elements of one
+ * object at one date can be found without reading the rest of the file.
+ *
+ * <pre>
+ * header  int magic, int version, int record size, int number of objects,
+ *         long number of records, long min epoch, long max epoch, 24 bytes reserved
+ * index   per object: int object number, long first record, int count,
+ *         long min epoch, long max epoch
+ * records
+ * </pre>
+ *
+ * <pre>
+ * TLECatalogFile.write("catalog.bin", TLEReader.readTLEs("catalog.txt"));
+ * TLECatalogFile cat = new TLECatalogFile("catalog.bin");
+ * TLE tle = cat.getPreceding(25544, d);
+ * </pre>
+ *
+ * @author aholinch
+ *
+ */
+public class TLECatalogFile
+{
+	public static final int MAGIC = 0x544c4542; // TLEB
+	public static final int VERSION = 2;
+
+	public static final int HEADER_SIZE = 64;
+	public static final int INDEX_ENTRY_SIZE = 32;
+
+	protected String file = null;
+	protected FileChannel ch = null;
+
+	protected long numRecords = 0;
+	protected long minEpoch = 0;
+	protected long maxEpoch = 0;
+	protected long recordsOffset = 0;
+
+	// index, sorted by object number
+	protected int objNums[] = null;
+	protected long firstRecords[] = null;
+	protected int counts[] = null;
+	protected long minEpochs[] = null;
+	protected long maxEpochs[] = null;
+
+	// the records are mapped in segments since a single map is limited to 2 GB
+	protected MappedByteBuffer segments[] = null;
+	protected int recordsPerSegment = 0;
+
+	/**
+	 * Open and map a file written by write.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public TLECatalogFile(String file) throws IOException
+	{
+		this.file = file;
+		ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+
+		try
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			read(header, 0);
+			if(header.getInt(0) != MAGIC) throw new IOException("Not a TLE catalog file " + file);
+			if(header.getInt(4) != VERSION) throw new IOException("Unsupported TLE catalog version " + header.getInt(4));
+			if(header.getInt(8) != TLEBinary.RECORD_SIZE) throw new IOException("Unexpected record size " + header.getInt(8));
+
+			int numObjects = header.getInt(12);
+			numRecords = header.getLong(16);
+			minEpoch = header.getLong(24);
+			maxEpoch = header.getLong(32);
+
+			ByteBuffer index = ByteBuffer.allocate(numObjects*INDEX_ENTRY_SIZE);
+			read(index, HEADER_SIZE);
+
+			objNums = new int[numObjects];
+			firstRecords = new long[numObjects];
+			counts = new int[numObjects];
+			minEpochs = new long[numObjects];
+			maxEpochs = new long[numObjects];
+			int p = 0;
+			for(int i=0; i<numObjects; i++)
+			{
+				objNums[i] = index.getInt(p);
+				firstRecords[i] = index.getLong(p+4);
+				counts[i] = index.getInt(p+12);
+				minEpochs[i] = index.getLong(p+16);
+				maxEpochs[i] = index.getLong(p+24);
+				p += INDEX_ENTRY_SIZE;
+			}
+
+			recordsOffset = HEADER_SIZE + ((long)numObjects)*INDEX_ENTRY_SIZE;
+			recordsPerSegment = Integer.MAX_VALUE/TLEBinary.RECORD_SIZE;
+			int numSegments = (int)((numRecords+recordsPerSegment-1)/recordsPerSegment);
+			segments = new MappedByteBuffer[numSegments];
+			long pos = recordsOffset;
+			long left = numRecords;
+			for(int i=0; i<numSegments; i++)
+			{
+				long n = Math.min(left, recordsPerSegment);
+				segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, pos, n*TLEBinary.RECORD_SIZE);
+				pos += n*TLEBinary.RECORD_SIZE;
+				left -= n;
+			}
+		}
+		catch(IOException ex)
+		{
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Write the TLEs sorted by object and epoch.  TLEs that could not be parsed or whose id
+	 * has no object number are skipped, see TLEBinary.canWrite.
+	 *
+	 * @param file
+	 * @param tles
+	 * @return the number of TLEs written
+	 * @throws IOException
+	 */
+	public static long write(String file, List<TLE> tles) throws IOException
+	{
+		int size = tles.size();
+		List<Integer> order = new ArrayList<Integer>(size);
+		final int allIDs[] = new int[size];
+		final long allEpochs[] = new long[size];
+		TLE tle = null;
+		int skipped = 0;
+		for(int i=0; i<size; i++)
+		{
+			tle = tles.get(i);
+			if(!TLEBinary.canWrite(tle))
+			{
+				skipped++;
+				continue;
+			}
+			allIDs[i] = TLEBinary.idToInt(tle.getObjectID());
+			allEpochs[i] = tle.getEpoch().getTime();
+			order.add(i);
+		}
+
+		// stable so equal epochs keep their file order
+		Collections.sort(order, (a,b) -> {
+			int c = Integer.compare(allIDs[a], allIDs[b]);
+			if(c == 0) c = Long.compare(allEpochs[a], allEpochs[b]);
+			return c;
+		});
+
+		if(skipped > 0)
+		{
+			System.err.println("Skipped " + skipped + " TLEs that could not be parsed or have ids that can not be stored");
+		}
+
+		size = order.size();
+		List<TLE> sorted = new ArrayList<TLE>(size);
+		int ids[] = new int[size];
+		for(int i=0; i<size; i++)
+		{
+			sorted.add(tles.get(order.get(i)));
+			ids[i] = allIDs[order.get(i)];
+		}
+
+		int numObjects = 0;
+		for(int i=0; i<size; i++) if(i == 0 || ids[i] != ids[i-1]) numObjects++;
+
+		long minEpoch = size>0?Long.MAX_VALUE:0;
+		long maxEpoch = size>0?Long.MIN_VALUE:0;
+		for(int i=0; i<size; i++)
+		{
+			long t = sorted.get(i).getEpoch().getTime();
+			minEpoch = Math.min(minEpoch, t);
+			maxEpoch = Math.max(maxEpoch, t);
+		}
+
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<16));
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(TLEBinary.RECORD_SIZE);
+			out.writeInt(numObjects);
+			out.writeLong(size);
+			out.writeLong(minEpoch);
+			out.writeLong(maxEpoch);
+			for(int i=40; i<HEADER_SIZE; i++) out.write(0);
+
+			int start = 0;
+			long t = 0;
+			for(int i=1; i<=size; i++)
+			{
+				if(i == size || ids[i] != ids[start])
+				{
+					out.writeInt(ids[start]);
+					out.writeLong(start);
+					out.writeInt(i-start);
+					long lo = Long.MAX_VALUE;
+					long hi = Long.MIN_VALUE;
+					for(int j=start; j<i; j++)
+					{
+						t = sorted.get(j).getEpoch().getTime();
+						lo = Math.min(lo, t);
+						hi = Math.max(hi, t);
+					}
+					out.writeLong(lo);
+					out.writeLong(hi);
+					start = i;
+				}
+			}
+
+			ByteBuffer bb = ByteBuffer.allocate(TLEBinary.RECORD_SIZE);
+			for(int i=0; i<size; i++)
+			{
+				TLEBinary.write(sorted.get(i), bb, 0);
+				out.write(bb.array());
+			}
+		}
+		finally
+		{
+			if(out != null) out.close();
+		}
+
+		return size;
+	}
+
+	public void close()
+	{
+		if(ch != null)try {ch.close();}catch(Exception ex) {}
+		ch = null;
+	}
+
+	public long getNumTLEs()
+	{
+		return numRecords;
+	}
+
+	public int getNumObjects()
+	{
+		return objNums.length;
+	}
+
+	/**
+	 * Object numbers in increasing order.
+	 *
+	 * @return
+	 */
+	public int[] getObjectNumbers()
+	{
+		return objNums.clone();
+	}
+
+	public Date getMinEpoch()
+	{
+		return new java.sql.Timestamp(minEpoch);
+	}
+
+	public Date getMaxEpoch()
+	{
+		return new java.sql.Timestamp(maxEpoch);
+	}
+
+	/**
+	 * Number of TLEs for the object, 0 if it is not in the file.
+	 *
+	 * @param objNum
+	 * @return
+	 */
+	public int getNumTLEs(int objNum)
+	{
+		int ind = findObject(objNum);
+		return ind<0?0:counts[ind];
+	}
+
+	/**
+	 * Index position of the object or -1.
+	 *
+	 * @param objNum
+	 * @return
+	 */
+	public int findObject(int objNum)
+	{
+		int ind = java.util.Arrays.binarySearch(objNums, objNum);
+		return ind<0?-1:ind;
+	}
+
+	/**
+	 * Build the TLE stored at the record position.
+	 *
+	 * @param record
+	 * @return
+	 */
+	public TLE getTLE(long record)
+	{
+		int seg = (int)(record/recordsPerSegment);
+		int pos = (int)(record%recordsPerSegment)*TLEBinary.RECORD_SIZE;
+
+		// only absolute gets are used so the buffer is shared between threads
+		return TLEBinary.read(segments[seg], pos);
+	}
+
+	public long getEpochMillis(long record)
+	{
+		int seg = (int)(record/recordsPerSegment);
+		int pos = (int)(record%recordsPerSegment)*TLEBinary.RECORD_SIZE;
+		return TLEBinary.getEpochMillis(segments[seg], pos);
+	}
+
+	/**
+	 * Latest TLE for the object with epoch at or before d, null if there is none.
+	 *
+	 * @param objNum
+	 * @param d
+	 * @return
+	 */
+	public TLE getPreceding(int objNum, Date d)
+	{
+		int ind = findObject(objNum);
+		if(ind < 0) return null;
+
+		long rec = floor(ind, d.getTime());
+		return rec<0?null:getTLE(rec);
+	}
+
+	/**
+	 * Earliest TLE for the object with epoch at or after d, null if there is none.
+	 *
+	 * @param objNum
+	 * @param d
+	 * @return
+	 */
+	public TLE getFollowing(int objNum, Date d)
+	{
+		int ind = findObject(objNum);
+		if(ind < 0) return null;
+
+		long rec = ceiling(ind, d.getTime());
+		return rec<0?null:getTLE(rec);
+	}
+
+	/**
+	 * TLE for the object with epoch closest to d, the same choice as TLEReader.closestToDate.
+	 *
+	 * @param objNum
+	 * @param d
+	 * @return
+	 */
+	public TLE getClosest(int objNum, Date d)
+	{
+		int ind = findObject(objNum);
+		if(ind < 0) return null;
+
+		long t = d.getTime();
+		long lo = floor(ind, t);
+		long hi = ceiling(ind, t);
+		if(lo < 0) return getTLE(hi);
+		if(hi < 0) return getTLE(lo);
+
+		// the earliest of several equally close wins
+		long dlo = t-getEpochMillis(lo);
+		long dhi = getEpochMillis(hi)-t;
+		if(dhi < dlo) return getTLE(hi);
+		while(lo > firstRecords[ind] && getEpochMillis(lo-1) == getEpochMillis(lo)) lo--;
+		return getTLE(lo);
+	}
+
+	/**
+	 * TLE for the object id with epoch closest to d, null if there is none or the id has no
+	 * object number.
+	 *
+	 * @param objectID
+	 * @param d
+	 * @return
+	 */
+	public TLE getClosest(String objectID, Date d)
+	{
+		int objNum = TLEBinary.idToInt(objectID);
+		if(objNum < 0) return null;
+		return getClosest(objNum, d);
+	}
+
+	/**
+	 * All TLEs for the object with epochs in [d1,d2].
+	 *
+	 * @param objNum
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public List<TLE> getTLEs(int objNum, Date d1, Date d2)
+	{
+		List<TLE> out = new ArrayList<TLE>();
+		int ind = findObject(objNum);
+		if(ind < 0) return out;
+
+		long t2 = d2.getTime();
+		long rec = ceiling(ind, d1.getTime());
+		if(rec < 0) return out;
+
+		long end = firstRecords[ind]+counts[ind];
+		for(; rec<end && getEpochMillis(rec) <= t2; rec++)
+		{
+			out.add(getTLE(rec));
+		}
+		return out;
+	}
+
+	/**
+	 * Last record of the object with epoch at or before t, -1 if none.
+	 *
+	 * @param ind
+	 * @param t
+	 * @return
+	 */
+	protected long floor(int ind, long t)
+	{
+		if(t < minEpochs[ind]) return -1;
+
+		long lo = firstRecords[ind];
+		long hi = lo+counts[ind]-1;
+		if(t >= maxEpochs[ind]) return hi;
+
+		long mid = 0;
+		while(lo < hi)
+		{
+			mid = (lo+hi+1) >>> 1;
+			if(getEpochMillis(mid) <= t)
+			{
+				lo = mid;
+			}
+			else
+			{
+				hi = mid-1;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * First record of the object with epoch at or after t, -1 if none.
+	 *
+	 * @param ind
+	 * @param t
+	 * @return
+	 */
+	protected long ceiling(int ind, long t)
+	{
+		if(t > maxEpochs[ind]) return -1;
+
+		long lo = firstRecords[ind];
+		long hi = lo+counts[ind]-1;
+		if(t <= minEpochs[ind]) return lo;
+
+		long mid = 0;
+		while(lo < hi)
+		{
+			mid = (lo+hi) >>> 1;
+			if(getEpochMillis(mid) >= t)
+			{
+				hi = mid;
+			}
+			else
+			{
+				lo = mid+1;
+			}
+		}
+		return lo;
+	}
+
+	protected void read(ByteBuffer bb, long pos) throws IOException
+	{
+		while(bb.hasRemaining())
+		{
+			int n = ch.read(bb, pos+bb.position());
+			if(n < 0) throw new IOException("Unexpected end of file " + file);
+		}
+	}
+}
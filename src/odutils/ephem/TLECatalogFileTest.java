@@ -0,0 +1,191 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import sgp4.TLE;
+import sgp4.TLEBinary;
+import sgp4.TLEParserTest;
+
+/**
+ * Writes a TLECatalogFile and reads it back.  Every field and propagated state must match
+ * the TLEs written, lines rebuilt from the records must parse to the same values, and ids
+ * without an object number must be left out and not found.  Prints PASS or FAIL for each check.
+ *
+ * Usage: TLECatalogFileTest [number of synthetic TLEs]
+ *
+ * @author aholinch
+ *
+ */
+public class TLECatalogFileTest
+{
+	public static final String lines[][] = {
+		{"1 25544U 98067A   08264.51782528 -.00002182  00000-0 -11606-4 0  2927","2 25544  51.6416 247.4627 0006703 130.5360 325.0288 15.72125391563537"},
+		{"1 00005U 58002B   00179.78495062  .00000023  00000-0  28098-4 0  4753","2 00005  34.2682 348.7242 1859667 331.7664  19.3264 10.82419157413667"},
+		{"1 28626U 05008A   06176.46683397 -.00000205  00000-0  10000-3 0  2190","2 28626   0.0019 286.9433 0000335  13.7918  55.6504  1.00270176  4891"},
+		{"1 T0005U 58002B   00179.78495062  .00000023  00000-0  28098-4 0  4753","2 T0005  34.2682 348.7242 1859667 331.7664  19.3264 10.82419157413667"}
+	};
+
+	// I is not an alpha-5 letter so this id has no object number
+	public static final String badLines[] = {"1 I0005U 58002B   00179.78495062  .00000023  00000-0  28098-4 0  4753","2 I0005  34.2682 348.7242 1859667 331.7664  19.3264 10.82419157413667"};
+
+	protected static int failed = 0;
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	public static double[] fields(TLE tle)
+	{
+		return new double[]{tle.getEpoch().getTime(), tle.getElsetRec().epochyr, tle.getElsetRec().epochdays,
+				tle.getElsetRec().jdsatepoch, tle.getElsetRec().jdsatepochF, tle.getNDot(), tle.getNDDot(),
+				tle.getBstar(), tle.getElType(), tle.getElNum(), tle.getIncDeg(), tle.getRaanDeg(), tle.getEcc(),
+				tle.getArgpDeg(), tle.getMaDeg(), tle.getN(), tle.getRevNum(), tle.getElsetRec().classification};
+	}
+
+	/**
+	 * Fields the same to a relative tolerance, 0 for bit for bit.
+	 */
+	public static boolean sameFields(TLE a, TLE b, double tol)
+	{
+		double fa[] = fields(a);
+		double fb[] = fields(b);
+		for(int i=0; i<fa.length; i++)
+		{
+			if(tol == 0 && Double.doubleToLongBits(fa[i]) != Double.doubleToLongBits(fb[i])) return false;
+			if(Math.abs(fa[i]-fb[i]) > tol*Math.abs(fa[i])) return false;
+		}
+		return a.getObjectID().equals(b.getObjectID()) && a.getIntlID().equals(b.getIntlID());
+	}
+
+	public static boolean sameStates(TLE a, TLE b)
+	{
+		Date d = new Date(a.getEpoch().getTime()+3*86400000L);
+		double rva[][] = a.getRV(d);
+		double rvb[][] = b.getRV(d);
+		for(int i=0; i<2; i++)
+		{
+			for(int j=0; j<3; j++)
+			{
+				if(Double.doubleToLongBits(rva[i][j]) != Double.doubleToLongBits(rvb[i][j])) return false;
+			}
+		}
+		return true;
+	}
+
+	public static void main(String args[])
+	{
+		int num = 20000;
+		if(args.length > 0) num = Integer.parseInt(args[0]);
+
+		List<TLE> tles = new ArrayList<TLE>();
+		for(int i=0; i<lines.length; i++)
+		{
+			tles.add(new TLE(lines[i][0], lines[i][1]));
+		}
+
+		String text = new String(TLEParserTest.buildLines(num, 500, 3), StandardCharsets.ISO_8859_1);
+		String synth[] = text.split("\n");
+		for(int i=0; i+1<synth.length; i+=2)
+		{
+			tles.add(new TLE(synth[i], synth[i+1]));
+		}
+
+		TLE bad = new TLE(badLines[0], badLines[1]);
+		tles.add(bad);
+
+		File file = null;
+		TLECatalogFile cat = null;
+		try
+		{
+			file = File.createTempFile("tlecat", ".bin");
+			long written = TLECatalogFile.write(file.getPath(), tles);
+			check("id without an object number not written", written == tles.size()-1 && !TLEBinary.canWrite(bad));
+
+			double perTLE = ((double)file.length())/written;
+			System.out.println("bytes per TLE " + perTLE + " vs about 142 as text");
+			check("record smaller than the text", TLEBinary.RECORD_SIZE < 2*69+4);
+
+			cat = new TLECatalogFile(file.getPath());
+
+			// same order as the file, stable by object number then epoch
+			List<TLE> expected = new ArrayList<TLE>(tles);
+			expected.remove(bad);
+			Collections.sort(expected, (a,b) -> {
+				int c = Integer.compare(TLEBinary.idToInt(a.getObjectID()), TLEBinary.idToInt(b.getObjectID()));
+				if(c == 0) c = a.getEpoch().compareTo(b.getEpoch());
+				return c;
+			});
+
+			int fieldDiffs = 0;
+			int stateDiffs = 0;
+			int lineDiffs = 0;
+			TLE a = null;
+			TLE b = null;
+			for(int i=0; i<expected.size(); i++)
+			{
+				a = expected.get(i);
+				b = cat.getTLE(i);
+				if(!sameFields(a, b, 0)) fieldDiffs++;
+				if(!sameStates(a, b)) stateDiffs++;
+
+				// lines rebuilt from the record parse back to the same values, the synthetic lines
+				// have implied decimals such as 06269-4 which are written as 62690-5
+				if(!sameFields(a, new TLE(b.getLine1(), b.getLine2()), 1e-14)) lineDiffs++;
+			}
+			check("fields read back", fieldDiffs == 0);
+			check("states read back", stateDiffs == 0);
+			check("rebuilt lines parse to the same values", lineDiffs == 0);
+
+			boolean same = true;
+			for(int i=0; i<lines.length; i++)
+			{
+				TLE tle = cat.getClosest(tles.get(i).getObjectID(), tles.get(i).getEpoch());
+				same = same && tle != null && lines[i][0].equals(tle.getLine1()) && lines[i][1].equals(tle.getLine2());
+			}
+			check("standard lines rebuilt exactly", same);
+
+			check("alpha-5 id found", cat.getClosest("T0005", new Date()) != null && cat.getNumTLEs(270005) == 1);
+			check("id without an object number not found", cat.getClosest("I0005", new Date()) == null && cat.getClosest("ABC", new Date()) == null);
+
+			TLEHistory hist = new TLEHistory();
+			check("history rejects an id without an object number", !hist.add(bad) && hist.add(tles.get(0)));
+			check("history closest for an id without an object number", hist.getClosest("I0005", new Date()) == null);
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			failed++;
+		}
+		finally
+		{
+			if(cat != null) cat.close();
+			if(file != null) file.delete();
+		}
+
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
@@ -0,0 +1,414 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import sgp4.TLE;
+import sgp4.TLEParser;
+
+/**
+ * Reads large TLE files in parallel.  The file is split into line aligned chunks which are
+ * read with positional FileChannel reads and parsed on a fork join pool.  Lines are paired
+ * the same way as TLEReader.readTLEs, a line starting with "1 " followed by a line starting
+ * with "2 " where columns 1 to 7 match.  setMatchIds(false) drops the column match, the way
+ * EphemerisUtil.parseTLEs paired lines.  TLEs are returned in file order.
+ *
+ * A filter can reject TLEs after the fields are parsed but before sgp4init, which is most of
+ * the cost, for example to keep a few objects or an epoch range out of a long history.
+ *
+ * <pre>
+ * TLECatalogReader reader = new TLECatalogReader(file);
+ * reader.setFilter(TLECatalogReader.epochFilter(d1, d2));
+ * reader.readTLEs(tle -&gt; process(tle));
+ * </pre>
+ *
+ * @author aholinch
+ *
+ */
+public class TLECatalogReader
+{
+	public static final int DEFAULT_CHUNK_SIZE = 8*1024*1024;
+
+	// chunks parsed ahead of the consumer when streaming, per thread
+	protected static final int CHUNKS_PER_THREAD = 2;
+
+	protected String file = null;
+	protected ForkJoinPool pool = null;
+	protected int chunkSize = DEFAULT_CHUNK_SIZE;
+	protected Predicate<TLE> filter = null;
+	protected boolean matchIds = true;
+
+	public TLECatalogReader(String file)
+	{
+		this(file, ForkJoinPool.commonPool());
+	}
+
+	public TLECatalogReader(String file, ForkJoinPool pool)
+	{
+		this.file = file;
+		this.pool = pool;
+	}
+
+	public int getChunkSize()
+	{
+		return chunkSize;
+	}
+
+	public void setChunkSize(int size)
+	{
+		chunkSize = size;
+	}
+
+	public Predicate<TLE> getFilter()
+	{
+		return filter;
+	}
+
+	/**
+	 * Only TLEs accepted by the filter are initialized and returned.  Called from many
+	 * threads at once.
+	 *
+	 * @param filter null to keep everything
+	 */
+	public void setFilter(Predicate<TLE> filter)
+	{
+		this.filter = filter;
+	}
+
+	public boolean getMatchIds()
+	{
+		return matchIds;
+	}
+
+	/**
+	 * When false a "1 " line followed by a "2 " line is a pair even if the satellite numbers
+	 * differ.
+	 *
+	 * @param flag
+	 */
+	public void setMatchIds(boolean flag)
+	{
+		matchIds = flag;
+	}
+
+	/**
+	 * Read the whole file into a list.
+	 *
+	 * @return
+	 */
+	public List<TLE> readTLEs()
+	{
+		List<TLE> tles = new ArrayList<TLE>();
+		readTLEs(tle -> tles.add(tle));
+		return tles;
+	}
+
+	/**
+	 * Pass every TLE to the consumer in file order on the calling thread.  At most a few
+	 * chunks per thread are held in memory at a time.  Errors are printed and end the read.
+	 *
+	 * @param consumer
+	 * @return the number of TLEs passed to the consumer
+	 */
+	public long readTLEs(Consumer<TLE> consumer)
+	{
+		long count = 0;
+		FileChannel ch = null;
+		try
+		{
+			ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+			long bounds[] = getChunkBounds(ch);
+			int numChunks = bounds.length-1;
+			int window = Math.max(1, pool.getParallelism()*CHUNKS_PER_THREAD);
+
+			List<ForkJoinTask<List<TLE>>> pending = new ArrayList<ForkJoinTask<List<TLE>>>(window);
+			int next = 0;
+			while(next < numChunks && pending.size() < window)
+			{
+				pending.add(submit(ch, bounds[next], bounds[next+1]));
+				next++;
+			}
+
+			List<TLE> tles = null;
+			int size = 0;
+			while(pending.size() > 0)
+			{
+				tles = pending.remove(0).join();
+				if(next < numChunks)
+				{
+					pending.add(submit(ch, bounds[next], bounds[next+1]));
+					next++;
+				}
+
+				size = tles.size();
+				for(int i=0; i<size; i++)
+				{
+					consumer.accept(tles.get(i));
+				}
+				count += size;
+			}
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+		}
+		finally
+		{
+			if(ch != null)try {ch.close();}catch(Exception ex) {}
+		}
+		return count;
+	}
+
+	protected ForkJoinTask<List<TLE>> submit(final FileChannel ch, final long start, final long end)
+	{
+		return pool.submit(() -> parseChunk(ch, start, end));
+	}
+
+	/**
+	 * Split the file near multiples of the chunk size, moving each split forward to the
+	 * start of a line.
+	 *
+	 * @param ch
+	 * @return chunk start offsets followed by the file length
+	 * @throws IOException
+	 */
+	protected long[] getChunkBounds(FileChannel ch) throws IOException
+	{
+		long size = ch.size();
+		List<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+
+		long pos = chunkSize;
+		while(pos < size)
+		{
+			pos = nextLineStart(ch, pos, size);
+			if(pos < size) bounds.add(pos);
+			pos += chunkSize;
+		}
+		bounds.add(size);
+
+		long out[] = new long[bounds.size()];
+		for(int i=0; i<out.length; i++) out[i] = bounds.get(i);
+		return out;
+	}
+
+	/**
+	 * First line start at or after pos.
+	 *
+	 * @param ch
+	 * @param pos
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	protected long nextLineStart(FileChannel ch, long pos, long size) throws IOException
+	{
+		ByteBuffer bb = ByteBuffer.allocate(512);
+		byte b[] = bb.array();
+
+		// the byte before pos tells us if pos already starts a line
+		long p = pos-1;
+		int n = 0;
+		while(p < size)
+		{
+			bb.clear();
+			n = read(ch, bb, p);
+			if(n <= 0) break;
+			for(int i=0; i<n; i++)
+			{
+				if(b[i] == '\n') return p+i+1;
+				if(b[i] == '\r')
+				{
+					if(i+1 < n)
+					{
+						if(b[i+1] != '\n') return p+i+1;
+					}
+					else if(p+n >= size)
+					{
+						return size;
+					}
+				}
+			}
+			// keep the last byte so a \r\n split across reads is seen whole
+			p += Math.max(1, n-1);
+		}
+		return size;
+	}
+
+	/**
+	 * Read and parse the lines starting in [start,end).  The line after end is read too so a
+	 * pair that crosses the split is still found.
+	 *
+	 * @param ch
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	protected List<TLE> parseChunk(FileChannel ch, long start, long end) throws IOException
+	{
+		long fsize = ch.size();
+		int len = (int)(end-start);
+		byte buf[] = new byte[len+256];
+		int have = readFully(ch, buf, 0, len, start);
+
+		// read on until the line after the chunk ends
+		boolean found = false;
+		while(!found && start+have < fsize)
+		{
+			if(have == buf.length)
+			{
+				byte tmp[] = new byte[2*buf.length];
+				System.arraycopy(buf, 0, tmp, 0, have);
+				buf = tmp;
+			}
+			int n = readFully(ch, buf, have, Math.min(buf.length-have, 256), start+have);
+			if(n <= 0) break;
+			for(int i=have; i<have+n; i++)
+			{
+				if(buf[i] == '\n' || buf[i] == '\r')
+				{
+					found = true;
+					break;
+				}
+			}
+			have += n;
+		}
+
+		List<TLE> tles = new ArrayList<TLE>(len/140+1);
+
+		// previous line
+		int s1 = -1;
+		int e1 = -1;
+
+		int s2 = 0;
+		int e2 = 0;
+		TLE tle = null;
+		while(s2 < have)
+		{
+			e2 = s2;
+			while(e2 < have && buf[e2] != '\n' && buf[e2] != '\r') e2++;
+
+			if(s1 >= 0 && isPair(buf, s1, e1, s2, e2, matchIds))
+			{
+				tle = TLEParser.parse(buf, s1, e1, s2, e2, filter);
+				if(tle != null) tles.add(tle);
+			}
+
+			// only lines starting in this chunk can be the first line of a pair
+			if(s2 >= len) break;
+
+			s1 = s2;
+			e1 = e2;
+
+			// \n, \r\n or \r end a line, the same as BufferedReader.readLine
+			s2 = e2;
+			if(s2 < have && buf[s2] == '\r') s2++;
+			if(s2 < have && buf[s2] == '\n' && (s2 == e2 || buf[s2-1] == '\r')) s2++;
+		}
+
+		return tles;
+	}
+
+	/**
+	 * The TLEReader.readTLEs rule: "1 " then "2 " with the same columns 1 to 7, or any
+	 * columns 3 to 7 if matchIds is false.
+	 *
+	 * @param buf
+	 * @param s1
+	 * @param e1
+	 * @param s2
+	 * @param e2
+	 * @param matchIds
+	 * @return
+	 */
+	protected static boolean isPair(byte buf[], int s1, int e1, int s2, int e2, boolean matchIds)
+	{
+		if(e1-s1 < 7 || e2-s2 < 7) return false;
+		if(buf[s1] != '1' || buf[s1+1] != ' ') return false;
+		if(buf[s2] != '2' || buf[s2+1] != ' ') return false;
+		if(!matchIds) return true;
+		for(int i=1; i<7; i++)
+		{
+			if(buf[s1+i] != buf[s2+i]) return false;
+		}
+		return true;
+	}
+
+	protected static int read(FileChannel ch, ByteBuffer bb, long pos) throws IOException
+	{
+		int total = 0;
+		int n = 0;
+		while(bb.hasRemaining())
+		{
+			n = ch.read(bb, pos+total);
+			if(n < 0) break;
+			total += n;
+		}
+		return total;
+	}
+
+	protected static int readFully(FileChannel ch, byte buf[], int off, int len, long pos) throws IOException
+	{
+		return read(ch, ByteBuffer.wrap(buf, off, len), pos);
+	}
+
+	/**
+	 * Keep TLEs for the given object ids, in the form returned by TLE.getObjectID().
+	 *
+	 * @param ids
+	 * @return
+	 */
+	public static Predicate<TLE> idFilter(Collection<String> ids)
+	{
+		final Set<String> set = new HashSet<String>(ids);
+		return tle -> set.contains(tle.getObjectID());
+	}
+
+	/**
+	 * Keep TLEs with an epoch in [d1,d2].  Either date may be null to leave that side open.
+	 *
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public static Predicate<TLE> epochFilter(Date d1, Date d2)
+	{
+		final long t1 = d1 == null?Long.MIN_VALUE:d1.getTime();
+		final long t2 = d2 == null?Long.MAX_VALUE:d2.getTime();
+		return tle -> {
+			long t = tle.getEpoch().getTime();
+			return t >= t1 && t <= t2;
+		};
+	}
+}
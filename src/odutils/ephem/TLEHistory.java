@@ -0,0 +1,644 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import sgp4.TLE;
+import sgp4.TLEBinary;
+
+/**
+ * Element set history for many objects, keyed by object number.  Each object keeps its
+ * element sets as TLEBinary records with the epochs in a sorted long array, so finding the
+ * element set valid at a time is a binary search.  TLEs are only built and initialized when
+ * asked for, and the most recently used are kept in a cache of bounded size.
+ *
+ * Exact duplicates, the same object, epoch and elements, are dropped as they are added
+ * using a hash of the record.
+ *
+ * <pre>
+ * TLEHistory hist = new TLEHistory();
+ * hist.ingest("history.txt");
+ * TLE tle = hist.getPreceding(25544, d);
+ * </pre>
+ *
+ * Objects are numbered as in TLEBinary.idToInt.  Adds may come from many threads, as in
+ * ingest, and queries may too, but adds should not overlap with queries.
+ *
+ * @author aholinch
+ *
+ */
+public class TLEHistory
+{
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	// bytes of the record that identify an element set, all of it
+	protected static final int HASH_BYTES = TLEBinary.RECORD_SIZE;
+
+	protected int numTLEs = 0;
+	protected int numDuplicates = 0;
+
+	// open addressing map from object number to history
+	protected int keys[] = new int[64];
+	protected ObjectHistory vals[] = new ObjectHistory[64];
+	protected int numObjects = 0;
+
+	protected int cacheSize = DEFAULT_CACHE_SIZE;
+	protected LinkedHashMap<CacheKey,TLE> cache = null;
+
+	protected long cacheHits = 0;
+	protected long cacheMisses = 0;
+
+	public TLEHistory()
+	{
+		this(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param cacheSize maximum number of initialized TLEs kept
+	 */
+	public TLEHistory(int cacheSize)
+	{
+		this.cacheSize = cacheSize;
+		cache = new LinkedHashMap<CacheKey,TLE>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<CacheKey,TLE> eldest)
+			{
+				return size() > TLEHistory.this.cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Add every TLE in the file.  Lines are parsed in parallel and sgp4init is not run.
+	 *
+	 * @param file
+	 * @return the number of TLEs added, not counting duplicates
+	 */
+	public int ingest(String file)
+	{
+		int before = getNumTLEs();
+		TLECatalogReader reader = new TLECatalogReader(file);
+
+		// keep the parsed fields and reject so the reader skips sgp4init
+		reader.setFilter(tle -> {
+			add(tle);
+			return false;
+		});
+		reader.readTLEs(tle -> {});
+
+		return getNumTLEs()-before;
+	}
+
+	public int addAll(List<TLE> tles)
+	{
+		int count = 0;
+		int size = tles.size();
+		for(int i=0; i<size; i++)
+		{
+			if(add(tles.get(i))) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Add a parsed TLE.  It does not need to be initialized.
+	 *
+	 * @param tle
+	 * @return false if it was a duplicate or could not be stored
+	 */
+	public boolean add(TLE tle)
+	{
+		if(!TLEBinary.canWrite(tle)) return false;
+
+		byte rec[] = new byte[TLEBinary.RECORD_SIZE];
+		ByteBuffer bb = ByteBuffer.wrap(rec);
+		TLEBinary.write(tle, bb, 0);
+		int objNum = TLEBinary.getObjectNumber(bb, 0);
+
+		ObjectHistory oh = null;
+		synchronized(this)
+		{
+			oh = getOrCreate(objNum);
+		}
+
+		boolean added = oh.add(rec, TLEBinary.getEpochMillis(bb, 0));
+
+		synchronized(this)
+		{
+			if(added)
+			{
+				numTLEs++;
+			}
+			else
+			{
+				numDuplicates++;
+			}
+		}
+		return added;
+	}
+
+	public synchronized int getNumTLEs()
+	{
+		return numTLEs;
+	}
+
+	public synchronized int getNumDuplicates()
+	{
+		return numDuplicates;
+	}
+
+	public synchronized int getNumObjects()
+	{
+		return numObjects;
+	}
+
+	/**
+	 * Object numbers in increasing order.
+	 *
+	 * @return
+	 */
+	public synchronized int[] getObjectNumbers()
+	{
+		int out[] = new int[numObjects];
+		int j = 0;
+		for(int i=0; i<vals.length; i++)
+		{
+			if(vals[i] != null) out[j++] = keys[i];
+		}
+		Arrays.sort(out);
+		return out;
+	}
+
+	public int getNumTLEs(int objNum)
+	{
+		ObjectHistory oh = get(objNum);
+		return oh == null?0:oh.size();
+	}
+
+	/**
+	 * Sorted epochs in ms for the object.
+	 *
+	 * @param objNum
+	 * @return
+	 */
+	public long[] getEpochs(int objNum)
+	{
+		ObjectHistory oh = get(objNum);
+		if(oh == null) return new long[0];
+		return oh.getEpochs(0, oh.size());
+	}
+
+	/**
+	 * Sorted epochs in ms for the object in [d1,d2].
+	 *
+	 * @param objNum
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public long[] getEpochs(int objNum, Date d1, Date d2)
+	{
+		ObjectHistory oh = get(objNum);
+		if(oh == null) return new long[0];
+		int r[] = oh.range(d1.getTime(), d2.getTime());
+		return oh.getEpochs(r[0], r[1]);
+	}
+
+	/**
+	 * The TLE at the position in the sorted history of the object.
+	 *
+	 * @param objNum
+	 * @param ind
+	 * @return
+	 */
+	public TLE getTLE(int objNum, int ind)
+	{
+		ObjectHistory oh = get(objNum);
+		if(oh == null) return null;
+		return getTLE(oh, ind);
+	}
+
+	/**
+	 * Latest TLE with epoch at or before d, null if there is none.
+	 *
+	 * @param objNum
+	 * @param d
+	 * @return
+	 */
+	public TLE getPreceding(int objNum, Date d)
+	{
+		ObjectHistory oh = get(objNum);
+		if(oh == null) return null;
+		return getTLE(oh, oh.floor(d.getTime()));
+	}
+
+	/**
+	 * Earliest TLE with epoch at or after d, null if there is none.
+	 *
+	 * @param objNum
+	 * @param d
+	 * @return
+	 */
+	public TLE getFollowing(int objNum, Date d)
+	{
+		ObjectHistory oh = get(objNum);
+		if(oh == null) return null;
+		return getTLE(oh, oh.ceiling(d.getTime()));
+	}
+
+	/**
+	 * TLE with epoch closest to d, the earlier one on a tie.
+	 *
+	 * @param objNum
+	 * @param d
+	 * @return
+	 */
+	public TLE getClosest(int objNum, Date d)
+	{
+		ObjectHistory oh = get(objNum);
+		if(oh == null) return null;
+		return getTLE(oh, oh.closest(d.getTime()));
+	}
+
+	/**
+	 * TLE for the object id with epoch closest to d, null if there is none or the id has no
+	 * object number.
+	 *
+	 * @param objectID
+	 * @param d
+	 * @return
+	 */
+	public TLE getClosest(String objectID, Date d)
+	{
+		int objNum = TLEBinary.idToInt(objectID);
+		if(objNum < 0) return null;
+		return getClosest(objNum, d);
+	}
+
+	/**
+	 * All TLEs for the object with epochs in [d1,d2] in epoch order.
+	 *
+	 * @param objNum
+	 * @param d1
+	 * @param d2
+	 * @return
+	 */
+	public List<TLE> getTLEs(int objNum, Date d1, Date d2)
+	{
+		List<TLE> out = new ArrayList<TLE>();
+		ObjectHistory oh = get(objNum);
+		if(oh == null) return out;
+
+		int r[] = oh.range(d1.getTime(), d2.getTime());
+		for(int i=r[0]; i<r[1]; i++)
+		{
+			out.add(getTLE(oh, i));
+		}
+		return out;
+	}
+
+	public synchronized long getCacheHits()
+	{
+		return cacheHits;
+	}
+
+	public synchronized long getCacheMisses()
+	{
+		return cacheMisses;
+	}
+
+	public synchronized void clearCache()
+	{
+		cache.clear();
+	}
+
+	protected TLE getTLE(ObjectHistory oh, int ind)
+	{
+		if(ind < 0) return null;
+
+		CacheKey key = new CacheKey(oh, ind, oh.getVersion());
+		TLE tle = null;
+		synchronized(this)
+		{
+			tle = cache.get(key);
+			if(tle != null)
+			{
+				cacheHits++;
+				return tle;
+			}
+			cacheMisses++;
+		}
+
+		// build outside the lock, two threads may both build the same TLE which is harmless
+		tle = oh.build(ind, key.version);
+		if(tle == null) return null;
+
+		synchronized(this)
+		{
+			cache.put(key, tle);
+		}
+		return tle;
+	}
+
+	protected synchronized ObjectHistory get(int objNum)
+	{
+		int i = slot(objNum);
+		return vals[i];
+	}
+
+	protected ObjectHistory getOrCreate(int objNum)
+	{
+		int i = slot(objNum);
+		if(vals[i] != null) return vals[i];
+
+		if(2*(numObjects+1) > keys.length)
+		{
+			grow();
+			i = slot(objNum);
+		}
+
+		keys[i] = objNum;
+		vals[i] = new ObjectHistory(objNum);
+		numObjects++;
+		return vals[i];
+	}
+
+	protected int slot(int objNum)
+	{
+		int mask = keys.length-1;
+
+		// the top bits of the product are the best mixed, take as many as the table needs
+		int bits = Integer.numberOfTrailingZeros(keys.length);
+		int i = (objNum*0x9E3779B1) >>> (32-bits);
+		while(vals[i] != null && keys[i] != objNum) i = (i+1) & mask;
+		return i;
+	}
+
+	protected void grow()
+	{
+		int oldKeys[] = keys;
+		ObjectHistory oldVals[] = vals;
+		keys = new int[2*oldKeys.length];
+		vals = new ObjectHistory[2*oldVals.length];
+		for(int i=0; i<oldKeys.length; i++)
+		{
+			if(oldVals[i] != null)
+			{
+				int j = slot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				vals[j] = oldVals[i];
+			}
+		}
+	}
+
+	/**
+	 * The element sets of one object.  Records are appended in any order and sorted by
+	 * epoch the first time they are searched after a change.
+	 */
+	protected static class ObjectHistory
+	{
+		protected int objNum = 0;
+		protected int count = 0;
+		protected long epochs[] = new long[4];
+		protected byte recs[] = new byte[4*TLEBinary.RECORD_SIZE];
+		protected boolean sorted = true;
+
+		// bumped on every sort so cached TLEs for old positions are not reused
+		protected int version = 0;
+
+		// open addressing set of record hashes with the record position of each
+		protected long hashes[] = new long[8];
+		protected int hashInds[] = new int[8];
+
+		public ObjectHistory(int objNum)
+		{
+			this.objNum = objNum;
+			Arrays.fill(hashInds, -1);
+		}
+
+		public synchronized int size()
+		{
+			return count;
+		}
+
+		public synchronized int getVersion()
+		{
+			return version;
+		}
+
+		public synchronized boolean add(byte rec[], long epoch)
+		{
+			long h = hash(rec, 0);
+			int mask = hashes.length-1;
+			int i = (int)(h ^ (h >>> 32)) & mask;
+			while(hashInds[i] >= 0)
+			{
+				if(hashes[i] == h && sameRecord(rec, hashInds[i])) return false;
+				i = (i+1) & mask;
+			}
+
+			if(count == epochs.length)
+			{
+				epochs = Arrays.copyOf(epochs, 2*count);
+				recs = Arrays.copyOf(recs, 2*count*TLEBinary.RECORD_SIZE);
+			}
+
+			if(count > 0 && epoch < epochs[count-1]) sorted = false;
+			epochs[count] = epoch;
+			System.arraycopy(rec, 0, recs, count*TLEBinary.RECORD_SIZE, TLEBinary.RECORD_SIZE);
+
+			hashes[i] = h;
+			hashInds[i] = count;
+			count++;
+
+			if(2*count > hashes.length) rehash(2*hashes.length);
+			return true;
+		}
+
+		public synchronized long[] getEpochs(int from, int to)
+		{
+			sort();
+			return Arrays.copyOfRange(epochs, from, to);
+		}
+
+		/**
+		 * Last position with epoch at or before t, -1 if none.
+		 */
+		public synchronized int floor(long t)
+		{
+			sort();
+			int ind = Arrays.binarySearch(epochs, 0, count, t);
+			if(ind < 0) return -ind-2;
+
+			// last of equal epochs
+			while(ind+1 < count && epochs[ind+1] == t) ind++;
+			return ind;
+		}
+
+		/**
+		 * First position with epoch at or after t, -1 if none.
+		 */
+		public synchronized int ceiling(long t)
+		{
+			sort();
+			int ind = Arrays.binarySearch(epochs, 0, count, t);
+			if(ind < 0)
+			{
+				ind = -ind-1;
+				return ind<count?ind:-1;
+			}
+
+			// first of equal epochs
+			while(ind > 0 && epochs[ind-1] == t) ind--;
+			return ind;
+		}
+
+		public synchronized int closest(long t)
+		{
+			int lo = floor(t);
+			int hi = ceiling(t);
+			if(lo < 0) return hi;
+			if(hi < 0) return lo;
+
+			if(epochs[hi]-t < t-epochs[lo]) return hi;
+			while(lo > 0 && epochs[lo-1] == epochs[lo]) lo--;
+			return lo;
+		}
+
+		/**
+		 * Positions [from,to) with epochs in [t1,t2].
+		 */
+		public synchronized int[] range(long t1, long t2)
+		{
+			int from = ceiling(t1);
+			if(from < 0) from = count;
+			int to = floor(t2)+1;
+			if(to < from) to = from;
+			return new int[]{from, to};
+		}
+
+		public synchronized TLE build(int ind, int ver)
+		{
+			// positions moved since the caller looked them up
+			if(ver != version || ind >= count) return null;
+			return TLEBinary.read(ByteBuffer.wrap(recs), ind*TLEBinary.RECORD_SIZE);
+		}
+
+		protected void sort()
+		{
+			if(sorted) return;
+
+			Integer order[] = new Integer[count];
+			for(int i=0; i<count; i++) order[i] = i;
+			final long ep[] = epochs;
+			Arrays.sort(order, (a,b) -> Long.compare(ep[a], ep[b]));
+
+			long newEpochs[] = new long[epochs.length];
+			byte newRecs[] = new byte[recs.length];
+			int size = TLEBinary.RECORD_SIZE;
+			for(int i=0; i<count; i++)
+			{
+				newEpochs[i] = epochs[order[i]];
+				System.arraycopy(recs, order[i]*size, newRecs, i*size, size);
+			}
+			epochs = newEpochs;
+			recs = newRecs;
+			sorted = true;
+			version++;
+
+			rehash(hashes.length);
+		}
+
+		protected void rehash(int size)
+		{
+			hashes = new long[size];
+			hashInds = new int[size];
+			Arrays.fill(hashInds, -1);
+			int mask = size-1;
+			for(int j=0; j<count; j++)
+			{
+				long h = hash(recs, j*TLEBinary.RECORD_SIZE);
+				int i = (int)(h ^ (h >>> 32)) & mask;
+				while(hashInds[i] >= 0) i = (i+1) & mask;
+				hashes[i] = h;
+				hashInds[i] = j;
+			}
+		}
+
+		protected boolean sameRecord(byte rec[], int ind)
+		{
+			int off = ind*TLEBinary.RECORD_SIZE;
+			for(int i=0; i<HASH_BYTES; i++)
+			{
+				if(rec[i] != recs[off+i]) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * 64 bit FNV-1a of the identifying part of a record.
+		 */
+		protected static long hash(byte b[], int off)
+		{
+			long h = 0xcbf29ce484222325L;
+			for(int i=0; i<HASH_BYTES; i++)
+			{
+				h ^= (b[off+i] & 0xff);
+				h *= 0x100000001b3L;
+			}
+			return h;
+		}
+	}
+
+	protected static class CacheKey
+	{
+		protected final ObjectHistory oh;
+		protected final int ind;
+		protected final int version;
+
+		public CacheKey(ObjectHistory oh, int ind, int version)
+		{
+			this.oh = oh;
+			this.ind = ind;
+			this.version = version;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31*(31*System.identityHashCode(oh) + ind) + version;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof CacheKey)) return false;
+			CacheKey k = (CacheKey)obj;
+			return k.oh == oh && k.ind == ind && k.version == version;
+		}
+	}
+}
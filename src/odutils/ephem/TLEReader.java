@@ -17,9 +17,6 @@ limitations under the License.
 */
 package odutils.ephem;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -55,53 +52,15 @@ public class TLEReader
 		return m;
 	}
 	
+    /**
+     * Reads every TLE in the file with TLECatalogReader, in parallel.
+     * 
+     * @param file
+     * @return
+     */
     public static List<TLE> readTLEs(String file)
     {
-    	File f = new File(file);
-    	double fsize = f.length();
-    	fsize = fsize/(140); // divide by two lines
-    	
-    	List<TLE> tles = new ArrayList<TLE>((int)fsize);
-    	
-    	FileReader fr = null;
-    	BufferedReader br = null;
-    	TLE tle = null;
-    	try
-    	{
-    		fr = new FileReader(file);
-    		br = new BufferedReader(fr);
-    		
-    		String line1 = null;
-    		String line2 = null;
-    		
-    		line2 = br.readLine();
-    		while(line2 != null)
-    		{
-    			line1 = line2;
-    			line2 = br.readLine();
-    			if(line2 != null)
-    			{
-    				if(line1.startsWith("1 ") && line2.startsWith("2 "))
-    				{
-    					if(line1.substring(1,7).equals(line2.substring(1,7)))
-    					{
-    						tle = new TLE(line1,line2);
-    						tles.add(tle);
-    					}
-    				}
-    			}
-    		}
-    	}
-    	catch(Exception ex)
-    	{
-    		ex.printStackTrace();
-    	}
-    	finally
-    	{
-    		if(fr != null)try {fr.close();}catch(Exception ex) {}
-    		if(br != null)try {br.close();}catch(Exception ex) {}
-    	}
-    	return tles;
+    	return new TLECatalogReader(file).readTLEs();
     }
     
     public static List<TLE> cleanDuplicates(List<TLE> tles)
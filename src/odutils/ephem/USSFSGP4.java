@@ -21,10 +21,6 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
-import com.sun.jna.ptr.DoubleByReference;
-
-import afspc.astrostds.wrappers.JnaSgp4Prop;
-import afspc.astrostds.wrappers.JnaTle;
 import odutils.util.DateUtil;
 import sgp4.TLE;
 
@@ -32,13 +28,44 @@ import sgp4.TLE;
  * Memory management on linked dll/so is tricky, so we need a separate generator to emit
  * ephemeris all at once from two lines.
  * 
+ * Initialized satellites are kept in an SGP4XPSatCache so propagating the same lines again,
+ * one time at a time, does not load and initialize them each call.  The calls go through an
+ * SGP4XPBackend, by default the native library called from one dedicated thread since it is
+ * not safe to call from several.  ProcessSGP4XPBackend spreads the work over child processes.
+ * 
  * @author aholinch
  *
  */
 public class USSFSGP4 
 {
+	// no longer locked here, the default backend makes every native call on one thread
 	public static String sync = "mutex";
 	
+	protected static volatile SGP4XPSatCache cache = new SGP4XPSatCache(new SerialSGP4XPBackend(new NativeSGP4XPBackend()));
+	
+	/**
+	 * Use another backend, for example JavaSGP4XPBackend when the USSF binaries are not
+	 * available.  The old cache is cleared.
+	 * 
+	 * @param backend
+	 */
+	public static synchronized void setBackend(SGP4XPBackend backend)
+	{
+		SGP4XPSatCache old = cache;
+		cache = new SGP4XPSatCache(backend, old.getCapacity());
+		old.clear();
+	}
+	
+	public static SGP4XPBackend getBackend()
+	{
+		return cache.getBackend();
+	}
+	
+	public static SGP4XPSatCache getCache()
+	{
+		return cache;
+	}
+	
     public static CartesianState getCart(Date d, TLE tle)
     {
     	long t1 = d.getTime();
@@ -60,28 +87,27 @@ public class USSFSGP4
     {
     	CartesianState cart = null;
     	
-    	long satKey = -1;
+    	SGP4XPSatCache sats = cache;
+    	SGP4XPBackend backend = sats.getBackend();
+    	SGP4XPSatCache.Entry sat = null;
     	try
     	{
-    		satKey = JnaTle.TleAddSatFrLines(line1,line2);
-    		DoubleByReference ds50UTC = new DoubleByReference();
-  		  
-    		int errCode = JnaSgp4Prop.Sgp4InitSat(satKey);
-    		if(errCode != 0)
+    		sat = sats.acquire(line1,line2);
+    		if(sat == null)
     		{
-    			System.err.println("USSFSGP4 errCode = " + errCode);
+    			return null;
     		}
+    		double[] ds50UTC = new double[1];
     		
     		double[] pos = new double[3];   // Position (km) in TEME of Epoch
     		double[] vel = new double[3];   // Velocity (km/s) in TEME of Epoch
-    		double[] llh = new double[3];   // Latitude(deg), Longitude(deg), Height above Geoid (km)
 
   		  	// propagate the initialized TLE to the specified time in minutes since epoch
-  		  	JnaSgp4Prop.Sgp4PropMse(satKey, minSinceEpoch, ds50UTC, pos, vel, llh); // see Sgp4Prop dll document  
+  		  	backend.propMse(sat.getSatKey(), minSinceEpoch, ds50UTC, pos, vel);
   		  	
   		  	Date d1 = DateUtil.getDate(1950, 1, 1);
   		  	long t = d1.getTime();
-  		  	t += (long)(86400.0d*1000.0d*(ds50UTC.getValue()-1.0));
+  		  	t += (long)(86400.0d*1000.0d*(ds50UTC[0]-1.0));
   		  	
   		  	d1 = new java.sql.Timestamp(t);
   		  	cart = new CartesianState();
@@ -96,16 +122,7 @@ public class USSFSGP4
     	}
     	finally
     	{
-    		if(satKey != -1)
-    		{
-    			try{ 
-    				JnaTle.TleRemoveSat(satKey);   // remove loaded TLE from memory
-    			}catch(Exception ex){};
-    			
-    			try{ 
-       			    JnaSgp4Prop.Sgp4RemoveSat(satKey);  // remove initialized TLE from memory
-    			}catch(Exception ex){};  
-    		}
+    		sats.release(sat);
     	}
     	
     	return cart;
@@ -126,79 +143,42 @@ public class USSFSGP4
     	long tStepMS = (long)(1000.0d*tStepSec);
     	
     	int size = (int)((dt2-dt)/tStepMin)+1;
-    	List<CartesianState> carts = new ArrayList<CartesianState>(size);
-    	long satKey = -1;
-    	try
-    	{
-    		satKey = JnaTle.TleAddSatFrLines(tle.getLine1(),tle.getLine2());
-    		DoubleByReference ds50UTC = new DoubleByReference();
-  		  
-    		int errCode = JnaSgp4Prop.Sgp4InitSat(satKey);
-    		if(errCode != 0)
-    		{
-    			System.err.println("USSFSGP4 errCode = " + errCode);
-    		}
-    		
-    		double[] pos = new double[3];   // Position (km) in TEME of Epoch
-    		double[] vel = new double[3];   // Velocity (km/s) in TEME of Epoch
-    		double[] llh = new double[3];   // Latitude(deg), Longitude(deg), Height above Geoid (km)
-
-    		double minSinceEpoch = dt;
-    		
-    		long t = t1;
-    		
-    		CartesianState cart = null;
-    		Date d = null;
-    		while(minSinceEpoch < dt2)
-    		{
-	  		  	// propagate the initialized TLE to the specified time in minutes since epoch
-	  		  	JnaSgp4Prop.Sgp4PropMse(satKey, minSinceEpoch, ds50UTC, pos, vel, llh); // see Sgp4Prop dll document  
-	  		  	
-	  		  	
-	  		  	d = new java.sql.Timestamp(t);
-	  		  	cart = new CartesianState();
-	  		  	cart.epoch = d;
-	  		  	cart.setRVec(pos);
-	  		  	cart.setVVec(vel);
-	  		  	carts.add(cart);
-	  		  	
-	  		  	minSinceEpoch += tStepMin;
-	  		  	t += tStepMS;
-    		}
-    		
-    		// ensure d2 is used exactly
-    		minSinceEpoch = dt2;
-    		JnaSgp4Prop.Sgp4PropMse(satKey, minSinceEpoch, ds50UTC, pos, vel, llh); 
-  		  	
-  		  	d = new java.sql.Timestamp(t2);
-  		  	cart = new CartesianState();
-  		  	cart.epoch = d;
-  		  	cart.setRVec(pos);
-  		  	cart.setVVec(vel);
-  		  	carts.add(cart);
-  		  	
+    	List<Double> mses = new ArrayList<Double>(size+1);
+    	List<Long> times = new ArrayList<Long>(size+1);
+    	
+		double minSinceEpoch = dt;
+		long t = t1;
+		while(minSinceEpoch < dt2)
+		{
+			mses.add(minSinceEpoch);
+			times.add(t);
   		  	minSinceEpoch += tStepMin;
   		  	t += tStepMS;
-    	}
-    	catch(Exception ex)
+		}
+		
+		// ensure d2 is used exactly
+		mses.add(dt2);
+		times.add(t2);
+		
+		int num = mses.size();
+		double mse[] = new double[num];
+		for(int i=0; i<num; i++) mse[i] = mses.get(i);
+		
+    	List<CartesianState> carts = new ArrayList<CartesianState>(num);
+    	double vals[] = getStates(mse, tle.getLine1(), tle.getLine2());
+    	if(vals == null)
     	{
-    		ex.printStackTrace();
+    		return carts;
     	}
-    	finally
+    	
+    	CartesianState cart = null;
+    	for(int i=0; i<num; i++)
     	{
-    		if(satKey != -1)
-    		{
-    			try{ 
-    				JnaTle.TleRemoveSat(satKey);   // remove loaded TLE from memory
-    			}catch(Exception ex){};
-    			
-    			try{ 
-       			    JnaSgp4Prop.Sgp4RemoveSat(satKey);  // remove initialized TLE from memory
-    			}catch(Exception ex){};  
-    		}
+    		cart = getCart(vals, i);
+    		cart.epoch = new java.sql.Timestamp(times.get(i));
+    		carts.add(cart);
     	}
     	
-    	
     	return carts;
     }
     
@@ -214,49 +194,72 @@ public class USSFSGP4
     	long t0 = tle.getEpoch().getTime();
     	    	
     	int size = minsSinceEpoch.size();
-    	double mse = 0;
+    	double mse[] = new double[size];
+    	for(int i=0; i<size; i++) mse[i] = minsSinceEpoch.get(i);
     	
     	List<CartesianState> carts = new ArrayList<CartesianState>(size);
-    	long satKey = -1;
-    	synchronized(sync)
+    	double vals[] = getStates(mse, tle.getLine1(), tle.getLine2());
+    	if(vals == null)
+    	{
+    		return carts;
+    	}
+    	
+    	long t = 0;
+    	CartesianState cart = null;
+		for(int i=0; i<size; i++)
+		{
+  		  	t = (long)(mse[i]*60.0d*1000.0d);
+  		  	t+=t0;
+  		  	cart = getCart(vals, i);
+  		  	cart.epoch = new java.sql.Timestamp(t);
+  		  	carts.add(cart);
+		}
+    	
+    	return carts;
+    }
+    
+    /**
+     * Propagate the lines to each time in one backend call.
+     * 
+     * @param minsSinceEpoch
+     * @param line1
+     * @param line2
+     * @return SGP4XPBackend.STATE_SIZE values per time, days since 1950 UTC, position and velocity, or null on failure
+     */
+    public static double[] getStates(double minsSinceEpoch[], String line1, String line2)
+    {
+    	double vals[] = new double[minsSinceEpoch.length*SGP4XPBackend.STATE_SIZE];
+    	if(!getStates(minsSinceEpoch, line1, line2, vals))
     	{
+    		return null;
+    	}
+    	return vals;
+    }
+    
+    /**
+     * Propagate the lines to each time in one backend call, filling a buffer the caller
+     * reuses.  Nothing is allocated per time.
+     * 
+     * @param minsSinceEpoch
+     * @param line1
+     * @param line2
+     * @param out at least SGP4XPBackend.STATE_SIZE values per time, days since 1950 UTC, position and velocity
+     * @return false if the lines could not be loaded or the call failed
+     */
+    public static boolean getStates(double minsSinceEpoch[], String line1, String line2, double out[])
+    {
+    	boolean ok = false;
+    	SGP4XPSatCache sats = cache;
+    	SGP4XPSatCache.Entry sat = null;
     	try
     	{
-    		satKey = JnaTle.TleAddSatFrLines(tle.getLine1(),tle.getLine2());
-    		DoubleByReference ds50UTC = new DoubleByReference();
-  		  
-    		int errCode = JnaSgp4Prop.Sgp4InitSat(satKey);
-    		if(errCode != 0)
+    		sat = sats.acquire(line1,line2);
+    		if(sat != null)
     		{
-    			System.err.println("USSFSGP4 errCode = " + errCode);
+    			// propagation errors are left in the states, as getCart does
+    			sats.getBackend().propMse(sat.getSatKey(), minsSinceEpoch, out);
+    			ok = true;
     		}
-    		
-    		double[] pos = new double[3];   // Position (km) in TEME of Epoch
-    		double[] vel = new double[3];   // Velocity (km/s) in TEME of Epoch
-    		double[] llh = new double[3];   // Latitude(deg), Longitude(deg), Height above Geoid (km)
-
-    		long t = 0;
-    		
-    		CartesianState cart = null;
-    		Date d = null;
-    		
-    		for(int i=0; i<size; i++)
-    		{
-    			mse = minsSinceEpoch.get(i);
-	  		  	// propagate the initialized TLE to the specified time in minutes since epoch
-	  		  	JnaSgp4Prop.Sgp4PropMse(satKey, mse, ds50UTC, pos, vel, llh); // see Sgp4Prop dll document  
-	  		  	
-	  		  	t = (long)(mse*60.0d*1000.0d);
-	  		  	t+=t0;
-	  		  	d = new java.sql.Timestamp(t);
-	  		  	cart = new CartesianState();
-	  		  	cart.epoch = d;
-	  		  	cart.setRVec(pos);
-	  		  	cart.setVVec(vel);
-	  		  	carts.add(cart);
-	  		  	
-    		}
-    		
     	}
     	catch(Exception ex)
     	{
@@ -264,20 +267,19 @@ public class USSFSGP4
     	}
     	finally
     	{
-    		if(satKey != -1)
-    		{
-    			try{ 
-    				JnaTle.TleRemoveSat(satKey);   // remove loaded TLE from memory
-    			}catch(Exception ex){};
-    			
-    			try{ 
-       			    JnaSgp4Prop.Sgp4RemoveSat(satKey);  // remove initialized TLE from memory
-    			}catch(Exception ex){};  
-    		}
+    		sats.release(sat);
     	}
-    	}
-    	
-    	
-    	return carts;
+    	return ok;
+    }
+    
+    protected static CartesianState getCart(double vals[], int i)
+    {
+    	int ind = i*SGP4XPBackend.STATE_SIZE;
+    	CartesianState cart = new CartesianState();
+    	cart.setRVec(vals[ind+1], vals[ind+2], vals[ind+3]);
+    	cart.vx = vals[ind+4];
+    	cart.vy = vals[ind+5];
+    	cart.vz = vals[ind+6];
+    	return cart;
     }
 }
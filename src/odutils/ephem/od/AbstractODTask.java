@@ -19,6 +19,8 @@ package odutils.ephem.od;
 
 import java.util.Date;
 
+import sgp4.TLE;
+
 public abstract class AbstractODTask implements ODTask 
 {
     protected int type = 0;
@@ -31,6 +33,7 @@ public abstract class AbstractODTask implements ODTask
     protected OrbitState initState = null;
     protected OrbitState solvedState = null;
     protected String status = null;
+    protected ODBudget budget = new ODBudget();
     
     public AbstractODTask()
     {
@@ -46,6 +49,61 @@ public abstract class AbstractODTask implements ODTask
     {
     	return status;
     }
+    
+    /**
+     * Limits for the run, unlimited by default.  Set the limits before running.
+     * 
+     * @return
+     */
+    public ODBudget getBudget()
+    {
+    	return budget;
+    }
+    
+    public void setBudget(ODBudget budget)
+    {
+    	this.budget = budget;
+    }
+    
+    /**
+     * Ask a running task to stop, it returns with the best state found so far.
+     */
+    @Override
+    public void stopOD()
+    {
+    	budget.cancel();
+    }
+    
+    /**
+     * Record the latest solution so a run that stops early can return it.
+     * 
+     * @param tle
+     * @param rms
+     */
+    protected void setProgress(TLE tle, double rms)
+    {
+    	OrbitState orbit = new OrbitState();
+    	orbit.tle = tle;
+    	orbit.rms = rms;
+    	orbit.numIters = iter;
+    	this.rms = rms;
+    	this.solvedState = orbit;
+    }
+    
+    /**
+     * Set the status if the run ended because the budget ran out.
+     */
+    protected void checkBudgetStatus()
+    {
+    	if(budget.isCancelled())
+    	{
+    		setStatus(STATUS_STOPPED);
+    	}
+    	else if(budget.isExhausted())
+    	{
+    		setStatus(STATUS_BUDGET_EXHAUSTED);
+    	}
+    }
 
 
 	@Override
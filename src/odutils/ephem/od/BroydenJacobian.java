@@ -0,0 +1,374 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem.od;
+
+import org.hipparchus.linear.Array2DRowRealMatrix;
+import org.hipparchus.linear.ArrayRealVector;
+import org.hipparchus.linear.RealMatrix;
+import org.hipparchus.linear.RealVector;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresBuilder;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresOptimizer;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.MultivariateJacobianFunction;
+import org.hipparchus.util.Pair;
+
+/**
+ * Wraps a FiniteDifferenceJacobian so most least squares steps cost one function evaluation
+ * instead of a full finite difference jacobian.
+ *
+ * Levenberg-Marquardt evaluates a trial point for every step and takes it when the actual
+ * reduction of the cost is at least ACCEPT_RATIO of the reduction predicted by the jacobian at
+ * the last accepted point.  The same test is made here, so the reference only moves to points
+ * the optimizer moves to, and the jacobian there is the last one plus the Broyden rank one
+ * update for the step.  A full jacobian is computed at the start and after maxUpdates updates
+ * in a row.  A rejected step means the approximation has drifted, every jacobian after it is
+ * a full one.  A full jacobian reuses the function value already computed at the point.
+ *
+ * The updates mostly save evaluations on the first steps, far from the minimum, but the cost
+ * is rough and they can stop in a worse place than the full jacobian would.  Fits should go
+ * through optimize, which finishes with a run on full jacobians and keeps the Broyden result
+ * only if its RMS is no worse.  One instance should be used for one fit.
+ * BroydenJacobianTest checks the RMS and evaluations against the finite difference jacobian.
+ *
+ * @author aholinch
+ *
+ */
+public class BroydenJacobian implements MultivariateJacobianFunction
+{
+	// for optimizeWithRestarts
+	public static final int MAX_RESTARTS = 10;
+	public static final double RESTART_RMS_TOL = 1e-6;
+	
+	// the ratio of actual to predicted reduction Levenberg-Marquardt needs to take a step
+	public static final double ACCEPT_RATIO = 1e-4;
+	
+	protected FiniteDifferenceJacobian fdj = null;
+	protected int maxUpdates = 5;
+	protected double weights[] = null;
+	protected double target[] = null;
+
+	// the last point the optimizer accepted
+	protected double xRef[] = null;
+	protected double fRef[] = null;
+	protected double jRef[][] = null;
+	protected double costRef = 0;
+
+	protected int updatesSinceFull = 0;
+	protected boolean needFull = true;
+
+	// set by a rejected step
+	protected boolean fullOnly = false;
+
+	protected int numFull = 0;
+	protected int numUpdates = 0;
+	protected int numRejected = 0;
+	protected int numFinishKept = 0;
+
+	/**
+	 * @param fdj
+	 * @param maxUpdates updates between full jacobians
+	 */
+	public BroydenJacobian(FiniteDifferenceJacobian fdj, int maxUpdates)
+	{
+		this.fdj = fdj;
+		this.maxUpdates = Math.max(1, maxUpdates);
+	}
+
+	/**
+	 * Weights of the residuals, the same as given to the least squares problem, so steps are
+	 * judged the way the optimizer judges them.  Null for equal weights.
+	 *
+	 * @param w
+	 */
+	public void setWeights(double w[])
+	{
+		weights = w;
+	}
+	
+	/**
+	 * Target of the least squares problem, the residuals are the target minus the values.
+	 * Null for zeros.
+	 * 
+	 * @param t
+	 */
+	public void setTarget(double t[])
+	{
+		target = t;
+	}
+
+	/**
+	 * Run the optimizer on the problem from the builder, which must use this as its model, then
+	 * fit again from the result with the finite difference jacobian at every point.  The
+	 * Broyden result is only kept if its RMS is no worse.  The evaluations and iterations of
+	 * the result are for the run it came from.  The builder is left with this as its model.
+	 * 
+	 * @param opt
+	 * @param builder
+	 * @return
+	 */
+	public LeastSquaresOptimizer.Optimum optimize(LeastSquaresOptimizer opt, LeastSquaresBuilder builder)
+	{
+		reset();
+		LeastSquaresOptimizer.Optimum out = opt.optimize(builder.build());
+
+		LeastSquaresOptimizer.Optimum fd = null;
+		try
+		{
+			fd = opt.optimize(builder.start(out.getPoint()).model(fdj).build());
+		}
+		finally
+		{
+			builder.model(this);
+		}
+		if(fd.getRMS() < out.getRMS())
+		{
+			numFinishKept++;
+			out = fd;
+		}
+		return out;
+	}
+	
+	/**
+	 * Run the optimizer then restart from the result while the RMS goes down by more than
+	 * RESTART_RMS_TOL, for any model.
+	 * 
+	 * @param opt
+	 * @param builder
+	 * @param beforeRun called before every run, may be null
+	 * @return
+	 */
+	public static LeastSquaresOptimizer.Optimum optimizeWithRestarts(LeastSquaresOptimizer opt, LeastSquaresBuilder builder, Runnable beforeRun)
+	{
+		if(beforeRun != null) beforeRun.run();
+		LeastSquaresOptimizer.Optimum best = opt.optimize(builder.build());
+		LeastSquaresOptimizer.Optimum optimum = null;
+		double rms = 0;
+		for(int i=0; i<MAX_RESTARTS; i++)
+		{
+			rms = best.getRMS();
+			if(beforeRun != null) beforeRun.run();
+			builder.start(best.getPoint());
+			optimum = opt.optimize(builder.build());
+			if(optimum.getRMS() < rms)
+			{
+				best = optimum;
+			}
+			if(!(optimum.getRMS() < rms*(1-RESTART_RMS_TOL)))
+			{
+				break;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Compute a full jacobian at the next point and allow updates again.
+	 */
+	public void reset()
+	{
+		xRef = null;
+		fRef = null;
+		jRef = null;
+		needFull = true;
+		fullOnly = false;
+	}
+	
+	@Override
+	public Pair<RealVector, RealMatrix> value(RealVector point)
+	{
+		double x[] = point.toArray();
+		if(xRef == null)
+		{
+			return full(point, null);
+		}
+
+		double f[] = fdj.getFunction().value(x);
+		double cost = cost(f);
+
+		if(isAccepted(x, cost))
+		{
+			if(needFull || fullOnly || updatesSinceFull >= maxUpdates)
+			{
+				return full(point, f);
+			}
+
+			double jac[][] = update(x, f);
+			xRef = x;
+			fRef = f;
+			jRef = jac;
+			costRef = cost;
+			updatesSinceFull++;
+			numUpdates++;
+
+			return new Pair<RealVector, RealMatrix>(new ArrayRealVector(f, false), new Array2DRowRealMatrix(jac, true));
+		}
+
+		// the optimizer will go back to the last point
+		numRejected++;
+		needFull = true;
+		fullOnly = true;
+		return new Pair<RealVector, RealMatrix>(new ArrayRealVector(f, false), new Array2DRowRealMatrix(update(x, f), false));
+	}
+
+	/**
+	 * Whether the optimizer takes the step from the last accepted point to x, the actual
+	 * reduction of the cost against the reduction the jacobian at the last point predicts.
+	 * 
+	 * @param x
+	 * @param cost
+	 * @return
+	 */
+	protected boolean isAccepted(double x[], double cost)
+	{
+		int nr = fRef.length;
+		int np = x.length;
+		
+		double dx[] = new double[np];
+		for(int j=0; j<np; j++) dx[j] = x[j]-xRef[j];
+		
+		double pred[] = new double[nr];
+		double row[] = null;
+		for(int i=0; i<nr; i++)
+		{
+			row = jRef[i];
+			pred[i] = fRef[i];
+			for(int j=0; j<np; j++) pred[i] += row[j]*dx[j];
+		}
+		
+		double predRed = costRef-cost(pred);
+		if(!(predRed > 0)) return false;
+		return (costRef-cost)/predRed >= ACCEPT_RATIO;
+	}
+	
+	/**
+	 * The finite difference jacobian at the point.
+	 * 
+	 * @param point
+	 * @param f the function value at the point if known, else null
+	 * @return
+	 */
+	protected Pair<RealVector, RealMatrix> full(RealVector point, double f[])
+	{
+		Pair<RealVector, RealMatrix> out = fdj.value(point, f);
+		xRef = point.toArray();
+		fRef = out.getFirst().toArray();
+		jRef = out.getSecond().getData();
+		costRef = cost(fRef);
+		updatesSinceFull = 0;
+		needFull = false;
+		numFull++;
+		return out;
+	}
+
+	/**
+	 * J + (df - J dx) dx' / (dx' dx) for the step from the last accepted point.
+	 *
+	 * @param x
+	 * @param f
+	 * @return
+	 */
+	protected double[][] update(double x[], double f[])
+	{
+		int nr = f.length;
+		int np = x.length;
+
+		double dx[] = new double[np];
+		double dd = 0;
+		for(int j=0; j<np; j++)
+		{
+			dx[j] = x[j]-xRef[j];
+			dd += dx[j]*dx[j];
+		}
+
+		double out[][] = new double[nr][];
+		double row[] = null;
+		double r = 0;
+		for(int i=0; i<nr; i++)
+		{
+			row = jRef[i].clone();
+			if(dd > 0)
+			{
+				r = f[i]-fRef[i];
+				for(int j=0; j<np; j++) r -= row[j]*dx[j];
+				r /= dd;
+				for(int j=0; j<np; j++) row[j] += r*dx[j];
+			}
+			out[i] = row;
+		}
+
+		return out;
+	}
+
+	protected double cost(double f[])
+	{
+		double sum = 0;
+		double r = 0;
+		for(int i=0; i<f.length; i++)
+		{
+			r = (target == null)?f[i]:target[i]-f[i];
+			if(weights == null)
+			{
+				sum += r*r;
+			}
+			else
+			{
+				sum += weights[i]*r*r;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Number of finite difference jacobians computed.
+	 *
+	 * @return
+	 */
+	public int getFullJacobians()
+	{
+		return numFull;
+	}
+
+	/**
+	 * Number of accepted steps that used an update instead of a full jacobian.
+	 *
+	 * @return
+	 */
+	public int getAvoidedJacobians()
+	{
+		return numUpdates;
+	}
+
+	public int getRejectedSteps()
+	{
+		return numRejected;
+	}
+
+	/**
+	 * Number of fits where the finite difference finish had the lower RMS.
+	 *
+	 * @return
+	 */
+	public int getFinishKept()
+	{
+		return numFinishKept;
+	}
+
+	public String toString()
+	{
+		return "full jacobians " + numFull + " avoided " + numUpdates + " rejected steps " + numRejected + " finish kept " + numFinishKept;
+	}
+}
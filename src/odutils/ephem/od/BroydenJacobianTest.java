@@ -0,0 +1,245 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem.od;
+
+import java.util.Random;
+
+import org.hipparchus.linear.ArrayRealVector;
+import org.hipparchus.linear.RealMatrix;
+import org.hipparchus.linear.RealVector;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresBuilder;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresOptimizer;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LevenbergMarquardtOptimizer;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.MultivariateJacobianFunction;
+import org.hipparchus.util.Pair;
+
+import odutils.ephem.JavaSGP4XPBackend;
+import odutils.ephem.MutableTLE;
+import odutils.ephem.USSFSGP4;
+import sgp4.TLE;
+
+/**
+ * Fits SGP4-XP TLEs three ways, the finite difference jacobian at every point, the same with
+ * restarts, and BroydenJacobian.  Uses the java stand in backend so no USSF binaries are
+ * needed.  The evaluations and RMS of each are printed.  Broyden must use fewer evaluations
+ * than the finite difference fit and, over all the starts, get within RMS_TOL of its RMS.  The
+ * step acceptance and the reuse of the base value are checked too.  Prints PASS or FAIL for
+ * each check.
+ *
+ * Usage: BroydenJacobianTest [updates between full jacobians] [starts per orbit]
+ *
+ * @author aholinch
+ *
+ */
+public class BroydenJacobianTest
+{
+	public static final String lines[][] = {
+		{"1 25544U 98067A   08264.51782528 -.00002182  00000-0 -11606-4 0  2927","2 25544  51.6416 247.4627 0006703 130.5360 325.0288 15.72125391563537"},
+		{"1 00005U 58002B   00179.78495062  .00000023  00000-0  28098-4 0  4753","2 00005  34.2682 348.7242 1859667 331.7664  19.3264 10.82419157413667"},
+		{"1 28626U 05008A   06176.46683397 -.00000205  00000-0  10000-3 0  2190","2 28626   0.0019 286.9433 0000335  13.7918  55.6504  1.00270176  4891"}
+	};
+
+	public static final int FD = 0;
+	public static final int FD_RESTARTS = 1;
+	public static final int BROYDEN = 2;
+	public static final String names[] = {"fd", "fd restarts", "broyden"};
+
+	// geometric mean of the Broyden RMS over the finite difference RMS allowed
+	public static final double RMS_TOL = 1.1;
+
+	protected static int failed = 0;
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	/**
+	 * Fit from init the same way as FitSGP4XP's first stage.  Returns the rms and the number of
+	 * function evaluations.
+	 */
+	public static double[] fit(int mode, ObservationSet obs, TLE init, int updates)
+	{
+		SGP4XPCartesianFunction fit = new SGP4XPCartesianFunction();
+		fit.setObservations(obs);
+		ODBudget budget = new ODBudget();
+		fit.setBudget(budget);
+		fit.setInitialGuess(init);
+		fit.setFitBTerm(true);
+		fit.setFitAGOM(false);
+
+		FiniteDifferenceJacobian fdj = new FiniteDifferenceJacobian(fit,fit.getDeltas(),fit.getPercs());
+		MultivariateJacobianFunction model = fdj;
+		BroydenJacobian broyden = null;
+		if(mode == BROYDEN)
+		{
+			broyden = new BroydenJacobian(fdj, updates);
+			broyden.setWeights(fit.getObservations().getWeights());
+			broyden.setTarget(fit.getTarget());
+			model = broyden;
+		}
+
+		LeastSquaresBuilder builder = new LeastSquaresBuilder().
+				start(fit.getInitParams()).
+				model(model).
+				parameterValidator(new SGP4XPCartesianFunction.PVal()).
+				target(fit.getTarget()).
+				weight(fit.getObservations().getWeightMatrix()).
+				lazyEvaluation(false).
+				maxEvaluations(1000).
+				maxIterations(1000);
+		LeastSquaresOptimizer opt = new LevenbergMarquardtOptimizer().withParameterRelativeTolerance(2e-9);
+
+		LeastSquaresOptimizer.Optimum optimum = null;
+		if(mode == FD)
+		{
+			optimum = opt.optimize(builder.build());
+		}
+		else if(mode == FD_RESTARTS)
+		{
+			optimum = BroydenJacobian.optimizeWithRestarts(opt, builder, null);
+		}
+		else
+		{
+			optimum = broyden.optimize(opt, builder);
+			System.out.println("\t" + broyden);
+		}
+
+		return new double[]{optimum.getRMS(), budget.getEvaluations()};
+	}
+
+	/**
+	 * Steps are taken the way Levenberg-Marquardt takes them, and a full jacobian at a point
+	 * whose value is known costs one evaluation less.
+	 */
+	public static void testSteps(ObservationSet obs, TLE init)
+	{
+		SGP4XPCartesianFunction fit = new SGP4XPCartesianFunction();
+		fit.setObservations(obs);
+		ODBudget budget = new ODBudget();
+		fit.setBudget(budget);
+		fit.setInitialGuess(init);
+		fit.setFitBTerm(false);
+		fit.setFitAGOM(false);
+		FiniteDifferenceJacobian fdj = new FiniteDifferenceJacobian(fit,fit.getDeltas(),fit.getPercs());
+		
+		RealVector x = new ArrayRealVector(fit.getInitParams());
+		Pair<RealVector, RealMatrix> a = fdj.value(x);
+		long n1 = budget.getEvaluations();
+		Pair<RealVector, RealMatrix> b = fdj.value(x, a.getFirst().toArray());
+		long n2 = budget.getEvaluations()-n1;
+		check("full jacobian reuses the value", n2 == n1-1 && a.getSecond().equals(b.getSecond()));
+		
+		// one parameter and one residual, f = x with a jacobian of 1
+		BroydenJacobian bj = new BroydenJacobian(fdj, 5);
+		bj.xRef = new double[]{1};
+		bj.fRef = new double[]{1};
+		bj.jRef = new double[][]{{1}};
+		bj.costRef = 1;
+		
+		// predicted to reach 0 but only got to 0.99999, a lower cost the optimizer rejects
+		check("step with a small reduction ratio rejected", !bj.isAccepted(new double[]{0}, 0.99999*0.99999));
+		check("step with a good reduction ratio accepted", bj.isAccepted(new double[]{0}, 0.25));
+		check("step with a higher cost rejected", !bj.isAccepted(new double[]{0.5}, 1.1));
+	}
+	
+	/**
+	 * A start off from the truth in every element by a random fraction of the given scale.
+	 */
+	public static TLE getStart(TLE truth, Random rand, double scale)
+	{
+		MutableTLE init = new MutableTLE(truth);
+		init.setIncDeg(truth.getIncDeg()+0.02*scale*rand.nextGaussian());
+		init.setRaanDeg(truth.getRaanDeg()+0.02*scale*rand.nextGaussian());
+		init.setEcc(truth.getEcc()*(1+0.02*scale*rand.nextGaussian()));
+		init.setArgpDeg(truth.getArgpDeg()+0.05*scale*rand.nextGaussian());
+		init.setMaDeg(truth.getMaDeg()+0.05*scale*rand.nextGaussian());
+		init.setN(truth.getN()*(1+2e-5*scale*rand.nextGaussian()));
+		init.setBstar(3e-5);
+		init.setElType(4);
+		init.commit();
+		return init;
+	}
+
+	public static void main(String args[])
+	{
+		int updates = 5;
+		int starts = 4;
+		if(args.length > 0) updates = Integer.parseInt(args[0]);
+		if(args.length > 1) starts = Integer.parseInt(args[1]);
+
+		try
+		{
+			USSFSGP4.setBackend(new JavaSGP4XPBackend());
+
+			Random rand = new Random(5);
+			long evals[] = new long[3];
+			double logRatio[] = new double[3];
+			double logFD = 0;
+			int better[] = new int[3];
+			int num = 0;
+			for(int i=0; i<lines.length; i++)
+			{
+				MutableTLE truth = new MutableTLE(lines[i][0], lines[i][1]);
+				truth.setBstar(1e-4);
+				truth.commit();
+				ObservationSet obs = TermSearchTest.getObs(truth, 24);
+				if(i == 0) testSteps(obs, getStart(truth, new Random(1), 1));
+
+				for(int k=0; k<starts; k++)
+				{
+					TLE init = getStart(truth, rand, 1+k);
+					double vals[][] = new double[3][];
+					for(int m=0; m<3; m++)
+					{
+						vals[m] = fit(m, obs, init, updates);
+						evals[m] += (long)vals[m][1];
+						System.out.println(truth.getObjectID() + "\tstart " + k + "\t" + names[m] + "\trms " + vals[m][0] + "\tevals " + (long)vals[m][1]);
+					}
+
+					// the fits land on rounded TLE values so the minimum found depends on the
+					// path, compare the methods over all the starts
+					for(int m=0; m<3; m++)
+					{
+						logRatio[m] += Math.log(vals[m][0]/vals[FD_RESTARTS][0]);
+						if(vals[m][0] <= vals[FD_RESTARTS][0]*1.001) better[m]++;
+					}
+					logFD += Math.log(vals[BROYDEN][0]/vals[FD][0]);
+					num++;
+				}
+			}
+
+			for(int m=0; m<3; m++)
+			{
+				System.out.println(names[m] + "\tevals " + evals[m] + "\trms vs fd restarts, geometric mean " + Math.exp(logRatio[m]/num) +
+						"\tas good in " + better[m] + " of " + num);
+			}
+			double ratio = Math.exp(logFD/num);
+			check("broyden needs fewer evaluations than fd", evals[BROYDEN] < evals[FD]);
+			check("broyden rms within " + RMS_TOL + " of fd, geometric mean " + ratio, ratio <= RMS_TOL);
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			failed++;
+		}
+
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
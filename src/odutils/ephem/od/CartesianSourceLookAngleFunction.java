@@ -36,6 +36,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 public class CartesianSourceLookAngleFunction implements MultivariateVectorFunction
 {
@@ -59,6 +61,46 @@ public class CartesianSourceLookAngleFunction implements MultivariateVectorFunct
 		lookAngleDifferences = new LookAngleDifferences();
 	}
 	
+	/**
+	 * A function with the same settings that evaluates src, for use on another thread.  value
+	 * sets the elements of the cartesian source so every copy needs a source of its own.  The
+	 * look angles are shared, not copied.
+	 * 
+	 * @param src
+	 * @return
+	 */
+	public CartesianSourceLookAngleFunction copy(CartesianSource src)
+	{
+		CartesianSourceLookAngleFunction out = new CartesianSourceLookAngleFunction();
+		out.setCartesianSource(src);
+		out.lookAngles = lookAngles;
+		out.lookAnglesList = lookAnglesList;
+		out.allOneLocation = allOneLocation;
+		out.func = func;
+		out.epoch = epoch;
+		out.fitCartesian = fitCartesian;
+		return out;
+	}
+	
+	/**
+	 * Finite difference jacobian of this function.  With an executor the points are evaluated
+	 * in parallel by copies made with sources from the supplier, which must return a new
+	 * source, like the one set here, each time it is called.
+	 * 
+	 * @param sources may be null for serial
+	 * @param executor may be null for serial
+	 * @return
+	 */
+	public FiniteDifferenceJacobian getJacobian(Supplier<? extends CartesianSource> sources, ExecutorService executor)
+	{
+		FiniteDifferenceJacobian fdj = new FiniteDifferenceJacobian(this,getDeltas(),getPercs());
+		if(sources != null && executor != null)
+		{
+			fdj.setParallel(() -> copy(sources.get()), executor);
+		}
+		return fdj;
+	}
+	
 	public void setFitCartesian(boolean flag)
 	{
 		fitCartesian = flag;
@@ -17,6 +17,14 @@ limitations under the License.
 */
 package odutils.ephem.od;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
 import org.hipparchus.analysis.MultivariateVectorFunction;
 import org.hipparchus.linear.Array2DRowRealMatrix;
 import org.hipparchus.linear.ArrayRealVector;
@@ -28,6 +36,13 @@ import org.hipparchus.util.Pair;
 /**
  * Provided a MultivariateVectorFunction, this class can compute the approximate Jacobian using finite differences.
  * 
+ * In parallel mode the base point and every perturbed point are evaluated at the same time on an
+ * executor.  Most functions keep state while computing a value so each worker takes its own
+ * instance from a factory, for example fit::copy.  The instances are reused between calls.
+ * Every point is evaluated with the same arithmetic as the serial mode so the matrix is identical.
+ * The executor should not be one whose threads are all busy running the fit that calls this,
+ * unless it is a ForkJoinPool.
+ * 
  */
 public class FiniteDifferenceJacobian implements MultivariateJacobianFunction
 {
@@ -35,6 +50,12 @@ public class FiniteDifferenceJacobian implements MultivariateJacobianFunction
 	protected double h[] = null;
 	protected boolean isPerc[] = null;
 	
+	protected Supplier<? extends MultivariateVectorFunction> factory = null;
+	protected ExecutorService executor = null;
+	
+	// function instances not in use by a worker
+	protected ConcurrentLinkedQueue<MultivariateVectorFunction> idle = new ConcurrentLinkedQueue<MultivariateVectorFunction>();
+	
 	public FiniteDifferenceJacobian(MultivariateVectorFunction f, double h[], boolean isPerc[])
 	{
 		func = f;
@@ -42,22 +63,65 @@ public class FiniteDifferenceJacobian implements MultivariateJacobianFunction
 		this.isPerc = isPerc;
 	}
 
+	/**
+	 * Parallel mode, see setParallel.
+	 * 
+	 * @param factory
+	 * @param h
+	 * @param isPerc
+	 * @param executor
+	 */
+	public FiniteDifferenceJacobian(Supplier<? extends MultivariateVectorFunction> factory, double h[], boolean isPerc[], ExecutorService executor)
+	{
+		this(factory.get(), h, isPerc);
+		setParallel(factory, executor);
+	}
+	
+	/**
+	 * Evaluate the points on the executor using function instances from the factory.  Each
+	 * instance is only used by one thread at a time.  A null executor or factory turns parallel
+	 * mode off.
+	 * 
+	 * @param factory
+	 * @param executor
+	 */
+	public void setParallel(Supplier<? extends MultivariateVectorFunction> factory, ExecutorService executor)
+	{
+		this.factory = factory;
+		this.executor = executor;
+		idle.clear();
+	}
+	
+	public boolean isParallel()
+	{
+		return factory != null && executor != null;
+	}
+
+	public MultivariateVectorFunction getFunction()
+	{
+		return func;
+	}
+	
 	@Override
 	public Pair<RealVector, RealMatrix> value(RealVector params) 
 	{
-		RealVector value = new ArrayRealVector(func.value(params.toArray()));
-		
-		int nr = value.getDimension();
+		return value(params, null);
+	}
+	
+	/**
+	 * Same as value(params) when the function value at params is already known, it is used
+	 * instead of evaluating the base point again.
+	 * 
+	 * @param params
+	 * @param base the function value at params, null to evaluate it
+	 * @return
+	 */
+	public Pair<RealVector, RealMatrix> value(RealVector params, double base[]) 
+	{
 		int size = params.getDimension();
 		
-		RealMatrix jacobian = new Array2DRowRealMatrix(nr, size);
-
-		RealVector rvP2; // copy of params
-		//double v[] = null;
-		//double v2[] = null;
-		double invH = 0;
-        // compute the jacobian by perturbing the parameters slightly
-        // then seeing how it affects the results.
+		// compute the jacobian by perturbing the parameters slightly
+		// then seeing how it affects the results.
 		/*
         for( int i = 0; i < size; i++ ) {
         	
@@ -80,14 +144,17 @@ public class FiniteDifferenceJacobian implements MultivariateJacobianFunction
         }
         */
 		
-		double vph[] = null;
-		double vp2h[] = null;
-		double vmh[] = null;
-		double vm2h[] = null;
-		double v[] = value.toArray();
+		// the base point then +h, +2h and, for nonzero parameters, -h and -2h for each column
+		List<double[]> points = new ArrayList<double[]>(1+4*size);
+		int first[] = new int[size];
+		double hvals[] = new double[size];
+		
+		RealVector rvP2; // copy of params
 		double hval = 0;
 		double tv = 0;
 		
+		points.add(params.toArray());
+		
         for( int i = 0; i < size; i++ ) {
         	hval = h[i];
         	if(isPerc[i])
@@ -99,22 +166,70 @@ public class FiniteDifferenceJacobian implements MultivariateJacobianFunction
         			hval = tv*hval;
         		} // else use the percent as the value for h
         	}
+        	hvals[i] = hval;
+        	first[i] = points.size();
+        	
         	rvP2 = params.copy();
         	rvP2.setEntry(i, params.getEntry(i)+hval);
-        	vph = func.value(rvP2.toArray());
+        	points.add(rvP2.toArray());
         	rvP2.setEntry(i, params.getEntry(i)+2*hval);
-        	vp2h = func.value(rvP2.toArray());
+        	points.add(rvP2.toArray());
         	
         	if(params.getEntry(i)!=0)
-        	//if(1>0)
         	{
+	        	rvP2.setEntry(i, params.getEntry(i)-hval);
+	        	points.add(rvP2.toArray());
+	        	rvP2.setEntry(i, params.getEntry(i)-2*hval);
+	        	points.add(rvP2.toArray());
+        	}
+        }
+        
+        double vals[][] = new double[points.size()][];
+        int start = 0;
+        if(base != null)
+        {
+        	vals[0] = base;
+        	start = 1;
+        }
+        if(isParallel())
+        {
+        	double done[][] = evaluateParallel(points.subList(start, points.size()));
+        	System.arraycopy(done, 0, vals, start, done.length);
+        }
+        else
+        {
+        	for(int i=start; i<vals.length; i++)
+        	{
+        		vals[i] = func.value(points.get(i));
+        	}
+        }
+		
+		double v[] = vals[0];
+		RealVector value = new ArrayRealVector(v);
+		
+		int nr = value.getDimension();
+		
+		RealMatrix jacobian = new Array2DRowRealMatrix(nr, size);
+		
+		double vph[] = null;
+		double vp2h[] = null;
+		double vmh[] = null;
+		double vm2h[] = null;
+		double invH = 0;
+		int ind = 0;
+		
+        for( int i = 0; i < size; i++ ) {
+        	ind = first[i];
+        	vph = vals[ind];
+        	vp2h = vals[ind+1];
         	
+        	if(params.getEntry(i)!=0)
+        	//if(1>0)
+        	{
 	        	invH = 1.0d/(12.0d*h[i]);
 	        	
-	        	rvP2.setEntry(i, params.getEntry(i)-hval);
-	        	vmh = func.value(rvP2.toArray());
-	        	rvP2.setEntry(i, params.getEntry(i)-2*hval);
-	        	vm2h = func.value(rvP2.toArray());
+	        	vmh = vals[ind+2];
+	        	vm2h = vals[ind+3];
 	        	
 	        	for(int j=0; j<nr; j++)
 	        	{
@@ -125,7 +240,7 @@ public class FiniteDifferenceJacobian implements MultivariateJacobianFunction
         	else
         	{
         		// use forward difference approximation
-        		invH = 1.0d/(2.0d*hval);
+        		invH = 1.0d/(2.0d*hvals[i]);
 	        	for(int j=0; j<nr; j++)
 	        	{	        		
 	        		jacobian.setEntry(j, i,(-3.0d*v[j]+4.0d*vph[j]-vp2h[j])*invH);
@@ -137,5 +252,66 @@ public class FiniteDifferenceJacobian implements MultivariateJacobianFunction
         //System.out.println(value);
         //System.out.println(jacobian);
 		return new Pair<RealVector, RealMatrix>(value, jacobian);
-	}	
+	}
+	
+	/**
+	 * Evaluate every point on the executor, results are in the same order as the points.
+	 * 
+	 * @param points
+	 * @return
+	 */
+	protected double[][] evaluateParallel(List<double[]> points)
+	{
+		int size = points.size();
+		List<Future<double[]>> futures = new ArrayList<Future<double[]>>(size);
+		for(int i=0; i<size; i++)
+		{
+			final double pt[] = points.get(i);
+			futures.add(executor.submit(() -> evaluate(pt)));
+		}
+		
+		double vals[][] = new double[size][];
+		try
+		{
+			for(int i=0; i<size; i++)
+			{
+				vals[i] = futures.get(i).get();
+			}
+		}
+		catch(InterruptedException ex)
+		{
+			for(int i=0; i<size; i++) futures.get(i).cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		}
+		catch(ExecutionException ex)
+		{
+			for(int i=0; i<size; i++) futures.get(i).cancel(true);
+			Throwable cause = ex.getCause();
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if(cause instanceof Error) throw (Error)cause;
+			throw new RuntimeException(cause);
+		}
+		return vals;
+	}
+	
+	/**
+	 * Evaluate one point with a function instance no other thread is using.
+	 * 
+	 * @param pt
+	 * @return
+	 */
+	protected double[] evaluate(double pt[])
+	{
+		MultivariateVectorFunction f = idle.poll();
+		if(f == null) f = factory.get();
+		try
+		{
+			return f.value(pt);
+		}
+		finally
+		{
+			idle.offer(f);
+		}
+	}
 }
@@ -19,7 +19,10 @@ package odutils.ephem.od;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import org.hipparchus.linear.RealMatrix;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.MultivariateJacobianFunction;
 import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresBuilder;
 import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresOptimizer;
 import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresProblem;
@@ -32,6 +35,43 @@ import sgp4.TLE;
 
 public class FitSGP4 
 {
+	// partials from SGP4Partials where supported, otherwise finite differences throughout
+	protected static boolean analyticJacobian = true;
+	
+	/**
+	 * Use the analytic partials of SGP4CartesianFunction, the default, or finite difference
+	 * jacobians for every orbit.  SGP4PartialsTest times the fits both ways.
+	 * 
+	 * @param flag
+	 */
+	public static void setAnalyticJacobian(boolean flag)
+	{
+		analyticJacobian = flag;
+	}
+	
+	public static boolean getAnalyticJacobian()
+	{
+		return analyticJacobian;
+	}
+	
+	/**
+	 * The model for the fit, the function itself or a finite difference jacobian around it.
+	 * 
+	 * @param fit
+	 * @param jacobianExecutor runs the finite difference points in parallel, null for serial
+	 * @return
+	 */
+	protected static MultivariateJacobianFunction getModel(SGP4CartesianFunction fit, ExecutorService jacobianExecutor)
+	{
+		if(analyticJacobian)
+		{
+			return fit;
+		}
+		FiniteDifferenceJacobian fdj = new FiniteDifferenceJacobian(fit,fit.getDeltas(),fit.getPercs());
+		fdj.setParallel(fit::copy, jacobianExecutor);
+		return fdj;
+	}
+	
 
 	/**
 	 * Fit an SGP4XP tle to the provided SGP4 tles.
@@ -46,6 +86,78 @@ public class FitSGP4
 	}
 	
 	public static TLE fitSGP4(List<CartesianState> carts, boolean isTEME, Date epoch, boolean fitBTerm, TLE initTLE, double da[], boolean do2Stage)
+	{
+		return fitSGP4(carts,isTEME,epoch,fitBTerm,initTLE,da,do2Stage,null);
+	}
+	
+	/**
+	 * Fit with the evaluations counted against the budget.  If it runs out during the second
+	 * stage the first stage fit is returned, otherwise ODBudget.ExceededException is thrown.
+	 * 
+	 * @param carts
+	 * @param isTEME
+	 * @param epoch
+	 * @param fitBTerm
+	 * @param initTLE
+	 * @param da
+	 * @param do2Stage
+	 * @param budget may be null
+	 * @return
+	 */
+	public static TLE fitSGP4(List<CartesianState> carts, boolean isTEME, Date epoch, boolean fitBTerm, TLE initTLE, double da[], boolean do2Stage, ODBudget budget)
+	{
+		return fitSGP4(new ObservationSet(carts),epoch,fitBTerm,initTLE,da,do2Stage,budget);
+	}
+	
+	/**
+	 * RMS of the TLE against the observations without fitting, the same measure the fits put
+	 * in da[0].  One evaluation that is not counted against any budget.
+	 * 
+	 * @param obs
+	 * @param tle
+	 * @return
+	 */
+	public static double getRMS(ObservationSet obs, TLE tle)
+	{
+		SGP4CartesianFunction fit = new SGP4CartesianFunction();
+		fit.setObservations(obs);
+		fit.setInitialGuess(tle);
+		fit.setFitBStar(false);
+		return SGP4FitUtil.getRMS(fit.value(fit.getInitParams()), fit.getObservations().getWeights());
+	}
+	
+	/**
+	 * Fit the observations, which are converted to TEME if needed.  The budget may be null.
+	 * 
+	 * @param obs
+	 * @param epoch
+	 * @param fitBTerm
+	 * @param initTLE
+	 * @param da
+	 * @param do2Stage
+	 * @param budget
+	 * @return
+	 */
+	public static TLE fitSGP4(ObservationSet obs, Date epoch, boolean fitBTerm, TLE initTLE, double da[], boolean do2Stage, ODBudget budget)
+	{
+		return fitSGP4(obs,epoch,fitBTerm,initTLE,da,do2Stage,budget,null);
+	}
+	
+	/**
+	 * Fit with the finite difference jacobians, used for deep space orbits, run on the executor.
+	 * Null for serial, the fitted TLE is the same either way.
+	 * 
+	 * @param obs
+	 * @param epoch
+	 * @param fitBTerm
+	 * @param initTLE
+	 * @param da
+	 * @param do2Stage
+	 * @param budget
+	 * @param jacobianExecutor
+	 * @return
+	 */
+	public static TLE fitSGP4(ObservationSet obs, Date epoch, boolean fitBTerm, TLE initTLE, double da[], boolean do2Stage, ODBudget budget, ExecutorService jacobianExecutor)
 	{
 		if(da == null)da = new double[2];
 
@@ -76,7 +188,12 @@ public class FitSGP4
 
 		// Perform Fit
 		SGP4CartesianFunction fit = new SGP4CartesianFunction();
-		fit.setCarts(carts, !isTEME);
+		fit.setObservations(obs);
+		fit.setBudget(budget);
+		fit.setJacobianExecutor(jacobianExecutor);
+
+		// null when the observations are not weighted
+		RealMatrix weights = fit.getObservations().getWeightMatrix();
 
 		fit.setInitialGuess(tleInit);
 		
@@ -92,13 +209,13 @@ public class FitSGP4
 		
 		double initParams[] = fit.getInitParams();
 
-		FiniteDifferenceJacobian fdj = new FiniteDifferenceJacobian(fit,fit.getDeltas(),fit.getPercs());
-
+		// the function provides its own jacobian unless finite differences are asked for
 		LeastSquaresProblem problem = new LeastSquaresBuilder().
 				start(initParams).
-				model(fdj).
+				model(getModel(fit,jacobianExecutor)).
 				parameterValidator(new SGP4CartesianFunction.PVal()).
 				target(fit.getTarget()).
+				weight(weights).
 				lazyEvaluation(false).
 				maxEvaluations(4000).
 				maxIterations(4000).
@@ -117,31 +234,38 @@ public class FitSGP4
 
 		if(do2Stage && fitBTerm)
 		{
-			fit.setFitBStar(fitBTerm);
-			fit.setInitialGuess(tleOut);
-
-			initParams = fit.getInitParams();
-
-			fdj = new FiniteDifferenceJacobian(fit,fit.getDeltas(),fit.getPercs());
-
-			problem = new LeastSquaresBuilder().
-					start(initParams).
-					model(fdj).
-					parameterValidator(new SGP4CartesianFunction.PVal()).
-					target(fit.getTarget()).
-					lazyEvaluation(false).
-					maxEvaluations(1000).
-					maxIterations(1000).
-					build();
-
-			optimum = new LevenbergMarquardtOptimizer().optimize(problem);
-
-			System.out.println("RMS: "           + optimum.getRMS());
-			//System.out.println("evaluations: "   + optimum.getEvaluations());
-			//System.out.println("iterations: "    + optimum.getIterations());
-			ov = optimum.getPoint().toArray();
-			da[0]=optimum.getRMS();
-			tleOut = fit.paramsToTLE(ov);				
+			try
+			{
+				fit.setFitBStar(fitBTerm);
+				fit.setInitialGuess(tleOut);
+	
+				initParams = fit.getInitParams();
+	
+				problem = new LeastSquaresBuilder().
+						start(initParams).
+						model(getModel(fit,jacobianExecutor)).
+						parameterValidator(new SGP4CartesianFunction.PVal()).
+						target(fit.getTarget()).
+						weight(weights).
+						lazyEvaluation(false).
+						maxEvaluations(1000).
+						maxIterations(1000).
+						build();
+	
+				optimum = new LevenbergMarquardtOptimizer().optimize(problem);
+	
+				System.out.println("RMS: "           + optimum.getRMS());
+				//System.out.println("evaluations: "   + optimum.getEvaluations());
+				//System.out.println("iterations: "    + optimum.getIterations());
+				ov = optimum.getPoint().toArray();
+				da[0]=optimum.getRMS();
+				tleOut = fit.paramsToTLE(ov);
+			}
+			catch(ODBudget.ExceededException ex)
+			{
+				// keep the first stage
+				System.err.println(ex.getMessage());
+			}
 		}
 		
 		return tleOut;
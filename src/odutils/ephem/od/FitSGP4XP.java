@@ -20,11 +20,13 @@ package odutils.ephem.od;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
+import org.hipparchus.linear.RealMatrix;
 import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresBuilder;
 import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresOptimizer;
-import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresProblem;
 import org.hipparchus.optim.nonlinear.vector.leastsquares.LevenbergMarquardtOptimizer;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.MultivariateJacobianFunction;
 
 import odutils.ephem.CartesianState;
 import odutils.ephem.EphemerisUtil;
@@ -33,6 +35,79 @@ import sgp4.TLE;
 
 public class FitSGP4XP 
 {
+	// jacobian updates between full jacobians, 0 to compute every one
+	protected static int broydenUpdates = 0;
+	
+	/**
+	 * Use BroydenJacobian with up to num updates between full finite difference jacobians.
+	 * 0, the default, computes the full jacobian at every point.  The fit finishes on full
+	 * jacobians, BroydenJacobianTest shows it reaching about the same RMS as the plain fit
+	 * with somewhat fewer evaluations.
+	 * 
+	 * @param num
+	 */
+	public static void setBroydenUpdates(int num)
+	{
+		broydenUpdates = Math.max(0, num);
+	}
+	
+	public static int getBroydenUpdates()
+	{
+		return broydenUpdates;
+	}
+	
+	/**
+	 * Broyden models finish on full jacobians, see BroydenJacobian.optimize.
+	 */
+	protected static LeastSquaresOptimizer.Optimum optimize(LeastSquaresOptimizer opt, LeastSquaresBuilder builder, MultivariateJacobianFunction model)
+	{
+		if(model instanceof BroydenJacobian)
+		{
+			return ((BroydenJacobian)model).optimize(opt, builder);
+		}
+		return opt.optimize(builder.build());
+	}
+	
+	/**
+	 * RMS of the TLE against the observations without fitting, the same measure the fits put
+	 * in da[0].  One evaluation that is not counted against any budget.
+	 * 
+	 * @param obs
+	 * @param tle
+	 * @return
+	 */
+	public static double getRMS(ObservationSet obs, TLE tle)
+	{
+		SGP4XPCartesianFunction fit = new SGP4XPCartesianFunction();
+		fit.setObservations(obs);
+		fit.setInitialGuess(tle);
+		fit.setFitBTerm(false);
+		fit.setFitAGOM(false);
+		return SGP4FitUtil.getRMS(fit.value(fit.getInitParams()), fit.getObservations().getWeights());
+	}
+	
+	/**
+	 * The model for the fit, the finite difference jacobian or the Broyden wrapper around it.
+	 * 
+	 * @param fit
+	 * @param jacobianExecutor runs the finite difference points in parallel, null for serial
+	 * @return
+	 */
+	protected static MultivariateJacobianFunction getModel(SGP4XPCartesianFunction fit, ExecutorService jacobianExecutor)
+	{
+		FiniteDifferenceJacobian fdj = new FiniteDifferenceJacobian(fit,fit.getDeltas(),fit.getPercs());
+		fdj.setParallel(fit::copy, jacobianExecutor);
+		if(broydenUpdates < 1)
+		{
+			return fdj;
+		}
+		
+		BroydenJacobian model = new BroydenJacobian(fdj, broydenUpdates);
+		model.setWeights(fit.getObservations().getWeights());
+		model.setTarget(fit.getTarget());
+		return model;
+	}
+	
 	/**
 	 * Fit an SGP4XP tle to the provided SGP4 tles.
 	 * 
@@ -86,6 +161,32 @@ public class FitSGP4XP
 	}
 	
 	public static TLE fitSGP4XP(List<CartesianState> carts, boolean isTEME, Date epoch, boolean fitBTerm, boolean fitAGOM, TLE initTLE, double da[], boolean do2Stage)
+	{
+		return fitSGP4XP(carts,isTEME,epoch,fitBTerm,fitAGOM,initTLE,da,do2Stage,null);
+	}
+	
+	/**
+	 * Fit with the evaluations counted against the budget.  If it runs out during the second
+	 * stage the first stage fit is returned, otherwise ODBudget.ExceededException is thrown.
+	 */
+	public static TLE fitSGP4XP(List<CartesianState> carts, boolean isTEME, Date epoch, boolean fitBTerm, boolean fitAGOM, TLE initTLE, double da[], boolean do2Stage, ODBudget budget)
+	{
+		return fitSGP4XP(new ObservationSet(carts),epoch,fitBTerm,fitAGOM,initTLE,da,do2Stage,budget);
+	}
+	
+	/**
+	 * Fit the observations, which are converted to TEME if needed.  The budget may be null.
+	 */
+	public static TLE fitSGP4XP(ObservationSet obs, Date epoch, boolean fitBTerm, boolean fitAGOM, TLE initTLE, double da[], boolean do2Stage, ODBudget budget)
+	{
+		return fitSGP4XP(obs,epoch,fitBTerm,fitAGOM,initTLE,da,do2Stage,budget,null);
+	}
+	
+	/**
+	 * Fit with the finite difference points of each jacobian run on the executor, null for
+	 * serial.  The fitted TLE is the same either way.
+	 */
+	public static TLE fitSGP4XP(ObservationSet obs, Date epoch, boolean fitBTerm, boolean fitAGOM, TLE initTLE, double da[], boolean do2Stage, ODBudget budget, ExecutorService jacobianExecutor)
 	{
 		if(da == null)da = new double[2];
 
@@ -123,7 +224,11 @@ public class FitSGP4XP
 
 		// Perform Fit
 		SGP4XPCartesianFunction fit = new SGP4XPCartesianFunction();
-		fit.setCarts(carts, !isTEME);
+		fit.setObservations(obs);
+		fit.setBudget(budget);
+
+		// null when the observations are not weighted
+		RealMatrix weights = fit.getObservations().getWeightMatrix();
 
 		fit.setInitialGuess(tleInit);
 		
@@ -141,19 +246,19 @@ public class FitSGP4XP
 		
 		double initParams[] = fit.getInitParams();
 
-		FiniteDifferenceJacobian fdj = new FiniteDifferenceJacobian(fit,fit.getDeltas(),fit.getPercs());
+		MultivariateJacobianFunction model = getModel(fit, jacobianExecutor);
 
-		LeastSquaresProblem problem = new LeastSquaresBuilder().
+		LeastSquaresBuilder builder = new LeastSquaresBuilder().
 				start(initParams).
-				model(fdj).
+				model(model).
 				parameterValidator(new SGP4XPCartesianFunction.PVal()).
 				target(fit.getTarget()).
+				weight(weights).
 				lazyEvaluation(false).
 				maxEvaluations(1000).
-				maxIterations(1000).
-				build();
+				maxIterations(1000);
 
-		LeastSquaresOptimizer.Optimum optimum = new LevenbergMarquardtOptimizer().withParameterRelativeTolerance(2e-9).optimize(problem);
+		LeastSquaresOptimizer.Optimum optimum = optimize(new LevenbergMarquardtOptimizer().withParameterRelativeTolerance(2e-9), builder, model);
 		//LeastSquaresOptimizer.Optimum optimum = new LevenbergMarquardtOptimizer().optimize(problem);
 
 		System.out.println("RMS: "           + optimum.getRMS());
@@ -167,32 +272,40 @@ public class FitSGP4XP
 
 		if(do2Stage && (fitBTerm || fitAGOM))
 		{
-			fit.setFitBTerm(fitBTerm);
-			fit.setFitAGOM(fitAGOM);
-			fit.setInitialGuess(tleOut);
-
-			initParams = fit.getInitParams();
-
-			fdj = new FiniteDifferenceJacobian(fit,fit.getDeltas(),fit.getPercs());
-
-			problem = new LeastSquaresBuilder().
-					start(initParams).
-					model(fdj).
-					parameterValidator(new SGP4XPCartesianFunction.PVal()).
-					target(fit.getTarget()).
-					lazyEvaluation(false).
-					maxEvaluations(1000).
-					maxIterations(1000).
-					build();
-
-			optimum = new LevenbergMarquardtOptimizer().optimize(problem);
-
-			System.out.println("RMS: "           + optimum.getRMS());
-			System.out.println("evaluations: "   + optimum.getEvaluations());
-			System.out.println("iterations: "    + optimum.getIterations());
-			ov = optimum.getPoint().toArray();
-			da[0]=optimum.getRMS();
-			tleOut = fit.paramsToTLE(ov);				
+			try
+			{
+				fit.setFitBTerm(fitBTerm);
+				fit.setFitAGOM(fitAGOM);
+				fit.setInitialGuess(tleOut);
+
+				initParams = fit.getInitParams();
+
+				model = getModel(fit, jacobianExecutor);
+
+				builder = new LeastSquaresBuilder().
+						start(initParams).
+						model(model).
+						parameterValidator(new SGP4XPCartesianFunction.PVal()).
+						target(fit.getTarget()).
+						weight(weights).
+						lazyEvaluation(false).
+						maxEvaluations(1000).
+						maxIterations(1000);
+
+				optimum = optimize(new LevenbergMarquardtOptimizer(), builder, model);
+
+				System.out.println("RMS: "           + optimum.getRMS());
+						System.out.println("evaluations: "   + optimum.getEvaluations());
+				System.out.println("iterations: "    + optimum.getIterations());
+				ov = optimum.getPoint().toArray();
+				da[0]=optimum.getRMS();
+				tleOut = fit.paramsToTLE(ov);
+			}
+			catch(ODBudget.ExceededException ex)
+			{
+				// keep the first stage
+				System.err.println(ex.getMessage());
+			}
 		}
 		
 		return tleOut;
@@ -0,0 +1,343 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem.od;
+
+import java.util.Date;
+import java.util.List;
+
+import org.hipparchus.optim.ConvergenceChecker;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresBuilder;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresOptimizer;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LeastSquaresProblem;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.LevenbergMarquardtOptimizer;
+
+import sgp4.TLE;
+
+/**
+ * Coarse to fine SGP4 fit for dense observations.  The first level fits a small weighted
+ * subset from the initial TLE, including the B* search, the Brent search by default or the
+ * grid sweep with SGP4FitUtil.TERM_SEARCH_GRID, and each following level fits a
+ * subset growth times larger starting from the level before.  The full set is only used
+ * for a final fit of a few iterations.
+ *
+ * The settings are not changed by fit so one instance can be shared by several tasks.
+ *
+ * @author aholinch
+ *
+ */
+public class MultiResolutionFit
+{
+	// B* search range for the first level, the fit keeps B* between 0 and 1000
+	public static final double[] BSTAR_RANGE = {0, 1e-9, 1e3};
+
+	// sweeps of the grid search, each around the best term of the one before
+	public static final int GRID_PASSES = 20;
+
+	protected int minPoints = 1000;
+	protected int startPoints = 100;
+	protected double growth = 4.0;
+	protected int polishIterations = 2;
+
+	public MultiResolutionFit()
+	{
+
+	}
+
+	/**
+	 * Sets with fewer observations than this are left to the regular fit.
+	 *
+	 * @param num
+	 */
+	public void setMinPoints(int num)
+	{
+		minPoints = num;
+	}
+
+	public int getMinPoints()
+	{
+		return minPoints;
+	}
+
+	public void setStartPoints(int num)
+	{
+		startPoints = Math.max(10, num);
+	}
+
+	public int getStartPoints()
+	{
+		return startPoints;
+	}
+
+	public void setGrowth(double val)
+	{
+		growth = Math.max(1.5, val);
+	}
+
+	public double getGrowth()
+	{
+		return growth;
+	}
+
+	/**
+	 * Iterations of the final fit to the full set, 0 to run it to convergence.
+	 *
+	 * @param num
+	 */
+	public void setPolishIterations(int num)
+	{
+		polishIterations = Math.max(0, num);
+	}
+
+	public int getPolishIterations()
+	{
+		return polishIterations;
+	}
+
+	/**
+	 * Fit the observations at the epoch.  If the budget runs out the solution of the last
+	 * finished level is returned, or initTLE if there is none.
+	 *
+	 * @param obs
+	 * @param epoch
+	 * @param initTLE
+	 * @param fitBStar
+	 * @param budget may be null
+	 * @param levels filled with one entry per level if not null
+	 * @return
+	 */
+	public TLE fit(ObservationSet obs, Date epoch, TLE initTLE, boolean fitBStar, ODBudget budget, List<Level> levels)
+	{
+		return fit(obs, epoch, initTLE, fitBStar, budget, levels, SGP4FitUtil.TERM_SEARCH_BRENT);
+	}
+
+	/**
+	 * Fit with the given B* search for the first level, SGP4FitUtil.TERM_SEARCH_BRENT or
+	 * SGP4FitUtil.TERM_SEARCH_GRID.
+	 */
+	public TLE fit(ObservationSet obs, Date epoch, TLE initTLE, boolean fitBStar, ODBudget budget, List<Level> levels, int termSearch)
+	{
+		if(budget == null) budget = new ODBudget();
+		obs = obs.getTEME();
+		int size = obs.size();
+
+		TLE tle = initTLE;
+		int num = Math.min(startPoints, size);
+		int ind = 0;
+		double prevPos[] = null;
+		ObservationSet subset = null;
+		Level level = null;
+
+		try
+		{
+			while(true)
+			{
+				boolean isLast = num >= size;
+				subset = isLast?obs:obs.downsample(num);
+
+				long t0 = System.currentTimeMillis();
+				long e0 = budget.getEvaluations();
+
+				level = new Level();
+				level.level = ind;
+				level.points = subset.size();
+
+				if(ind == 0)
+				{
+					tle = fitFirst(subset, epoch, tle, fitBStar, termSearch, budget, level);
+				}
+				else
+				{
+					tle = refine(subset, tle, isLast?polishIterations:0, fitBStar, budget, level);
+				}
+
+				level.millis = System.currentTimeMillis()-t0;
+				level.evaluations = budget.getEvaluations()-e0;
+				level.bstar = tle.getBstar();
+
+				double pos[] = tle.getRV(epoch)[0];
+				if(prevPos != null)
+				{
+					double dx = pos[0]-prevPos[0];
+					double dy = pos[1]-prevPos[1];
+					double dz = pos[2]-prevPos[2];
+					level.shift = Math.sqrt(dx*dx+dy*dy+dz*dz);
+				}
+				prevPos = pos;
+
+				System.err.println("Level\t"+level);
+				if(levels != null) levels.add(level);
+
+				if(isLast) break;
+
+				ind++;
+				num = (int)Math.min(size, Math.ceil(num*growth));
+				if(num > size/2)
+				{
+					// the next level would be most of the full set
+					num = size;
+				}
+			}
+		}
+		catch(ODBudget.ExceededException ex)
+		{
+			// keep the last level that finished
+			System.err.println(ex.getMessage());
+		}
+
+		return tle;
+	}
+
+	/**
+	 * Two stage fit from the initial TLE then the B* search.
+	 */
+	protected TLE fitFirst(ObservationSet subset, Date epoch, TLE initTLE, boolean fitBStar, int termSearch, ODBudget budget, Level level)
+	{
+		double da[] = new double[4];
+		TLE tle = FitSGP4.fitSGP4(subset, epoch, fitBStar, initTLE, da, true, budget);
+		level.rms = da[0];
+
+		if(fitBStar)
+		{
+			double dda[] = new double[2];
+			TLE tle2 = null;
+			if(termSearch == SGP4FitUtil.TERM_SEARCH_GRID)
+			{
+				tle2 = gridSearch(tle, subset, dda, budget);
+			}
+			else
+			{
+				tle2 = SGP4FitUtil.minRMSForTermsBrent(tle, subset, true, BSTAR_RANGE, false, dda, budget);
+			}
+			if(dda[0] < level.rms)
+			{
+				tle = tle2;
+				level.rms = dda[0];
+			}
+		}
+
+		return tle;
+	}
+
+	/**
+	 * The sweep of fixed terms SGP4ODTask runs, 0 then 1, 1.78, 3.16 and 5.62 per decade
+	 * across BSTAR_RANGE, refined around the best term until the terms close in.  da[0] is
+	 * the lowest rms.
+	 */
+	protected TLE gridSearch(TLE tle, ObservationSet subset, double da[], ODBudget budget)
+	{
+		double mant[] = {1.0, 1.78, 3.16, 5.62};
+		int e1 = (int)Math.round(Math.log10(BSTAR_RANGE[1]));
+		int e2 = (int)Math.round(Math.log10(BSTAR_RANGE[2]));
+		double terms[] = new double[1+mant.length*(e2-e1)+1];
+		int ind = 1;
+		for(int e=e1; e<e2; e++)
+		{
+			for(int m=0; m<mant.length; m++) terms[ind++] = mant[m]*Math.pow(10.0d, e);
+		}
+		terms[ind] = BSTAR_RANGE[2];
+
+		double dda[] = new double[2];
+		double minRMS = Double.MAX_VALUE;
+		TLE tleMin = tle;
+		boolean doLog = true;
+		for(int i=0; i<GRID_PASSES; i++)
+		{
+			tle = SGP4FitUtil.minRMSForTerms(tle, subset, true, terms, false, dda, budget);
+			if(dda[0] < minRMS)
+			{
+				minRMS = dda[0];
+				tleMin = tle;
+			}
+			terms = SGP4FitUtil.newTerms(tle.getBstar(), terms, 9, doLog);
+			terms[terms.length-1] *= 1.01;
+			if(i > 1) doLog = false;
+			if(Math.abs(terms[0]-terms[terms.length-1])/terms[0] < 3e-5 || budget.isExhausted()) break;
+		}
+		da[0] = minRMS;
+		return tleMin;
+	}
+
+	/**
+	 * Least squares fit starting from tle, with B* free if fitBStar is set.
+	 *
+	 * @param subset
+	 * @param tle
+	 * @param maxIters 0 to run to convergence
+	 * @param fitBStar
+	 * @param budget
+	 * @param level
+	 * @return
+	 */
+	protected TLE refine(ObservationSet subset, TLE tle, final int maxIters, boolean fitBStar, ODBudget budget, Level level)
+	{
+		SGP4CartesianFunction fit = new SGP4CartesianFunction();
+		fit.setObservations(subset);
+		fit.setBudget(budget);
+		fit.setFitBStar(fitBStar);
+		fit.setInitialGuess(tle);
+
+		LeastSquaresBuilder builder = new LeastSquaresBuilder().
+				start(fit.getInitParams()).
+				model(fit).
+				parameterValidator(new SGP4CartesianFunction.PVal()).
+				target(fit.getTarget()).
+				weight(subset.getWeightMatrix()).
+				lazyEvaluation(false).
+				maxEvaluations(1000).
+				maxIterations(1000);
+
+		if(maxIters > 0)
+		{
+			ConvergenceChecker<LeastSquaresProblem.Evaluation> checker = (iter, prev, curr) -> iter >= maxIters;
+			builder.checker(checker);
+		}
+
+		LeastSquaresOptimizer.Optimum optimum = new LevenbergMarquardtOptimizer().optimize(builder.build());
+		level.rms = optimum.getRMS();
+		level.iterations = optimum.getIterations();
+
+		return fit.paramsToTLE(optimum.getPoint().toArray());
+	}
+
+	/**
+	 * Diagnostics for one level of the fit.
+	 */
+	public static class Level
+	{
+		public int level = 0;
+		public int points = 0;
+
+		// weighted rms of the level's fit
+		public double rms = 0;
+		public double bstar = 0;
+
+		// iterations of the least squares fit, 0 for the first level
+		public int iterations = 0;
+		public long evaluations = 0;
+		public long millis = 0;
+
+		// km the position at the epoch moved from the level before
+		public double shift = 0;
+
+		public String toString()
+		{
+			return level + "\tpoints " + points + "\trms " + rms + "\tbstar " + bstar + "\titers " + iterations +
+					"\tevals " + evaluations + "\tms " + millis + "\tshift km " + shift;
+		}
+	}
+}
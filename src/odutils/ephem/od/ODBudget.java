@@ -0,0 +1,174 @@
+/* 
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+    
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem.od;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on an OD run, a wall clock time, a number of function evaluations and a cancel flag.
+ * The fit functions count evaluations and call check, which throws ExceededException once any
+ * limit is hit.  The sweeps and tasks catch it and keep the best solution found so far.
+ * 
+ * One budget can be shared by a task, its nested runs and the threads of a sweep.  A child
+ * budget stops one part of a run without cancelling the rest.
+ * 
+ * @author aholinch
+ *
+ */
+public class ODBudget 
+{
+	protected volatile boolean cancelled = false;
+	
+	// no limit when 0
+	protected long maxMillis = 0;
+	protected long maxEvals = 0;
+	
+	protected volatile long deadline = Long.MAX_VALUE;
+	protected AtomicLong evals = new AtomicLong();
+	
+	// limits of the budget this one was made from, null if none
+	protected ODBudget parent = null;
+	
+	public ODBudget()
+	{
+		
+	}
+	
+	/**
+	 * @param maxMillis wall clock time from start, 0 for no limit
+	 * @param maxEvals function evaluations, 0 for no limit
+	 */
+	public ODBudget(long maxMillis, long maxEvals)
+	{
+		this.maxMillis = maxMillis;
+		this.maxEvals = maxEvals;
+	}
+	
+	/**
+	 * A budget with its own cancel flag that is also exhausted when this one is.  Its
+	 * evaluations count against this budget too.
+	 * 
+	 * @return
+	 */
+	public ODBudget child()
+	{
+		ODBudget out = new ODBudget();
+		out.parent = this;
+		return out;
+	}
+	
+	public void setTimeLimit(long ms)
+	{
+		maxMillis = ms;
+	}
+	
+	public long getTimeLimit()
+	{
+		return maxMillis;
+	}
+	
+	public void setMaxEvaluations(long num)
+	{
+		maxEvals = num;
+	}
+	
+	public long getMaxEvaluations()
+	{
+		return maxEvals;
+	}
+	
+	/**
+	 * Start the clock, only the first call counts so nested runs share the deadline.
+	 */
+	public synchronized void start()
+	{
+		if(deadline == Long.MAX_VALUE && maxMillis > 0)
+		{
+			deadline = System.currentTimeMillis()+maxMillis;
+		}
+	}
+	
+	public void cancel()
+	{
+		cancelled = true;
+	}
+	
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+	
+	public long getEvaluations()
+	{
+		return evals.get();
+	}
+	
+	public boolean isExhausted()
+	{
+		return getReason() != null;
+	}
+	
+	/**
+	 * Why the budget is exhausted, null if it isn't.
+	 * 
+	 * @return
+	 */
+	public String getReason()
+	{
+		if(cancelled) return "cancelled";
+		if(System.currentTimeMillis() > deadline) return "time limit of " + maxMillis + " ms";
+		if(maxEvals > 0 && evals.get() >= maxEvals) return "evaluation limit of " + maxEvals;
+		if(parent != null) return parent.getReason();
+		return null;
+	}
+	
+	public void check() throws ExceededException
+	{
+		String reason = getReason();
+		if(reason != null)
+		{
+			throw new ExceededException(reason);
+		}
+	}
+	
+	/**
+	 * Count a function evaluation then check the limits.
+	 * 
+	 * @throws ExceededException
+	 */
+	public void countEvaluation() throws ExceededException
+	{
+		evals.incrementAndGet();
+		for(ODBudget b=parent; b!=null; b=b.parent) b.evals.incrementAndGet();
+		check();
+	}
+	
+	/**
+	 * Thrown from inside a fit when the budget runs out.  Unchecked so it passes through the
+	 * optimizer.
+	 */
+	public static class ExceededException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public ExceededException(String reason)
+		{
+			super("OD budget exhausted: " + reason);
+		}
+	}
+}
@@ -31,6 +31,9 @@ public interface ODTask extends Runnable
 	public static final int TYPE_SGP4_XP     = 2;
 	public static final int TYPE_OREKIT_HP   = 3;
 	
+	public static final String STATUS_BUDGET_EXHAUSTED = "budget exhausted";
+	public static final String STATUS_STOPPED          = "stopped";
+	
 	public void setEpoch(Date epoch);
 	public Date getEpoch();
 	
@@ -17,29 +17,107 @@ limitations under the License.
 */
 package odutils.ephem.od;
 
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Runs ODTasks on a fixed number of threads.  Waiting tasks are held in a bounded queue ordered
+ * by priority, lower values first, then by submit order.  When the queue is full submitTask
+ * throws RejectedExecutionException, or submitTaskWait waits for room.
+ * 
+ * Tasks are kept by id until they have been finished for the time to live, then dropped so
+ * their observations can be collected.  Each task also has a CompletableFuture for its solved
+ * state, cancelling the future stops the task.
+ * 
+ * @author aholinch
+ *
+ */
 public class ODTaskRunner 
 {
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_BULK = 10;
+    
+    public static final String STATUS_QUEUED = "queued";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_DONE = "done";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLED = "cancelled";
+    
+    public static final int DEFAULT_QUEUE_SIZE = 1000;
+    public static final long DEFAULT_TTL_MS = 60*60*1000L;
+    
     private static final String sync = "mutex";
     
     private static final Logger logger = Logger.getLogger(ODTaskRunner.class.getName());
     
-    private static ODTaskRunner instance = null;
+    private static volatile ODTaskRunner instance = null;
+    
+    private Map<String,TaskEntry> idToTask = null;
+    private ThreadPoolExecutor executorService = null;
+    
+    // one permit per open queue slot
+    private Semaphore queueSlots = null;
+    private int queueSize = 0;
+    private long ttlMS = 0;
+    private volatile long lastEvict = 0;
     
-    private Map<String,ODTask> idToTask = null;
-    private ExecutorService executorService = null;
+    private AtomicLong seq = new AtomicLong();
+    
+    private AtomicLong numSubmitted = new AtomicLong();
+    private AtomicLong numStarted = new AtomicLong();
+    private AtomicLong numRejected = new AtomicLong();
+    private AtomicLong numCompleted = new AtomicLong();
+    private AtomicLong numFailed = new AtomicLong();
+    private AtomicLong numCancelled = new AtomicLong();
+    private AtomicLong numEvicted = new AtomicLong();
+    private AtomicLong totalWaitMS = new AtomicLong();
+    private AtomicLong totalRunMS = new AtomicLong();
+    private AtomicLong maxWaitMS = new AtomicLong();
+    private AtomicLong maxRunMS = new AtomicLong();
     
     private ODTaskRunner()
     {
-    	idToTask = new HashMap<String,ODTask>();
-    	executorService = Executors.newFixedThreadPool(10);
+    	this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE, DEFAULT_TTL_MS);
+    }
+    
+    /**
+     * A runner separate from the shared instance.
+     * 
+     * @param numThreads tasks run at once
+     * @param queueSize tasks waiting to run
+     * @param ttlMS how long finished tasks are kept
+     */
+    public ODTaskRunner(int numThreads, int queueSize, long ttlMS)
+    {
+    	numThreads = Math.max(1, numThreads);
+    	this.queueSize = Math.max(1, queueSize);
+    	this.ttlMS = ttlMS;
+    	
+    	idToTask = new ConcurrentHashMap<String,TaskEntry>();
+    	queueSlots = new Semaphore(this.queueSize);
+    	
+    	final AtomicInteger threadNum = new AtomicInteger();
+    	ThreadFactory tf = r -> {
+    		Thread t = new Thread(r, "ODTaskRunner-" + threadNum.incrementAndGet());
+    		t.setDaemon(true);
+    		return t;
+    	};
+    	executorService = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS, 
+    			new PriorityBlockingQueue<Runnable>(), tf);
     }
     
     public static ODTaskRunner getInstance()
@@ -59,16 +137,46 @@ public class ODTaskRunner
     	return instance;
     }
     
+    /**
+     * Replace the shared instance, for example with one sized for the machine.  The old one is
+     * not shut down.
+     * 
+     * @param runner
+     */
+    public static void setInstance(ODTaskRunner runner)
+    {
+    	synchronized(sync)
+    	{
+    		instance = runner;
+    	}
+    }
+    
     public ODTask getTask(String taskID)
     {
-    	return idToTask.get(taskID);
+    	evictExpired();
+    	TaskEntry entry = getEntry(taskID);
+    	if(entry == null) return null;
+    	return entry.task;
+    }
+    
+    /**
+     * The future for the task's solved state, null if the id is unknown or was evicted.
+     * 
+     * @param taskID
+     * @return
+     */
+    public CompletableFuture<OrbitState> getFuture(String taskID)
+    {
+    	TaskEntry entry = getEntry(taskID);
+    	if(entry == null) return null;
+    	return entry.future;
     }
     
     public String getTaskStatus(String taskID)
     {
     	String status = null;
     	
-    	ODTask task = idToTask.get(taskID);
+    	ODTask task = getTask(taskID);
     	if(task != null)
     	{
     		status = task.getStatus();
@@ -81,7 +189,51 @@ public class ODTaskRunner
     	return status;
     }
     
+    protected TaskEntry getEntry(String taskID)
+    {
+    	if(taskID == null) return null;
+    	return idToTask.get(taskID);
+    }
+    
     public String submitTask(ODTask task)
+    {
+    	return submitTask(task, PRIORITY_NORMAL);
+    }
+    
+    /**
+     * Queue the task, throws RejectedExecutionException if the queue is full.
+     * 
+     * @param task
+     * @param priority lower runs first
+     * @return the task id
+     */
+    public String submitTask(ODTask task, int priority)
+    {
+    	if(task == null)
+    	{
+    		logger.info("Null task submitted");
+    		return null;
+    	}
+    	
+    	if(!queueSlots.tryAcquire())
+    	{
+    		numRejected.incrementAndGet();
+    		throw new RejectedExecutionException("OD task queue is full");
+    	}
+    	
+    	return enqueue(task, priority);
+    }
+    
+    /**
+     * Queue the task, waiting up to timeoutMS for room in the queue.
+     * 
+     * @param task
+     * @param priority lower runs first
+     * @param timeoutMS
+     * @return the task id or null if there was no room in time
+     * @throws InterruptedException
+     */
+    public String submitTaskWait(ODTask task, int priority, long timeoutMS) throws InterruptedException
     {
     	if(task == null)
     	{
@@ -89,16 +241,227 @@ public class ODTaskRunner
     		return null;
     	}
     	
+    	if(!queueSlots.tryAcquire(timeoutMS, TimeUnit.MILLISECONDS))
+    	{
+    		numRejected.incrementAndGet();
+    		return null;
+    	}
+    	
+    	return enqueue(task, priority);
+    }
+    
+    /**
+     * Queue the task and return its future, throws RejectedExecutionException if the queue is
+     * full.
+     * 
+     * @param task
+     * @param priority lower runs first
+     * @return
+     */
+    public CompletableFuture<OrbitState> submit(ODTask task, int priority)
+    {
+    	return getFuture(submitTask(task, priority));
+    }
+    
+    protected String enqueue(ODTask task, int priority)
+    {
+    	evictExpired();
+    	
     	// generate id
     	String id = genID();
     	logger.info("Task " + id + " submitted");
-    	idToTask.put(id, task);
     	
-    	executorService.execute(task);
+    	final TaskEntry entry = new TaskEntry(id, task, priority, seq.incrementAndGet());
+    	idToTask.put(id, entry);
+    	task.setStatus(STATUS_QUEUED);
+    	numSubmitted.incrementAndGet();
+    	
+    	entry.future.whenComplete((state, ex) -> {
+    		if(entry.future.isCancelled()) cancel(entry);
+    	});
+    	
+    	try
+    	{
+    		executorService.execute(entry);
+    	}
+    	catch(RejectedExecutionException ex)
+    	{
+    		// shut down
+    		idToTask.remove(id);
+    		queueSlots.release();
+    		numRejected.incrementAndGet();
+    		throw ex;
+    	}
     	
     	return id;
     }
     
+    /**
+     * Cancel a queued or running task.
+     * 
+     * @param taskID
+     * @return false if the task is unknown or already finished
+     */
+    public boolean cancelTask(String taskID)
+    {
+    	TaskEntry entry = getEntry(taskID);
+    	if(entry == null) return false;
+    	return entry.future.cancel(false);
+    }
+    
+    protected void cancel(TaskEntry entry)
+    {
+    	entry.endTime = System.currentTimeMillis();
+    	numCancelled.incrementAndGet();
+    	if(entry.claim())
+    	{
+    		// never started, give back its queue slot
+    		executorService.remove(entry);
+    		queueSlots.release();
+    	}
+    	else
+    	{
+    		entry.task.stopOD();
+    	}
+    	entry.task.setStatus(STATUS_CANCELLED);
+    }
+    
+    protected void runEntry(TaskEntry entry)
+    {
+    	if(!entry.claim())
+    	{
+    		// cancelled while queued
+    		return;
+    	}
+    	queueSlots.release();
+    	numStarted.incrementAndGet();
+    	
+    	entry.startTime = System.currentTimeMillis();
+    	long wait = entry.startTime-entry.submitTime;
+    	totalWaitMS.addAndGet(wait);
+    	updateMax(maxWaitMS, wait);
+    	
+    	ODTask task = entry.task;
+    	if(!entry.future.isDone()) task.setStatus(STATUS_RUNNING);
+    	try
+    	{
+    		task.run();
+    		
+    		// a cancelled task sets its own stopped status on the way out, put ours back
+    		if(entry.future.isCancelled())
+    		{
+    			task.setStatus(STATUS_CANCELLED);
+    		}
+    		
+    		// the task may have set its own final status
+    		else if(STATUS_RUNNING.equals(task.getStatus()))
+    		{
+    			task.setStatus(STATUS_DONE);
+    		}
+    		if(entry.future.complete(task.getSolvedState()))
+    		{
+    			numCompleted.incrementAndGet();
+    		}
+    	}
+    	catch(Throwable ex)
+    	{
+    		logger.log(Level.WARNING,"Task " + entry.id + " failed",ex);
+    		task.setStatus(entry.future.isCancelled()?STATUS_CANCELLED:STATUS_FAILED);
+    		if(entry.future.completeExceptionally(ex))
+    		{
+    			numFailed.incrementAndGet();
+    		}
+    	}
+    	finally
+    	{
+    		entry.endTime = System.currentTimeMillis();
+    		long run = entry.endTime-entry.startTime;
+    		totalRunMS.addAndGet(run);
+    		updateMax(maxRunMS, run);
+    	}
+    }
+    
+    protected static void updateMax(AtomicLong max, long val)
+    {
+    	long cur = max.get();
+    	while(val > cur && !max.compareAndSet(cur, val))
+    	{
+    		cur = max.get();
+    	}
+    }
+    
+    /**
+     * Drop tasks that finished more than the time to live ago.  Called from submit and
+     * getTask, at most a few times per time to live.
+     */
+    public void evictExpired()
+    {
+    	long now = System.currentTimeMillis();
+    	if(now-lastEvict < ttlMS/10) return;
+    	lastEvict = now;
+    	
+    	long cutoff = now-ttlMS;
+    	Iterator<TaskEntry> iter = idToTask.values().iterator();
+    	TaskEntry entry = null;
+    	while(iter.hasNext())
+    	{
+    		entry = iter.next();
+    		if(entry.endTime > 0 && entry.endTime < cutoff && entry.future.isDone())
+    		{
+    			iter.remove();
+    			numEvicted.incrementAndGet();
+    		}
+    	}
+    }
+    
+    /**
+     * Stop taking tasks, queued and running tasks still finish.
+     */
+    public void shutdown()
+    {
+    	executorService.shutdown();
+    }
+    
+    public int getQueueDepth()
+    {
+    	return executorService.getQueue().size();
+    }
+    
+    public int getNumRunning()
+    {
+    	return executorService.getActiveCount();
+    }
+    
+    public int getNumTracked()
+    {
+    	return idToTask.size();
+    }
+    
+    public Metrics getMetrics()
+    {
+    	Metrics m = new Metrics();
+    	m.queueDepth = getQueueDepth();
+    	m.queueSize = queueSize;
+    	m.running = getNumRunning();
+    	m.tracked = getNumTracked();
+    	m.submitted = numSubmitted.get();
+    	m.rejected = numRejected.get();
+    	m.completed = numCompleted.get();
+    	m.failed = numFailed.get();
+    	m.cancelled = numCancelled.get();
+    	m.evicted = numEvicted.get();
+    	
+    	long started = numStarted.get();
+    	if(started > 0)
+    	{
+    		m.avgWaitMS = totalWaitMS.get()/(double)started;
+    		m.avgRunMS = totalRunMS.get()/(double)started;
+    	}
+    	m.maxWaitMS = maxWaitMS.get();
+    	m.maxRunMS = maxRunMS.get();
+    	return m;
+    }
+    
     protected String genID()
     {
     	String str = String.valueOf(System.currentTimeMillis());
@@ -117,4 +480,78 @@ public class ODTaskRunner
     	
     	return str;
     }
+    
+    /**
+     * A submitted task, ordered in the queue by priority then submit order.
+     */
+    protected class TaskEntry implements Runnable, Comparable<TaskEntry>
+    {
+    	protected String id = null;
+    	protected ODTask task = null;
+    	protected int priority = 0;
+    	protected long seqNum = 0;
+    	protected CompletableFuture<OrbitState> future = new CompletableFuture<OrbitState>();
+    	
+    	protected long submitTime = 0;
+    	protected long startTime = 0;
+    	protected volatile long endTime = 0;
+    	
+    	// set by whichever of run or cancel gets the task first
+    	protected AtomicInteger claimed = new AtomicInteger();
+    	
+    	public TaskEntry(String id, ODTask task, int priority, long seqNum)
+    	{
+    		this.id = id;
+    		this.task = task;
+    		this.priority = priority;
+    		this.seqNum = seqNum;
+    		submitTime = System.currentTimeMillis();
+    	}
+    	
+    	protected boolean claim()
+    	{
+    		return claimed.compareAndSet(0, 1);
+    	}
+    	
+    	public void run()
+    	{
+    		runEntry(this);
+    	}
+    	
+    	@Override
+    	public int compareTo(TaskEntry o) 
+    	{
+    		if(priority != o.priority) return priority < o.priority?-1:1;
+    		return Long.compare(seqNum, o.seqNum);
+    	}
+    }
+    
+    /**
+     * Queue and latency numbers, times are from submit to start and from start to end.
+     */
+    public static class Metrics
+    {
+    	public int queueDepth = 0;
+    	public int queueSize = 0;
+    	public int running = 0;
+    	public int tracked = 0;
+    	public long submitted = 0;
+    	public long rejected = 0;
+    	public long completed = 0;
+    	public long failed = 0;
+    	public long cancelled = 0;
+    	public long evicted = 0;
+    	public double avgWaitMS = 0;
+    	public double avgRunMS = 0;
+    	public long maxWaitMS = 0;
+    	public long maxRunMS = 0;
+    	
+    	public String toString()
+    	{
+    		return "queue " + queueDepth + "/" + queueSize + " running " + running + " tracked " + tracked +
+    				" submitted " + submitted + " rejected " + rejected + " completed " + completed +
+    				" failed " + failed + " cancelled " + cancelled + " evicted " + evicted +
+    				" wait ms avg " + avgWaitMS + " max " + maxWaitMS + " run ms avg " + avgRunMS + " max " + maxRunMS;
+    	}
+    }
 }
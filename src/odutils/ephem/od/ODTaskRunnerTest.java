@@ -0,0 +1,223 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem.od;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks ODTaskRunner with tasks that wait to be released instead of fitting: priority
+ * order, a full queue, cancelling queued and running tasks, and dropping finished tasks after
+ * the time to live.  Prints PASS or FAIL for each check.
+ *
+ * @author aholinch
+ *
+ */
+public class ODTaskRunnerTest
+{
+	protected static int failed = 0;
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	/**
+	 * Runs until released or stopped.  Like the fitting tasks it sets its own status from the
+	 * budget on the way out, a little after being stopped.
+	 */
+	public static class WaitTask extends AbstractODTask
+	{
+		protected String name = null;
+		protected List<String> started = null;
+		protected CountDownLatch release = new CountDownLatch(1);
+		protected CountDownLatch running = new CountDownLatch(1);
+		protected CountDownLatch finished = new CountDownLatch(1);
+
+		public WaitTask(String name, List<String> started)
+		{
+			this.name = name;
+			this.started = started;
+		}
+
+		@Override
+		public void run()
+		{
+			isRunning = true;
+			started.add(name);
+			running.countDown();
+			try
+			{
+				while(!budget.isCancelled() && !release.await(5, TimeUnit.MILLISECONDS));
+				if(budget.isCancelled()) Thread.sleep(50);
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+			}
+			checkBudgetStatus();
+			isRunning = false;
+			finished.countDown();
+		}
+	}
+
+	public static boolean await(CountDownLatch latch)
+	{
+		try
+		{
+			return latch.await(5, TimeUnit.SECONDS);
+		}
+		catch(InterruptedException ex)
+		{
+			return false;
+		}
+	}
+
+	public static void testPriority() throws Exception
+	{
+		ODTaskRunner runner = new ODTaskRunner(1, 10, ODTaskRunner.DEFAULT_TTL_MS);
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+		WaitTask blocker = new WaitTask("blocker", started);
+		runner.submitTask(blocker);
+		await(blocker.running);
+
+		String names[] = {"bulk", "normal 1", "interactive", "normal 2"};
+		int priorities[] = {ODTaskRunner.PRIORITY_BULK, ODTaskRunner.PRIORITY_NORMAL, ODTaskRunner.PRIORITY_INTERACTIVE, ODTaskRunner.PRIORITY_NORMAL};
+		List<CompletableFuture<OrbitState>> futures = new ArrayList<CompletableFuture<OrbitState>>();
+		for(int i=0; i<names.length; i++)
+		{
+			WaitTask task = new WaitTask(names[i], started);
+			task.release.countDown();
+			futures.add(runner.submit(task, priorities[i]));
+		}
+		check("queued behind the running task", runner.getQueueDepth() == 4);
+
+		blocker.release.countDown();
+		for(CompletableFuture<OrbitState> f : futures) f.get(5, TimeUnit.SECONDS);
+		check("priority then submit order " + started, started.toString().equals("[blocker, interactive, normal 1, normal 2, bulk]"));
+		runner.shutdown();
+	}
+
+	public static void testQueueAndCancel() throws Exception
+	{
+		ODTaskRunner runner = new ODTaskRunner(1, 2, ODTaskRunner.DEFAULT_TTL_MS);
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+		WaitTask blocker = new WaitTask("blocker", started);
+		String blockerID = runner.submitTask(blocker);
+		await(blocker.running);
+
+		WaitTask q1 = new WaitTask("queued 1", started);
+		WaitTask q2 = new WaitTask("queued 2", started);
+		String id1 = runner.submitTask(q1);
+		runner.submitTask(q2);
+
+		boolean threw = false;
+		try
+		{
+			runner.submitTask(new WaitTask("over", started));
+		}
+		catch(RejectedExecutionException ex)
+		{
+			threw = true;
+		}
+		check("full queue throws RejectedExecutionException", threw);
+		check("full queue wait times out", runner.submitTaskWait(new WaitTask("over", started), ODTaskRunner.PRIORITY_NORMAL, 100) == null &&
+				runner.getMetrics().rejected == 2);
+
+		// a queued task never starts and gives back its slot
+		check("cancel queued task", runner.cancelTask(id1) && ODTaskRunner.STATUS_CANCELLED.equals(q1.getStatus()) &&
+				runner.getFuture(id1).isCancelled());
+		WaitTask q3 = new WaitTask("queued 3", started);
+		String id3 = null;
+		try
+		{
+			id3 = runner.submitTask(q3);
+		}
+		catch(RejectedExecutionException ex)
+		{
+			id3 = null;
+		}
+		check("cancelled task frees its slot", id3 != null);
+
+		// a running task is stopped and keeps the cancelled status after it returns
+		check("cancel running task", runner.cancelTask(blockerID));
+		check("running task stopped", await(blocker.finished) && await(q2.running));
+		check("cancelled status kept after the task returns, " + blocker.getStatus(), ODTaskRunner.STATUS_CANCELLED.equals(blocker.getStatus()));
+		check("cancelled task never started", !started.contains("queued 1"));
+
+		q2.release.countDown();
+		q3.release.countDown();
+		runner.getFuture(id3).get(5, TimeUnit.SECONDS);
+		check("others finish, " + runner.getMetrics(), ODTaskRunner.STATUS_DONE.equals(q2.getStatus()) &&
+				ODTaskRunner.STATUS_DONE.equals(q3.getStatus()) && runner.getMetrics().cancelled == 2);
+		check("finished task can not be cancelled", !runner.cancelTask(id3));
+		runner.shutdown();
+	}
+
+	public static void testEviction() throws Exception
+	{
+		long ttl = 200;
+		ODTaskRunner runner = new ODTaskRunner(1, 10, ttl);
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+		WaitTask task = new WaitTask("quick", started);
+		task.release.countDown();
+		String id = runner.submitTask(task);
+		runner.getFuture(id).get(5, TimeUnit.SECONDS);
+		check("finished task kept", runner.getTask(id) == task);
+
+		WaitTask running = new WaitTask("running", started);
+		String runID = runner.submitTask(running);
+		await(running.running);
+
+		Thread.sleep(2*ttl);
+		runner.evictExpired();
+		check("finished task dropped after the time to live", runner.getTask(id) == null && runner.getFuture(id) == null &&
+				runner.getMetrics().evicted == 1);
+		check("running task kept", runner.getTask(runID) == running);
+
+		running.release.countDown();
+		runner.getFuture(runID).get(5, TimeUnit.SECONDS);
+		runner.shutdown();
+	}
+
+	public static void main(String args[])
+	{
+		try
+		{
+			testPriority();
+			testQueueAndCancel();
+			testEviction();
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			failed++;
+		}
+
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
@@ -1,4 +1,4 @@
-/* 
+/*
 
 Copyright 2021 aholinch
 
@@ -7,7 +7,7 @@ you may not use this file except in compliance with the License.
 You may obtain a copy of the License at
 
     http://www.apache.org/licenses/LICENSE-2.0
-    
+
 Unless required by applicable law or agreed to in writing, software
 distributed under the License is distributed on an "AS IS" BASIS,
 WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -17,72 +17,493 @@ limitations under the License.
 */
 package odutils.ephem.od;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.logging.Logger;
 
+import org.hipparchus.linear.DiagonalMatrix;
+import org.hipparchus.linear.RealMatrix;
+
 import odutils.ephem.CartesianState;
 import odutils.ephem.OrekitUtils;
 
 /**
- * This class should be expanded to support weights and other observation types.
- * 
+ * Cartesian observations stored as columns.  Times are minutes from a reference epoch, the
+ * epoch of the first observation unless set, and positions and velocities are in km and
+ * km/s.  Each observation can have a weight and a covariance.
+ *
+ * The arrays returned by the getters are the ones held by the set and should not be changed.
+ *
  * @author aholinch
  *
  */
-public class ObservationSet 
+public class ObservationSet
 {
+	public static final String FRAME_TEME = "teme";
+
 	protected String cartsFrame;
-    protected List<CartesianState> carts;
-    
-    public ObservationSet()
-    {
-    	
-    }
-    
-    public void setCartsFrame(String frame)
-    {
-    	cartsFrame = frame;
-    }
-    
-    public String getCartsFrame()
-    {
-    	return cartsFrame;
-    }
-    
-    public void setCarts(List<CartesianState> list)
-    {
-    	carts = list;
-    }
-    
-    public List<CartesianState> getCarts()
-    {
-    	return carts;
-    }
-    
-    public List<CartesianState> getTEMECarts()
-    {
-    	if(cartsFrame == null || cartsFrame.toLowerCase().equals("teme"))
-    	{
-    		return carts;
-    	}
-    	
-    	String frame = cartsFrame.toLowerCase();
-    	List<CartesianState> out = null;
-    	
-    	if(frame.equals("ecef") || frame.startsWith(""))
-    	{
-    		out = OrekitUtils.ecef2teme(carts);
-    	}
-    	else if(frame.equals("eme2000") || frame.equals("j2000"))
-    	{
-    		out = OrekitUtils.EME20002teme(carts);
-    	}
-    	else
-    	{
-    		Logger.getLogger(ObservationSet.class.getName()).warning("Unknown frame '" + cartsFrame + "'");
-    		out = carts;
-    	}
-    	
-    	return out;
-    }
+	protected List<CartesianState> carts;
+
+	protected int size = 0;
+	protected long refMillis = 0;
+	protected double t[] = null;
+	protected double rx[] = null;
+	protected double ry[] = null;
+	protected double rz[] = null;
+	protected double vx[] = null;
+	protected double vy[] = null;
+	protected double vz[] = null;
+
+	protected double weights[] = null;
+	protected double covariances[][] = null;
+
+	// the same observations in TEME, made when first asked for
+	protected ObservationSet teme = null;
+
+	// minutes since the last epoch asked for
+	protected long mseMillis = 0;
+	protected double mse[] = null;
+
+	public ObservationSet()
+	{
+
+	}
+
+	/**
+	 * Observations already in TEME.
+	 *
+	 * @param list
+	 */
+	public ObservationSet(List<CartesianState> list)
+	{
+		setCarts(list);
+	}
+
+	public synchronized void setCartsFrame(String frame)
+	{
+		cartsFrame = frame;
+		teme = null;
+	}
+
+	public String getCartsFrame()
+	{
+		return cartsFrame;
+	}
+
+	public boolean isTEME()
+	{
+		return cartsFrame == null || cartsFrame.toLowerCase().equals(FRAME_TEME);
+	}
+
+	/**
+	 * Fill the columns from the list.  Weights and covariances are cleared.
+	 *
+	 * @param list
+	 */
+	public synchronized void setCarts(List<CartesianState> list)
+	{
+		int n = list == null?0:list.size();
+		long ref = n == 0?0:list.get(0).getEpoch().getTime();
+		allocate(n, ref);
+
+		CartesianState cart = null;
+		for(int i=0; i<n; i++)
+		{
+			cart = list.get(i);
+			t[i] = (cart.getEpoch().getTime()-ref)/60000.0d;
+			rx[i] = cart.rx;
+			ry[i] = cart.ry;
+			rz[i] = cart.rz;
+			vx[i] = cart.vx;
+			vy[i] = cart.vy;
+			vz[i] = cart.vz;
+		}
+		carts = list;
+	}
+
+	/**
+	 * Fill the columns directly.  The arrays are kept, not copied.  Weights and covariances
+	 * are cleared.
+	 *
+	 * @param refMillis reference epoch in ms
+	 * @param t minutes from the reference epoch
+	 * @param rx
+	 * @param ry
+	 * @param rz
+	 * @param vx
+	 * @param vy
+	 * @param vz
+	 */
+	public synchronized void setStates(long refMillis, double t[], double rx[], double ry[], double rz[], double vx[], double vy[], double vz[])
+	{
+		this.size = t.length;
+		this.refMillis = refMillis;
+		this.t = t;
+		this.rx = rx;
+		this.ry = ry;
+		this.rz = rz;
+		this.vx = vx;
+		this.vy = vy;
+		this.vz = vz;
+		clearDerived();
+	}
+
+	protected void allocate(int n, long ref)
+	{
+		size = n;
+		refMillis = ref;
+		t = new double[n];
+		rx = new double[n];
+		ry = new double[n];
+		rz = new double[n];
+		vx = new double[n];
+		vy = new double[n];
+		vz = new double[n];
+		clearDerived();
+	}
+
+	protected void clearDerived()
+	{
+		carts = null;
+		weights = null;
+		covariances = null;
+		teme = null;
+		mse = null;
+	}
+
+	/**
+	 * The observations as cartesian states, built from the columns if the set was not filled
+	 * from a list.
+	 *
+	 * @return
+	 */
+	public synchronized List<CartesianState> getCarts()
+	{
+		if(carts == null && t != null)
+		{
+			List<CartesianState> list = new ArrayList<CartesianState>(size);
+			for(int i=0; i<size; i++)
+			{
+				list.add(getCart(i));
+			}
+			carts = list;
+		}
+		return carts;
+	}
+
+	public CartesianState getCart(int i)
+	{
+		CartesianState cart = new CartesianState();
+		cart.setEpoch(new Date(getEpochMillis(i)));
+		cart.setRVec(rx[i], ry[i], rz[i]);
+		cart.vx = vx[i];
+		cart.vy = vy[i];
+		cart.vz = vz[i];
+		return cart;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public long getRefMillis()
+	{
+		return refMillis;
+	}
+
+	/**
+	 * Epoch of observation i rounded to the ms.
+	 *
+	 * @param i
+	 * @return
+	 */
+	public long getEpochMillis(int i)
+	{
+		return refMillis + Math.round(t[i]*60000.0d);
+	}
+
+	public double[] getTimes()
+	{
+		return t;
+	}
+
+	public double[] getRx()
+	{
+		return rx;
+	}
+
+	public double[] getRy()
+	{
+		return ry;
+	}
+
+	public double[] getRz()
+	{
+		return rz;
+	}
+
+	public double[] getVx()
+	{
+		return vx;
+	}
+
+	public double[] getVy()
+	{
+		return vy;
+	}
+
+	public double[] getVz()
+	{
+		return vz;
+	}
+
+	/**
+	 * Minutes from the epoch to each observation, the times sgp4 wants.  The last array asked
+	 * for is kept so every evaluation of a fit shares it.
+	 *
+	 * @param epochMillis
+	 * @return
+	 */
+	public synchronized double[] getMinutesSince(long epochMillis)
+	{
+		if(mse == null || mseMillis != epochMillis)
+		{
+			double out[] = new double[size];
+			for(int i=0; i<size; i++)
+			{
+				// whole ms first so this matches the time computed from a Date
+				out[i] = (getEpochMillis(i)-epochMillis)/60000.0d;
+			}
+			mse = out;
+			mseMillis = epochMillis;
+		}
+		return mse;
+	}
+
+	/**
+	 * Weight of each observation, null for equal weights.
+	 *
+	 * @param w
+	 */
+	public synchronized void setWeights(double w[])
+	{
+		if(w != null && w.length != size)
+		{
+			throw new IllegalArgumentException("Expected " + size + " weights but got " + w.length);
+		}
+		weights = w;
+		if(teme != null && teme != this) teme.weights = w;
+	}
+
+	/**
+	 * The weights if set, otherwise one over the mean position variance of each covariance,
+	 * otherwise null.
+	 *
+	 * @return
+	 */
+	public synchronized double[] getWeights()
+	{
+		if(weights != null || covariances == null)
+		{
+			return weights;
+		}
+
+		double out[] = new double[size];
+		double c[] = null;
+		double var = 0;
+		for(int i=0; i<size; i++)
+		{
+			c = covariances[i];
+			var = 0;
+			if(c != null)
+			{
+				var = getPositionVariance(c);
+			}
+			out[i] = var > 0?1.0d/var:1.0d;
+		}
+		return out;
+	}
+
+	public boolean hasWeights()
+	{
+		return weights != null || covariances != null;
+	}
+	
+	/**
+	 * The weights as a diagonal matrix for LeastSquaresBuilder.weight, null for equal weights.
+	 * 
+	 * @return
+	 */
+	public RealMatrix getWeightMatrix()
+	{
+		double w[] = getWeights();
+		if(w == null) return null;
+		return new DiagonalMatrix(w);
+	}
+
+	/**
+	 * Covariance of each observation in row major order, either 3x3 for position or 6x6 for
+	 * position and velocity.  Entries may be null.  The covariances are not rotated when the
+	 * set is converted to TEME, the position variance used for weights does not change under
+	 * rotation.
+	 *
+	 * @param covs
+	 */
+	public synchronized void setCovariances(double covs[][])
+	{
+		if(covs != null && covs.length != size)
+		{
+			throw new IllegalArgumentException("Expected " + size + " covariances but got " + covs.length);
+		}
+		covariances = covs;
+		if(teme != null && teme != this) teme.covariances = covs;
+	}
+
+	public double[][] getCovariances()
+	{
+		return covariances;
+	}
+
+	/**
+	 * Mean of the position variances on the diagonal of a 3x3 or 6x6 covariance.
+	 *
+	 * @param cov
+	 * @return
+	 */
+	public static double getPositionVariance(double cov[])
+	{
+		int n = cov.length == 36?6:3;
+		return (cov[0]+cov[n+1]+cov[2*n+2])/3.0d;
+	}
+
+	/**
+	 * At most maxPoints observations spread evenly through the set.  Each one stands for a run
+	 * of its neighbours and is weighted by their total weight.  The weights are scaled to
+	 * average 1, so a fit to the subset sees about the same weighted mean square, and RMS, as
+	 * a fit to the whole set rather than the same sum.  The first and last observations are
+	 * always kept.
+	 * 
+	 * @param maxPoints
+	 * @return
+	 */
+	public synchronized ObservationSet downsample(int maxPoints)
+	{
+		if(maxPoints >= size || maxPoints < 2)
+		{
+			return this;
+		}
+		
+		int m = maxPoints;
+		double w[] = getWeights();
+		double nt[] = new double[m];
+		double nrx[] = new double[m];
+		double nry[] = new double[m];
+		double nrz[] = new double[m];
+		double nvx[] = new double[m];
+		double nvy[] = new double[m];
+		double nvz[] = new double[m];
+		double nw[] = new double[m];
+		
+		int start = 0;
+		int end = 0;
+		int ind = 0;
+		double sum = 0;
+		double total = 0;
+		for(int k=0; k<m; k++)
+		{
+			start = (int)((long)k*size/m);
+			end = (int)((long)(k+1)*size/m);
+			if(k == 0)
+			{
+				ind = 0;
+			}
+			else if(k == m-1)
+			{
+				ind = size-1;
+			}
+			else
+			{
+				ind = (start+end)/2;
+			}
+			
+			if(w == null)
+			{
+				sum = end-start;
+			}
+			else
+			{
+				sum = 0;
+				for(int i=start; i<end; i++) sum += w[i];
+			}
+			
+			nt[k] = t[ind];
+			nrx[k] = rx[ind];
+			nry[k] = ry[ind];
+			nrz[k] = rz[ind];
+			nvx[k] = vx[ind];
+			nvy[k] = vy[ind];
+			nvz[k] = vz[ind];
+			nw[k] = sum;
+			total += sum;
+		}
+		
+		if(total > 0)
+		{
+			double scale = m/total;
+			for(int k=0; k<m; k++) nw[k] *= scale;
+		}
+		
+		ObservationSet out = new ObservationSet();
+		out.cartsFrame = cartsFrame;
+		out.setStates(refMillis, nt, nrx, nry, nrz, nvx, nvy, nvz);
+		out.setWeights(nw);
+		return out;
+	}
+	
+	/**
+	 * The observations in TEME.  The conversion is done once and kept.
+	 *
+	 * @return
+	 */
+	public synchronized ObservationSet getTEME()
+	{
+		if(isTEME())
+		{
+			return this;
+		}
+
+		if(teme == null)
+		{
+			String frame = cartsFrame.toLowerCase();
+			List<CartesianState> out = null;
+
+			if(frame.equals("ecef") || frame.equals("ecf") || frame.equals("ecr") || frame.startsWith("itrf"))
+			{
+				out = OrekitUtils.ecef2teme(getCarts());
+			}
+			else if(frame.equals("eme2000") || frame.equals("j2000"))
+			{
+				out = OrekitUtils.EME20002teme(getCarts());
+			}
+			else
+			{
+				Logger.getLogger(ObservationSet.class.getName()).warning("Unknown frame '" + cartsFrame + "'");
+				out = getCarts();
+			}
+
+			ObservationSet obs = new ObservationSet(out);
+			obs.weights = weights;
+			obs.covariances = covariances;
+			teme = obs;
+		}
+
+		return teme;
+	}
+
+	public List<CartesianState> getTEMECarts()
+	{
+		return getTEME().getCarts();
+	}
 }
@@ -18,8 +18,14 @@ limitations under the License.
 package odutils.ephem.od;
 
 import org.hipparchus.analysis.MultivariateVectorFunction;
+import org.hipparchus.analysis.differentiation.Gradient;
+import org.hipparchus.linear.Array2DRowRealMatrix;
+import org.hipparchus.linear.ArrayRealVector;
+import org.hipparchus.linear.RealMatrix;
 import org.hipparchus.linear.RealVector;
+import org.hipparchus.optim.nonlinear.vector.leastsquares.MultivariateJacobianFunction;
 import org.hipparchus.optim.nonlinear.vector.leastsquares.ParameterValidator;
+import org.hipparchus.util.Pair;
 
 import odutils.ephem.CartesianState;
 import odutils.ephem.EphemerisUtil;
@@ -27,10 +33,22 @@ import odutils.ephem.MutableTLE;
 import sgp4.TLE;
 
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
-public class SGP4CartesianFunction implements MultivariateVectorFunction
+/**
+ * Position residuals of an SGP4 TLE against cartesian states.  The parameters are the
+ * equinoctial elements and optionally B*.  As a MultivariateJacobianFunction the partials
+ * come from SGP4Partials for near earth orbits and from finite differences for deep space.
+ * 
+ * @author aholinch
+ *
+ */
+public class SGP4CartesianFunction implements MultivariateVectorFunction, MultivariateJacobianFunction
 {
-	protected List<CartesianState> carts = null;
+	protected ObservationSet obs = null;
+	
+	// minutes from the initial TLE epoch to each observation
+	protected double mse[] = null;
 	
 	protected TLE tleInit = null;
 	protected String line1 = null;
@@ -38,11 +56,68 @@ public class SGP4CartesianFunction implements MultivariateVectorFunction
 	
 	protected boolean fitBStar = false;
 	
+	// checked on every evaluation when set
+	protected ODBudget budget = null;
+	
+	// runs the finite difference jacobian for deep space in parallel when set
+	protected ExecutorService jacobianExecutor = null;
+	
 	public SGP4CartesianFunction()
 	{
 		
 	}
 	
+	/**
+	 * Copy for use on another thread, the factory for the parallel finite difference jacobian.
+	 * The observations and initial TLE are shared.
+	 * 
+	 * @return
+	 */
+	public SGP4CartesianFunction copy()
+	{
+		SGP4CartesianFunction out = new SGP4CartesianFunction();
+		out.obs = obs;
+		out.mse = mse;
+		out.tleInit = tleInit;
+		out.line1 = line1;
+		out.line2 = line2;
+		out.budget = budget;
+		out.fitBStar = fitBStar;
+		return out;
+	}
+	
+	/**
+	 * Evaluations are counted against the budget and throw ODBudget.ExceededException once it
+	 * is used up.
+	 * 
+	 * @param budget
+	 */
+	public void setBudget(ODBudget budget)
+	{
+		this.budget = budget;
+	}
+	
+	public ODBudget getBudget()
+	{
+		return budget;
+	}
+	
+	/**
+	 * Evaluate the points of the finite difference jacobian used for deep space orbits on the
+	 * executor, each with its own copy of this function.  Null, the default, for serial.
+	 * 
+	 * @param executor
+	 */
+	public void setJacobianExecutor(ExecutorService executor)
+	{
+		jacobianExecutor = executor;
+	}
+	
+	public ExecutorService getJacobianExecutor()
+	{
+		return jacobianExecutor;
+	}
+	
 	public void setFitBStar(boolean flag)
 	{
 		fitBStar = flag;
@@ -56,7 +131,23 @@ public class SGP4CartesianFunction implements MultivariateVectorFunction
 	 */
 	public void setCarts(List<CartesianState> list, boolean convertToTEME)
 	{
-		carts = list;
+		setObservations(new ObservationSet(list));
+	}
+	
+	/**
+	 * The observations, converted to TEME if they are in another frame.
+	 * 
+	 * @param obs
+	 */
+	public void setObservations(ObservationSet obs)
+	{
+		this.obs = obs.getTEME();
+		fillMSE();
+	}
+	
+	public ObservationSet getObservations()
+	{
+		return obs;
 	}
 	
 	public void setInitialGuess(TLE tle)
@@ -64,16 +155,25 @@ public class SGP4CartesianFunction implements MultivariateVectorFunction
 		line1 = tle.getLine1();
 		line2 = tle.getLine2();
 		tleInit = new TLE(line1,line2);
+		fillMSE();
+	}
+	
+	protected void fillMSE()
+	{
+		if(obs != null && tleInit != null)
+		{
+			mse = obs.getMinutesSince(tleInit.getEpoch().getTime());
+		}
 	}
 	
 	public void setInitialGuessToLastCart()
 	{
-		setInitialGuess(carts.get(carts.size()-1));
+		setInitialGuess(obs.getCart(obs.size()-1));
 	}
 	
 	public void setInitialGuessToFirstCart()
 	{
-		setInitialGuess(carts.get(0));
+		setInitialGuess(obs.getCart(0));
 	}
 	
 	public void setInitialGuess(CartesianState cart)
@@ -109,7 +209,7 @@ public class SGP4CartesianFunction implements MultivariateVectorFunction
 	
 	public double[] getTarget()
 	{
-		int size = carts.size();
+		int size = obs.size();
 		double allzeros[] = new double[size];
 		return allzeros;
 	}
@@ -117,35 +217,146 @@ public class SGP4CartesianFunction implements MultivariateVectorFunction
 	@Override
 	public double[] value(double[] params) throws IllegalArgumentException 
 	{
+		if(budget != null) budget.countEvaluation();
+		
 		TLE tle = paramsToTLE(params);
 		
-		int size = carts.size();
+		int size = obs.size();
+		double rx[] = obs.getRx();
+		double ry[] = obs.getRy();
+		double rz[] = obs.getRz();
 		
 		double out[] = new double[size];
-		CartesianState cs1 = null;
-		CartesianState cs2 = new CartesianState();
 		double rv[][] = null;
+		double dx = 0;
+		double dy = 0;
+		double dz = 0;
 		
 		for(int i=0; i<size; i++)
 		{
-			cs1 = carts.get(i);
-			rv = tle.getRV(cs1.epoch);
-			cs2.setRVec(rv[0]);
-			cs2.setVVec(rv[1]);
+			rv = tle.getRV(mse[i]);
+			dx = rx[i]-rv[0][0];
+			dy = ry[i]-rv[0][1];
+			dz = rz[i]-rv[0][2];
 			
-			out[i]=cs1.getDist(cs2); // residual is the position error
+			out[i]=Math.sqrt(dx*dx+dy*dy+dz*dz); // residual is the position error
 		}
 		
 		return out;
 	}
 	
+	/**
+	 * Residuals and their partials with respect to the parameters.
+	 */
+	@Override
+	public Pair<RealVector, RealMatrix> value(RealVector point)
+	{
+		double params[] = point.toArray();
+		SGP4Partials sp = paramsToPartials(params);
+		if(!sp.isSupported())
+		{
+			FiniteDifferenceJacobian fdj = new FiniteDifferenceJacobian(this,getDeltas(),getPercs());
+			fdj.setParallel(this::copy, jacobianExecutor);
+			return fdj.value(point);
+		}
+		
+		if(budget != null) budget.countEvaluation();
+		
+		// the residuals are the same as value(double[])
+		TLE tle = paramsToTLE(params);
+		
+		int size = obs.size();
+		int np = params.length;
+		double rx[] = obs.getRx();
+		double ry[] = obs.getRy();
+		double rz[] = obs.getRz();
+		
+		double out[] = new double[size];
+		double jac[][] = new double[size][np];
+		double rv[][] = null;
+		Gradient r[] = new Gradient[3];
+		Gradient v[] = new Gradient[3];
+		double dx = 0;
+		double dy = 0;
+		double dz = 0;
+		double dist = 0;
+		double t = 0;
+		double row[] = null;
+		
+		for(int i=0; i<size; i++)
+		{
+			t = mse[i];
+			rv = tle.getRV(t);
+			dx = rv[0][0]-rx[i];
+			dy = rv[0][1]-ry[i];
+			dz = rv[0][2]-rz[i];
+			dist = Math.sqrt(dx*dx+dy*dy+dz*dz);
+			out[i] = dist;
+			
+			if(dist > 0 && sp.propagate(t, r, v))
+			{
+				// d|dr|/dp = dr/|dr| . dr/dp
+				dx /= dist;
+				dy /= dist;
+				dz /= dist;
+				row = jac[i];
+				for(int j=0; j<np; j++)
+				{
+					row[j] = dx*r[0].getPartialDerivative(j)+dy*r[1].getPartialDerivative(j)+dz*r[2].getPartialDerivative(j);
+				}
+			}
+		}
+		
+		return new Pair<RealVector, RealMatrix>(new ArrayRealVector(out,false), new Array2DRowRealMatrix(jac,false));
+	}
+	
+	/**
+	 * The SGP4 elements as functions of the parameters.
+	 * 
+	 * @param params
+	 * @return
+	 */
+	protected SGP4Partials paramsToPartials(double params[])
+	{
+		final double xpdotp = 1440.0 / (2.0 * Math.PI);
+		
+		int np = params.length;
+		Gradient ke = Gradient.variable(np, 0, params[0]);
+		Gradient he = Gradient.variable(np, 1, params[1]);
+		Gradient L = Gradient.variable(np, 2, params[2]);
+		Gradient pe = Gradient.variable(np, 3, params[3]);
+		Gradient qe = Gradient.variable(np, 4, params[4]);
+		Gradient n = Gradient.variable(np, 5, params[5]);
+		Gradient bstar = null;
+		if(fitBStar && np>6)
+		{
+			bstar = Gradient.variable(np, 6, params[6]);
+		}
+		else
+		{
+			bstar = Gradient.constant(np, tleInit.getBstar());
+		}
+		
+		// same as EphemerisUtil.getCOEFromEquinoctal in radians
+		Gradient ecc = he.square().add(ke.square()).sqrt();
+		Gradient inc = pe.square().add(qe.square()).sqrt().atan().multiply(2.0);
+		Gradient node = pe.atan2(qe);
+		Gradient argp = he.atan2(ke).subtract(node);
+		Gradient ma = L.subtract(node).subtract(argp);
+		
+		return new SGP4Partials(inc, node, ecc, argp, ma, n.divide(xpdotp), bstar);
+	}
+	
 	protected TLE paramsToTLE(double params[])
 	{
 		MutableTLE tle = null;
 		
 		double vals[] = EphemerisUtil.getCOEFromEquinoctal(params);
 
-		tle = new MutableTLE(line1,line2);
+		// direct init skips writing and parsing the lines on every evaluation, quantizing
+		// keeps the values the same as the text form
+		tle = new MutableTLE(tleInit);
+		tle.setQuantize(true);
 		
 		//i, Om, ecc, w, M, n
 		tle.setIncDeg(vals[0]);
@@ -19,9 +19,20 @@ package odutils.ephem.od;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import org.hipparchus.analysis.UnivariateFunction;
+import org.hipparchus.optim.ConvergenceChecker;
+import org.hipparchus.optim.MaxEval;
+import org.hipparchus.optim.nonlinear.scalar.GoalType;
+import org.hipparchus.optim.univariate.BrentOptimizer;
+import org.hipparchus.optim.univariate.SearchInterval;
+import org.hipparchus.optim.univariate.UnivariateObjectiveFunction;
+import org.hipparchus.optim.univariate.UnivariatePointValuePair;
 
 import odutils.ephem.CartesianState;
 import odutils.ephem.MutableTLE;
@@ -32,6 +43,89 @@ public class SGP4FitUtil
 {
 	public static final double RMS_EPS = 1e-5;
 	
+	// ways to search for the drag term
+	public static final int TERM_SEARCH_GRID = 0;
+	public static final int TERM_SEARCH_BRENT = 1;
+	
+	// brent search settings, the steps are in log10 of the term
+	public static final double TERM_START = 1e-4;
+	public static final double TERM_LOG_STEP = 0.5;
+	public static final double TERM_LOG_TOL = 1e-2;
+	public static final double TERM_RMS_TOL = 1e-6;
+	public static final int TERM_POLISH_STEPS = 4;
+	public static final int TERM_GRID_POINTS = 5;
+	public static final int TERM_MAX_FITS = 40;
+	
+	// shared pool for term sweeps, made when first needed unless one is given
+	protected static ForkJoinPool sweepPool = null;
+	protected static boolean ownSweepPool = false;
+	protected static int sweepThreads = 1;
+	
+	/**
+	 * Number of fits a term sweep runs at once.  The default of 1 runs the terms one at a time
+	 * on the calling thread, more than 1 makes minRMSForTerms run them in parallel.
+	 * 
+	 * @param num
+	 */
+	public static synchronized void setSweepThreads(int num)
+	{
+		sweepThreads = Math.max(1, num);
+		if(sweepPool != null && sweepPool.getParallelism() != sweepThreads)
+		{
+			// sweeps already running keep the old pool until they finish, a pool that was
+			// given is left for its owner to shut down
+			if(ownSweepPool) sweepPool.shutdown();
+			sweepPool = null;
+			ownSweepPool = false;
+		}
+	}
+	
+	public static synchronized int getSweepThreads()
+	{
+		return sweepThreads;
+	}
+	
+	/**
+	 * Use the given pool for term sweeps instead of making one.  Sweeps run in parallel if it
+	 * has more than one thread.  The caller still owns the pool and shuts it down.
+	 * 
+	 * @param pool
+	 */
+	public static synchronized void setSweepPool(ForkJoinPool pool)
+	{
+		if(ownSweepPool && sweepPool != null && sweepPool != pool) sweepPool.shutdown();
+		sweepPool = pool;
+		ownSweepPool = false;
+		if(pool != null) sweepThreads = pool.getParallelism();
+	}
+	
+	public static synchronized ForkJoinPool getSweepPool()
+	{
+		if(sweepPool == null)
+		{
+			sweepPool = new ForkJoinPool(sweepThreads);
+			ownSweepPool = true;
+		}
+		return sweepPool;
+	}
+	
+	/**
+	 * Weighted RMS of the residuals, the same measure the least squares fits report in da[0].
+	 * 
+	 * @param residuals
+	 * @param weights null when the observations are not weighted
+	 * @return
+	 */
+	public static double getRMS(double residuals[], double weights[])
+	{
+		double sum = 0;
+		for(int i=0; i<residuals.length; i++)
+		{
+			sum += ((weights == null)?1.0d:weights[i])*residuals[i]*residuals[i];
+		}
+		return Math.sqrt(sum/residuals.length);
+	}
+	
 	public static double[] simpleNewTerms(double val, int nt, double fact)
 	{
 		double out[] = new double[nt];
@@ -158,6 +252,21 @@ public class SGP4FitUtil
 	
 	public static TLE minRMSForTerms(TLE initTLE, List<CartesianState> carts, boolean isTEME, boolean doBstar, double bterms[],boolean doXP, double da[])
 	{
+		return minRMSForTerms(initTLE, new ObservationSet(carts), doBstar, bterms, doXP, da, null);
+	}
+	
+	/**
+	 * Sweep the terms until the budget runs out.  The best of the terms that were fit is
+	 * returned, or initTLE if none were.  The budget may be null.  da[0] is set to the min RMS
+	 * and da[1], if there, to the number of fits.
+	 */
+	public static TLE minRMSForTerms(TLE initTLE, ObservationSet obs, boolean doBstar, double bterms[],boolean doXP, double da[], ODBudget budget)
+	{
+		if(getSweepThreads() > 1)
+		{
+			return minRMSForTermsParallel(initTLE, obs, doBstar, bterms, doXP, da, null, budget);
+		}
+		
 		TLE tleOut = null;		
 		
 		double minRMS = Double.MAX_VALUE;
@@ -174,6 +283,8 @@ public class SGP4FitUtil
 		double vals[][]=new double[bterms.length][2];
 		
 		double RMSVAL0 = 0;
+		int numVals = vals.length;
+		int numFits = 0;
 		
 		for(int i=0; i<bterms.length; i++)
 		{
@@ -188,14 +299,26 @@ public class SGP4FitUtil
 			}
 			mTLE.commit();
 			testTLE = mTLE;
-			if(doXP)
+			try
 			{
-				testTLE = FitSGP4XP.fitSGP4XP(carts, isTEME,testTLE.getEpoch(), false, false,testTLE,da, false);
+				if(budget != null) budget.check();
+				
+				if(doXP)
+				{
+					testTLE = FitSGP4XP.fitSGP4XP(obs, testTLE.getEpoch(), false, false,testTLE,da, false, budget);
+				}
+				else
+				{
+					testTLE = FitSGP4.fitSGP4(obs, testTLE.getEpoch(), false, testTLE,da, false, budget);
+				}
 			}
-			else
+			catch(ODBudget.ExceededException ex)
 			{
-				testTLE = FitSGP4.fitSGP4(carts, isTEME,testTLE.getEpoch(), false, testTLE,da, false);
+				System.err.println(ex.getMessage());
+				numVals = i;
+				break;
 			}
+			numFits++;
 			rms = da[0];
 			if(i==0)
 			{
@@ -232,7 +355,7 @@ public class SGP4FitUtil
 			}
 		}
 		
-		for(int i=0; i<vals.length; i++)
+		for(int i=0; i<numVals; i++)
 		{
 			System.out.println(vals[i][0]+"\t"+vals[i][1]);
 		}
@@ -247,7 +370,9 @@ public class SGP4FitUtil
 				System.err.println("Reseting term to 0\t"+minRMS+"\t"+zeroRMS+"\t"+delt);
 			}
 		}
+		if(tleOut == null) tleOut = initTLE;
 		da[0]=minRMS;
+		if(da.length > 1) da[1]=numFits;
 		System.out.println("minRMS\t"+minRMS + "\t" + tleOut.getNDDot()+"\t"+tleOut.getBstar());
 		
 
@@ -255,103 +380,446 @@ public class SGP4FitUtil
 		return tleOut;
 	}
 
-	public static TLE minRMSForTermsXPThreads(TLE initTLE, List<CartesianState> carts, boolean isTEME, boolean doBstar, double bterms[],
-			boolean doXP, double da[])
+	/**
+	 * Same as minRMSForTerms but instead of fitting every term it brackets the minimum RMS on
+	 * a log scale between the smallest positive term and the largest term, starting from the
+	 * term in initTLE, then converges with Brent's method.  The search stops when the last two
+	 * fits are within TERM_RMS_TOL of the best RMS or the log of the term is known to
+	 * TERM_LOG_TOL, then a few terms either side of the best are tried.  A term of 0 is tried
+	 * at the end if bterms has it.
+	 * 
+	 * Every fit starts from initTLE like the grid.  Starting from the fit of the nearest term
+	 * is tempting but the fits land on rounded TLE values and a start that is already on the
+	 * rounding grid often stops short.
+	 * 
+	 * da[0] is set to the min RMS and da[1], if there, to the number of fits.
+	 * 
+	 * @param initTLE
+	 * @param carts
+	 * @param isTEME
+	 * @param doBstar
+	 * @param bterms
+	 * @param doXP
+	 * @param da
+	 * @return
+	 */
+	public static TLE minRMSForTermsBrent(TLE initTLE, List<CartesianState> carts, boolean isTEME, boolean doBstar, double bterms[], boolean doXP, double da[])
 	{
-		TLE tleOut = null;		
+		return minRMSForTermsBrent(initTLE, new ObservationSet(carts), doBstar, bterms, doXP, da, null);
+	}
+	
+	/**
+	 * Search until the budget runs out and return the best term found so far, or initTLE if
+	 * nothing was fit.  The budget may be null.
+	 */
+	public static TLE minRMSForTermsBrent(TLE initTLE, ObservationSet obs, boolean doBstar, double bterms[], boolean doXP, double da[], ODBudget budget)
+	{
+		if(da == null) da = new double[2];
 		
+		double minTerm = Double.MAX_VALUE;
+		double maxTerm = 0;
+		boolean hasZero = false;
+		for(int i=0; i<bterms.length; i++)
+		{
+			if(bterms[i] > 0)
+			{
+				minTerm = Math.min(minTerm, bterms[i]);
+				maxTerm = Math.max(maxTerm, bterms[i]);
+			}
+			else if(bterms[i] == 0)
+			{
+				hasZero = true;
+			}
+		}
+		
+		TermSearch search = new TermSearch(initTLE, obs, doBstar, doXP);
+		search.budget = budget;
+		
+		TLE tleOut = null;
 		double minRMS = Double.MAX_VALUE;
-		double rms = 0;
+		try
+		{
+			if(maxTerm > 0)
+			{
+				double start = doBstar?initTLE.getBstar():initTLE.getNDDot();
+				search.minimize(Math.log10(minTerm), Math.log10(maxTerm), start);
+			}
+			
+			tleOut = search.getBestTLE();
+			minRMS = search.getBestRMS();
+			
+			if(hasZero || tleOut == null)
+			{
+				TLE zeroTLE = search.fitTerm(0);
+				double zeroRMS = search.getLastRMS();
+				
+				if(tleOut == null || zeroRMS < minRMS || Math.abs(minRMS-zeroRMS)/minRMS < RMS_EPS)
+				{
+					System.err.println("Reseting term to 0\t"+minRMS+"\t"+zeroRMS);
+					tleOut = zeroTLE;
+					minRMS = zeroRMS;
+				}
+			}
+		}
+		catch(ODBudget.ExceededException ex)
+		{
+			System.err.println(ex.getMessage());
+			tleOut = search.getBestTLE();
+			minRMS = search.getBestRMS();
+		}
 		
-		TLE testTLE = null;
+		if(tleOut == null) tleOut = initTLE;
+		da[0]=minRMS;
+		if(da.length > 1) da[1]=search.getNumFits();
+		System.out.println("minRMS\t"+minRMS + "\t" + tleOut.getNDDot()+"\t"+tleOut.getBstar()+"\tfits\t"+search.getNumFits());
+		
+		return tleOut;
+	}
+	
+	/**
+	 * RMS of the fit with the drag term held at 10^x.  The RMS is kept by x so no term is fit
+	 * twice.
+	 */
+	protected static class TermSearch implements UnivariateFunction
+	{
+		protected TLE initTLE = null;
+		protected ObservationSet obs = null;
+		protected boolean doBstar = true;
+		protected boolean doXP = false;
 		
-		if(da == null)da = new double[2];
+		protected Map<Double,Double> rmsVals = new HashMap<Double,Double>();
 		
-		boolean hasZero = false;
-		double zeroRMS = 0;
-		TLE zeroTLE = null;
+		protected TLE bestTLE = null;
+		protected double bestRMS = Double.MAX_VALUE;
+		protected double bestX = 0;
+		protected double lastRMS = Double.MAX_VALUE;
+		protected int numFits = 0;
+		protected ODBudget budget = null;
 		
-		double vals[][]=new double[bterms.length][2];
+		public TermSearch(TLE initTLE, ObservationSet obs, boolean doBstar, boolean doXP)
+		{
+			this.initTLE = initTLE;
+			this.obs = obs;
+			this.doBstar = doBstar;
+			this.doXP = doXP;
+		}
 		
-		if(doXP)
+		/**
+		 * Bracket the minimum going downhill from the start term with growing steps then run
+		 * Brent's method inside the bracket.  A range narrower than one step is searched on a
+		 * few evenly spaced terms instead.
+		 * 
+		 * @param lo log10 of the smallest term
+		 * @param hi log10 of the largest term
+		 * @param startTerm
+		 */
+		public void minimize(double lo, double hi, double startTerm)
 		{
-			ThreadPoolExecutor executor = (ThreadPoolExecutor)Executors.newFixedThreadPool(4);
-			List<RMSTermWork> workers = RMSTermWork.buildWork(carts, isTEME, initTLE, bterms, doBstar);
-			for(int i=0; i<workers.size(); i++)
+			if(!(startTerm > 0)) startTerm = TERM_START;
+			double x0 = Math.min(hi, Math.max(lo, Math.log10(startTerm)));
+			if(hi-lo < TERM_LOG_TOL)
 			{
-				executor.execute(workers.get(i));
+				value(x0);
+				return;
 			}
 			
-			
-			for(int i=0; i<100; i++)
+			double f0 = value(x0);
+			if(hi-lo < TERM_LOG_STEP)
 			{
-				System.err.println(executor.getTaskCount()+"\t"+executor.getCompletedTaskCount()+"\t"+executor.getActiveCount());
-				try {Thread.sleep(1000);}catch(Exception ex) {}
-				
-				if(executor.getCompletedTaskCount() == executor.getTaskCount())
+				// too narrow to bracket by stepping
+				for(int i=0; i<TERM_GRID_POINTS; i++)
 				{
-					executor.shutdown();
-					break;
+					value(lo+i*(hi-lo)/(TERM_GRID_POINTS-1));
 				}
+				polish(lo, hi);
+				return;
+			}
+			
+			// step toward the side with room
+			double x1 = x0+TERM_LOG_STEP;
+			if(x1 > hi) x1 = Math.max(lo, x0-TERM_LOG_STEP);
+			double f1 = value(x1);
+			
+			double tmp = 0;
+			if(f1 > f0)
+			{
+				// downhill is the other way
+				tmp = x0; x0 = x1; x1 = tmp;
+				tmp = f0; f0 = f1; f1 = tmp;
 			}
 			
-			for(int i=0; i<workers.size(); i++)
+			double x2 = x1;
+			double f2 = f1;
+			while(numFits < TERM_MAX_FITS)
 			{
-				RMSTermWork w = workers.get(i);
-				System.out.println(w.term + "\t" + w.rms + "\t" + w.fitTLE);
-				rms = w.rms;
-				testTLE = w.fitTLE;
-				if(rms<minRMS)
+				x2 = x1 + 1.618034d*(x1-x0);
+				x2 = Math.min(hi, Math.max(lo, x2));
+				if(x2 == x1)
 				{
-					tleOut = testTLE;
-					minRMS = rms;
+					// still going down at the end of the range
+					break;
 				}
-				//System.out.println(bterms[i]+"\t"+rms);
-				vals[i][0]=w.term;
-				vals[i][1]=rms;
-				
-				if(w.term==0)
+				f2 = value(x2);
+				if(f2 >= f1)
 				{
-					hasZero = true;
-					zeroRMS = rms;
-					zeroTLE = testTLE;
+					break;
 				}
+				x0 = x1; f0 = f1;
+				x1 = x2; f1 = f2;
 			}
+			
+			double a = Math.min(x0, x2);
+			double b = Math.max(x0, x2);
+			if(b-a < TERM_LOG_TOL) return;
+			
+			ConvergenceChecker<UnivariatePointValuePair> checker = (iter, prev, curr) -> 
+				isNearBest(prev.getValue()) && isNearBest(curr.getValue());
+			
+			try
+			{
+				BrentOptimizer opt = new BrentOptimizer(1e-10, TERM_LOG_TOL, checker);
+				opt.optimize(new MaxEval(Math.max(1, TERM_MAX_FITS-numFits)),
+						new UnivariateObjectiveFunction(this),
+						GoalType.MINIMIZE,
+						new SearchInterval(a, b, x1));
+			}
+			catch(ODBudget.ExceededException ex)
+			{
+				throw ex;
+			}
+			catch(Exception ex)
+			{
+				// out of fits, keep the best so far
+				System.err.println("Term search stopped: " + ex.getMessage());
+			}
+			
+			polish(lo, hi);
 		}
-		else
+		
+		/**
+		 * The fits land on the rounded TLE values so the rms is a little noisy near the
+		 * minimum, try a few terms either side of the best.
+		 * 
+		 * @param lo
+		 * @param hi
+		 */
+		protected void polish(double lo, double hi)
 		{
-			for(int i=0; i<bterms.length; i++)
+			double xb = bestX;
+			double dx = TERM_LOG_TOL/TERM_POLISH_STEPS;
+			for(int i=1; i<=TERM_POLISH_STEPS; i++)
 			{
-				MutableTLE mTLE = new MutableTLE(initTLE.getLine1(),initTLE.getLine2());
-				if(doBstar)
+				if(xb-i*dx >= lo) value(xb-i*dx);
+				if(xb+i*dx <= hi) value(xb+i*dx);
+			}
+		}
+		
+		protected boolean isNearBest(double rms)
+		{
+			return Math.abs(rms-bestRMS) <= TERM_RMS_TOL*bestRMS;
+		}
+		
+		@Override
+		public double value(double x) 
+		{
+			Double rms = rmsVals.get(x);
+			if(rms != null) return rms;
+			
+			TLE tle = fitTerm(Math.pow(10.0d, x));
+			rmsVals.put(x, lastRMS);
+			if(lastRMS < bestRMS)
+			{
+				bestRMS = lastRMS;
+				bestTLE = tle;
+				bestX = x;
+			}
+			
+			return lastRMS;
+		}
+		
+		/**
+		 * Fit with the term held fixed, starting from the initial TLE.  Throws
+		 * ODBudget.ExceededException if the budget runs out.
+		 * 
+		 * @param term
+		 * @return
+		 */
+		public TLE fitTerm(double term)
+		{
+			if(budget != null) budget.check();
+			
+			MutableTLE mTLE = new MutableTLE(initTLE.getLine1(),initTLE.getLine2());
+			if(doBstar)
+			{
+				mTLE.setBstar(term);
+			}
+			else
+			{
+				mTLE.setNDDot(term);
+			}
+			mTLE.commit();
+			
+			double da[] = new double[3];
+			TLE testTLE = null;
+			numFits++;
+			lastRMS = Double.MAX_VALUE;
+			try
+			{
+				if(doXP)
 				{
-					mTLE.setBstar(bterms[i]);
+					testTLE = FitSGP4XP.fitSGP4XP(obs, mTLE.getEpoch(), false, false,mTLE,da, false, budget);
 				}
 				else
 				{
-					mTLE.setNDDot(bterms[i]);
+					testTLE = FitSGP4.fitSGP4(obs, mTLE.getEpoch(), false, mTLE,da, false, budget);
 				}
-				mTLE.commit();
+				lastRMS = da[0];
+			}
+			catch(ODBudget.ExceededException ex)
+			{
+				throw ex;
+			}
+			catch(Exception ex)
+			{
+				ex.printStackTrace();
 				testTLE = mTLE;
-				
-				testTLE = FitSGP4.fitSGP4(carts, isTEME,testTLE.getEpoch(), false, testTLE,da, false);
-				
-				rms = da[0];
-				if(rms<minRMS)
-				{
-					tleOut = testTLE;
-					minRMS = rms;
-				}
-				//System.out.println(bterms[i]+"\t"+rms);
-				vals[i][0]=bterms[i];
-				vals[i][1]=rms;
-				
-				if(bterms[i]==0)
-				{
-					hasZero = true;
-					zeroRMS = rms;
-					zeroTLE = testTLE;
-				}
+			}
+			
+			return testTLE;
+		}
+		
+		public TLE getBestTLE()
+		{
+			return bestTLE;
+		}
+		
+		public double getBestRMS()
+		{
+			return bestRMS;
+		}
+		
+		public double getLastRMS()
+		{
+			return lastRMS;
+		}
+		
+		public int getNumFits()
+		{
+			return numFits;
+		}
+	}
+
+	/**
+	 * Fits the terms at the same time on the sweep pool.  The result is the same as
+	 * minRMSForTerms, including the stop once a term after the fourth has more than 3 times
+	 * the RMS of the first.  Terms after that one are cancelled as soon as it is known.
+	 * 
+	 * @param initTLE
+	 * @param carts
+	 * @param isTEME
+	 * @param doBstar
+	 * @param bterms
+	 * @param doXP
+	 * @param da
+	 * @param stats filled with the sweep timing if not null
+	 * @return
+	 */
+	public static TLE minRMSForTermsParallel(TLE initTLE, List<CartesianState> carts, boolean isTEME, boolean doBstar, double bterms[],
+			boolean doXP, double da[], SweepStats stats)
+	{
+		return minRMSForTermsParallel(initTLE, new ObservationSet(carts), doBstar, bterms, doXP, da, stats, null);
+	}
+	
+	/**
+	 * Parallel sweep where terms that start after the budget runs out are skipped.  The
+	 * budget may be null.
+	 */
+	public static TLE minRMSForTermsParallel(TLE initTLE, ObservationSet obs, boolean doBstar, double bterms[],
+			boolean doXP, double da[], SweepStats stats, ODBudget budget)
+	{
+		long t0 = System.currentTimeMillis();
+		if(da == null) da = new double[2];
+		if(stats == null) stats = new SweepStats();
+		
+		final List<RMSTermWork> workers = RMSTermWork.buildWork(obs, initTLE, bterms, doBstar);
+		int nt = workers.size();
+		
+		ForkJoinPool pool = getSweepPool();
+		final List<CompletableFuture<RMSTermWork>> futures = new ArrayList<CompletableFuture<RMSTermWork>>(nt);
+		for(int i=0; i<nt; i++)
+		{
+			final RMSTermWork w = workers.get(i);
+			w.doXP = doXP;
+			
+			// each term gets its own budget so a diverging one can be stopped mid fit
+			w.budget = (budget != null)?budget.child():new ODBudget();
+			futures.add(CompletableFuture.supplyAsync(() -> {w.run(); return w;}, pool));
+		}
+		
+		// index of the term the sequential sweep would stop after
+		final int stopAt[] = {nt-1};
+		for(int i=0; i<nt; i++)
+		{
+			futures.get(i).thenRun(() -> cancelDiverging(workers, futures, stopAt));
+		}
+		
+		try
+		{
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[nt])).join();
+		}
+		catch(Exception ex)
+		{
+			// cancelled terms end up here, the rest are finished
+		}
+		
+		TLE tleOut = null;
+		double minRMS = Double.MAX_VALUE;
+		double rms = 0;
+		
+		boolean hasZero = false;
+		double zeroRMS = 0;
+		TLE zeroTLE = null;
+		
+		int last = 0;
+		synchronized(stopAt)
+		{
+			last = stopAt[0];
+		}
+		
+		double vals[][]=new double[nt][2];
+		RMSTermWork w = null;
+		for(int i=0; i<nt; i++)
+		{
+			w = workers.get(i);
+			if(i > last)
+			{
+				vals[i][0]=w.term;
+				vals[i][1]=vals[last][1];
+				continue;
+			}
+			
+			if(!w.finished || w.fitTLE == null)
+			{
+				// skipped for the budget
+				vals[i][0]=w.term;
+				vals[i][1]=w.rms;
+				continue;
+			}
+			
+			rms = w.rms;
+			if(rms<minRMS)
+			{
+				tleOut = w.fitTLE;
+				minRMS = rms;
+			}
+			vals[i][0]=w.term;
+			vals[i][1]=rms;
+			
+			if(w.term==0)
+			{
+				hasZero = true;
+				zeroRMS = rms;
+				zeroTLE = w.fitTLE;
 			}
 		}
 		
@@ -372,36 +840,175 @@ public class SGP4FitUtil
 		}
 		
 		if(tleOut == null) tleOut = initTLE;
-		System.out.println("minRMS\t"+minRMS + "\t" + tleOut.getNDDot()+"\t"+tleOut.getBstar());
 		da[0]=minRMS;
-		//try{Thread.sleep(100000);}catch(Exception ex){};
+		
+		stats.numTerms = nt;
+		stats.numFits = 0;
+		stats.numCancelled = 0;
+		stats.fitMillis = 0;
+		stats.maxFitMillis = 0;
+		for(int i=0; i<nt; i++)
+		{
+			w = workers.get(i);
+			if(futures.get(i).isCancelled())
+			{
+				stats.numCancelled++;
+			}
+			else if(w.finished && w.fitTLE != null)
+			{
+				stats.numFits++;
+				stats.fitMillis += w.millis;
+				stats.maxFitMillis = Math.max(stats.maxFitMillis, w.millis);
+			}
+		}
+		stats.wallMillis = System.currentTimeMillis()-t0;
+		if(da.length > 1) da[1]=stats.numFits;
+		
+		System.out.println("minRMS\t"+minRMS + "\t" + tleOut.getNDDot()+"\t"+tleOut.getBstar());
+		System.err.println("Term sweep\t"+stats);
 		return tleOut;
 	}
+	
+	/**
+	 * Once the first term is done, find the first term after the fourth with more than 3 times
+	 * its RMS and cancel the terms after it.  Terms that already started stop at their next
+	 * function evaluation.
+	 * 
+	 * @param workers
+	 * @param futures
+	 * @param stopAt
+	 */
+	protected static void cancelDiverging(List<RMSTermWork> workers, List<CompletableFuture<RMSTermWork>> futures, int stopAt[])
+	{
+		synchronized(stopAt)
+		{
+			RMSTermWork first = workers.get(0);
+			if(!first.finished) return;
+			
+			double limit = 3*first.rms;
+			RMSTermWork w = null;
+			for(int i=4; i<stopAt[0]; i++)
+			{
+				w = workers.get(i);
+				if(w.finished && w.rms > limit)
+				{
+					stopAt[0] = i;
+					for(int j=i+1; j<futures.size(); j++)
+					{
+						workers.get(j).cancel();
+						futures.get(j).cancel(false);
+					}
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Kept for older callers, the same as minRMSForTermsParallel.
+	 */
+	public static TLE minRMSForTermsXPThreads(TLE initTLE, List<CartesianState> carts, boolean isTEME, boolean doBstar, double bterms[],
+			boolean doXP, double da[])
+	{
+		return minRMSForTermsParallel(initTLE, carts, isTEME, doBstar, bterms, doXP, da, null);
+	}
+
+	/**
+	 * Timing for one term sweep.
+	 */
+	public static class SweepStats
+	{
+		public int numTerms = 0;
+		public int numFits = 0;
+		public int numCancelled = 0;
+		
+		// time for the whole sweep
+		public long wallMillis = 0;
+		
+		// total and longest time of the fits that finished
+		public long fitMillis = 0;
+		public long maxFitMillis = 0;
+		
+		public String toString()
+		{
+			return "terms " + numTerms + " fits " + numFits + " cancelled " + numCancelled + 
+					" wall ms " + wallMillis + " fit ms " + fitMillis + " max fit ms " + maxFitMillis;
+		}
+	}
 
 	public static class RMSTermWork implements Runnable
 	{
 		public List<CartesianState> carts;
+		public ObservationSet obs;
 		public TLE testTLE;
 		public boolean isTEME;
 		public double rms = Double.MAX_VALUE;
 		public double term = 0;
 		public TLE fitTLE;
-		public boolean finished = false;
+		public boolean doXP = true;
+		public long millis = 0;
+		public volatile boolean finished = false;
+		public ODBudget budget = null;
 		
 		public RMSTermWork()
 		{
 			
 		}
 		
+		/**
+		 * Stop the fit, through its budget if it has started.  The sweep gives each term its
+		 * own budget so this does not stop the others.
+		 */
+		public void cancel()
+		{
+			if(budget == null) budget = new ODBudget();
+			budget.cancel();
+		}
+		
 		public void run()
 		{
+			long t = System.currentTimeMillis();
 			double da[] = new double[3];
-			fitTLE = FitSGP4XP.fitSGP4XP(carts, isTEME,testTLE.getEpoch(), false, false,testTLE,da, false);
-			rms = da[0];
+			try
+			{
+				if(budget != null) budget.check();
+				if(obs == null) obs = new ObservationSet(carts);
+				
+				if(doXP)
+				{
+					fitTLE = FitSGP4XP.fitSGP4XP(obs, testTLE.getEpoch(), false, false,testTLE,da, false, budget);
+				}
+				else
+				{
+					fitTLE = FitSGP4.fitSGP4(obs, testTLE.getEpoch(), false, testTLE,da, false, budget);
+				}
+				rms = da[0];
+			}
+			catch(ODBudget.ExceededException ex)
+			{
+				// leave fitTLE null so the sweep skips this term
+				fitTLE = null;
+			}
+			catch(Exception ex)
+			{
+				ex.printStackTrace();
+			}
+			millis = System.currentTimeMillis()-t;
 			finished = true;
 		}
 		
 		public static List<RMSTermWork> buildWork(List<CartesianState> carts, boolean isTEME, TLE initTLE, double terms[], boolean doBstar)
+		{
+			List<RMSTermWork> out = buildWork(new ObservationSet(carts), initTLE, terms, doBstar);
+			for(RMSTermWork work : out)
+			{
+				work.carts = carts;
+				work.isTEME = isTEME;
+			}
+			return out;
+		}
+		
+		public static List<RMSTermWork> buildWork(ObservationSet obs, TLE initTLE, double terms[], boolean doBstar)
 		{
 			int nt = terms.length;
 			List<RMSTermWork> out = new ArrayList<RMSTermWork>(nt);
@@ -421,10 +1028,9 @@ public class SGP4FitUtil
 				mTLE.commit();
 	
 				work = new RMSTermWork();
-				work.carts = carts;
+				work.obs = obs;
 				work.testTLE = mTLE;
 				work.term = terms[i];
-				work.isTEME = isTEME;
 				out.add(work);
 			}
 			
@@ -31,12 +31,57 @@ public class SGP4ODTask extends AbstractODTask
 	protected boolean solveForBStar = true;
 	protected boolean allowDownsample = true;
 	protected double PREFERREDBTERMS[] = null;
+	protected int termSearch = SGP4FitUtil.TERM_SEARCH_BRENT;
+	protected MultiResolutionFit multiRes = new MultiResolutionFit();
+	protected List<MultiResolutionFit.Level> levels = null;
 	
     public SGP4ODTask()
     {
     	type = ODTask.TYPE_SGP4;
     }
     
+    /**
+     * How to search for B*, SGP4FitUtil.TERM_SEARCH_BRENT by default or
+     * SGP4FitUtil.TERM_SEARCH_GRID for the older sweep of fixed terms.
+     * 
+     * @param mode
+     */
+    public void setTermSearch(int mode)
+    {
+    	termSearch = mode;
+    }
+    
+    public int getTermSearch()
+    {
+    	return termSearch;
+    }
+    
+    /**
+     * Coarse to fine fit used for sets with more than its minimum number of points.  Null
+     * goes back to the nested downsampled runs.
+     * 
+     * @param fit
+     */
+    public void setMultiResolution(MultiResolutionFit fit)
+    {
+    	multiRes = fit;
+    }
+    
+    public MultiResolutionFit getMultiResolution()
+    {
+    	return multiRes;
+    }
+    
+    /**
+     * Diagnostics for each level of the last coarse to fine fit, null if it wasn't used.
+     * 
+     * @return
+     */
+    public List<MultiResolutionFit.Level> getLevels()
+    {
+    	return levels;
+    }
+    
     public void setSolveForBStar(boolean flag)
     {
     	solveForBStar = flag;
@@ -52,12 +97,12 @@ public class SGP4ODTask extends AbstractODTask
 	{
 		DateUtil.setDefaultTimeZone();
 		isRunning= true;
+		budget.start();
 		try
 		{
-			boolean isTEME = true;
-			
 			double da[] = new double[4];
-			List<CartesianState> carts = obsSet.getTEMECarts();
+			ObservationSet obs = obsSet.getTEME();
+			List<CartesianState> carts = obs.getCarts();
 			
 			if(epoch == null)
 			{
@@ -83,6 +128,27 @@ public class SGP4ODTask extends AbstractODTask
 				// shift epoch
 				initTLE = CartToTLE.shiftEpoch(initTLE, epoch);
 			}
+			setProgress(initTLE, Double.MAX_VALUE);
+			
+			if(multiRes != null && allowDownsample && carts.size() > multiRes.getMinPoints())
+			{
+				levels = new ArrayList<MultiResolutionFit.Level>();
+				TLE tle = multiRes.fit(obs, epoch, initTLE, solveForBStar, budget, levels, termSearch);
+				if(levels.size() > 0)
+				{
+					this.iter = levels.size();
+					MultiResolutionFit.Level last = levels.get(levels.size()-1);
+					double rms = last.rms;
+					if(last.points < obs.size())
+					{
+						// the budget ran out before the full set, the level's rms is for a subset
+						rms = FitSGP4.getRMS(obs, tle);
+					}
+					setProgress(tle, rms);
+				}
+				System.err.println("MINRMS = " + this.rms);
+				return;
+			}
 			
 			double INITBTERMS[] = SGP4FitUtil.SMALLERRANGE;
 			if(PREFERREDBTERMS != null)
@@ -170,29 +236,37 @@ public class SGP4ODTask extends AbstractODTask
 			boolean doLog = true;
 			
 			TLE tle = null;
+			boolean nested = false;
 			if(carts.size()>1000 && allowDownsample)
 			{
 				// downsample
-				initTLE = downsample(100,epoch,initTLE,carts,null);
+				initTLE = downsample(100,epoch,initTLE,obs,null);
+				nested = true;
 				INITBTERMS = SGP4FitUtil.simpleNewTerms(initTLE.getBstar(), 21, 10.0);
 				doLog = false;
 				tle = initTLE;
 			}
 			else
 			{
-				tle = FitSGP4.fitSGP4(carts, isTEME, epoch, solveForBStar, initTLE, da, true);
+				tle = FitSGP4.fitSGP4(obs, epoch, solveForBStar, initTLE, da, true, budget);
 			}
 
 			// yes we will downsample again!
-			if(carts.size()>50 && allowDownsample)
+			if(carts.size()>50 && allowDownsample && !budget.isExhausted())
 			{
 				// downsample
-				initTLE = downsample(carts.size()/3,epoch,tle,carts,INITBTERMS);
+				initTLE = downsample(carts.size()/3,epoch,tle,obs,INITBTERMS);
 				INITBTERMS = SGP4FitUtil.simpleNewTerms(initTLE.getBstar(), 31, 3.0);
 				doLog = false;
 				tle = initTLE;
+				nested = true;
 			}
 
+			if(nested)
+			{
+				// da is from the first fit, if any, and the nested runs measured a subset
+				da[0] = FitSGP4.getRMS(obs, tle);
+			}
 			this.rms = da[0];
 			
 			OrbitState orbit = new OrbitState();
@@ -281,99 +355,111 @@ public class SGP4ODTask extends AbstractODTask
 					3.16E+09
 			};
 			// let's try to improve upon bstar fit
-			if(solveForBStar)
+			if(solveForBStar && !budget.isExhausted())
 			{
+				double prevRMS = this.rms;
 				TLE tleOut = orbit.tle;
 				double BTERMS[] = INITBTERMS;
 				double dda[] = new double[6];
 				double minRMS = Double.MAX_VALUE;
 				TLE tleMinRMS = null;
 				
-				for(int i=0; i<maxIters; i++)
+				if(termSearch == SGP4FitUtil.TERM_SEARCH_BRENT)
+				{
+					tleMinRMS = SGP4FitUtil.minRMSForTermsBrent(tleOut,obs,true,BTERMS,false,dda,budget);
+					minRMS = dda[0];
+					this.iter = 2;
+					this.rms = minRMS;
+				}
+				else
 				{
-					tleOut = SGP4FitUtil.minRMSForTerms(tleOut,carts,isTEME,true,BTERMS,false,dda);
-					if(dda[0]<minRMS)
+					for(int i=0; i<maxIters; i++)
 					{
-						minRMS = dda[0];
-						tleMinRMS = tleOut;
-					}
+						tleOut = SGP4FitUtil.minRMSForTerms(tleOut,obs,true,BTERMS,false,dda,budget);
+						if(dda[0]<minRMS)
+						{
+							minRMS = dda[0];
+							tleMinRMS = tleOut;
+						}
 					
 					
-					BTERMS=SGP4FitUtil.newTerms(tleOut.getBstar(),BTERMS,9, doLog);
-					BTERMS[BTERMS.length-1]*=1.01;
+						BTERMS=SGP4FitUtil.newTerms(tleOut.getBstar(),BTERMS,9, doLog);
+						BTERMS[BTERMS.length-1]*=1.01;
 
-					if(i>1)doLog = false;
+						if(i>1)doLog = false;
 					
-					this.iter = (i+2);
-					this.rms = minRMS;
+						this.iter = (i+2);
+						this.rms = minRMS;
 					
-					del = Math.abs(BTERMS[0]-BTERMS[BTERMS.length-1])/BTERMS[0];
-					System.err.println("\n\n"+i+"\t"+del+"\n\n");
+						del = Math.abs(BTERMS[0]-BTERMS[BTERMS.length-1])/BTERMS[0];
+						System.err.println("\n\n"+i+"\t"+del+"\n\n");
 
-					if(del<3e-5)
-					{
-						break;
-					}
+						if(del<3e-5 || budget.isExhausted())
+						{
+							break;
+						}
 					
+					}
 				}
 				
-				orbit = new OrbitState();
-				orbit.tle = tleMinRMS;
-				this.rms = minRMS;
-				orbit.rms = minRMS;
-				orbit.numIters = this.iter;
-				this.solvedState = orbit;
+				// a search cut short by the budget only counts if it did better
+				if(tleMinRMS != null && (!budget.isExhausted() || minRMS < prevRMS))
+				{
+					orbit = new OrbitState();
+					orbit.tle = tleMinRMS;
+					this.rms = minRMS;
+					orbit.rms = minRMS;
+					orbit.numIters = this.iter;
+					this.solvedState = orbit;
+				}
+				else
+				{
+					this.rms = prevRMS;
+				}
 			
 				// see if fine tuning helps
-				tle = FitSGP4.fitSGP4(carts, isTEME, epoch, solveForBStar, tleMinRMS, da, true);
-				if(da[0]<minRMS)
+				if(!budget.isExhausted())
 				{
-					this.rms=da[0];
-					orbit.rms=this.rms;
-					orbit.tle=tle;
-					minRMS = da[0];
+					tle = FitSGP4.fitSGP4(obs, epoch, solveForBStar, orbit.tle, da, true, budget);
+					if(da[0]<this.rms)
+					{
+						this.rms=da[0];
+						orbit.rms=this.rms;
+						orbit.tle=tle;
+						minRMS = da[0];
+					}
 				}
 			}
 			
 		}
+		catch(ODBudget.ExceededException ex)
+		{
+			// keep the best solution so far
+			System.err.println(ex.getMessage());
+		}
 		finally
 		{
+			checkBudgetStatus();
 			isRunning = false;
 		}
 		
 		System.err.println("MINRMS = " + this.rms);
 	}
 
-	protected TLE downsample(int maxCarts, Date epoch, TLE initTLE, List<CartesianState> carts, double useBTERMS[])
+	/**
+	 * Solve with a weighted subset of the observations to get a starting point for the full fit.
+	 */
+	protected TLE downsample(int maxCarts, Date epoch, TLE initTLE, ObservationSet obs, double useBTERMS[])
 	{
 		TLE out = null;
-		List<CartesianState> newCarts = new ArrayList<CartesianState>(maxCarts);
-		
-		int step = maxCarts/3;
-		int size = carts.size();
-		int mid = (size-step)/2;
-		for(int i=0; i<step; i++)
-		{
-			newCarts.add(carts.get(i));
-			newCarts.add(carts.get(mid+i));
-			newCarts.add(carts.get(size-1-i));
-		}
-	
-		// we don't support weights yet, so add begin and end vectors a few times
-		for(int i=0; i<step/5; i++)
-		{
-			newCarts.add(carts.get(i));
-			newCarts.add(carts.get(size-1));
-			newCarts.add(carts.get(size-1));
-		}
-		
-		ObservationSet obs = new ObservationSet();
-		obs.setCarts(newCarts);
+		ObservationSet subset = obs.downsample(maxCarts);
 		
 		SGP4ODTask odTask = new SGP4ODTask();
 		odTask.allowDownsample=false;
 		odTask.PREFERREDBTERMS=useBTERMS;
-		odTask.setObservationSet(obs);
+		odTask.termSearch=termSearch;
+		odTask.budget=budget;
+		odTask.setObservationSet(subset);
 		odTask.setEpoch(epoch);
 		OrbitState init = new OrbitState();
 		init.epoch=epoch;
@@ -391,10 +477,5 @@ public class SGP4ODTask extends AbstractODTask
 		return out;
 	}
 	
-	@Override
-	public void stopOD() {
-		// TODO Auto-generated method stub
-
-	}
 
 }
@@ -0,0 +1,410 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem.od;
+
+import org.hipparchus.analysis.differentiation.Gradient;
+
+import sgp4.ElsetRec;
+import sgp4.SGP4;
+
+/**
+ * Near earth SGP4 carried out on Hipparchus Gradient numbers, so position and velocity come
+ * with exact partial derivatives with respect to whatever the elements were derived from.
+ * The steps are the same as sgp4init and sgp4 in afspc mode.  Deep space orbits, periods of
+ * 225 minutes or more, are not handled and isSupported() returns false for them.
+ *
+ * Propagation only reads the initialized values so one instance can be used from many
+ * threads.
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4Partials
+{
+	protected static final double twopi = 2.0*Math.PI;
+	protected static final double x2o3 = 2.0/3.0;
+
+	protected double radiusearthkm = 0;
+	protected double xke = 0;
+	protected double j2 = 0;
+	protected double j3oj2 = 0;
+
+	protected boolean supported = true;
+	protected boolean isimp = false;
+
+	protected Gradient inclo, nodeo, ecco, argpo, mo, bstar, no_unkozai;
+	protected Gradient cosio, sinio, con41, x1mth2, x7thm1;
+	protected Gradient eta, cc1, cc4, cc5, mdot, argpdot, nodedot, nodecf;
+	protected Gradient omgcof, xmcof, delmo, sinmao, t2cof, xlcof, aycof;
+	protected Gradient d2, d3, d4, t3cof, t4cof, t5cof;
+
+	/**
+	 * Initialize from the mean elements with the wgs72 constants used by TLE.
+	 *
+	 * @param inclo inclination, rad
+	 * @param nodeo right ascension of the ascending node, rad
+	 * @param ecco eccentricity
+	 * @param argpo argument of perigee, rad
+	 * @param mo mean anomaly, rad
+	 * @param no_kozai mean motion, rad/min
+	 * @param bstar
+	 */
+	public SGP4Partials(Gradient inclo, Gradient nodeo, Gradient ecco, Gradient argpo, Gradient mo, Gradient no_kozai, Gradient bstar)
+	{
+		this(SGP4.wgs72,inclo,nodeo,ecco,argpo,mo,no_kozai,bstar);
+	}
+
+	public SGP4Partials(int whichconst, Gradient inclo, Gradient nodeo, Gradient ecco, Gradient argpo, Gradient mo, Gradient no_kozai, Gradient bstar)
+	{
+		ElsetRec consts = new ElsetRec();
+		SGP4.getgravconst(whichconst, consts);
+		radiusearthkm = consts.radiusearthkm;
+		xke = consts.xke;
+		j2 = consts.j2;
+		j3oj2 = consts.j3oj2;
+
+		this.inclo = inclo;
+		this.nodeo = nodeo;
+		this.ecco = ecco;
+		this.argpo = argpo;
+		this.mo = mo;
+		this.bstar = bstar;
+
+		init(no_kozai, consts.j4);
+	}
+
+	/**
+	 * The sgp4init and initl steps for a near earth orbit.
+	 *
+	 * @param no_kozai
+	 * @param j4
+	 */
+	protected void init(Gradient no_kozai, double j4)
+	{
+		// initl
+		Gradient eccsq = ecco.square();
+		Gradient omeosq = eccsq.negate().add(1.0);
+		Gradient rteosq = omeosq.sqrt();
+		cosio = inclo.cos();
+		sinio = inclo.sin();
+		Gradient cosio2 = cosio.square();
+
+		Gradient ak = no_kozai.reciprocal().multiply(xke).pow(x2o3);
+		Gradient d1 = cosio2.multiply(3.0).subtract(1.0).multiply(0.75*j2).divide(rteosq.multiply(omeosq));
+		Gradient del = d1.divide(ak.square());
+		Gradient adel = ak.multiply(del.square().negate().add(1.0).subtract(del.multiply(del.square().multiply(134.0/81.0).add(1.0/3.0))));
+		del = d1.divide(adel.square());
+		no_unkozai = no_kozai.divide(del.add(1.0));
+
+		if(twopi/no_unkozai.getValue() >= 225.0)
+		{
+			supported = false;
+			return;
+		}
+
+		Gradient ao = no_unkozai.reciprocal().multiply(xke).pow(x2o3);
+		Gradient po = ao.multiply(omeosq);
+		Gradient con42 = cosio2.multiply(-5.0).add(1.0);
+		con41 = con42.negate().subtract(cosio2).subtract(cosio2);
+		Gradient posq = po.square();
+		Gradient rp = ao.multiply(ecco.negate().add(1.0));
+
+		// sgp4init
+		double ss = 78.0 / radiusearthkm + 1.0;
+		double qzms2ttemp = (120.0 - 78.0) / radiusearthkm;
+		double qzms2t = qzms2ttemp * qzms2ttemp * qzms2ttemp * qzms2ttemp;
+
+		Gradient zero = ecco.getField().getZero();
+
+		isimp = rp.getValue() < (220.0 / radiusearthkm + 1.0);
+		Gradient sfour = zero.add(ss);
+		Gradient qzms24 = zero.add(qzms2t);
+		Gradient perige = rp.subtract(1.0).multiply(radiusearthkm);
+
+		// for perigees below 156 km, s and qoms2t are altered
+		if(perige.getValue() < 156.0)
+		{
+			sfour = perige.subtract(78.0);
+			if(perige.getValue() < 98.0)
+				sfour = zero.add(20.0);
+			Gradient qzms24temp = sfour.negate().add(120.0).divide(radiusearthkm);
+			qzms24 = qzms24temp.square().square();
+			sfour = sfour.divide(radiusearthkm).add(1.0);
+		}
+		Gradient pinvsq = posq.reciprocal();
+
+		Gradient tsi = ao.subtract(sfour).reciprocal();
+		eta = ao.multiply(ecco).multiply(tsi);
+		Gradient etasq = eta.square();
+		Gradient eeta = ecco.multiply(eta);
+		Gradient psisq = etasq.negate().add(1.0).abs();
+		Gradient coef = qzms24.multiply(tsi.square().square());
+		Gradient coef1 = coef.divide(psisq.pow(3.5));
+		Gradient cc2 = coef1.multiply(no_unkozai).multiply(
+				ao.multiply(etasq.multiply(1.5).add(1.0).add(eeta.multiply(etasq.add(4.0)))).add(
+				tsi.divide(psisq).multiply(0.375*j2).multiply(con41).multiply(etasq.multiply(etasq.add(8.0)).multiply(3.0).add(8.0))));
+		cc1 = bstar.multiply(cc2);
+		Gradient cc3 = zero;
+		if(ecco.getValue() > 1.0e-4)
+			cc3 = coef.multiply(tsi).multiply(-2.0*j3oj2).multiply(no_unkozai).multiply(sinio).divide(ecco);
+		x1mth2 = cosio2.negate().add(1.0);
+
+		Gradient cc4a = eta.multiply(etasq.multiply(0.5).add(2.0)).add(ecco.multiply(etasq.multiply(2.0).add(0.5)));
+		Gradient cc4b = con41.multiply(-3.0).multiply(eeta.multiply(-2.0).add(1.0).add(etasq.multiply(eeta.multiply(-0.5).add(1.5))));
+		Gradient cc4c = x1mth2.multiply(0.75).multiply(etasq.multiply(2.0).subtract(eeta.multiply(etasq.add(1.0)))).multiply(argpo.multiply(2.0).cos());
+		cc4 = no_unkozai.multiply(2.0).multiply(coef1).multiply(ao).multiply(omeosq).multiply(
+				cc4a.subtract(tsi.multiply(j2).divide(ao.multiply(psisq)).multiply(cc4b.add(cc4c))));
+		cc5 = coef1.multiply(2.0).multiply(ao).multiply(omeosq).multiply(
+				etasq.add(eeta).multiply(2.75).add(1.0).add(eeta.multiply(etasq)));
+
+		Gradient cosio4 = cosio2.square();
+		Gradient temp1 = pinvsq.multiply(no_unkozai).multiply(1.5*j2);
+		Gradient temp2 = temp1.multiply(pinvsq).multiply(0.5*j2);
+		Gradient temp3 = pinvsq.square().multiply(no_unkozai).multiply(-0.46875*j4);
+		mdot = no_unkozai.add(temp1.multiply(0.5).multiply(rteosq).multiply(con41)).add(
+				temp2.multiply(0.0625).multiply(rteosq).multiply(cosio2.multiply(-78.0).add(13.0).add(cosio4.multiply(137.0))));
+		argpdot = temp1.multiply(-0.5).multiply(con42).add(
+				temp2.multiply(0.0625).multiply(cosio2.multiply(-114.0).add(7.0).add(cosio4.multiply(395.0)))).add(
+				temp3.multiply(cosio2.multiply(-36.0).add(3.0).add(cosio4.multiply(49.0))));
+		Gradient xhdot1 = temp1.negate().multiply(cosio);
+		nodedot = xhdot1.add(temp2.multiply(0.5).multiply(cosio2.multiply(-19.0).add(4.0)).add(
+				temp3.multiply(2.0).multiply(cosio2.multiply(-7.0).add(3.0))).multiply(cosio));
+		omgcof = bstar.multiply(cc3).multiply(argpo.cos());
+		xmcof = zero;
+		if(ecco.getValue() > 1.0e-4)
+			xmcof = coef.multiply(bstar).divide(eeta).multiply(-x2o3);
+		nodecf = omeosq.multiply(xhdot1).multiply(cc1).multiply(3.5);
+		t2cof = cc1.multiply(1.5);
+
+		// sgp4fix for divide by zero with xinco = 180 deg
+		Gradient xlcofd = cosio.add(1.0);
+		if(Math.abs(cosio.getValue() + 1.0) <= 1.5e-12)
+			xlcofd = zero.add(1.5e-12);
+		xlcof = sinio.multiply(-0.25*j3oj2).multiply(cosio.multiply(5.0).add(3.0)).divide(xlcofd);
+		aycof = sinio.multiply(-0.5*j3oj2);
+		Gradient delmotemp = eta.multiply(mo.cos()).add(1.0);
+		delmo = delmotemp.square().multiply(delmotemp);
+		sinmao = mo.sin();
+		x7thm1 = cosio2.multiply(7.0).subtract(1.0);
+
+		if(!isimp)
+		{
+			Gradient cc1sq = cc1.square();
+			d2 = ao.multiply(tsi).multiply(cc1sq).multiply(4.0);
+			Gradient temp = d2.multiply(tsi).multiply(cc1).divide(3.0);
+			d3 = ao.multiply(17.0).add(sfour).multiply(temp);
+			d4 = temp.multiply(0.5).multiply(ao).multiply(tsi).multiply(ao.multiply(221.0).add(sfour.multiply(31.0))).multiply(cc1);
+			t3cof = d2.add(cc1sq.multiply(2.0));
+			t4cof = d3.multiply(3.0).add(cc1.multiply(d2.multiply(12.0).add(cc1sq.multiply(10.0)))).multiply(0.25);
+			t5cof = d4.multiply(3.0).add(cc1.multiply(12.0).multiply(d3)).add(d2.square().multiply(6.0)).add(
+					cc1sq.multiply(15.0).multiply(d2.multiply(2.0).add(cc1sq))).multiply(0.2);
+		}
+	}
+
+	/**
+	 * False for deep space orbits.
+	 *
+	 * @return
+	 */
+	public boolean isSupported()
+	{
+		return supported;
+	}
+
+	/**
+	 * Propagate to tsince.  Returns false where sgp4 would report an error, r and v are not
+	 * set in that case.
+	 *
+	 * @param tsince minutes since epoch
+	 * @param r position in km
+	 * @param v velocity in km/sec
+	 * @return
+	 */
+	public boolean propagate(double tsince, Gradient r[], Gradient v[])
+	{
+		if(!supported) return false;
+
+		double vkmpersec = radiusearthkm * xke / 60.0;
+		double t = tsince;
+
+		// update for secular gravity and atmospheric drag
+		Gradient xmdf = mo.add(mdot.multiply(t));
+		Gradient argpdf = argpo.add(argpdot.multiply(t));
+		Gradient nodedf = nodeo.add(nodedot.multiply(t));
+		Gradient argpm = argpdf;
+		Gradient mm = xmdf;
+		double t2 = t*t;
+		Gradient nodem = nodedf.add(nodecf.multiply(t2));
+		Gradient tempa = cc1.multiply(-t).add(1.0);
+		Gradient tempe = bstar.multiply(cc4).multiply(t);
+		Gradient templ = t2cof.multiply(t2);
+
+		if(!isimp)
+		{
+			Gradient delomg = omgcof.multiply(t);
+			Gradient delmtemp = eta.multiply(xmdf.cos()).add(1.0);
+			Gradient delm = xmcof.multiply(delmtemp.square().multiply(delmtemp).subtract(delmo));
+			Gradient temp = delomg.add(delm);
+			mm = xmdf.add(temp);
+			argpm = argpdf.subtract(temp);
+			double t3 = t2*t;
+			double t4 = t3*t;
+			tempa = tempa.subtract(d2.multiply(t2)).subtract(d3.multiply(t3)).subtract(d4.multiply(t4));
+			tempe = tempe.add(bstar.multiply(cc5).multiply(mm.sin().subtract(sinmao)));
+			templ = templ.add(t3cof.multiply(t3)).add(t4cof.add(t5cof.multiply(t)).multiply(t4));
+		}
+
+		Gradient nm = no_unkozai;
+		Gradient em = ecco;
+		Gradient inclm = inclo;
+		if(nm.getValue() <= 0.0)
+		{
+			return false;
+		}
+
+		Gradient am = nm.reciprocal().multiply(xke).pow(x2o3).multiply(tempa.square());
+		nm = am.pow(1.5).reciprocal().multiply(xke);
+		em = em.subtract(tempe);
+		if(em.getValue() >= 1.0 || em.getValue() < -0.001)
+		{
+			return false;
+		}
+		if(em.getValue() < 1.0e-6)
+			em = em.getField().getZero().add(1.0e-6);
+		mm = mm.add(no_unkozai.multiply(templ));
+		Gradient xlm = mm.add(argpm).add(nodem);
+
+		nodem = fmod(nodem);
+		argpm = fmod(argpm);
+		xlm = fmod(xlm);
+		mm = fmod(xlm.subtract(argpm).subtract(nodem));
+
+		Gradient sinip = inclm.sin();
+		Gradient cosip = inclm.cos();
+
+		// long period periodics
+		Gradient ep = em;
+		Gradient argpp = argpm;
+		Gradient nodep = nodem;
+		Gradient mp = mm;
+		Gradient axnl = ep.multiply(argpp.cos());
+		Gradient temp = am.multiply(ep.square().negate().add(1.0)).reciprocal();
+		Gradient aynl = ep.multiply(argpp.sin()).add(temp.multiply(aycof));
+		Gradient xl = mp.add(argpp).add(nodep).add(temp.multiply(xlcof).multiply(axnl));
+
+		// solve kepler's equation on the values then add the partials with one newton step
+		Gradient u = fmod(xl.subtract(nodep));
+		double axv = axnl.getValue();
+		double ayv = aynl.getValue();
+		double uv = u.getValue();
+		double eo1 = uv;
+		double tem5 = 9999.9;
+		int ktr = 1;
+		while ((Math.abs(tem5) >= 1.0e-12) && (ktr <= 10))
+		{
+			tem5 = 1.0 - Math.cos(eo1) * axv - Math.sin(eo1) * ayv;
+			tem5 = (uv - ayv * Math.cos(eo1) + axv * Math.sin(eo1) - eo1) / tem5;
+			if (Math.abs(tem5) >= 0.95)
+				tem5 = tem5 > 0.0 ? 0.95 : -0.95;
+			eo1 = eo1 + tem5;
+			ktr = ktr + 1;
+		}
+		double sv = Math.sin(eo1);
+		double cv = Math.cos(eo1);
+		Gradient kep = u.subtract(aynl.multiply(cv)).add(axnl.multiply(sv)).subtract(eo1);
+		Gradient E = kep.divide(axnl.multiply(cv).negate().subtract(aynl.multiply(sv)).add(1.0)).add(eo1);
+		Gradient sineo1 = E.sin();
+		Gradient coseo1 = E.cos();
+
+		// short period preliminary quantities
+		Gradient ecose = axnl.multiply(coseo1).add(aynl.multiply(sineo1));
+		Gradient esine = axnl.multiply(sineo1).subtract(aynl.multiply(coseo1));
+		Gradient el2 = axnl.square().add(aynl.square());
+		Gradient pl = am.multiply(el2.negate().add(1.0));
+		if(pl.getValue() < 0.0)
+		{
+			return false;
+		}
+
+		Gradient rl = am.multiply(ecose.negate().add(1.0));
+		Gradient rdotl = am.sqrt().multiply(esine).divide(rl);
+		Gradient rvdotl = pl.sqrt().divide(rl);
+		Gradient betal = el2.negate().add(1.0).sqrt();
+		temp = esine.divide(betal.add(1.0));
+		Gradient sinu = am.divide(rl).multiply(sineo1.subtract(aynl).subtract(axnl.multiply(temp)));
+		Gradient cosu = am.divide(rl).multiply(coseo1.subtract(axnl).add(aynl.multiply(temp)));
+		Gradient su = sinu.atan2(cosu);
+		Gradient sin2u = cosu.add(cosu).multiply(sinu);
+		Gradient cos2u = sinu.square().multiply(-2.0).add(1.0);
+		temp = pl.reciprocal();
+		Gradient temp1 = temp.multiply(0.5*j2);
+		Gradient temp2 = temp1.multiply(temp);
+
+		// update for short period periodics
+		Gradient mrt = rl.multiply(temp2.multiply(betal).multiply(con41).multiply(-1.5).add(1.0)).add(
+				temp1.multiply(0.5).multiply(x1mth2).multiply(cos2u));
+		su = su.subtract(temp2.multiply(0.25).multiply(x7thm1).multiply(sin2u));
+		Gradient xnode = nodep.add(temp2.multiply(1.5).multiply(cosip).multiply(sin2u));
+		Gradient xinc = inclm.add(temp2.multiply(1.5).multiply(cosip).multiply(sinip).multiply(cos2u));
+		Gradient mvt = rdotl.subtract(nm.multiply(temp1).multiply(x1mth2).multiply(sin2u).divide(xke));
+		Gradient rvdot = rvdotl.add(nm.multiply(temp1).multiply(x1mth2.multiply(cos2u).add(con41.multiply(1.5))).divide(xke));
+
+		if(mrt.getValue() < 1.0)
+		{
+			return false;
+		}
+
+		// orientation vectors
+		Gradient sinsu = su.sin();
+		Gradient cossu = su.cos();
+		Gradient snod = xnode.sin();
+		Gradient cnod = xnode.cos();
+		Gradient sini = xinc.sin();
+		Gradient cosi = xinc.cos();
+		Gradient xmx = snod.negate().multiply(cosi);
+		Gradient xmy = cnod.multiply(cosi);
+		Gradient ux = xmx.multiply(sinsu).add(cnod.multiply(cossu));
+		Gradient uy = xmy.multiply(sinsu).add(snod.multiply(cossu));
+		Gradient uz = sini.multiply(sinsu);
+		Gradient vx = xmx.multiply(cossu).subtract(cnod.multiply(sinsu));
+		Gradient vy = xmy.multiply(cossu).subtract(snod.multiply(sinsu));
+		Gradient vz = sini.multiply(cossu);
+
+		// position and velocity in km and km/sec
+		r[0] = mrt.multiply(ux).multiply(radiusearthkm);
+		r[1] = mrt.multiply(uy).multiply(radiusearthkm);
+		r[2] = mrt.multiply(uz).multiply(radiusearthkm);
+		v[0] = mvt.multiply(ux).add(rvdot.multiply(vx)).multiply(vkmpersec);
+		v[1] = mvt.multiply(uy).add(rvdot.multiply(vy)).multiply(vkmpersec);
+		v[2] = mvt.multiply(uz).add(rvdot.multiply(vz)).multiply(vkmpersec);
+
+		return true;
+	}
+
+	/**
+	 * Same as SGP4.fmod with 2 pi, the partials are unchanged.
+	 *
+	 * @param x
+	 * @return
+	 */
+	protected static Gradient fmod(Gradient x)
+	{
+		long tquot = (long)Math.floor(x.getValue()/twopi);
+		return x.subtract(tquot*twopi);
+	}
+}
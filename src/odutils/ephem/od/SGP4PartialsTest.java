@@ -0,0 +1,216 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem.od;
+
+import org.hipparchus.linear.ArrayRealVector;
+import org.hipparchus.linear.RealMatrix;
+
+import odutils.ephem.EphemerisUtil;
+import odutils.ephem.MutableTLE;
+import odutils.ephem.SGP4XPSatCacheTest;
+import sgp4.TLE;
+
+/**
+ * Compares the analytic jacobian of SGP4CartesianFunction with central differences, column by
+ * column, then times FitSGP4 with the analytic and the finite difference jacobians on the
+ * sample TLEs.  The differences are taken with the TLE values unquantized, otherwise rounding
+ * to the text form swamps the small steps.  Deep space samples have no analytic partials and
+ * are skipped.  Prints PASS or FAIL for each check.
+ *
+ * Usage: SGP4PartialsTest [hours of observations]
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4PartialsTest
+{
+	// largest relative difference between a column and its central differences
+	public static final double JAC_TOL = 1e-4;
+
+	// fits with the analytic jacobian should reach about the same rms
+	public static final double RMS_TOL = 1.1;
+
+	protected static int failed = 0;
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	/**
+	 * The residuals with the TLE values left as computed.
+	 */
+	public static class SmoothFunction extends SGP4CartesianFunction
+	{
+		@Override
+		protected TLE paramsToTLE(double params[])
+		{
+			double vals[] = EphemerisUtil.getCOEFromEquinoctal(params);
+
+			MutableTLE tle = new MutableTLE(tleInit);
+			tle.setQuantize(false);
+			tle.setIncDeg(vals[0]);
+			tle.setRaanDeg(vals[1]);
+			tle.setEcc(vals[2]);
+			tle.setArgpDeg(vals[3]);
+			tle.setMaDeg(vals[4]);
+			tle.setN(vals[5]);
+			if(fitBStar && params.length>6)
+			{
+				tle.setBstar(params[6]);
+			}
+			tle.commit();
+
+			return tle;
+		}
+	}
+
+	public static boolean isNearEarth(TLE tle)
+	{
+		// sgp4 switches to deep space at a period of 225 minutes
+		return 1440.0/tle.getN() < 225.0;
+	}
+
+	/**
+	 * The initial guess for the fits and the point the jacobian is checked at, off the truth
+	 * so the residuals are not zero.
+	 */
+	public static TLE getOffset(TLE truth)
+	{
+		MutableTLE tle = new MutableTLE(truth);
+		tle.setMaDeg(tle.getMaDeg()+0.01);
+		tle.setN(tle.getN()*(1.0+1e-6));
+		tle.setBstar(truth.getBstar()*0.5);
+		tle.commit();
+		return new TLE(tle.getLine1(),tle.getLine2());
+	}
+
+	/**
+	 * The largest over the parameters of |analytic - central difference| / |central difference|
+	 * for the columns.
+	 */
+	public static double checkJacobian(TLE truth, ObservationSet obs)
+	{
+		SmoothFunction fit = new SmoothFunction();
+		fit.setObservations(obs);
+		fit.setInitialGuess(getOffset(truth));
+		fit.setFitBStar(true);
+
+		double p[] = fit.getInitParams();
+		RealMatrix jac = fit.value(new ArrayRealVector(p)).getSecond();
+
+		double maxRel = 0;
+		for(int j=0; j<p.length; j++)
+		{
+			// small enough for the curvature in mean motion, large enough for roundoff
+			double h = 1e-7*Math.max(Math.abs(p[j]), 1e-2);
+			if(j == 6) h = 1e-3*Math.max(Math.abs(p[j]), 1e-6);
+			double pp[] = p.clone();
+			double pm[] = p.clone();
+			pp[j] += h;
+			pm[j] -= h;
+			double fp[] = fit.value(pp);
+			double fm[] = fit.value(pm);
+
+			double diff = 0;
+			double norm = 0;
+			for(int i=0; i<fp.length; i++)
+			{
+				double fd = (fp[i]-fm[i])/(2.0*h);
+				double d = jac.getEntry(i, j)-fd;
+				diff += d*d;
+				norm += fd*fd;
+			}
+			double rel = Math.sqrt(diff/norm);
+			System.out.println("  param " + j + " relative difference " + rel);
+			maxRel = Math.max(maxRel, rel);
+		}
+		return maxRel;
+	}
+
+	/**
+	 * Fit from the offset guess, out is the rms and milliseconds.
+	 */
+	public static void timeFit(TLE truth, ObservationSet obs, boolean analytic, double out[])
+	{
+		boolean old = FitSGP4.getAnalyticJacobian();
+		FitSGP4.setAnalyticJacobian(analytic);
+		try
+		{
+			double da[] = new double[2];
+			long t1 = System.currentTimeMillis();
+			FitSGP4.fitSGP4(obs, truth.getEpoch(), true, getOffset(truth), da, true, null);
+			out[0] = da[0];
+			out[1] = System.currentTimeMillis()-t1;
+		}
+		finally
+		{
+			FitSGP4.setAnalyticJacobian(old);
+		}
+	}
+
+	public static void main(String args[])
+	{
+		double hours = 12;
+		if(args != null && args.length > 0) hours = Double.parseDouble(args[0]);
+
+		String lines[][] = SGP4XPSatCacheTest.lines;
+		double msA = 0;
+		double msFD = 0;
+		double out[] = new double[2];
+		try
+		{
+			for(int i=0; i<lines.length; i++)
+			{
+				TLE truth = new TLE(lines[i][0],lines[i][1]);
+				String id = truth.getObjectID();
+				if(!isNearEarth(truth))
+				{
+					System.out.println("skipping deep space " + id);
+					continue;
+				}
+				ObservationSet obs = TermSearchTest.getObs(truth, hours);
+
+				double rel = checkJacobian(truth, obs);
+				check(id + " jacobian matches central differences, " + rel, rel < JAC_TOL);
+
+				timeFit(truth, obs, false, out);
+				double rmsFD = out[0];
+				msFD += out[1];
+				System.out.println(id + " fd rms " + rmsFD + " ms " + out[1]);
+
+				timeFit(truth, obs, true, out);
+				double rmsA = out[0];
+				msA += out[1];
+				System.out.println(id + " analytic rms " + rmsA + " ms " + out[1]);
+
+				// both should be near zero on the exact observations
+				check(id + " analytic fit rms " + rmsA + " within " + RMS_TOL + " of fd " + rmsFD, rmsA <= RMS_TOL*rmsFD+1e-6);
+			}
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			failed++;
+		}
+
+		System.out.println("fit ms analytic " + msA + " fd " + msFD);
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
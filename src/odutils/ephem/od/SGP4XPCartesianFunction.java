@@ -24,17 +24,22 @@ import org.hipparchus.optim.nonlinear.vector.leastsquares.ParameterValidator;
 import odutils.ephem.CartesianState;
 import odutils.ephem.EphemerisUtil;
 import odutils.ephem.MutableTLE;
+import odutils.ephem.SGP4XPBackend;
 import odutils.ephem.USSFSGP4;
 
 import sgp4.TLE;
+import sgp4.TLEBinary;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SGP4XPCartesianFunction implements MultivariateVectorFunction
 {
-	protected List<CartesianState> carts = null;
-	protected List<Double> mseList = null;
+	protected ObservationSet obs = null;
+	protected double mse[] = null;
+	
+	// propagated states, reused by every evaluation
+	protected double states[] = null;
 	
 	protected TLE tleInit = null;
 	protected String line1 = null;
@@ -43,9 +48,56 @@ public class SGP4XPCartesianFunction implements MultivariateVectorFunction
 	protected boolean fitBTerm = false;
 	protected boolean fitAGOM = false;
 	
+	// checked on every evaluation when set
+	protected ODBudget budget = null;
+	
+	// the library holds one satellite per number and epoch, so functions evaluated at the
+	// same time each propagate under their own number from this range
+	protected static final int PROP_NUM_START = 80000;
+	protected static final int PROP_NUM_COUNT = 19999;
+	protected static final AtomicInteger nextPropNum = new AtomicInteger();
+	
+	protected String propNum = null;
+	
 	public SGP4XPCartesianFunction()
 	{
-		
+		propNum = String.valueOf(PROP_NUM_START + Math.floorMod(nextPropNum.getAndIncrement(), PROP_NUM_COUNT));
+	}
+	
+	/**
+	 * A function with the same settings that can be evaluated on another thread at the same
+	 * time as this one.  The observations and initial guess are shared, not copied.
+	 * 
+	 * @return
+	 */
+	public SGP4XPCartesianFunction copy()
+	{
+		SGP4XPCartesianFunction out = new SGP4XPCartesianFunction();
+		out.obs = obs;
+		out.mse = mse;
+		out.tleInit = tleInit;
+		out.line1 = line1;
+		out.line2 = line2;
+		out.budget = budget;
+		out.fitBTerm = fitBTerm;
+		out.fitAGOM = fitAGOM;
+		return out;
+	}
+	
+	/**
+	 * Evaluations are counted against the budget and throw ODBudget.ExceededException once it
+	 * is used up.
+	 * 
+	 * @param budget
+	 */
+	public void setBudget(ODBudget budget)
+	{
+		this.budget = budget;
+	}
+	
+	public ODBudget getBudget()
+	{
+		return budget;
 	}
 	
 	public void setFitBTerm(boolean flag)
@@ -66,7 +118,23 @@ public class SGP4XPCartesianFunction implements MultivariateVectorFunction
 	 */
 	public void setCarts(List<CartesianState> list, boolean convertToTEME)
 	{
-		carts = list;
+		setObservations(new ObservationSet(list));
+	}
+	
+	/**
+	 * The observations, converted to TEME if they are in another frame.
+	 * 
+	 * @param obs
+	 */
+	public void setObservations(ObservationSet obs)
+	{
+		this.obs = obs.getTEME();
+		if(tleInit != null) fillMSEList();
+	}
+	
+	public ObservationSet getObservations()
+	{
+		return obs;
 	}
 	
 	public void setInitialGuess(TLE tle)
@@ -78,29 +146,22 @@ public class SGP4XPCartesianFunction implements MultivariateVectorFunction
 		fillMSEList();
 	}
 	
+	/**
+	 * Minutes from the initial guess epoch to each observation, the fitted TLE keeps that epoch.
+	 */
 	public void fillMSEList()
 	{
-		int size = carts.size();
-		long t0 = tleInit.getEpoch().getTime();
-		double dt = 0;
-		mseList = new ArrayList<Double>(size);
-		
-		for(int i=0; i<size; i++)
-		{
-			dt = carts.get(i).getEpoch().getTime()-t0;
-			dt = dt/(60000.0d);
-			mseList.add(dt);
-		}
+		mse = obs.getMinutesSince(tleInit.getEpoch().getTime());
 	}
 	
 	public void setInitialGuessToLastCart()
 	{
-		setInitialGuess(carts.get(carts.size()-1));
+		setInitialGuess(obs.getCart(obs.size()-1));
 	}
 	
 	public void setInitialGuessToFirstCart()
 	{
-		setInitialGuess(carts.get(0));
+		setInitialGuess(obs.getCart(0));
 	}
 	
 	public void setInitialGuess(CartesianState cart)
@@ -155,7 +216,7 @@ public class SGP4XPCartesianFunction implements MultivariateVectorFunction
 	
 	public double[] getTarget()
 	{
-		int size = carts.size();
+		int size = obs.size();
 		double allzeros[] = new double[size];
 		return allzeros;
 	}
@@ -163,50 +224,74 @@ public class SGP4XPCartesianFunction implements MultivariateVectorFunction
 	@Override
 	public double[] value(double[] params) throws IllegalArgumentException 
 	{
+		if(budget != null) budget.countEvaluation();
+		
 		TLE tle = paramsToTLE(params);
 		
-		int size = carts.size();
+		int size = obs.size();
+		double rx[] = obs.getRx();
+		double ry[] = obs.getRy();
+		double rz[] = obs.getRz();
 		
 		double out[] = new double[size];
-		CartesianState cs1 = null;
-		CartesianState cs2 = new CartesianState();
 		
-		String line1 = tle.getLine1();
-		String line2 = tle.getLine2();
+		String line1 = getPropLine(tle.getLine1());
+		String line2 = getPropLine(tle.getLine2());
 		
-		if(mseList == null)
+		if(mse == null) fillMSEList();
+		if(states == null || states.length != size*SGP4XPBackend.STATE_SIZE)
 		{
-			for(int i=0; i<size; i++)
-			{
-				cs1 = carts.get(i);
-				
-				cs2 = USSFSGP4.getCart(cs1.epoch, line1, line2);
-				
-				out[i]=cs1.getDist(cs2); // residual is the position error
-			}
+			states = new double[size*SGP4XPBackend.STATE_SIZE];
 		}
-		else
+		if(!USSFSGP4.getStates(mse, line1, line2, states))
 		{
-			List<CartesianState> carts2 = USSFSGP4.getCarts(mseList, tle);
-			for(int i=0; i<size; i++)
-			{
-				cs1 = carts.get(i);
-				cs2 = carts2.get(i);
-				out[i]=cs1.getDist(cs2);
-				//System.out.println(out[i]+"\t"+cs1 + "\t" + cs2);
-			}
+			throw new IllegalArgumentException("SGP4-XP could not propagate\n" + line1 + "\n" + line2);
+		}
+		
+		double dx = 0;
+		double dy = 0;
+		double dz = 0;
+		int ind = 0;
+		for(int i=0; i<size; i++)
+		{
+			// residual is the position error
+			ind = i*SGP4XPBackend.STATE_SIZE;
+			dx = states[ind+1]-rx[i];
+			dy = states[ind+2]-ry[i];
+			dz = states[ind+3]-rz[i];
+			out[i] = Math.sqrt(dx*dx+dy*dy+dz*dz);
 		}
 		
 		return out;
 	}
 	
+	/**
+	 * The line with this function's satellite number and a new checksum.
+	 * 
+	 * @param line
+	 * @return
+	 */
+	protected String getPropLine(String line)
+	{
+		if(line == null || line.length() < 69) return line;
+		
+		StringBuilder sb = new StringBuilder(line);
+		sb.replace(2, 7, propNum);
+		sb.setLength(68);
+		sb.append(TLEBinary.checksum(sb));
+		return sb.toString();
+	}
+	
 	protected TLE paramsToTLE(double params[])
 	{
 		MutableTLE tle = null;
 		
 		double vals[] = EphemerisUtil.getCOEFromEquinoctal(params);
 
-		tle = new MutableTLE(line1,line2);
+		// direct init skips writing and parsing the lines on every evaluation, quantizing
+		// keeps the values the same as the text form
+		tle = new MutableTLE(tleInit);
+		tle.setQuantize(true);
 		tle.setElType(4);
 		
 		//i, Om, ecc, w, M, n
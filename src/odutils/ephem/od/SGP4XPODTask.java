@@ -33,12 +33,32 @@ public class SGP4XPODTask extends AbstractODTask
     protected boolean allowDownsample = true;
     protected double PREFERREDBTERMS[] = null;
     protected double PREFERREDAGOMS[] = null;
+    protected int termSearch = SGP4FitUtil.TERM_SEARCH_BRENT;
+    
+    // passes of the brent search over AGOM then B term in loopBoth
+    protected static final int BRENT_PASSES = 2;
     
     public SGP4XPODTask()
     {
     	
     }
     
+    /**
+     * How to search for the B term and AGOM, SGP4FitUtil.TERM_SEARCH_BRENT by default or
+     * SGP4FitUtil.TERM_SEARCH_GRID for the older sweep of fixed terms.
+     * 
+     * @param mode
+     */
+    public void setTermSearch(int mode)
+    {
+    	termSearch = mode;
+    }
+    
+    public int getTermSearch()
+    {
+    	return termSearch;
+    }
+    
     public boolean getSolveForBTerm()
     {
     	return solveForBTerm;
@@ -92,6 +112,7 @@ public class SGP4XPODTask extends AbstractODTask
 	{
 		DateUtil.setDefaultTimeZone();
 		isRunning= true;
+		budget.start();
 		try
 		{
 	
@@ -104,8 +125,14 @@ public class SGP4XPODTask extends AbstractODTask
 				loopBoth();
 			}
 		}
+		catch(ODBudget.ExceededException ex)
+		{
+			// keep the best solution so far
+			System.err.println(ex.getMessage());
+		}
 		finally
 		{
+			checkBudgetStatus();
 			isRunning = false;
 		}
 	}
@@ -116,10 +143,9 @@ public class SGP4XPODTask extends AbstractODTask
 		isRunning= true;
 		try
 		{
-			boolean isTEME = true;
-			
 			double da[] = new double[4];
-			List<CartesianState> carts = obsSet.getTEMECarts();
+			ObservationSet obs = obsSet.getTEME();
+			List<CartesianState> carts = obs.getCarts();
 			
 			if(epoch == null)
 			{
@@ -145,6 +171,7 @@ public class SGP4XPODTask extends AbstractODTask
 				// shift epoch
 				initTLE = CartToTLE.shiftEpoch(initTLE, epoch);
 			}
+			setProgress(initTLE, Double.MAX_VALUE);
 			
 			double INITBTERMS[] = SGP4FitUtil.WIDERANGE;
 			double INITAGOMS[] = SGP4FitUtil.WIDERANGE;
@@ -160,6 +187,7 @@ public class SGP4XPODTask extends AbstractODTask
 			boolean doLog = true;
 
 			TLE tle = null;
+			boolean nested = false;
 
 			int bothBZero = 0;
 			int bothAZero = 0;
@@ -167,26 +195,28 @@ public class SGP4XPODTask extends AbstractODTask
 			if(carts.size()>1000 && allowDownsample)
 			{
 				// downsample
-				initTLE = downsample(100,epoch,initTLE,carts,INITBTERMS,INITAGOMS);
+				initTLE = downsample(100,epoch,initTLE,obs,INITBTERMS,INITAGOMS);
 				INITBTERMS = SGP4FitUtil.simpleNewTerms(initTLE.getBstar(), 15, 20.0);
 				INITAGOMS = SGP4FitUtil.simpleNewTerms(initTLE.getNDDot(), 15, 20.0);
 				doLog = false;
 				tle = initTLE;
+				nested = true;
 			}
 			else
 			{
-				tle = FitSGP4XP.fitSGP4XP(carts, isTEME, epoch, false, false, initTLE, da, true);
+				tle = FitSGP4XP.fitSGP4XP(obs, epoch, false, false, initTLE, da, true, budget);
 			}
 
 			// yes downsample again!
-			if(carts.size()>100 && allowDownsample)
+			if(carts.size()>100 && allowDownsample && !budget.isExhausted())
 			{
 				// downsample
-				initTLE = downsample(carts.size()/3,epoch,initTLE,carts,INITBTERMS,INITAGOMS);
+				initTLE = downsample(carts.size()/3,epoch,initTLE,obs,INITBTERMS,INITAGOMS);
 				INITBTERMS = SGP4FitUtil.simpleNewTerms(initTLE.getBstar(), 15, 3.0);
 				INITAGOMS = SGP4FitUtil.simpleNewTerms(initTLE.getNDDot(), 15, 3.0);
 				doLog = false;
 				tle = initTLE;
+				nested = true;
 				
 				if(!validateTerms(INITAGOMS))
 				{
@@ -199,6 +229,11 @@ public class SGP4XPODTask extends AbstractODTask
 				}
 			}
 
+			if(nested)
+			{
+				// da is from the first fit, if any, and the nested runs measured a subset
+				da[0] = FitSGP4XP.getRMS(obs, tle);
+			}
 			this.rms = da[0];
 			
 			OrbitState orbit = new OrbitState();
@@ -208,8 +243,9 @@ public class SGP4XPODTask extends AbstractODTask
 			this.solvedState = orbit;
 			
 			// let's try to improve upon bstar fit
-			if(solveForBTerm || solveForAGOM)
+			if((solveForBTerm || solveForAGOM) && !budget.isExhausted())
 			{
+				double prevRMS = this.rms;
 				TLE tleOut = orbit.tle;
 				double BTERMS[] = INITBTERMS;
 				double AGOMS[] = INITAGOMS;
@@ -219,79 +255,128 @@ public class SGP4XPODTask extends AbstractODTask
 				double del = 0;
 				double del2 = 0;
 				
-				
-				for(int i=0; i<maxIters; i++)
+				if(termSearch == SGP4FitUtil.TERM_SEARCH_BRENT)
 				{
-					if(solveForAGOM && bothAZero < 1)
+					// AGOM then B term, a second pass redoes AGOM with the new B term like the grid
+					double passRMS = Double.MAX_VALUE;
+					for(int i=0; i<BRENT_PASSES && !budget.isExhausted(); i++)
 					{
-						tleOut = SGP4FitUtil.minRMSForTerms(tleOut,carts,isTEME,false,AGOMS,true,dda);
-						if(dda[0]<minRMS)
+						if(solveForAGOM && bothAZero < 1)
 						{
-							minRMS = dda[0];
-							tleMinRMS = tleOut;
+							tleOut = SGP4FitUtil.minRMSForTermsBrent(tleOut,obs,false,AGOMS,true,dda,budget);
+							if(dda[0]<minRMS)
+							{
+								minRMS = dda[0];
+								tleMinRMS = tleOut;
+							}
 						}
-												
-						AGOMS=SGP4FitUtil.newTerms(tleOut.getNDDot(),AGOMS,9, doLog);
-						if(!validateTerms(AGOMS))
+						
+						if(solveForBTerm && bothBZero < 1)
 						{
-							bothAZero++;
+							tleOut = SGP4FitUtil.minRMSForTermsBrent(tleOut,obs,true,BTERMS,true,dda,budget);
+							if(dda[0]<minRMS)
+							{
+								minRMS = dda[0];
+								tleMinRMS = tleOut;
+							}
 						}
-
+						
+						this.iter = (i+2);
+						this.rms = minRMS;
+						
+						if(!(minRMS < passRMS) || Math.abs(passRMS-minRMS)/minRMS < SGP4FitUtil.RMS_EPS)
+						{
+							break;
+						}
+						passRMS = minRMS;
 					}
-
-					if(solveForBTerm && bothBZero < 1)
+				}
+				else
+				{
+					for(int i=0; i<maxIters; i++)
 					{
-						tleOut = SGP4FitUtil.minRMSForTerms(tleOut,carts,isTEME,true,BTERMS,true,dda);
-						if(dda[0]<minRMS)
+						if(solveForAGOM && bothAZero < 1)
 						{
-							minRMS = dda[0];
-							tleMinRMS = tleOut;
-						}
+							tleOut = SGP4FitUtil.minRMSForTerms(tleOut,obs,false,AGOMS,true,dda,budget);
+							if(dda[0]<minRMS)
+							{
+								minRMS = dda[0];
+								tleMinRMS = tleOut;
+							}
 												
-						BTERMS=SGP4FitUtil.newTerms(tleOut.getBstar(),BTERMS,9, doLog);
-						if(!validateTerms(BTERMS))
+							AGOMS=SGP4FitUtil.newTerms(tleOut.getNDDot(),AGOMS,9, doLog);
+							if(!validateTerms(AGOMS))
+							{
+								bothAZero++;
+							}
+
+						}
+
+						if(solveForBTerm && bothBZero < 1)
 						{
-							bothBZero++;
+							tleOut = SGP4FitUtil.minRMSForTerms(tleOut,obs,true,BTERMS,true,dda,budget);
+							if(dda[0]<minRMS)
+							{
+								minRMS = dda[0];
+								tleMinRMS = tleOut;
+							}
+												
+							BTERMS=SGP4FitUtil.newTerms(tleOut.getBstar(),BTERMS,9, doLog);
+							if(!validateTerms(BTERMS))
+							{
+								bothBZero++;
+							}
 						}
-					}
 
 					
-					if(i>1) 
-					{
-						doLog = false;
-					} 
-					else if (i == 0)
-					{
-						// try srp again after updating BTerm one time on first iteration
-						AGOMS = INITAGOMS;
-					}
+						if(i>1) 
+						{
+							doLog = false;
+						} 
+						else if (i == 0)
+						{
+							// try srp again after updating BTerm one time on first iteration
+							AGOMS = INITAGOMS;
+						}
 					
-					this.iter = (i+2);
-					this.rms = minRMS;
+						this.iter = (i+2);
+						this.rms = minRMS;
 					
-					del = Math.abs(BTERMS[0]-BTERMS[BTERMS.length-1])/BTERMS[0];
-					del2 = Math.abs(AGOMS[0]-AGOMS[AGOMS.length-1])/AGOMS[0];
-					System.err.println("\n\n"+i+"\t"+del+"\t"+del2+"\n\n");
+						del = Math.abs(BTERMS[0]-BTERMS[BTERMS.length-1])/BTERMS[0];
+						del2 = Math.abs(AGOMS[0]-AGOMS[AGOMS.length-1])/AGOMS[0];
+						System.err.println("\n\n"+i+"\t"+del+"\t"+del2+"\n\n");
 
-					if(del<2e-5 || del2<2e-5)
-					{
-						break;
+						if(del<2e-5 || del2<2e-5 || budget.isExhausted())
+						{
+							break;
+						}
 					}
 				}
 				
-				orbit = new OrbitState();
-				orbit.tle = tleMinRMS;
-				this.rms = minRMS;
-				orbit.rms = minRMS;
+				// a search cut short by the budget only counts if it did better
+				if(tleMinRMS != null && (!budget.isExhausted() || minRMS < prevRMS))
+				{
+					orbit = new OrbitState();
+					orbit.tle = tleMinRMS;
+					this.rms = minRMS;
+					orbit.rms = minRMS;
+				}
+				else
+				{
+					this.rms = prevRMS;
+				}
 				
-				tle = FitSGP4XP.fitSGP4XP(carts, isTEME, epoch, solveForBTerm, solveForAGOM, tleMinRMS, da, true);
-				if(da[0]<minRMS)
+				if(!budget.isExhausted())
 				{
-					this.rms = da[0];
-					orbit.rms = da[0];
-					orbit.tle = tle;
-					minRMS = da[0];
-
+					tle = FitSGP4XP.fitSGP4XP(obs, epoch, solveForBTerm, solveForAGOM, orbit.tle, da, true, budget);
+					if(da[0]<this.rms)
+					{
+						this.rms = da[0];
+						orbit.rms = da[0];
+						orbit.tle = tle;
+						minRMS = da[0];
+	
+					}
 				}
 				orbit.numIters = this.iter;
 				this.solvedState = orbit;
@@ -313,10 +398,9 @@ public class SGP4XPODTask extends AbstractODTask
 		isRunning= true;
 		try
 		{
-			boolean isTEME = true;
-			
 			double da[] = new double[4];
-			List<CartesianState> carts = obsSet.getTEMECarts();
+			ObservationSet obs = obsSet.getTEME();
+			List<CartesianState> carts = obs.getCarts();
 			
 			if(epoch == null)
 			{
@@ -342,6 +426,7 @@ public class SGP4XPODTask extends AbstractODTask
 				// shift epoch
 				initTLE = CartToTLE.shiftEpoch(initTLE, epoch);
 			}
+			setProgress(initTLE, Double.MAX_VALUE);
 			
 			double INITAGOMS[] = SGP4FitUtil.WIDERANGE;
 			
@@ -353,6 +438,7 @@ public class SGP4XPODTask extends AbstractODTask
 
 
 			TLE tle = null;
+			boolean nested = false;
 
 			int bothBZero = 0;
 			int bothAZero = 0;
@@ -360,24 +446,26 @@ public class SGP4XPODTask extends AbstractODTask
 			if(carts.size()>1000 && allowDownsample)
 			{
 				// downsample
-				initTLE = downsample(100,epoch,initTLE,carts,null,INITAGOMS);
+				initTLE = downsample(100,epoch,initTLE,obs,null,INITAGOMS);
 				INITAGOMS = SGP4FitUtil.simpleNewTerms(initTLE.getNDDot(), 15, 20.0);
 				doLog = false;
 				tle = initTLE;
+				nested = true;
 			}
 			else
 			{
-				tle = FitSGP4XP.fitSGP4XP(carts, isTEME, epoch, false, false, initTLE, da, true);
+				tle = FitSGP4XP.fitSGP4XP(obs, epoch, false, false, initTLE, da, true, budget);
 			}
 
 			// yes downsample again!
-			if(carts.size()>100 && allowDownsample)
+			if(carts.size()>100 && allowDownsample && !budget.isExhausted())
 			{
 				// downsample
-				initTLE = downsample(carts.size()/3,epoch,initTLE,carts,null,INITAGOMS);
+				initTLE = downsample(carts.size()/3,epoch,initTLE,obs,null,INITAGOMS);
 				INITAGOMS = SGP4FitUtil.simpleNewTerms(initTLE.getNDDot(), 15, 3.0);
 				doLog = false;
 				tle = initTLE;
+				nested = true;
 				
 				if(!validateTerms(INITAGOMS))
 				{
@@ -386,6 +474,11 @@ public class SGP4XPODTask extends AbstractODTask
 
 			}
 
+			if(nested)
+			{
+				// da is from the first fit, if any, and the nested runs measured a subset
+				da[0] = FitSGP4XP.getRMS(obs, tle);
+			}
 			this.rms = da[0];
 			
 			OrbitState orbit = new OrbitState();
@@ -482,8 +575,22 @@ public class SGP4XPODTask extends AbstractODTask
 				double del2 = 0;
 				
 				
-
-						tleOut = SGP4FitUtil.minRMSForTerms(tleOut,carts,isTEME,false,AGOMS,true,dda);
+					if(termSearch == SGP4FitUtil.TERM_SEARCH_BRENT)
+					{
+						tleOut = SGP4FitUtil.minRMSForTermsBrent(tleOut,obs,false,AGOMS,true,dda,budget);
+						if(dda[0]<minRMS)
+						{
+							minRMS = dda[0];
+							tleMinRMS = tleOut;
+							
+							this.rms = dda[0];
+							orbit.rms = dda[0];
+							orbit.tle = tleOut;
+						}
+					}
+					else
+					{
+						tleOut = SGP4FitUtil.minRMSForTerms(tleOut,obs,false,AGOMS,true,dda,budget);
 						if(dda[0]<minRMS)
 						{
 							minRMS = dda[0];
@@ -495,7 +602,7 @@ public class SGP4XPODTask extends AbstractODTask
 						}
 							
 						AGOMS=SGP4FitUtil.newTerms(tleOut.getNDDot(),AGOMS,9, doLog);
-						tleOut = SGP4FitUtil.minRMSForTerms(tleOut,carts,isTEME,false,AGOMS,true,dda);
+						tleOut = SGP4FitUtil.minRMSForTerms(tleOut,obs,false,AGOMS,true,dda,budget);
 						if(dda[0]<minRMS)
 						{
 							minRMS = dda[0];
@@ -505,13 +612,17 @@ public class SGP4XPODTask extends AbstractODTask
 							orbit.rms = dda[0];
 							orbit.tle = tleOut;
 						}
-				tle = FitSGP4XP.fitSGP4XP(carts, isTEME, epoch, solveForBTerm, solveForAGOM, tleOut, da, true);
-				if(da[0]<minRMS)
+					}
+				if(!budget.isExhausted())
 				{
-					this.rms = da[0];
-					orbit.rms = da[0];
-					orbit.tle = tle;
-					minRMS = da[0];
+					tle = FitSGP4XP.fitSGP4XP(obs, epoch, solveForBTerm, solveForAGOM, tleOut, da, true, budget);
+					if(da[0]<minRMS)
+					{
+						this.rms = da[0];
+						orbit.rms = da[0];
+						orbit.tle = tle;
+						minRMS = da[0];
+					}
 				}
 				orbit.numIters = this.iter;
 				this.solvedState = orbit;
@@ -524,31 +635,13 @@ public class SGP4XPODTask extends AbstractODTask
 		}
 	}
 
-	protected TLE downsample(int maxCarts, Date epoch, TLE initTLE, List<CartesianState> carts, double setBTERMS[], double setAGOMS[])
+	/**
+	 * Solve with a weighted subset of the observations to get a starting point for the full fit.
+	 */
+	protected TLE downsample(int maxCarts, Date epoch, TLE initTLE, ObservationSet obs, double setBTERMS[], double setAGOMS[])
 	{
 		TLE out = null;
-		List<CartesianState> newCarts = new ArrayList<CartesianState>(maxCarts);
-		
-		int step = maxCarts/3;
-		int size = carts.size();
-		int mid = (size-step)/2;
-		for(int i=0; i<step; i++)
-		{
-			newCarts.add(carts.get(i));
-			newCarts.add(carts.get(mid+i));
-			newCarts.add(carts.get(size-1-i));
-		}
-	
-		// we don't support weights yet, so add begin and end vectors a few times
-		for(int i=0; i<step/5; i++)
-		{
-			newCarts.add(carts.get(i));
-			newCarts.add(carts.get(size-1));
-			newCarts.add(carts.get(size-1));
-		}
-
-		ObservationSet obs = new ObservationSet();
-		obs.setCarts(newCarts);
+		ObservationSet subset = obs.downsample(maxCarts);
 		
 		SGP4XPODTask odTask = new SGP4XPODTask();
 		odTask.allowDownsample = false;
@@ -556,9 +649,11 @@ public class SGP4XPODTask extends AbstractODTask
 		odTask.PREFERREDBTERMS=setBTERMS;
 		odTask.solveForAGOM=this.solveForAGOM;
 		odTask.solveForBTerm=this.solveForBTerm;
-		odTask.setObservationSet(obs);
+		odTask.termSearch=termSearch;
+		odTask.setObservationSet(subset);
 		odTask.setEpoch(epoch);
 		odTask.setMaxIterations(this.maxIters/2);
+		odTask.budget=budget;
 		OrbitState init = new OrbitState();
 		init.epoch=epoch;
 		init.tle = initTLE;
@@ -574,10 +669,5 @@ public class SGP4XPODTask extends AbstractODTask
 		
 		return out;
 	}
-	@Override
-	public void stopOD() {
-		// TODO Auto-generated method stub
-
-	}
 
 }
@@ -0,0 +1,251 @@
+/*
+
+Copyright 2021 aholinch
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package odutils.ephem.od;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import odutils.ephem.CartesianState;
+import odutils.ephem.JavaSGP4XPBackend;
+import odutils.ephem.MutableTLE;
+import odutils.ephem.USSFSGP4;
+import sgp4.TLE;
+
+/**
+ * Counts the fits, each a full least squares solve, and the function evaluations the grid
+ * sweep with newTerms refinement and the Brent search need to find the drag term, then runs
+ * SGP4ODTask and SGP4XPODTask both ways.  The XP runs use the java stand in backend so no
+ * USSF binaries are needed, it propagates with SGP4 so the AGOM search is flat.  Prints PASS
+ * or FAIL for each check.
+ *
+ * Usage: TermSearchTest [hours of observations]
+ *
+ * @author aholinch
+ *
+ */
+public class TermSearchTest
+{
+	public static final String line1 = "1 25544U 98067A   08264.51782528 -.00002182  00000-0 -11606-4 0  2927";
+	public static final String line2 = "2 25544  51.6416 247.4627 0006703 130.5360 325.0288 15.72125391563537";
+
+	// bstar of the truth, the search starts from a tenth of it
+	public static final double TRUE_BSTAR = 3.0e-4;
+
+	protected static int failed = 0;
+
+	public static void check(String name, boolean ok)
+	{
+		if(!ok) failed++;
+		System.out.println((ok?"PASS ":"FAIL ") + name);
+	}
+
+	/**
+	 * The terms SGP4ODTask sweeps first, 0 then 1, 1.78, 3.16 and 5.62 per decade.
+	 */
+	public static double[] getGridTerms()
+	{
+		double mant[] = {1.0, 1.78, 3.16, 5.62};
+		List<Double> terms = new ArrayList<Double>();
+		terms.add(0.0);
+		for(int e=-9; e<=9; e++)
+		{
+			for(int m=0; m<mant.length; m++)
+			{
+				if(e == 9 && m == 3) break;
+				terms.add(mant[m]*Math.pow(10.0d, e));
+			}
+		}
+		double out[] = new double[terms.size()];
+		for(int i=0; i<out.length; i++) out[i] = terms.get(i);
+		return out;
+	}
+
+	public static ObservationSet getObs(TLE truth, double hours)
+	{
+		List<CartesianState> carts = new ArrayList<CartesianState>();
+		long t1 = truth.getEpoch().getTime();
+		long t2 = t1 + (long)(hours*3600000.0d);
+		for(long t=t1; t<=t2; t+=120000L)
+		{
+			double rv[][] = truth.getRV(new Date(t));
+			CartesianState cart = new CartesianState();
+			cart.setEpoch(new Date(t));
+			cart.setRVec(rv[0]);
+			cart.setVVec(rv[1]);
+			carts.add(cart);
+		}
+		return new ObservationSet(carts);
+	}
+
+	/**
+	 * The grid sweep then newTerms refinement the same as the task's loop.  out is the rms,
+	 * fits and evaluations.
+	 */
+	public static TLE grid(TLE init, ObservationSet obs, boolean doXP, double out[])
+	{
+		ODBudget budget = new ODBudget();
+		budget.start();
+		double terms[] = getGridTerms();
+		double dda[] = new double[6];
+		double minRMS = Double.MAX_VALUE;
+		TLE tleOut = init;
+		TLE tleMin = null;
+		int fits = 0;
+		boolean doLog = true;
+		for(int i=0; i<20; i++)
+		{
+			tleOut = SGP4FitUtil.minRMSForTerms(tleOut, obs, true, terms, doXP, dda, budget);
+			fits += (int)dda[1];
+			if(dda[0] < minRMS)
+			{
+				minRMS = dda[0];
+				tleMin = tleOut;
+			}
+			terms = SGP4FitUtil.newTerms(tleOut.getBstar(), terms, 9, doLog);
+			terms[terms.length-1] *= 1.01;
+			if(i > 1) doLog = false;
+			if(Math.abs(terms[0]-terms[terms.length-1])/terms[0] < 3e-5) break;
+		}
+		out[0] = minRMS;
+		out[1] = fits;
+		out[2] = budget.getEvaluations();
+		return tleMin;
+	}
+
+	public static TLE brent(TLE init, ObservationSet obs, boolean doXP, double out[])
+	{
+		ODBudget budget = new ODBudget();
+		budget.start();
+		double dda[] = new double[6];
+		TLE tle = SGP4FitUtil.minRMSForTermsBrent(init, obs, true, getGridTerms(), doXP, dda, budget);
+		out[0] = dda[0];
+		out[1] = dda[1];
+		out[2] = budget.getEvaluations();
+		return tle;
+	}
+
+	public static void compareSearch(String name, TLE init, ObservationSet obs, boolean doXP)
+	{
+		double g[] = new double[3];
+		double b[] = new double[3];
+		long t0 = System.currentTimeMillis();
+		TLE gTLE = grid(init, obs, doXP, g);
+		long t1 = System.currentTimeMillis();
+		TLE bTLE = brent(init, obs, doXP, b);
+		long t2 = System.currentTimeMillis();
+
+		System.out.println(name + "\tgrid fits " + (int)g[1] + "\tevals " + (long)g[2] + "\trms " + g[0] + "\tbstar " + gTLE.getBstar() + "\tms " + (t1-t0));
+		System.out.println(name + "\tbrent fits " + (int)b[1] + "\tevals " + (long)b[2] + "\trms " + b[0] + "\tbstar " + bTLE.getBstar() + "\tms " + (t2-t1));
+		check(name + " brent rms within 1% of the grid", b[0] <= 1.01*g[0]);
+		check(name + " brent needs fewer fits", b[1] < g[1]);
+	}
+
+	/**
+	 * A range narrower than one bracketing step, starting below it so the search begins at
+	 * the low end.
+	 */
+	public static void narrowSearch(String name, TLE init, ObservationSet obs)
+	{
+		ODBudget budget = new ODBudget();
+		budget.start();
+		double dda[] = new double[6];
+		double terms[] = {0.8*TRUE_BSTAR, 2.0*TRUE_BSTAR};
+		TLE tle = SGP4FitUtil.minRMSForTermsBrent(init, obs, true, terms, false, dda, budget);
+		double low[] = new double[6];
+		SGP4FitUtil.minRMSForTermsBrent(init, obs, true, new double[]{terms[0]}, false, low, null);
+		double lowRMS = low[0];
+
+		System.out.println(name + "	fits " + (int)dda[1] + "	rms " + dda[0] + "	bstar " + tle.getBstar() + "	low end rms " + lowRMS);
+		check(name + " tries more than the low end", dda[1] > 1 && dda[0] < lowRMS);
+		check(name + " bstar within 10% of the truth", Math.abs(tle.getBstar()-TRUE_BSTAR) < 0.1*TRUE_BSTAR);
+	}
+
+	public static double[] runTask(AbstractODTask task, TLE init, ObservationSet obs)
+	{
+		OrbitState state = new OrbitState();
+		state.tle = init;
+		state.epoch = init.getEpoch();
+		task.setObservationSet(obs);
+		task.setEpoch(init.getEpoch());
+		task.setInitialState(state);
+		long t0 = System.currentTimeMillis();
+		task.run();
+		return new double[]{task.getRMS(), task.getBudget().getEvaluations(), System.currentTimeMillis()-t0};
+	}
+
+	public static void compareTask(String name, boolean doXP, TLE init, ObservationSet obs)
+	{
+		double vals[][] = new double[2][];
+		int modes[] = {SGP4FitUtil.TERM_SEARCH_GRID, SGP4FitUtil.TERM_SEARCH_BRENT};
+		for(int i=0; i<modes.length; i++)
+		{
+			if(doXP)
+			{
+				SGP4XPODTask task = new SGP4XPODTask();
+				task.setSolveForAGOM(false);
+				task.setTermSearch(modes[i]);
+				vals[i] = runTask(task, init, obs);
+			}
+			else
+			{
+				SGP4ODTask task = new SGP4ODTask();
+				task.setTermSearch(modes[i]);
+				vals[i] = runTask(task, init, obs);
+			}
+		}
+
+		System.out.println(name + "\tgrid evals " + (long)vals[0][1] + "\trms " + vals[0][0] + "\tms " + (long)vals[0][2]);
+		System.out.println(name + "\tbrent evals " + (long)vals[1][1] + "\trms " + vals[1][0] + "\tms " + (long)vals[1][2]);
+		check(name + " brent rms within 1% of the grid", vals[1][0] <= 1.01*vals[0][0]);
+		check(name + " brent needs fewer evaluations", vals[1][1] < vals[0][1]);
+	}
+
+	public static void main(String args[])
+	{
+		double hours = 24;
+		if(args.length > 0) hours = Double.parseDouble(args[0]);
+
+		try
+		{
+			USSFSGP4.setBackend(new JavaSGP4XPBackend());
+
+			MutableTLE truth = new MutableTLE(line1, line2);
+			truth.setBstar(TRUE_BSTAR);
+			truth.commit();
+			ObservationSet obs = getObs(truth, hours);
+
+			MutableTLE init = new MutableTLE(line1, line2);
+			init.setBstar(TRUE_BSTAR/10);
+			init.commit();
+
+			compareSearch("sgp4 term search", init, obs, false);
+			compareSearch("xp term search", init, obs, true);
+			narrowSearch("sgp4 narrow term search", init, obs);
+			compareTask("sgp4 task", false, init, obs);
+			compareTask("xp task", true, init, obs);
+		}
+		catch(Exception ex)
+		{
+			ex.printStackTrace();
+			failed++;
+		}
+
+		System.out.println(failed == 0?"ALL PASSED":(failed + " FAILED"));
+	}
+}
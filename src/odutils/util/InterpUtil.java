@@ -464,6 +464,55 @@ public class InterpUtil
 		C
 	 **/ 
 	public static double[][] hermiteWFD3D (double x[], double y1[], double y2[], double y3[], double z1[], double z2[], double z3[], int nval, double xp)
+	{
+		int i;
+		int nmax = x.length;
+
+		/* Look for given value immediately preceeding interpolation argument */
+		for (i=0; i<nmax; i++)
+		{
+			if (x[i] >= xp)
+			{
+				break;
+			}
+		}
+		
+		return hermiteWFD3D(x, y1, y2, y3, z1, z2, z3, nval, xp, i);
+	}
+	
+	/**
+	 * First index with x[i] >= xp by binary search, x.length if there is none.  The same index
+	 * the scan in hermiteWFD3D finds when x is in increasing order.
+	 * 
+	 * @param x
+	 * @param xp
+	 * @return
+	 */
+	public static int upperIndex(double x[], double xp)
+	{
+		int lo = 0;
+		int hi = x.length;
+		int mid = 0;
+		while(lo < hi)
+		{
+			mid = (lo+hi) >>> 1;
+			if(x[mid] < xp)
+			{
+				lo = mid+1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * hermiteWFD3D with the index already found, ind is the first index with x[ind] >= xp,
+	 * see upperIndex.
+	 */
+	public static double[][] hermiteWFD3D (double x[], double y1[], double y2[], double y3[], double z1[], double z2[], double z3[], int nval, double xp, int ind)
 	{
 		int i, i0, j, k, n;
 		double pj, sk, vi, ui;
@@ -487,19 +536,8 @@ public class InterpUtil
 			return new double[][]{new double[]{yp1,yp2,yp3},new double[]{zp1,yp2,zp3},new double[]{ircode}};
 		}
 
-		/* Look for given value immediately preceeding interpolation argument */
-		for (i=0; i<nmax; i++)
-		{
-			if (x[i] >= xp)
-			{
-				ircode= 0;
-				//System.out.println(i + "\t" + x[i] + xp);
-				break;
-			}
-		}
-
 		/*  Start index in vectors x,y,z */
-		i0=i-(n+1)/2;
+		i0=ind-(n+1)/2;
 		if (i0 < 0)
 		{
 			i0= 0; /* or 1? */
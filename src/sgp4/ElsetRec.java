@@ -21,16 +21,18 @@ package sgp4;
  * From SGP4.h
  * #define SGP4Version  "SGP4 Version 2016-03-09"
  * 
+ * The values that change on every call to sgp4 are inherited from SGP4State.  When
+ * the record is used directly it is its own propagation state, as in the original code.
+ * 
  * @author aholinch
  *
  */
-public class ElsetRec 
+public class ElsetRec extends SGP4State
 {
 	public int whichconst = SGP4.wgs72;
 	public String satID; // alpha-5
 	public int epochyr;
 	public int epochtynumrev;
-	public int error;
 	public char operationmode;
 	public char init;
 	public char method;	
@@ -61,16 +63,6 @@ public class ElsetRec
 	// sgp4fix add unkozai'd variable
 	public double no_unkozai;
 	
-	// sgp4fix add singly averaged variables
-	public double am;
-	public double em;
-	public double im;
-	public double Om;
-	public double om;
-	public double mm;
-	public double nm;
-	public double t;
-	
 	// sgp4fix add constant parameters to eliminate mutliple calls during execution
 	public double tumin;
 	public double mu;
@@ -88,13 +80,6 @@ public class ElsetRec
 	public char not_orbital; // "Orbiting S/C" flag (0=n, 1=y)  
 	public double rcs_m2; // "RCS (m^2)" storage  
 
-    // temporary variables because the original authors call the same method with different variables
-    public double ep;
-    public double inclp;
-    public double nodep;
-    public double argpp;
-    public double mp;
-
 
     public int isimp;
 	public double aycof;
@@ -176,17 +161,11 @@ public class ElsetRec
 	public double xlamo;
 	public double zmol;
 	public double zmos;
-	public double atime;
-	public double xli;
-	public double xni;
 	public double snodm;
 	public double cnodm;
-	public double sinim;
-	public double cosim;
 	public double sinomm;
 	public double cosomm;
 	public double day;
-	public double emsq;
 	public double gam;
 	public double rtemsq; 
     public double s1;
@@ -227,10 +206,6 @@ public class ElsetRec
     public double z31;
     public double z32;
     public double z33;
-	public double argpm;
-	public double inclm;
-	public double nodem;
-	public double dndt;
 	public double eccsq;
 		
     // for initl
@@ -244,4 +219,7 @@ public class ElsetRec
     public double rp;
     public double rteosq;
     public double sinio;
+
+    // saved resonance integrator values, set by sgp4init for resonant deep space orbits
+    public ResonanceCheckpoints checkpoints;
 }
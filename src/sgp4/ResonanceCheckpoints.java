@@ -0,0 +1,152 @@
+/*
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package sgp4;
+
+/**
+ * Saved values of the deep space resonance integrator (xli, xni) at regular multiples of the
+ * 720 minute step for 12 and 24 hour resonant orbits.  dspace only caches the last time it
+ * reached, so a query before that time restarts from epoch.  With checkpoints any query
+ * resumes from the nearest saved point at or before the requested time and takes at most
+ * STEPS_PER_CHECKPOINT integration steps.
+ *
+ * The checkpoints are produced by the same steps dspace would take from epoch so results
+ * are unchanged.  The table grows as needed.  Reads do not lock and the table is safe to
+ * share between threads.
+ *
+ * @author aholinch
+ *
+ */
+public class ResonanceCheckpoints
+{
+	public static final int STEPS_PER_CHECKPOINT = 10;
+
+	// about 1 million checkpoints is 13,700 years which is plenty
+	public static final int MAX_CHECKPOINTS = 1 << 20;
+
+	protected static final double STEP = 720.0;
+	protected static final double INTERVAL = STEP*STEPS_PER_CHECKPOINT;
+
+	protected final ElsetRec rec;
+
+	// xli and xni for checkpoint k are at 2k and 2k+1, arrays are replaced never modified
+	private volatile double pos[] = null;
+	private volatile double neg[] = null;
+
+	public ResonanceCheckpoints(ElsetRec rec)
+	{
+		this.rec = rec;
+		double start[] = new double[]{rec.xlamo, rec.no_unkozai};
+		pos = start;
+		neg = start;
+	}
+
+	/**
+	 * Move the integrator in st to the nearest checkpoint at or before st.t unless it is
+	 * already at or past that checkpoint on the way to st.t.
+	 *
+	 * @param st
+	 */
+	public void restore(SGP4State st)
+	{
+		double t = st.t;
+		double at = Math.abs(t);
+
+		double kd = Math.floor(at/INTERVAL);
+		if(kd > MAX_CHECKPOINTS) kd = MAX_CHECKPOINTS;
+		int k = (int)kd;
+
+		// epoch is the only choice, dspace restarts there on its own
+		if(k == 0) return;
+
+		double cpTime = k*INTERVAL;
+
+		// the current values are valid if dspace would not restart and are at least as far along
+		double atime = st.atime;
+		if(atime != 0.0 && t*atime > 0.0 && Math.abs(atime) <= at && Math.abs(atime) >= cpTime)
+		{
+			return;
+		}
+
+		boolean forward = t > 0;
+		double tab[] = forward?pos:neg;
+		if(tab.length < 2*(k+1))
+		{
+			tab = extend(forward, k);
+		}
+
+		st.atime = forward?cpTime:-cpTime;
+		st.xli = tab[2*k];
+		st.xni = tab[2*k+1];
+	}
+
+	/**
+	 * Returns the number of checkpoints computed so far in each direction including epoch.
+	 *
+	 * @param forward
+	 * @return
+	 */
+	public int getNumCheckpoints(boolean forward)
+	{
+		double tab[] = forward?pos:neg;
+		return tab.length/2;
+	}
+
+	/**
+	 * Integrate forward or backward until checkpoint k exists.
+	 *
+	 * @param forward
+	 * @param k
+	 * @return
+	 */
+	protected synchronized double[] extend(boolean forward, int k)
+	{
+		double tab[] = forward?pos:neg;
+		int have = tab.length/2;
+		if(have > k) return tab;
+
+		// grow by at least half to limit copies when walking outward one checkpoint at a time
+		int size = Math.max(k+1, Math.min(MAX_CHECKPOINTS+1, have + have/2));
+		double out[] = new double[2*size];
+		System.arraycopy(tab, 0, out, 0, tab.length);
+
+		double sign = forward?1.0:-1.0;
+		SGP4State st = new SGP4State();
+		for(int j=have; j<size; j++)
+		{
+			st.atime = sign*(j-1)*INTERVAL;
+			st.xli = out[2*(j-1)];
+			st.xni = out[2*(j-1)+1];
+			st.t = sign*j*INTERVAL;
+
+			// only the integrator values are kept, the mean elements in st are not used
+			SGP4.dspace(st.t, rec, st);
+
+			out[2*j] = st.xli;
+			out[2*j+1] = st.xni;
+		}
+
+		if(forward)
+		{
+			pos = out;
+		}
+		else
+		{
+			neg = out;
+		}
+
+		return out;
+	}
+}
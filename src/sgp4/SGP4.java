@@ -157,7 +157,7 @@ public class SGP4
 		double xi2, double xi3, double xl2, double xl3, double xl4,
 		double zmol, double zmos,
 		char init,
-		ElsetRec rec,
+		SGP4State rec,
 		char opsmode
 		)
 	{
@@ -886,6 +886,15 @@ public class SGP4
 	----------------------------------------------------------------------------*/
 
 	public static void dspace(double tc, ElsetRec rec)
+	{
+		dspace(tc, rec, rec);
+	}
+
+	/**
+	 * Same as dspace(tc, rec) but the values that change are written to st so that
+	 * rec is only read.
+	 */
+	public static void dspace(double tc, ElsetRec rec, SGP4State st)
 	{
 		int iretn;
 		double delt, ft, theta, x2li, x2omi, xl, xldot, xnddt, xndt, xomi, g22, g32,
@@ -909,14 +918,14 @@ public class SGP4
 		step2 = 259200.0;
 
 		/* ----------- calculate deep space resonance effects ----------- */
-		rec.dndt = 0.0;
+		st.dndt = 0.0;
 		theta = fmod(rec.gsto + tc * rptim, twopi);
-		rec.em = rec.em + rec.dedt * rec.t;
+		st.em = st.em + rec.dedt * st.t;
 
-		rec.inclm = rec.inclm + rec.didt * rec.t;
-		rec.argpm = rec.argpm + rec.domdt * rec.t;
-		rec.nodem = rec.nodem + rec.dnodt * rec.t;
-		rec.mm = rec.mm + rec.dmdt * rec.t;
+		st.inclm = st.inclm + rec.didt * st.t;
+		st.argpm = st.argpm + rec.domdt * st.t;
+		st.nodem = st.nodem + rec.dnodt * st.t;
+		st.mm = st.mm + rec.dmdt * st.t;
 
 		//   sgp4fix for negative inclinations
 		//   the following if statement should be commented out
@@ -938,14 +947,14 @@ public class SGP4
 		if (rec.irez != 0)
 		{
 			// sgp4fix streamline check
-			if ((rec.atime == 0.0) || (rec.t * rec.atime <= 0.0) || (Math.abs(rec.t) < Math.abs(rec.atime)))
+			if ((st.atime == 0.0) || (st.t * st.atime <= 0.0) || (Math.abs(st.t) < Math.abs(st.atime)))
 			{
-				rec.atime = 0.0;
-				rec.xni = rec.no_unkozai;
-				rec.xli = rec.xlamo;
+				st.atime = 0.0;
+				st.xni = rec.no_unkozai;
+				st.xli = rec.xlamo;
 			}
 			// sgp4fix move check outside loop
-			if (rec.t > 0.0)
+			if (st.t > 0.0)
 				delt = stepp;
 			else
 				delt = stepn;
@@ -957,29 +966,29 @@ public class SGP4
 				/* ----------- near - synchronous resonance terms ------- */
 				if (rec.irez != 2)
 				{
-					xndt = rec.del1 * Math.sin(rec.xli - fasx2) + rec.del2 * Math.sin(2.0 * (rec.xli - fasx4)) +
-							rec.del3 * Math.sin(3.0 * (rec.xli - fasx6));
-					xldot = rec.xni + rec.xfact;
-					xnddt = rec.del1 * Math.cos(rec.xli - fasx2) +
-						2.0 * rec.del2 * Math.cos(2.0 * (rec.xli - fasx4)) +
-						3.0 * rec.del3 * Math.cos(3.0 * (rec.xli - fasx6));
+					xndt = rec.del1 * Math.sin(st.xli - fasx2) + rec.del2 * Math.sin(2.0 * (st.xli - fasx4)) +
+							rec.del3 * Math.sin(3.0 * (st.xli - fasx6));
+					xldot = st.xni + rec.xfact;
+					xnddt = rec.del1 * Math.cos(st.xli - fasx2) +
+						2.0 * rec.del2 * Math.cos(2.0 * (st.xli - fasx4)) +
+						3.0 * rec.del3 * Math.cos(3.0 * (st.xli - fasx6));
 					xnddt = xnddt * xldot;
 				}
 				else
 				{
 					/* --------- near - half-day resonance terms -------- */
-					xomi = rec.argpo + rec.argpdot * rec.atime;
+					xomi = rec.argpo + rec.argpdot * st.atime;
 					x2omi = xomi + xomi;
-					x2li = rec.xli + rec.xli;
-					xndt = rec.d2201 * Math.sin(x2omi + rec.xli - g22) + rec.d2211 * Math.sin(rec.xli - g22) +
-							rec.d3210 * Math.sin(xomi + rec.xli - g32) + rec.d3222 * Math.sin(-xomi + rec.xli - g32) +
+					x2li = st.xli + st.xli;
+					xndt = rec.d2201 * Math.sin(x2omi + st.xli - g22) + rec.d2211 * Math.sin(st.xli - g22) +
+							rec.d3210 * Math.sin(xomi + st.xli - g32) + rec.d3222 * Math.sin(-xomi + st.xli - g32) +
 							rec.d4410 * Math.sin(x2omi + x2li - g44) + rec.d4422 * Math.sin(x2li - g44) +
-							rec.d5220 * Math.sin(xomi + rec.xli - g52) + rec.d5232 * Math.sin(-xomi + rec.xli - g52) +
+							rec.d5220 * Math.sin(xomi + st.xli - g52) + rec.d5232 * Math.sin(-xomi + st.xli - g52) +
 							rec.d5421 * Math.sin(xomi + x2li - g54) + rec.d5433 * Math.sin(-xomi + x2li - g54);
-					xldot = rec.xni + rec.xfact;
-					xnddt = rec.d2201 * Math.cos(x2omi + rec.xli - g22) + rec.d2211 * Math.cos(rec.xli - g22) +
-							rec.d3210 * Math.cos(xomi + rec.xli - g32) + rec.d3222 * Math.cos(-xomi + rec.xli - g32) +
-							rec.d5220 * Math.cos(xomi + rec.xli - g52) + rec.d5232 * Math.cos(-xomi + rec.xli - g52) +
+					xldot = st.xni + rec.xfact;
+					xnddt = rec.d2201 * Math.cos(x2omi + st.xli - g22) + rec.d2211 * Math.cos(st.xli - g22) +
+							rec.d3210 * Math.cos(xomi + st.xli - g32) + rec.d3222 * Math.cos(-xomi + st.xli - g32) +
+							rec.d5220 * Math.cos(xomi + st.xli - g52) + rec.d5232 * Math.cos(-xomi + st.xli - g52) +
 						2.0 * (rec.d4410 * Math.cos(x2omi + x2li - g44) +
 								rec.d4422 * Math.cos(x2li - g44) + rec.d5421 * Math.cos(xomi + x2li - g54) +
 								rec.d5433 * Math.cos(-xomi + x2li - g54));
@@ -988,38 +997,38 @@ public class SGP4
 
 				/* ----------------------- integrator ------------------- */
 				// sgp4fix move end checks to end of routine
-				if (Math.abs(rec.t - rec.atime) >= stepp)
+				if (Math.abs(st.t - st.atime) >= stepp)
 				{
 					iretn = 381;
 				}
 				else // exit here
 				{
-					ft = rec.t - rec.atime;
+					ft = st.t - st.atime;
 					iretn = 0;
 				}
 
 				if (iretn == 381)
 				{
-					rec.xli = rec.xli + xldot * delt + xndt * step2;
-					rec.xni = rec.xni + xndt * delt + xnddt * step2;
-					rec.atime = rec.atime + delt;
+					st.xli = st.xli + xldot * delt + xndt * step2;
+					st.xni = st.xni + xndt * delt + xnddt * step2;
+					st.atime = st.atime + delt;
 				}
 			}  // while iretn = 381
 
 			
-			rec.nm = rec.xni + xndt * ft + xnddt * ft * ft * 0.5;
-			xl = rec.xli + xldot * ft + xndt * ft * ft * 0.5;
+			st.nm = st.xni + xndt * ft + xnddt * ft * ft * 0.5;
+			xl = st.xli + xldot * ft + xndt * ft * ft * 0.5;
 			if (rec.irez != 1)
 			{
-				rec.mm = xl - 2.0 * rec.nodem + 2.0 * theta;
-				rec.dndt = rec.nm - rec.no_unkozai;
+				st.mm = xl - 2.0 * st.nodem + 2.0 * theta;
+				st.dndt = st.nm - rec.no_unkozai;
 			}
 			else
 			{
-				rec.mm = xl - rec.nodem - rec.argpm + theta;
-				rec.dndt = rec.nm - rec.no_unkozai;
+				st.mm = xl - st.nodem - st.argpm + theta;
+				st.dndt = st.nm - rec.no_unkozai;
 			}
-			rec.nm = rec.no_unkozai + rec.dndt;
+			st.nm = rec.no_unkozai + st.dndt;
 		}
 
 	}  // dsspace
@@ -1257,6 +1266,7 @@ public class SGP4
 
 		/* ----------- set all deep space variables to zero ------------ */
 		satrec.irez = 0;   satrec.d2201 = 0.0; satrec.d2211 = 0.0;
+		satrec.checkpoints = null;
 		satrec.d3210 = 0.0; satrec.d3222 = 0.0; satrec.d4410 = 0.0;
 		satrec.d4422 = 0.0; satrec.d5220 = 0.0; satrec.d5232 = 0.0;
 		satrec.d5421 = 0.0; satrec.d5433 = 0.0; satrec.dedt = 0.0;
@@ -1434,6 +1444,12 @@ public class SGP4
 				satrec.mm = 0.0;
 				
 				dsinit(tc, xpidot, satrec);
+
+				// sgp4 addition: let later calls resume the resonance integrator part way
+				if (satrec.irez != 0)
+				{
+					satrec.checkpoints = new ResonanceCheckpoints(satrec);
+				}
 			}
 
 			/* ----------- set variables if not deep space ----------- */
@@ -1563,6 +1579,27 @@ public class SGP4
 		double r[], double v[]
 		)
 	{
+		return sgp4(satrec, satrec, tsince, r, v);
+	}
+
+	/**
+	 * Propagate the initialized satrec to tsince writing everything that changes into st.
+	 * satrec is only read so one record can be shared by many threads as long as each
+	 * thread uses its own SGP4State.  Passing satrec as st gives the original behavior.
+	 *
+	 * @param satrec initialized by sgp4init
+	 * @param st per thread propagation state, error is set on return
+	 * @param tsince minutes since epoch
+	 * @param r position in km
+	 * @param v velocity in km/sec
+	 * @return false if there was an error
+	 */
+	public static boolean sgp4
+		(
+		ElsetRec satrec, SGP4State st, double tsince,
+		double r[], double v[]
+		)
+	{
 		
 		double axnl, aynl, betal, cnod,
 			cos2u, coseo1, cosi, cosip, cosisq, cossu, cosu,
@@ -1575,7 +1612,8 @@ public class SGP4
 			uy, uz, vx, vy, vz,
 			xinc, xincp, xl, xlm,
 			xmdf, xmx, xmy, nodedf, xnode, tc,
-			x2o3, vkmpersec, delmtemp;
+			x2o3, vkmpersec, delmtemp,
+			aycof, xlcof, con41, x1mth2, x7thm1;
 		
 		int ktr;
 
@@ -1589,20 +1627,31 @@ public class SGP4
 		// getgravconst( whichconst, tumin, mu, radiusearthkm, xke, j2, j3, j4, j3oj2 );
 		vkmpersec = satrec.radiusearthkm * satrec.xke / 60.0;
 
+		// deep space objects recompute these at every time so copy them instead of writing to satrec
+		aycof = satrec.aycof;
+		xlcof = satrec.xlcof;
+		con41 = satrec.con41;
+		x1mth2 = satrec.x1mth2;
+		x7thm1 = satrec.x7thm1;
+
+		// integrator values cached for a different record are no good here
+		if (st != satrec)
+			st.checkOwner(satrec);
+
 		/* --------------------- clear sgp4 error flag ----------------- */
-		satrec.t = tsince;
-		satrec.error = 0;
+		st.t = tsince;
+		st.error = 0;
 
 		/* ------- update for secular gravity and atmospheric drag ----- */
-		xmdf = satrec.mo + satrec.mdot * satrec.t;
-		argpdf = satrec.argpo + satrec.argpdot * satrec.t;
-		nodedf = satrec.nodeo + satrec.nodedot * satrec.t;
-		satrec.argpm = argpdf;
-		satrec.mm = xmdf;
-		t2 = satrec.t * satrec.t;
-		satrec.nodem = nodedf + satrec.nodecf * t2;
-		tempa = 1.0 - satrec.cc1 * satrec.t;
-		tempe = satrec.bstar * satrec.cc4 * satrec.t;
+		xmdf = satrec.mo + satrec.mdot * st.t;
+		argpdf = satrec.argpo + satrec.argpdot * st.t;
+		nodedf = satrec.nodeo + satrec.nodedot * st.t;
+		st.argpm = argpdf;
+		st.mm = xmdf;
+		t2 = st.t * st.t;
+		st.nodem = nodedf + satrec.nodecf * t2;
+		tempa = 1.0 - satrec.cc1 * st.t;
+		tempe = satrec.bstar * satrec.cc4 * st.t;
 		templ = satrec.t2cof * t2;
 
 		delomg = 0;
@@ -1615,86 +1664,90 @@ public class SGP4
 		
 		if (satrec.isimp != 1)
 		{
-			delomg = satrec.omgcof * satrec.t;
+			delomg = satrec.omgcof * st.t;
 			// sgp4fix use mutliply for speed instead of pow
 			delmtemp = 1.0 + satrec.eta * Math.cos(xmdf);
 			delm = satrec.xmcof *
 				(delmtemp * delmtemp * delmtemp -
 				satrec.delmo);
 			temp = delomg + delm;
-			satrec.mm = xmdf + temp;
-			satrec.argpm = argpdf - temp;
-			t3 = t2 * satrec.t;
-			t4 = t3 * satrec.t;
+			st.mm = xmdf + temp;
+			st.argpm = argpdf - temp;
+			t3 = t2 * st.t;
+			t4 = t3 * st.t;
 			tempa = tempa - satrec.d2 * t2 - satrec.d3 * t3 -
 				satrec.d4 * t4;
-			tempe = tempe + satrec.bstar * satrec.cc5 * (Math.sin(satrec.mm) -satrec.sinmao);
-			templ = templ + satrec.t3cof * t3 + t4 * (satrec.t4cof + satrec.t * satrec.t5cof);
+			tempe = tempe + satrec.bstar * satrec.cc5 * (Math.sin(st.mm) -satrec.sinmao);
+			templ = templ + satrec.t3cof * t3 + t4 * (satrec.t4cof + st.t * satrec.t5cof);
 		}
 
 		tc = 0;
-		satrec.nm = satrec.no_unkozai;
-		satrec.em = satrec.ecco;
-		satrec.inclm = satrec.inclo;
+		st.nm = satrec.no_unkozai;
+		st.em = satrec.ecco;
+		st.inclm = satrec.inclo;
 		if (satrec.method == 'd')
 		{
-			tc = satrec.t;
-			dspace(tc,satrec);		
+			tc = st.t;
+			if (satrec.checkpoints != null)
+			{
+				satrec.checkpoints.restore(st);
+			}
+			dspace(tc,satrec,st);
 		} // if method = d
 
-		if (satrec.nm <= 0.0)
+		if (st.nm <= 0.0)
 		{
-			satrec.error = 2;
+			st.error = 2;
 			// sgp4fix add return
 			return false;
 		}
 		
-		satrec.am = Math.pow((satrec.xke / satrec.nm), x2o3) * tempa * tempa;
-		satrec.nm = satrec.xke / Math.pow(satrec.am, 1.5);
-		satrec.em = satrec.em - tempe;
+		st.am = Math.pow((satrec.xke / st.nm), x2o3) * tempa * tempa;
+		st.nm = satrec.xke / Math.pow(st.am, 1.5);
+		st.em = st.em - tempe;
 		// fix tolerance for error recognition
 		// sgp4fix am is fixed from the previous nm check
-		if ((satrec.em >= 1.0) || (satrec.em < -0.001)/* || (am < 0.95)*/)
+		if ((st.em >= 1.0) || (st.em < -0.001)/* || (am < 0.95)*/)
 		{
-			satrec.error = 1;
+			st.error = 1;
 			// sgp4fix to return if there is an error in eccentricity
 			return false;
 		}
 		// sgp4fix fix tolerance to avoid a divide by zero
-		if (satrec.em < 1.0e-6)
-			satrec.em = 1.0e-6;
-		satrec.mm = satrec.mm + satrec.no_unkozai * templ;
-		xlm = satrec.mm + satrec.argpm + satrec.nodem;
-		satrec.emsq = satrec.em * satrec.em;
-		temp = 1.0 - satrec.emsq;
-
-		satrec.nodem = fmod(satrec.nodem, twopi);
-		satrec.argpm = fmod(satrec.argpm, twopi);
+		if (st.em < 1.0e-6)
+			st.em = 1.0e-6;
+		st.mm = st.mm + satrec.no_unkozai * templ;
+		xlm = st.mm + st.argpm + st.nodem;
+		st.emsq = st.em * st.em;
+		temp = 1.0 - st.emsq;
+
+		st.nodem = fmod(st.nodem, twopi);
+		st.argpm = fmod(st.argpm, twopi);
 		xlm = fmod(xlm, twopi);
-		satrec.mm = fmod(xlm - satrec.argpm - satrec.nodem, twopi);
+		st.mm = fmod(xlm - st.argpm - st.nodem, twopi);
 
 		// sgp4fix recover singly averaged mean elements
-		satrec.am = satrec.am;
-		satrec.em = satrec.em;
-		satrec.im = satrec.inclm;
-		satrec.Om = satrec.nodem;
-		satrec.om = satrec.argpm;
-		satrec.mm = satrec.mm;
-		satrec.nm = satrec.nm;
+		st.am = st.am;
+		st.em = st.em;
+		st.im = st.inclm;
+		st.Om = st.nodem;
+		st.om = st.argpm;
+		st.mm = st.mm;
+		st.nm = st.nm;
 		
 		/* ----------------- compute extra mean quantities ------------- */
-		satrec.sinim = Math.sin(satrec.inclm);
-		satrec.cosim = Math.cos(satrec.inclm);
+		st.sinim = Math.sin(st.inclm);
+		st.cosim = Math.cos(st.inclm);
 
 		/* -------------------- add lunar-solar periodics -------------- */
-		satrec.ep = satrec.em;
-		xincp = satrec.inclm;
-		satrec.inclp = satrec.inclm;
-		satrec.argpp = satrec.argpm;
-		satrec.nodep = satrec.nodem;
-		satrec.mp = satrec.mm;
-		sinip = satrec.sinim;
-		cosip = satrec.cosim;
+		st.ep = st.em;
+		xincp = st.inclm;
+		st.inclp = st.inclm;
+		st.argpp = st.argpm;
+		st.nodep = st.nodem;
+		st.mp = st.mm;
+		sinip = st.sinim;
+		cosip = st.cosim;
 				
 		if (satrec.method == 'd')
 		{
@@ -1702,22 +1755,22 @@ public class SGP4
 					satrec.pho, satrec.pinco, satrec.plo, satrec.se2,
 					satrec.se3, satrec.sgh2, satrec.sgh3, satrec.sgh4,
 					satrec.sh2, satrec.sh3, satrec.si2, satrec.si3,
-					satrec.sl2, satrec.sl3, satrec.sl4, satrec.t,
+					satrec.sl2, satrec.sl3, satrec.sl4, st.t,
 					satrec.xgh2, satrec.xgh3, satrec.xgh4, satrec.xh2,
 					satrec.xh3, satrec.xi2, satrec.xi3, satrec.xl2,
 					satrec.xl3, satrec.xl4, satrec.zmol, satrec.zmos, 
-					'n', satrec, satrec.operationmode);
+					'n', st, satrec.operationmode);
 			
-				xincp = satrec.inclp;
+				xincp = st.inclp;
 			if (xincp < 0.0)
 			{
 				xincp = -xincp;
-				satrec.nodep = satrec.nodep + pi;
-				satrec.argpp = satrec.argpp - pi;
+				st.nodep = st.nodep + pi;
+				st.argpp = st.argpp - pi;
 			}
-			if ((satrec.ep < 0.0) || (satrec.ep > 1.0))
+			if ((st.ep < 0.0) || (st.ep > 1.0))
 			{
-				satrec.error = 3;
+				st.error = 3;
 				// sgp4fix add return
 				return false;
 			}
@@ -1728,20 +1781,20 @@ public class SGP4
 		{
 			sinip = Math.sin(xincp);
 			cosip = Math.cos(xincp);
-			satrec.aycof = -0.5*satrec.j3oj2*sinip;
+			aycof = -0.5*satrec.j3oj2*sinip;
 			// sgp4fix for divide by zero for xincp = 180 deg
 			if (Math.abs(cosip + 1.0) > 1.5e-12)
-				satrec.xlcof = -0.25 * satrec.j3oj2 * sinip * (3.0 + 5.0 * cosip) / (1.0 + cosip);
+				xlcof = -0.25 * satrec.j3oj2 * sinip * (3.0 + 5.0 * cosip) / (1.0 + cosip);
 			else
-				satrec.xlcof = -0.25 * satrec.j3oj2 * sinip * (3.0 + 5.0 * cosip) / temp4;
+				xlcof = -0.25 * satrec.j3oj2 * sinip * (3.0 + 5.0 * cosip) / temp4;
 		}
-		axnl = satrec.ep * Math.cos(satrec.argpp);
-		temp = 1.0 / (satrec.am * (1.0 - satrec.ep * satrec.ep));
-		aynl = satrec.ep* Math.sin(satrec.argpp) + temp * satrec.aycof;
-		xl = satrec.mp + satrec.argpp + satrec.nodep + temp * satrec.xlcof * axnl;
+		axnl = st.ep * Math.cos(st.argpp);
+		temp = 1.0 / (st.am * (1.0 - st.ep * st.ep));
+		aynl = st.ep* Math.sin(st.argpp) + temp * aycof;
+		xl = st.mp + st.argpp + st.nodep + temp * xlcof * axnl;
 
 		/* --------------------- solve kepler's equation --------------- */
-		u = fmod(xl - satrec.nodep, twopi);
+		u = fmod(xl - st.nodep, twopi);
 		eo1 = u;
 		tem5 = 9999.9;
 		ktr = 1;
@@ -1765,22 +1818,22 @@ public class SGP4
 		ecose = axnl*coseo1 + aynl*sineo1;
 		esine = axnl*sineo1 - aynl*coseo1;
 		el2 = axnl*axnl + aynl*aynl;
-		pl = satrec.am*(1.0 - el2);
+		pl = st.am*(1.0 - el2);
 		if (pl < 0.0)
 		{
-			satrec.error = 4;
+			st.error = 4;
 			// sgp4fix add return
 			return false;
 		}
 		else
 		{
-			rl = satrec.am * (1.0 - ecose);
-			rdotl = Math.sqrt(satrec.am) * esine / rl;
+			rl = st.am * (1.0 - ecose);
+			rdotl = Math.sqrt(st.am) * esine / rl;
 			rvdotl = Math.sqrt(pl) / rl;
 			betal = Math.sqrt(1.0 - el2);
 			temp = esine / (1.0 + betal);
-			sinu = satrec.am / rl * (sineo1 - aynl - axnl * temp);
-			cosu = satrec.am / rl * (coseo1 - axnl + aynl * temp);
+			sinu = st.am / rl * (sineo1 - aynl - axnl * temp);
+			cosu = st.am / rl * (coseo1 - axnl + aynl * temp);
 			su = Math.atan2(sinu, cosu);
 			sin2u = (cosu + cosu) * sinu;
 			cos2u = 1.0 - 2.0 * sinu * sinu;
@@ -1792,18 +1845,18 @@ public class SGP4
 			if (satrec.method == 'd')
 			{
 				cosisq = cosip * cosip;
-				satrec.con41 = 3.0*cosisq - 1.0;
-				satrec.x1mth2 = 1.0 - cosisq;
-				satrec.x7thm1 = 7.0*cosisq - 1.0;
+				con41 = 3.0*cosisq - 1.0;
+				x1mth2 = 1.0 - cosisq;
+				x7thm1 = 7.0*cosisq - 1.0;
 			}
-			mrt = rl * (1.0 - 1.5 * temp2 * betal * satrec.con41) +
-				0.5 * temp1 * satrec.x1mth2 * cos2u;
-			su = su - 0.25 * temp2 * satrec.x7thm1 * sin2u;
-			xnode = satrec.nodep + 1.5 * temp2 * cosip * sin2u;
+			mrt = rl * (1.0 - 1.5 * temp2 * betal * con41) +
+				0.5 * temp1 * x1mth2 * cos2u;
+			su = su - 0.25 * temp2 * x7thm1 * sin2u;
+			xnode = st.nodep + 1.5 * temp2 * cosip * sin2u;
 			xinc = xincp + 1.5 * temp2 * cosip * sinip * cos2u;
-			mvt = rdotl - satrec.nm * temp1 * satrec.x1mth2 * sin2u / satrec.xke;
-			rvdot = rvdotl + satrec.nm * temp1 * (satrec.x1mth2 * cos2u +
-				1.5 * satrec.con41) / satrec.xke;
+			mvt = rdotl - st.nm * temp1 * x1mth2 * sin2u / satrec.xke;
+			rvdot = rvdotl + st.nm * temp1 * (x1mth2 * cos2u +
+				1.5 * con41) / satrec.xke;
 
 			/* --------------------- orientation vectors ------------------- */
 			sinsu = Math.sin(su);
@@ -1833,7 +1886,7 @@ public class SGP4
 		// sgp4fix for decaying satellites
 		if (mrt < 1.0)
 		{
-			satrec.error = 6;
+			st.error = 6;
 			return false;
 		}
 
@@ -0,0 +1,554 @@
+/*
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package sgp4;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Propagates many satellites at once.  The near earth satellites (method 'n') are copied
+ * into one array per constant and run through a single loop over all of them, which keeps
+ * the data sequential in memory and avoids writing the per call values back into each
+ * ElsetRec.  Deep space satellites are sent through the scalar SGP4.sgp4 with their own
+ * SGP4State so the resonance integrator is still cached between calls.
+ *
+ * The near earth loop follows SGP4.sgp4 except that pow is replaced with cbrt and sqrt, the
+ * atan2 for the argument of latitude is skipped, and the small short period corrections to
+ * the argument of latitude and inclination are applied with the angle addition formulas.
+ * That removes five of the most expensive calls per satellite.  Results agree with
+ * SGP4.sgp4 to within 1e-9 km and 1e-12 km/s, the error codes are the same.  Run
+ * SGP4BatchTest to see the largest difference and the speedup on a synthetic catalog.
+ *
+ * Not thread safe because of the deep space states.  Use one instance per thread.
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4Batch
+{
+	private static final double twopi = 2.0d*Math.PI;
+
+	protected int size = 0;
+
+	// epoch of each satellite in ms, used by propagate(Date...)
+	protected double epochMS[] = null;
+
+	// near earth lanes, nearInd maps a lane back to the caller's index
+	protected int numNear = 0;
+	protected int nearInd[] = null;
+	protected boolean simple[] = null;
+	protected double mo[] = null;
+	protected double mdot[] = null;
+	protected double argpo[] = null;
+	protected double argpdot[] = null;
+	protected double nodeo[] = null;
+	protected double nodedot[] = null;
+	protected double nodecf[] = null;
+	protected double cc1[] = null;
+	protected double cc4[] = null;
+	protected double cc5[] = null;
+	protected double bstar[] = null;
+	protected double t2cof[] = null;
+	protected double t3cof[] = null;
+	protected double t4cof[] = null;
+	protected double t5cof[] = null;
+	protected double omgcof[] = null;
+	protected double eta[] = null;
+	protected double xmcof[] = null;
+	protected double delmo[] = null;
+	protected double sinmao[] = null;
+	protected double d2[] = null;
+	protected double d3[] = null;
+	protected double d4[] = null;
+	protected double no_unkozai[] = null;
+	protected double ecco[] = null;
+	protected double sinio[] = null;
+	protected double cosio[] = null;
+	protected double inclo[] = null;
+	protected double aycof[] = null;
+	protected double xlcof[] = null;
+	protected double con41[] = null;
+	protected double x1mth2[] = null;
+	protected double x7thm1[] = null;
+	protected double xke[] = null;
+	protected double j2[] = null;
+	protected double radiusearthkm[] = null;
+
+	// deep space satellites
+	protected int numDeep = 0;
+	protected int deepInd[] = null;
+	protected ElsetRec deep[] = null;
+	protected SGP4State deepStates[] = null;
+
+	/**
+	 * Build from TLEs.  propagate(Date...) uses the epoch of each TLE the same way TLE.getRV(Date) does.
+	 *
+	 * @param tles
+	 */
+	public SGP4Batch(List<TLE> tles)
+	{
+		int n = tles.size();
+		ElsetRec recs[] = new ElsetRec[n];
+		double ems[] = new double[n];
+		TLE tle = null;
+		for(int i=0; i<n; i++)
+		{
+			tle = tles.get(i);
+			recs[i] = tle.getElsetRec();
+			ems[i] = tle.getEpoch().getTime();
+		}
+		init(recs, ems);
+	}
+
+	/**
+	 * Build from records that have already been through sgp4init.
+	 *
+	 * @param recs
+	 */
+	public SGP4Batch(ElsetRec recs[])
+	{
+		int n = recs.length;
+		double ems[] = new double[n];
+		for(int i=0; i<n; i++)
+		{
+			ems[i] = (recs[i].jdsatepoch - 2440587.5 + recs[i].jdsatepochF)*86400000.0d;
+		}
+		init(recs, ems);
+	}
+
+	protected void init(ElsetRec recs[], double ems[])
+	{
+		size = recs.length;
+		epochMS = ems;
+
+		numNear = 0;
+		numDeep = 0;
+		for(int i=0; i<size; i++)
+		{
+			if(recs[i].method == 'd')
+			{
+				numDeep++;
+			}
+			else
+			{
+				numNear++;
+			}
+		}
+
+		int n = numNear;
+		nearInd = new int[n];
+		simple = new boolean[n];
+		mo = new double[n];
+		mdot = new double[n];
+		argpo = new double[n];
+		argpdot = new double[n];
+		nodeo = new double[n];
+		nodedot = new double[n];
+		nodecf = new double[n];
+		cc1 = new double[n];
+		cc4 = new double[n];
+		cc5 = new double[n];
+		bstar = new double[n];
+		t2cof = new double[n];
+		t3cof = new double[n];
+		t4cof = new double[n];
+		t5cof = new double[n];
+		omgcof = new double[n];
+		eta = new double[n];
+		xmcof = new double[n];
+		delmo = new double[n];
+		sinmao = new double[n];
+		d2 = new double[n];
+		d3 = new double[n];
+		d4 = new double[n];
+		no_unkozai = new double[n];
+		ecco = new double[n];
+		sinio = new double[n];
+		cosio = new double[n];
+		inclo = new double[n];
+		aycof = new double[n];
+		xlcof = new double[n];
+		con41 = new double[n];
+		x1mth2 = new double[n];
+		x7thm1 = new double[n];
+		xke = new double[n];
+		j2 = new double[n];
+		radiusearthkm = new double[n];
+
+		deepInd = new int[numDeep];
+		deep = new ElsetRec[numDeep];
+		deepStates = new SGP4State[numDeep];
+
+		ElsetRec rec = null;
+		int in = 0;
+		int id = 0;
+		for(int i=0; i<size; i++)
+		{
+			rec = recs[i];
+			if(rec.method == 'd')
+			{
+				deepInd[id] = i;
+				deep[id] = rec;
+				deepStates[id] = new SGP4State();
+				id++;
+				continue;
+			}
+
+			nearInd[in] = i;
+			simple[in] = rec.isimp == 1;
+			mo[in] = rec.mo;
+			mdot[in] = rec.mdot;
+			argpo[in] = rec.argpo;
+			argpdot[in] = rec.argpdot;
+			nodeo[in] = rec.nodeo;
+			nodedot[in] = rec.nodedot;
+			nodecf[in] = rec.nodecf;
+			cc1[in] = rec.cc1;
+			cc4[in] = rec.cc4;
+			cc5[in] = rec.cc5;
+			bstar[in] = rec.bstar;
+			t2cof[in] = rec.t2cof;
+			t3cof[in] = rec.t3cof;
+			t4cof[in] = rec.t4cof;
+			t5cof[in] = rec.t5cof;
+			omgcof[in] = rec.omgcof;
+			eta[in] = rec.eta;
+			xmcof[in] = rec.xmcof;
+			delmo[in] = rec.delmo;
+			sinmao[in] = rec.sinmao;
+			d2[in] = rec.d2;
+			d3[in] = rec.d3;
+			d4[in] = rec.d4;
+			no_unkozai[in] = rec.no_unkozai;
+			ecco[in] = rec.ecco;
+			inclo[in] = rec.inclo;
+			sinio[in] = Math.sin(rec.inclo);
+			cosio[in] = Math.cos(rec.inclo);
+			aycof[in] = rec.aycof;
+			xlcof[in] = rec.xlcof;
+			con41[in] = rec.con41;
+			x1mth2[in] = rec.x1mth2;
+			x7thm1[in] = rec.x7thm1;
+			xke[in] = rec.xke;
+			j2[in] = rec.j2;
+			radiusearthkm[in] = rec.radiusearthkm;
+			in++;
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int getNumNearEarth()
+	{
+		return numNear;
+	}
+
+	public int getNumDeepSpace()
+	{
+		return numDeep;
+	}
+
+	/**
+	 * Propagate every satellite to the same date.  tsince is a work array of length size(),
+	 * it is filled with the minutes since epoch of each satellite.
+	 *
+	 * @param d
+	 * @param tsince
+	 * @param rx
+	 * @param ry
+	 * @param rz
+	 * @param vx
+	 * @param vy
+	 * @param vz
+	 * @param errors may be null
+	 */
+	public void propagate(Date d, double tsince[], double rx[], double ry[], double rz[],
+			double vx[], double vy[], double vz[], int errors[])
+	{
+		double tms = d.getTime();
+		double t = 0;
+		for(int i=0; i<size; i++)
+		{
+			t = tms;
+			t -= epochMS[i];
+			t /= 60000;
+			tsince[i] = t;
+		}
+
+		propagate(tsince, rx, ry, rz, vx, vy, vz, errors);
+	}
+
+	/**
+	 * Propagate satellite i to tsince[i] minutes after its epoch.  Outputs are filled at
+	 * the same index.  Satellites with errors 1, 2 or 4 get zeros like TLE.getRV.
+	 *
+	 * @param tsince
+	 * @param rx
+	 * @param ry
+	 * @param rz
+	 * @param vx
+	 * @param vy
+	 * @param vz
+	 * @param errors may be null
+	 */
+	public void propagate(double tsince[], double rx[], double ry[], double rz[],
+			double vx[], double vy[], double vz[], int errors[])
+	{
+		propagateNear(tsince, rx, ry, rz, vx, vy, vz, errors);
+		propagateDeep(tsince, rx, ry, rz, vx, vy, vz, errors);
+	}
+
+	protected void propagateDeep(double tsince[], double rx[], double ry[], double rz[],
+			double vx[], double vy[], double vz[], int errors[])
+	{
+		double r[] = new double[3];
+		double v[] = new double[3];
+		int i = 0;
+		for(int k=0; k<numDeep; k++)
+		{
+			i = deepInd[k];
+			r[0] = r[1] = r[2] = 0;
+			v[0] = v[1] = v[2] = 0;
+
+			SGP4.sgp4(deep[k], deepStates[k], tsince[i], r, v);
+
+			rx[i] = r[0];
+			ry[i] = r[1];
+			rz[i] = r[2];
+			vx[i] = v[0];
+			vy[i] = v[1];
+			vz[i] = v[2];
+			if(errors != null) errors[i] = deepStates[k].error;
+		}
+	}
+
+	/**
+	 * sin of an angle that is usually well under 0.01 radians.
+	 */
+	protected static double sinSmall(double x)
+	{
+		if(Math.abs(x) > 0.01) return Math.sin(x);
+		double x2 = x*x;
+		return x*(1.0 - x2/6.0*(1.0 - x2/20.0*(1.0 - x2/42.0)));
+	}
+
+	/**
+	 * cos of an angle that is usually well under 0.01 radians.
+	 */
+	protected static double cosSmall(double x)
+	{
+		if(Math.abs(x) > 0.01) return Math.cos(x);
+		double x2 = x*x;
+		return 1.0 - x2/2.0*(1.0 - x2/12.0*(1.0 - x2/30.0));
+	}
+
+	/**
+	 * The near earth part of SGP4.sgp4 with the deep space branches removed.
+	 */
+	protected void propagateNear(double tsince[], double rx[], double ry[], double rz[],
+			double vx[], double vy[], double vz[], int errors[])
+	{
+		double t, t2, t3, t4, xmdf, argpdf, nodedf, argpm, mm, nodem, tempa, tempe, templ,
+			delomg, delmtemp, delm, temp, nm, em, am, xlm, ep, argpp, nodep, mp,
+			axnl, aynl, xl, u, eo1, tem5, sineo1, coseo1, ecose, esine, el2, pl,
+			rl, rdotl, rvdotl, betal, sinu, cosu, sin2u, cos2u, temp1, temp2,
+			mrt, xnode, dsu, dinc, sind, cosd, mvt, rvdot, sinsu, cossu, snod, cnod, sini, cosi,
+			xmx, xmy, ux, uy, uz, vvx, vvy, vvz, vkmpersec, re, sinip, cosip;
+		int ktr, err, i;
+
+		for(int k=0; k<numNear; k++)
+		{
+			i = nearInd[k];
+			t = tsince[i];
+			err = 0;
+			mrt = 0;
+
+			/* ------- update for secular gravity and atmospheric drag ----- */
+			xmdf = mo[k] + mdot[k] * t;
+			argpdf = argpo[k] + argpdot[k] * t;
+			nodedf = nodeo[k] + nodedot[k] * t;
+			argpm = argpdf;
+			mm = xmdf;
+			t2 = t * t;
+			nodem = nodedf + nodecf[k] * t2;
+			tempa = 1.0 - cc1[k] * t;
+			tempe = bstar[k] * cc4[k] * t;
+			templ = t2cof[k] * t2;
+
+			if(!simple[k])
+			{
+				delomg = omgcof[k] * t;
+				delmtemp = 1.0 + eta[k] * Math.cos(xmdf);
+				delm = xmcof[k] * (delmtemp * delmtemp * delmtemp - delmo[k]);
+				temp = delomg + delm;
+				mm = xmdf + temp;
+				argpm = argpdf - temp;
+				t3 = t2 * t;
+				t4 = t3 * t;
+				tempa = tempa - d2[k] * t2 - d3[k] * t3 - d4[k] * t4;
+				tempe = tempe + bstar[k] * cc5[k] * (Math.sin(mm) - sinmao[k]);
+				templ = templ + t3cof[k] * t3 + t4 * (t4cof[k] + t * t5cof[k]);
+			}
+
+			nm = no_unkozai[k];
+			em = ecco[k];
+
+			rx[i] = ry[i] = rz[i] = 0;
+			vx[i] = vy[i] = vz[i] = 0;
+
+			if(nm <= 0.0)
+			{
+				if(errors != null) errors[i] = 2;
+				continue;
+			}
+
+			// cbrt and sqrt are much cheaper than pow and agree to within an ulp or two
+			temp = xke[k] / nm;
+			am = Math.cbrt(temp * temp) * tempa * tempa;
+			nm = xke[k] / (am * Math.sqrt(am));
+			em = em - tempe;
+
+			if((em >= 1.0) || (em < -0.001))
+			{
+				if(errors != null) errors[i] = 1;
+				continue;
+			}
+
+			if(em < 1.0e-6)
+				em = 1.0e-6;
+			mm = mm + no_unkozai[k] * templ;
+			xlm = mm + argpm + nodem;
+
+			nodem = SGP4.fmod(nodem, twopi);
+			argpm = SGP4.fmod(argpm, twopi);
+			xlm = SGP4.fmod(xlm, twopi);
+			mm = SGP4.fmod(xlm - argpm - nodem, twopi);
+
+			ep = em;
+			argpp = argpm;
+			nodep = nodem;
+			mp = mm;
+			sinip = sinio[k];
+			cosip = cosio[k];
+
+			/* -------------------- long period periodics ------------------ */
+			axnl = ep * Math.cos(argpp);
+			temp = 1.0 / (am * (1.0 - ep * ep));
+			aynl = ep* Math.sin(argpp) + temp * aycof[k];
+			xl = mp + argpp + nodep + temp * xlcof[k] * axnl;
+
+			/* --------------------- solve kepler's equation --------------- */
+			u = SGP4.fmod(xl - nodep, twopi);
+			eo1 = u;
+			tem5 = 9999.9;
+			ktr = 1;
+			sineo1 = 0;
+			coseo1 = 0;
+			while ((Math.abs(tem5) >= 1.0e-12) && (ktr <= 10))
+			{
+				sineo1 = Math.sin(eo1);
+				coseo1 = Math.cos(eo1);
+				tem5 = 1.0 - coseo1 * axnl - sineo1 * aynl;
+				tem5 = (u - aynl * coseo1 + axnl * sineo1 - eo1) / tem5;
+				if (Math.abs(tem5) >= 0.95)
+					tem5 = tem5 > 0.0 ? 0.95 : -0.95;
+				eo1 = eo1 + tem5;
+				ktr = ktr + 1;
+			}
+
+			/* ------------- short period preliminary quantities ----------- */
+			ecose = axnl*coseo1 + aynl*sineo1;
+			esine = axnl*sineo1 - aynl*coseo1;
+			el2 = axnl*axnl + aynl*aynl;
+			pl = am*(1.0 - el2);
+			if (pl < 0.0)
+			{
+				if(errors != null) errors[i] = 4;
+				continue;
+			}
+
+			rl = am * (1.0 - ecose);
+			rdotl = Math.sqrt(am) * esine / rl;
+			rvdotl = Math.sqrt(pl) / rl;
+			betal = Math.sqrt(1.0 - el2);
+			temp = esine / (1.0 + betal);
+			sinu = am / rl * (sineo1 - aynl - axnl * temp);
+			cosu = am / rl * (coseo1 - axnl + aynl * temp);
+			// keep the unit vector of u instead of calling atan2 and then sin and cos again
+			temp = 1.0 / Math.sqrt(sinu * sinu + cosu * cosu);
+			sinsu = sinu * temp;
+			cossu = cosu * temp;
+			sin2u = (cosu + cosu) * sinu;
+			cos2u = 1.0 - 2.0 * sinu * sinu;
+			temp = 1.0 / pl;
+			temp1 = 0.5 * j2[k] * temp;
+			temp2 = temp1 * temp;
+
+			/* -------------- update for short period periodics ------------ */
+			mrt = rl * (1.0 - 1.5 * temp2 * betal * con41[k]) +
+				0.5 * temp1 * x1mth2[k] * cos2u;
+			dsu = -0.25 * temp2 * x7thm1[k] * sin2u;
+			xnode = nodep + 1.5 * temp2 * cosip * sin2u;
+			dinc = 1.5 * temp2 * cosip * sinip * cos2u;
+			mvt = rdotl - nm * temp1 * x1mth2[k] * sin2u / xke[k];
+			rvdot = rvdotl + nm * temp1 * (x1mth2[k] * cos2u +
+				1.5 * con41[k]) / xke[k];
+
+			/* --------------------- orientation vectors ------------------- */
+			// the short period corrections are small so rotate by them with the angle addition formulas
+			sind = sinSmall(dsu);
+			cosd = cosSmall(dsu);
+			temp = sinsu;
+			sinsu = temp * cosd + cossu * sind;
+			cossu = cossu * cosd - temp * sind;
+			snod = Math.sin(xnode);
+			cnod = Math.cos(xnode);
+			sind = sinSmall(dinc);
+			cosd = cosSmall(dinc);
+			sini = sinip * cosd + cosip * sind;
+			cosi = cosip * cosd - sinip * sind;
+			xmx = -snod * cosi;
+			xmy = cnod * cosi;
+			ux = xmx * sinsu + cnod * cossu;
+			uy = xmy * sinsu + snod * cossu;
+			uz = sini * sinsu;
+			vvx = xmx * cossu - cnod * sinsu;
+			vvy = xmy * cossu - snod * sinsu;
+			vvz = sini * cossu;
+
+			/* --------- position and velocity (in km and km/sec) ---------- */
+			re = radiusearthkm[k];
+			vkmpersec = re * xke[k] / 60.0;
+			rx[i] = (mrt * ux)* re;
+			ry[i] = (mrt * uy)* re;
+			rz[i] = (mrt * uz)* re;
+			vx[i] = (mvt * ux + rvdot * vvx) * vkmpersec;
+			vy[i] = (mvt * uy + rvdot * vvy) * vkmpersec;
+			vz[i] = (mvt * uz + rvdot * vvz) * vkmpersec;
+
+			// sgp4fix for decaying satellites
+			if (mrt < 1.0)
+			{
+				err = 6;
+			}
+
+			if(errors != null) errors[i] = err;
+		}
+	}
+}
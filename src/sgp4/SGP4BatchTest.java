@@ -0,0 +1,132 @@
+/*
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package sgp4;
+
+/**
+ * Compares SGP4Batch to SGP4.sgp4 for accuracy and speed.  Builds a synthetic catalog by
+ * spreading the mean anomaly and node of a few element sets.
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4BatchTest
+{
+	public static final String lines[][] = {
+		{"1 25544U 98067A   08264.51782528 -.00002182  00000-0 -11606-4 0  2927","2 25544  51.6416 247.4627 0006703 130.5360 325.0288 15.72125391563537"},
+		{"1 00005U 58002B   00179.78495062  .00000023  00000-0  28098-4 0  4753","2 00005  34.2682 348.7242 1859667 331.7664  19.3264 10.82419157413667"},
+		{"1 06251U 62025E   06176.82412014  .00008885  00000-0  12808-3 0  3985","2 06251  58.0579  54.0425 0030035 139.1568 221.1854 15.56387291  6774"},
+		{"1 28057U 03049A   06177.78615833  .00000060  00000-0  35940-4 0  1836","2 28057  98.4283 247.6961 0000884  88.1964 271.9322 14.35478080140550"},
+		{"1 28626U 05008A   06176.46683397 -.00000205  00000-0  10000-3 0  2190","2 28626   0.0019 286.9433 0000335  13.7918  55.6504  1.00270176  4891"}
+	};
+
+	public static ElsetRec[] buildCatalog(int size)
+	{
+		ElsetRec recs[] = new ElsetRec[size];
+		TLE tle = null;
+		ElsetRec rec = null;
+		for(int i=0; i<size; i++)
+		{
+			tle = new TLE(lines[i%lines.length][0],lines[i%lines.length][1]);
+			rec = tle.getElsetRec();
+			rec.mo = SGP4.fmod(rec.mo + 0.001*i, 2.0*Math.PI);
+			rec.nodeo = SGP4.fmod(rec.nodeo + 0.0007*i, 2.0*Math.PI);
+			SGP4.sgp4init('a', rec);
+			recs[i] = rec;
+		}
+		return recs;
+	}
+
+	public static void main(String args[])
+	{
+		int size = 30000;
+		int reps = 50;
+		if(args.length > 0) size = Integer.parseInt(args[0]);
+		if(args.length > 1) reps = Integer.parseInt(args[1]);
+
+		ElsetRec recs[] = buildCatalog(size);
+		SGP4Batch batch = new SGP4Batch(recs);
+		System.out.println(size + " satellites, " + batch.getNumNearEarth() + " near earth, " + batch.getNumDeepSpace() + " deep space");
+
+		double tsince[] = new double[size];
+		double rx[] = new double[size];
+		double ry[] = new double[size];
+		double rz[] = new double[size];
+		double vx[] = new double[size];
+		double vy[] = new double[size];
+		double vz[] = new double[size];
+		int errors[] = new int[size];
+
+		double r[] = new double[3];
+		double v[] = new double[3];
+		SGP4State st = new SGP4State();
+
+		// accuracy
+		double maxdr = 0;
+		double maxdv = 0;
+		int errDiff = 0;
+		for(int rep=0; rep<10; rep++)
+		{
+			for(int i=0; i<size; i++) tsince[i] = -2880.0 + 577.0*rep + 0.01*i;
+			batch.propagate(tsince, rx, ry, rz, vx, vy, vz, errors);
+			for(int i=0; i<size; i++)
+			{
+				r[0] = r[1] = r[2] = 0;
+				v[0] = v[1] = v[2] = 0;
+				SGP4.sgp4(recs[i], st, tsince[i], r, v);
+				if(st.error != errors[i]) errDiff++;
+				maxdr = Math.max(maxdr, Math.abs(r[0]-rx[i]));
+				maxdr = Math.max(maxdr, Math.abs(r[1]-ry[i]));
+				maxdr = Math.max(maxdr, Math.abs(r[2]-rz[i]));
+				maxdv = Math.max(maxdv, Math.abs(v[0]-vx[i]));
+				maxdv = Math.max(maxdv, Math.abs(v[1]-vy[i]));
+				maxdv = Math.max(maxdv, Math.abs(v[2]-vz[i]));
+			}
+		}
+		System.out.println("max diff " + maxdr + " km " + maxdv + " km/s, error code mismatches " + errDiff);
+
+		// speed of the near earth loop, warm up first
+		long scalar = 0;
+		long batched = 0;
+		long t1 = 0;
+		for(int pass=0; pass<2; pass++)
+		{
+			scalar = 0;
+			batched = 0;
+			for(int rep=0; rep<reps; rep++)
+			{
+				for(int i=0; i<size; i++) tsince[i] = 10.0*rep;
+
+				t1 = System.nanoTime();
+				for(int i=0; i<size; i++)
+				{
+					if(recs[i].method == 'd') continue;
+					SGP4.sgp4(recs[i], st, tsince[i], r, v);
+					rx[i] = r[0];
+				}
+				scalar += System.nanoTime()-t1;
+
+				t1 = System.nanoTime();
+				batch.propagateNear(tsince, rx, ry, rz, vx, vy, vz, errors);
+				batched += System.nanoTime()-t1;
+			}
+		}
+
+		double n = ((double)batch.getNumNearEarth())*reps;
+		System.out.println("scalar  " + (scalar/n) + " ns per satellite");
+		System.out.println("batch   " + (batched/n) + " ns per satellite");
+		System.out.println("speedup " + (((double)scalar)/batched));
+	}
+}
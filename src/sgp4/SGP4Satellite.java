@@ -0,0 +1,131 @@
+/*
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package sgp4;
+
+/**
+ * A satellite that has been through sgp4init.  The record is only read during propagation
+ * so a single instance can be shared by any number of threads.  Each thread passes its
+ * own SGP4State which holds everything that changes from call to call.
+ *
+ * <pre>
+ * SGP4State st = sat.newState();
+ * double r[] = new double[3];
+ * double v[] = new double[3];
+ * sat.propagate(st, 1440.0, r, v);
+ * </pre>
+ *
+ * @author aholinch
+ *
+ */
+public final class SGP4Satellite
+{
+	private final ElsetRec rec;
+	private final int initError;
+
+	/**
+	 * Wrap a record that has already been initialized with sgp4init.  The record must not
+	 * be reinitialized while it is wrapped.
+	 *
+	 * @param rec
+	 */
+	public SGP4Satellite(ElsetRec rec)
+	{
+		this.rec = rec;
+		this.initError = rec.error;
+	}
+
+	/**
+	 * Run sgp4init on the record and wrap it.
+	 *
+	 * @param opsmode 'a' for afspc or 'i' for improved
+	 * @param rec
+	 * @return
+	 */
+	public static SGP4Satellite init(char opsmode, ElsetRec rec)
+	{
+		SGP4.sgp4init(opsmode, rec);
+		return new SGP4Satellite(rec);
+	}
+
+	/**
+	 * Create a propagation state for use by a single thread.
+	 *
+	 * @return
+	 */
+	public SGP4State newState()
+	{
+		return new SGP4State();
+	}
+
+	/**
+	 * Propagate to the given time.  The error code is left in st.error.
+	 *
+	 * @param st state owned by the calling thread
+	 * @param minutesAfterEpoch
+	 * @param r position in km
+	 * @param v velocity in km/sec
+	 * @return false if sgp4 reported an error
+	 */
+	public boolean propagate(SGP4State st, double minutesAfterEpoch, double r[], double v[])
+	{
+		return SGP4.sgp4(rec, st, minutesAfterEpoch, r, v);
+	}
+
+	public String getSatID()
+	{
+		return rec.satID;
+	}
+
+	/**
+	 * Returns 'n' for near earth or 'd' for deep space.
+	 *
+	 * @return
+	 */
+	public char getMethod()
+	{
+		return rec.method;
+	}
+
+	public char getOperationMode()
+	{
+		return rec.operationmode;
+	}
+
+	public double getJDSatEpoch()
+	{
+		return rec.jdsatepoch;
+	}
+
+	public double getJDSatEpochF()
+	{
+		return rec.jdsatepochF;
+	}
+
+	public double getBstar()
+	{
+		return rec.bstar;
+	}
+
+	/**
+	 * Returns the error code from propagating to epoch during sgp4init.
+	 *
+	 * @return
+	 */
+	public int getInitError()
+	{
+		return initError;
+	}
+}
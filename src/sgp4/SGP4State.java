@@ -0,0 +1,99 @@
+/*
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package sgp4;
+
+/**
+ * The values written by every call to sgp4.  The original code keeps these in the elsetrec
+ * next to the initialized constants, which is why ElsetRec extends this class.  Keeping
+ * a separate state per thread lets any number of threads propagate the same initialized
+ * ElsetRec at once without locking or copying the record.
+ *
+ * A state is not thread safe.  Each thread should own its own instance.
+ *
+ * @author aholinch
+ *
+ */
+public class SGP4State
+{
+	public int error;
+
+	// sgp4fix add singly averaged variables
+	public double am;
+	public double em;
+	public double im;
+	public double Om;
+	public double om;
+	public double mm;
+	public double nm;
+	public double t;
+
+    // temporary variables because the original authors call the same method with different variables
+    public double ep;
+    public double inclp;
+    public double nodep;
+    public double argpp;
+    public double mp;
+
+    // mean elements updated during propagation
+	public double sinim;
+	public double cosim;
+	public double emsq;
+	public double argpm;
+	public double inclm;
+	public double nodem;
+	public double dndt;
+
+	// deep space resonance integrator
+	public double atime;
+	public double xli;
+	public double xni;
+
+	// the record the integrator values belong to
+	protected ElsetRec owner;
+
+	public SGP4State()
+	{
+
+	}
+
+	/**
+	 * Make sure the integrator values were computed for the given record.  If not they
+	 * are cleared so the next deep space call restarts from epoch.
+	 *
+	 * @param rec
+	 */
+	protected void checkOwner(ElsetRec rec)
+	{
+		if(owner != rec)
+		{
+			owner = rec;
+			atime = 0.0;
+			xli = 0.0;
+			xni = 0.0;
+		}
+	}
+
+	/**
+	 * Forget any cached integrator values.  Call this if the owning record is reinitialized.
+	 */
+	public void reset()
+	{
+		owner = null;
+		atime = 0.0;
+		xli = 0.0;
+		xni = 0.0;
+	}
+}
@@ -17,9 +17,7 @@ limitations under the License.
 */
 package sgp4;
 
-import java.util.Calendar;
 import java.util.Date;
-import java.util.GregorianCalendar;
 
 /**
  * This class knows how to parse two line element sets and access the individual elements.
@@ -30,6 +28,7 @@ import java.util.GregorianCalendar;
 public class TLE 
 {
     protected ElsetRec rec = null;
+    protected SGP4Satellite sat = null;
     
     protected String line1 = null;
     protected String line2 = null;
@@ -54,6 +53,9 @@ public class TLE
     
     protected int sgp4Error = 0;
     
+    // the lines were not stored and are written from the fields when asked for, see TLEBinary
+    volatile boolean formatLines = false;
+    
     public TLE()
     {
     	
@@ -85,6 +87,83 @@ public class TLE
     	return out;
     }
     
+    /**
+     * Propagate to every time in minutesAfterEpoch filling the position and velocity
+     * arrays at the same index.  Nothing is allocated per sample.  Not thread safe, 
+     * getSgp4Error() returns the code for the last sample.
+     * 
+     * @param minutesAfterEpoch
+     * @param rx
+     * @param ry
+     * @param rz
+     * @param vx
+     * @param vy
+     * @param vz
+     * @param errors sgp4 error code per sample, may be null
+     */
+    public void getRVs(double minutesAfterEpoch[], double rx[], double ry[], double rz[], 
+    		double vx[], double vy[], double vz[], int errors[])
+    {
+    	getRVs(rec, minutesAfterEpoch, 0, minutesAfterEpoch.length, rx, ry, rz, vx, vy, vz, errors);
+    	sgp4Error = rec.error;
+    }
+    
+    /**
+     * Thread safe batch propagation of len samples starting at off.  The outputs are 
+     * filled at the same indices as the inputs.  Samples with an error are filled the
+     * same way getRV would, usually with zeros.
+     * 
+     * @param st state owned by the calling thread
+     * @param minutesAfterEpoch
+     * @param off
+     * @param len
+     * @param rx
+     * @param ry
+     * @param rz
+     * @param vx
+     * @param vy
+     * @param vz
+     * @param errors sgp4 error code per sample, may be null
+     */
+    public void getRVs(SGP4State st, double minutesAfterEpoch[], int off, int len, 
+    		double rx[], double ry[], double rz[], double vx[], double vy[], double vz[], int errors[])
+    {
+    	double r[] = new double[3];
+    	double v[] = new double[3];
+    	
+    	int end = off+len;
+    	for(int i=off; i<end; i++)
+    	{
+    		r[0] = r[1] = r[2] = 0;
+    		v[0] = v[1] = v[2] = 0;
+    		
+    		SGP4.sgp4(rec, st, minutesAfterEpoch[i], r, v);
+    		
+    		rx[i] = r[0];
+    		ry[i] = r[1];
+    		rz[i] = r[2];
+    		vx[i] = v[0];
+    		vy[i] = v[1];
+    		vz[i] = v[2];
+    		if(errors != null) errors[i] = st.error;
+    	}
+    }
+    
+    /**
+     * Thread safe propagation.  Each thread must pass its own state.  The error code is
+     * left in st.error and is not copied to this TLE.
+     * 
+     * @param st
+     * @param minutesAfterEpoch
+     * @param r
+     * @param v
+     * @return false if sgp4 reported an error
+     */
+    public boolean getRV(SGP4State st, double minutesAfterEpoch, double r[], double v[])
+    {
+    	return sat.propagate(st, minutesAfterEpoch, r, v);
+    }
+    
     public int getSgp4Error()
     {
     	return sgp4Error;
@@ -98,6 +177,17 @@ public class TLE
     public void setElsetRec(ElsetRec er)
     {
     	rec = er;
+    	sat = new SGP4Satellite(er);
+    }
+    
+    /**
+     * Returns the initialized satellite which can be shared across threads.
+     * 
+     * @return
+     */
+    public SGP4Satellite getSatellite()
+    {
+    	return sat;
     }
     
     public String getParseErrors()
@@ -257,14 +347,24 @@ public class TLE
     
     public String getLine1()
     {
+    	if(formatLines) setFormattedLines();
     	return line1;
     }
     
     public String getLine2()
     {
+    	if(formatLines) setFormattedLines();
     	return line2;
     }
     
+    protected void setFormattedLines()
+    {
+    	String lines[] = TLEBinary.formatLines(this);
+    	line1 = lines[0];
+    	line2 = lines[1];
+    	formatLines = false;
+    }
+    
     /**
      * Parses the two lines optimistically.  No exceptions are thrown but some parse errors will
      * be accumulated as a string.  Call getParseErrors() to see if there are any.
@@ -274,59 +374,22 @@ public class TLE
      */
     public void parseLines(String line1, String line2)
     {
-    	parseErrors = null;
-    	rec = new ElsetRec();
-
-    	this.line1 = line1;
-    	this.line2 = line2;
-    	
-    	if(line1 == null || line1.trim().length()<68) // we can live without checksum
-    	{
-    		addParseError("line1 too short");
-    	}
-    	
-    	if(line2 == null || line2.trim().length()<68) // we can live without checksum
+    	if(TLEParser.parseFields(this, line1, line2))
     	{
-    		addParseError("line2 too short");
+    		setValsToRec();
     	}
-    	
-    	if(parseErrors != null) return;
-    	
-
-    	
-    	objectID = line1.substring(2,7).trim();
-    	if(objectID != line2.substring(2,7).trim()) addParseError("ids don't match");
-
-        while(objectID.startsWith("0")) objectID = objectID.substring(1);
-    	
-    	rec.classification = line1.charAt(7);
-	       //          1         2         3         4         5         6
-           //0123456789012345678901234567890123456789012345678901234567890123456789
-	//line1="1 00005U 58002B   00179.78495062  .00000023  00000-0  28098-4 0  4753";
-	//line2="2 00005  34.2682 348.7242 1859667 331.7664  19.3264 10.82419157413667";
-
-	    intlid = line1.substring(9, 17).trim();
-    	epoch = parseEpoch(line1.substring(18,32).trim());
-    	ndot = gdi(line1.charAt(33),line1,35,44);
-    	nddot = gdi(line1.charAt(44),line1,45,50);
-    	nddot *= Math.pow(10.0, gd(line1,50,52));
-    	bstar = gdi(line1.charAt(53),line1,54,59);
-    	bstar *= Math.pow(10.0d, gd(line1,59,61));
-    	
-    	eltype = (int)gd(line1,62,63);
-    	
-    	elnum = (int)gd(line1,64,68);
-    	
-    	incDeg = gd(line2,8,16);
-    	raanDeg = gd(line2,17,25);
-    	ecc = gdi('+',line2,26,33);
-    	argpDeg = gd(line2,34,42);
-    	maDeg = gd(line2,43,51);
-    	
-    	n = gd(line2,52,63);
-    	
-    	revnum = (int)gd(line2,63,68);
-    	
+    }
+    
+    /**
+     * Run sgp4init from the element fields without writing or parsing the lines.  The epoch
+     * values and classification must already be set on er, which becomes the record of
+     * this TLE.  The lines are left as they were.
+     * 
+     * @param er
+     */
+    public void initRec(ElsetRec er)
+    {
+    	rec = er;
     	setValsToRec();
     }
     
@@ -351,7 +414,7 @@ public class TLE
 		rec.ndot = ndot / (xpdotp*1440.0d);
 		rec.nddot = nddot / (xpdotp*1440.0d*1440.0d);
 		
-		SGP4.sgp4init('a', rec);
+		sat = SGP4Satellite.init('a', rec);
     }
     
     /**
@@ -362,55 +425,11 @@ public class TLE
      */
     protected Date parseEpoch(String str)
     {
-    	java.util.TimeZone.setDefault(java.util.TimeZone.getTimeZone("GMT"));
     	int year = Integer.parseInt(str.substring(0,2).trim());
-    	
-    	rec.epochyr=year;
-    	if(year > 56)
-    	{
-    		year += 1900;
-    	}
-    	else
-    	{
-    		year += 2000;
-    	}
-    	
     	int doy = Integer.parseInt(str.substring(2,5).trim());
     	double dfrac = Double.parseDouble("0"+str.substring(5).trim());
     	
-    	rec.epochdays = doy;
-    	rec.epochdays += dfrac;
-    	
-    	
-    	dfrac *= 24.0d;
-    	int hr = (int)dfrac;
-    	dfrac = 60.0d*(dfrac - hr);
-    	int mn = (int)dfrac;
-    	dfrac = 60.0d*(dfrac - mn);
-    	int sc = (int)dfrac;
-    	
-
-    	
-    	dfrac = 1000.d*(dfrac-sc);
-    	int milli = (int)dfrac;
-    	
-    	GregorianCalendar gc = new GregorianCalendar();
-    	
-    	gc.set(Calendar.YEAR, year);
-    	gc.set(Calendar.DAY_OF_YEAR, doy);
-    	gc.set(Calendar.HOUR_OF_DAY, hr);
-    	gc.set(Calendar.MINUTE, mn);
-    	gc.set(Calendar.SECOND, sc);
-    	gc.set(Calendar.MILLISECOND, milli);
-
-    	double sec = ((double)sc)+dfrac/1000.0d;
-    	int mon = gc.get(Calendar.MONTH)+1;
-    	int day = gc.get(Calendar.DAY_OF_MONTH);
-    	double jd[] = SGP4.jday(year, mon, day, hr, mn, sec);
-    	rec.jdsatepoch = jd[0];
-    	rec.jdsatepochF = jd[1];
-
-    	return new java.sql.Timestamp(gc.getTimeInMillis());
+    	return TLEParser.setEpoch(rec, year, doy, dfrac);
     }
     
     protected void addParseError(String err)
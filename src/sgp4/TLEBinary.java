@@ -0,0 +1,346 @@
+/*
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package sgp4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Fixed width binary record for a parsed TLE.  The record holds every parsed field as a
+ * number, including the epoch values sgp4 needs, so a TLE can be rebuilt without parsing
+ * text.  The lines are not stored, getLine1() and getLine2() of a TLE read back write them
+ * from the fields in the standard layout when first asked for.  The values are the same as
+ * the lines the record was written from but padding and checksums are the standard ones.
+ *
+ * <pre>
+ *   0 int    object number, alpha-5 ids are 100000 and up
+ *   4 long   epoch ms
+ *  12 double epochdays, jdsatepoch, jdsatepochF, ndot, nddot, bstar, inc, raan, ecc,
+ *            argp, ma, n
+ * 108 int    element number, rev number
+ * 116 byte   element type, two digit epoch year, classification, flags
+ * 120 8      international designator, space padded
+ * </pre>
+ *
+ * TLEs whose id is not a number or alpha-5 id can not be written, see idToInt.
+ *
+ * @author aholinch
+ *
+ */
+public class TLEBinary
+{
+	public static final int RECORD_SIZE = 128;
+
+	public static final int OFF_ID = 0;
+	public static final int OFF_EPOCH = 4;
+
+	protected static final int OFF_DOUBLES = 12;
+	protected static final int OFF_INTS = 108;
+	protected static final int OFF_BYTES = 116;
+	protected static final int OFF_INTLID = 120;
+
+	protected static final int INTLID_SIZE = 8;
+
+	// flag for TLEs whose line ids differ
+	protected static final int FLAG_ID_MISMATCH = 1;
+
+	// alpha-5 letters, I and O are skipped
+	private static final String ALPHA5 = "ABCDEFGHJKLMNPQRSTUVWXYZ";
+
+	/**
+	 * Object number for an id as returned by TLE.getObjectID().  Alpha-5 ids such as
+	 * T0005 become 270005.  Returns -1 if the id can't be turned back into the same string,
+	 * such ids can not be stored.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public static int idToInt(String id)
+	{
+		if(id == null || id.length() == 0 || id.length() > 5) return -1;
+
+		int num = 0;
+		char c = id.charAt(0);
+		int start = 0;
+		if(c >= 'A' && c <= 'Z')
+		{
+			int ind = ALPHA5.indexOf(c);
+			if(ind < 0 || id.length() != 5) return -1;
+			num = 10+ind;
+			start = 1;
+		}
+
+		for(int i=start; i<id.length(); i++)
+		{
+			c = id.charAt(i);
+			if(c < '0' || c > '9') return -1;
+			num = 10*num + (c-'0');
+		}
+
+		if(!id.equals(intToId(num))) return -1;
+		return num;
+	}
+
+	/**
+	 * The id string for an object number, the reverse of idToInt.
+	 *
+	 * @param num
+	 * @return
+	 */
+	public static String intToId(int num)
+	{
+		if(num < 0) return null;
+		if(num < 100000) return String.valueOf(num);
+
+		int ind = num/10000 - 10;
+		if(ind >= ALPHA5.length()) return null;
+
+		String rest = String.valueOf(num%10000);
+		while(rest.length() < 4) rest = "0"+rest;
+		return ALPHA5.charAt(ind) + rest;
+	}
+
+	/**
+	 * Write the record at pos.  Returns false and writes nothing if the TLE has no parsed
+	 * fields, for example when the lines were too short, or its id can not be stored.
+	 *
+	 * @param tle
+	 * @param bb
+	 * @param pos
+	 * @return
+	 */
+	public static boolean write(TLE tle, ByteBuffer bb, int pos)
+	{
+		if(!canWrite(tle)) return false;
+
+		ElsetRec rec = tle.rec;
+
+		bb.putInt(pos+OFF_ID, idToInt(tle.objectID));
+		bb.putLong(pos+OFF_EPOCH, tle.epoch.getTime());
+
+		int p = pos+OFF_DOUBLES;
+		bb.putDouble(p, rec.epochdays); p+=8;
+		bb.putDouble(p, rec.jdsatepoch); p+=8;
+		bb.putDouble(p, rec.jdsatepochF); p+=8;
+		bb.putDouble(p, tle.ndot); p+=8;
+		bb.putDouble(p, tle.nddot); p+=8;
+		bb.putDouble(p, tle.bstar); p+=8;
+		bb.putDouble(p, tle.incDeg); p+=8;
+		bb.putDouble(p, tle.raanDeg); p+=8;
+		bb.putDouble(p, tle.ecc); p+=8;
+		bb.putDouble(p, tle.argpDeg); p+=8;
+		bb.putDouble(p, tle.maDeg); p+=8;
+		bb.putDouble(p, tle.n); p+=8;
+
+		bb.putInt(pos+OFF_INTS, tle.elnum);
+		bb.putInt(pos+OFF_INTS+4, tle.revnum);
+
+		int flags = 0;
+		if(tle.parseErrors != null) flags |= FLAG_ID_MISMATCH;
+
+		bb.put(pos+OFF_BYTES, (byte)tle.eltype);
+		bb.put(pos+OFF_BYTES+1, (byte)rec.epochyr);
+		bb.put(pos+OFF_BYTES+2, (byte)rec.classification);
+		bb.put(pos+OFF_BYTES+3, (byte)flags);
+
+		putText(bb, pos+OFF_INTLID, INTLID_SIZE, tle.intlid);
+
+		return true;
+	}
+
+	/**
+	 * True if the TLE was parsed and its id has an object number.
+	 *
+	 * @param tle
+	 * @return
+	 */
+	public static boolean canWrite(TLE tle)
+	{
+		return tle != null && tle.rec != null && tle.epoch != null && idToInt(tle.objectID) >= 0;
+	}
+
+	/**
+	 * Rebuild the TLE stored at pos and run sgp4init.
+	 *
+	 * @param bb
+	 * @param pos
+	 * @return
+	 */
+	public static TLE read(ByteBuffer bb, int pos)
+	{
+		TLE tle = new TLE();
+		ElsetRec rec = new ElsetRec();
+		tle.rec = rec;
+
+		int num = bb.getInt(pos+OFF_ID);
+		tle.objectID = intToId(num);
+
+		tle.epoch = new java.sql.Timestamp(bb.getLong(pos+OFF_EPOCH));
+
+		int p = pos+OFF_DOUBLES;
+		rec.epochdays = bb.getDouble(p); p+=8;
+		rec.jdsatepoch = bb.getDouble(p); p+=8;
+		rec.jdsatepochF = bb.getDouble(p); p+=8;
+		tle.ndot = bb.getDouble(p); p+=8;
+		tle.nddot = bb.getDouble(p); p+=8;
+		tle.bstar = bb.getDouble(p); p+=8;
+		tle.incDeg = bb.getDouble(p); p+=8;
+		tle.raanDeg = bb.getDouble(p); p+=8;
+		tle.ecc = bb.getDouble(p); p+=8;
+		tle.argpDeg = bb.getDouble(p); p+=8;
+		tle.maDeg = bb.getDouble(p); p+=8;
+		tle.n = bb.getDouble(p); p+=8;
+
+		tle.elnum = bb.getInt(pos+OFF_INTS);
+		tle.revnum = bb.getInt(pos+OFF_INTS+4);
+
+		tle.eltype = bb.get(pos+OFF_BYTES);
+		rec.epochyr = bb.get(pos+OFF_BYTES+1);
+		rec.classification = (char)(bb.get(pos+OFF_BYTES+2) & 0xff);
+		int flags = bb.get(pos+OFF_BYTES+3);
+		if((flags & FLAG_ID_MISMATCH) != 0) tle.addParseError("ids don't match");
+
+		tle.intlid = getText(bb, pos+OFF_INTLID, INTLID_SIZE).trim();
+
+		tle.setValsToRec();
+		tle.formatLines = true;
+		return tle;
+	}
+
+	/**
+	 * Write the two lines of the TLE from its fields in the standard layout.
+	 *
+	 * @param tle
+	 * @return
+	 */
+	public static String[] formatLines(TLE tle)
+	{
+		//          1         2         3         4         5         6
+		//0123456789012345678901234567890123456789012345678901234567890123456789
+		//1 NNNNNC NNNNNAAA NNNNN.NNNNNNNN +.NNNNNNNN +NNNNN-N +NNNNN-N N NNNNN
+		//2 NNNNN NNN.NNNN NNN.NNNN NNNNNNN NNN.NNNN NNN.NNNN NN.NNNNNNNNNNNNNN
+		ElsetRec rec = tle.rec;
+		String id = tle.objectID;
+		while(id.length() < 5) id = "0"+id;
+
+		String intlid = tle.intlid == null?"":tle.intlid;
+		long ecc = Math.round(tle.ecc*1e7);
+
+		StringBuilder sb = new StringBuilder(69);
+		sb.append("1 ").append(id).append(rec.classification).append(' ');
+		sb.append(String.format(Locale.US, "%-8.8s %02d%012.8f ", intlid, rec.epochyr, rec.epochdays));
+		sb.append(tle.ndot<0?'-':' ').append('.');
+		sb.append(String.format(Locale.US, "%08d", Math.min(99999999L, Math.round(Math.abs(tle.ndot)*1e8))));
+		sb.append(' ').append(formatImpDec(tle.nddot));
+		sb.append(' ').append(formatImpDec(tle.bstar));
+		sb.append(' ').append(tle.eltype%10);
+		sb.append(String.format(Locale.US, " %4d", tle.elnum%10000));
+		sb.append(checksum(sb));
+		String line1 = sb.toString();
+
+		sb.setLength(0);
+		sb.append("2 ").append(id);
+		sb.append(String.format(Locale.US, " %8.4f %8.4f %07d %8.4f %8.4f %11.8f%5d", tle.incDeg, tle.raanDeg,
+				Math.min(9999999L, ecc), tle.argpDeg, tle.maDeg, tle.n, tle.revnum%100000));
+		sb.append(checksum(sb));
+		String line2 = sb.toString();
+
+		return new String[]{line1,line2};
+	}
+
+	/**
+	 * Sign, five digit mantissa and exponent of an implied decimal field, 0.NNNNN*10^exp.
+	 *
+	 * @param val
+	 * @return
+	 */
+	protected static String formatImpDec(double val)
+	{
+		double av = Math.abs(val);
+		long mantissa = 0;
+		int exp = 0;
+		if(av > 0)
+		{
+			exp = (int)Math.floor(Math.log10(av))+1;
+			mantissa = Math.round(av*Math.pow(10.0d, 5-exp));
+			if(mantissa > 99999)
+			{
+				exp++;
+				mantissa = Math.round(av*Math.pow(10.0d, 5-exp));
+			}
+			if(exp < -9 || exp > 9)
+			{
+				// out of range for one digit
+				exp = Math.max(-9, Math.min(9, exp));
+				mantissa = Math.min(99999, Math.round(av*Math.pow(10.0d, 5-exp)));
+			}
+		}
+
+		return String.format(Locale.US, "%c%05d%c%d", val<0?'-':' ', mantissa, exp>0?'+':'-', Math.abs(exp));
+	}
+
+	/**
+	 * Sum of the digits mod 10 with a minus sign counting as 1.
+	 *
+	 * @param line
+	 * @return
+	 */
+	public static int checksum(CharSequence line)
+	{
+		int sum = 0;
+		int len = Math.min(68, line.length());
+		char c = 0;
+		for(int i=0; i<len; i++)
+		{
+			c = line.charAt(i);
+			if(c >= '0' && c <= '9')
+			{
+				sum += c-'0';
+			}
+			else if(c == '-')
+			{
+				sum++;
+			}
+		}
+		return sum%10;
+	}
+
+	public static int getObjectNumber(ByteBuffer bb, int pos)
+	{
+		return bb.getInt(pos+OFF_ID);
+	}
+
+	public static long getEpochMillis(ByteBuffer bb, int pos)
+	{
+		return bb.getLong(pos+OFF_EPOCH);
+	}
+
+	protected static void putText(ByteBuffer bb, int pos, int size, String str)
+	{
+		int len = str == null?0:Math.min(size, str.length());
+		int i = 0;
+		for(; i<len; i++) bb.put(pos+i, (byte)str.charAt(i));
+		for(; i<size; i++) bb.put(pos+i, (byte)' ');
+	}
+
+	protected static String getText(ByteBuffer bb, int pos, int size)
+	{
+		byte b[] = new byte[size];
+		for(int i=0; i<size; i++) b[i] = bb.get(pos+i);
+		return new String(b, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,591 @@
+/*
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package sgp4;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.function.Predicate;
+
+/**
+ * Reads the fixed columns of two line element sets directly from a CharSequence or a range
+ * of ASCII bytes.  Numbers are read digit by digit and the epoch is computed with plain
+ * arithmetic, there are no substrings, calendars or changes to the default time zone so it
+ * can be used from many threads at once.
+ *
+ * Values match TLE.parseLines exactly.  Fields that are not simple digits, such as an
+ * exponent or embedded spaces, fall back to Double.parseDouble on the trimmed text.
+ *
+ * @author aholinch
+ *
+ */
+public class TLEParser
+{
+	// powers of ten that are exact doubles
+	private static final double POW10[] = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	// largest mantissa that converts to a double without rounding
+	private static final long MAX_EXACT = 1L << 53;
+
+	private static final long MS_PER_DAY = 86400000L;
+
+	/**
+	 * Parse and initialize a TLE from two lines.
+	 *
+	 * @param line1
+	 * @param line2
+	 * @return
+	 */
+	public static TLE parse(CharSequence line1, CharSequence line2)
+	{
+		TLE tle = new TLE();
+		if(parseFields(tle, line1, line2))
+		{
+			tle.setValsToRec();
+		}
+		return tle;
+	}
+
+	/**
+	 * Parse and initialize a TLE from two lines of ASCII bytes, for example a buffer
+	 * read from a file.  The line ends should not include the line terminator.
+	 *
+	 * @param buf
+	 * @param start1 first byte of line 1
+	 * @param end1 one past the last byte of line 1
+	 * @param start2
+	 * @param end2
+	 * @return
+	 */
+	public static TLE parse(byte buf[], int start1, int end1, int start2, int end2)
+	{
+		return parse(new AsciiLine(buf, start1, end1), new AsciiLine(buf, start2, end2));
+	}
+
+	/**
+	 * Parse the fields and only run sgp4init if the filter accepts the TLE.  The filter sees
+	 * the id, epoch and elements.  Returns null if the TLE is rejected.  Lines too short to
+	 * parse are rejected by any filter.
+	 *
+	 * @param line1
+	 * @param line2
+	 * @param filter may be null to accept everything
+	 * @return
+	 */
+	public static TLE parse(CharSequence line1, CharSequence line2, Predicate<TLE> filter)
+	{
+		TLE tle = new TLE();
+		if(parseFields(tle, line1, line2))
+		{
+			if(filter != null && !filter.test(tle)) return null;
+			tle.setValsToRec();
+		}
+		else if(filter != null)
+		{
+			return null;
+		}
+		return tle;
+	}
+
+	public static TLE parse(byte buf[], int start1, int end1, int start2, int end2, Predicate<TLE> filter)
+	{
+		return parse(new AsciiLine(buf, start1, end1), new AsciiLine(buf, start2, end2), filter);
+	}
+
+	/**
+	 * Fill the element fields of tle and the epoch values of its ElsetRec without running
+	 * sgp4init.  Returns false if the lines are too short to parse, the same case where
+	 * TLE.parseLines stops early.
+	 *
+	 * @param tle
+	 * @param line1
+	 * @param line2
+	 * @return
+	 */
+	public static boolean parseFields(TLE tle, CharSequence line1, CharSequence line2)
+	{
+		tle.parseErrors = null;
+		tle.rec = new ElsetRec();
+		tle.formatLines = false;
+
+		tle.line1 = line1 == null?null:line1.toString();
+		tle.line2 = line2 == null?null:line2.toString();
+
+		if(line1 == null || trimmedLength(line1)<68) // we can live without checksum
+		{
+			tle.addParseError("line1 too short");
+		}
+
+		if(line2 == null || trimmedLength(line2)<68) // we can live without checksum
+		{
+			tle.addParseError("line2 too short");
+		}
+
+		if(tle.parseErrors != null) return false;
+
+		ElsetRec rec = tle.rec;
+
+		String id = trimmed(line1,2,7);
+		if(!id.equals(trimmed(line2,2,7))) tle.addParseError("ids don't match");
+
+		int i = 0;
+		while(i<id.length() && id.charAt(i) == '0') i++;
+		tle.objectID = id.substring(i);
+
+		rec.classification = line1.charAt(7);
+		       //          1         2         3         4         5         6
+		       //0123456789012345678901234567890123456789012345678901234567890123456789
+		//line1="1 00005U 58002B   00179.78495062  .00000023  00000-0  28098-4 0  4753";
+		//line2="2 00005  34.2682 348.7242 1859667 331.7664  19.3264 10.82419157413667";
+
+		tle.intlid = trimmed(line1,9,17);
+		tle.epoch = parseEpoch(tle, line1);
+		tle.ndot = gdi(line1.charAt(33),line1,35,44);
+		tle.nddot = gdi(line1.charAt(44),line1,45,50);
+		tle.nddot *= Math.pow(10.0, gd(line1,50,52));
+		tle.bstar = gdi(line1.charAt(53),line1,54,59);
+		tle.bstar *= Math.pow(10.0d, gd(line1,59,61));
+
+		tle.eltype = (int)gd(line1,62,63);
+
+		tle.elnum = (int)gd(line1,64,68);
+
+		tle.incDeg = gd(line2,8,16);
+		tle.raanDeg = gd(line2,17,25);
+		tle.ecc = gdi('+',line2,26,33);
+		tle.argpDeg = gd(line2,34,42);
+		tle.maDeg = gd(line2,43,51);
+
+		tle.n = gd(line2,52,63);
+
+		tle.revnum = (int)gd(line2,63,68);
+
+		return true;
+	}
+
+	/**
+	 * Returns the epoch of line 1 in ms since 1970 without creating a TLE.  Useful for
+	 * sorting or filtering lines before parsing them.
+	 *
+	 * @param line1
+	 * @return
+	 */
+	public static long parseEpochMillis(CharSequence line1)
+	{
+		ElsetRec rec = new ElsetRec();
+		return parseEpoch(line1, rec, null).getTime();
+	}
+
+	/**
+	 * Set the epoch fields of the rec from the two digit year, day of year and fraction of
+	 * day and return the epoch as a date.  Years after 56 are 1900s.  The day of year
+	 * may run past the end of the year the same way a lenient calendar would.
+	 *
+	 * @param rec
+	 * @param yy
+	 * @param doy
+	 * @param dfrac
+	 * @return
+	 */
+	public static Date setEpoch(ElsetRec rec, int yy, int doy, double dfrac)
+	{
+		int year = yy;
+		rec.epochyr=year;
+		if(year > 56)
+		{
+			year += 1900;
+		}
+		else
+		{
+			year += 2000;
+		}
+
+		rec.epochdays = doy;
+		rec.epochdays += dfrac;
+
+		dfrac *= 24.0d;
+		int hr = (int)dfrac;
+		dfrac = 60.0d*(dfrac - hr);
+		int mn = (int)dfrac;
+		dfrac = 60.0d*(dfrac - mn);
+		int sc = (int)dfrac;
+
+		dfrac = 1000.d*(dfrac-sc);
+		int milli = (int)dfrac;
+
+		long day = daysFromCivil(year, 1, 1) + doy - 1;
+		long ms = day*MS_PER_DAY + hr*3600000L + mn*60000L + sc*1000L + milli;
+
+		// month and day come from the normalized date but the year does not, as before
+		int md = monthDayFromDays(day);
+		int mon = md/100;
+		int dom = md%100;
+
+		double sec = ((double)sc)+dfrac/1000.0d;
+		double jd[] = SGP4.jday(year, mon, dom, hr, mn, sec);
+		rec.jdsatepoch = jd[0];
+		rec.jdsatepochF = jd[1];
+
+		return new java.sql.Timestamp(ms);
+	}
+
+	/**
+	 * Set the epoch fields of the rec from ms since 1970 without rounding to the precision
+	 * of the text form.
+	 *
+	 * @param rec
+	 * @param ms
+	 * @return
+	 */
+	public static Date setEpoch(ElsetRec rec, long ms)
+	{
+		long day = Math.floorDiv(ms, MS_PER_DAY);
+		long msOfDay = ms - day*MS_PER_DAY;
+		int year = yearFromDays(day);
+		int doy = (int)(day - daysFromCivil(year, 1, 1)) + 1;
+		double dfrac = ((double)msOfDay)/MS_PER_DAY;
+
+		rec.epochyr = year < 2000 ? year-1900 : year-2000;
+		rec.epochdays = doy + dfrac;
+
+		// same as jday at midnight, 2440587.5 is 1970-01-01
+		rec.jdsatepoch = 2440587.5 + day;
+		rec.jdsatepochF = dfrac;
+
+		return new java.sql.Timestamp(ms);
+	}
+
+	/**
+	 * Epoch from columns 18 to 32 of line 1.
+	 *
+	 * @param tle
+	 * @param line1
+	 * @return
+	 */
+	protected static Date parseEpoch(TLE tle, CharSequence line1)
+	{
+		return parseEpoch(line1, tle.rec, tle);
+	}
+
+	protected static Date parseEpoch(CharSequence line1, ElsetRec rec, TLE tle)
+	{
+		int s = 18;
+		int e = 32;
+		while(s<e && line1.charAt(s) <= ' ') s++;
+		while(e>s && line1.charAt(e-1) <= ' ') e--;
+
+		// yyddd.dddddddd
+		boolean simple = e-s >= 5;
+		int yy = 0;
+		int doy = 0;
+		double dfrac = 0;
+		if(simple)
+		{
+			yy = digits(line1, s, s+2);
+			doy = digits(line1, s+2, s+5);
+			simple = yy >= 0 && doy >= 0;
+		}
+		if(simple)
+		{
+			int fs = s+5;
+			if(fs < e)
+			{
+				if(line1.charAt(fs) == '.')
+				{
+					dfrac = fraction(line1, fs+1, e);
+					simple = dfrac >= 0;
+				}
+				else
+				{
+					simple = false;
+				}
+			}
+		}
+
+		if(simple)
+		{
+			return setEpoch(rec, yy, doy, dfrac);
+		}
+
+		String str = line1.subSequence(s, e).toString();
+		if(tle == null)
+		{
+			tle = new TLE();
+			tle.rec = rec;
+		}
+		return tle.parseEpoch(str);
+	}
+
+	/**
+	 * Same as TLE.gd.
+	 *
+	 * @param str
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	protected static double gd(CharSequence str, int start, int end)
+	{
+		while(start<end && str.charAt(start) <= ' ') start++;
+		while(end>start && str.charAt(end-1) <= ' ') end--;
+
+		int i = start;
+		boolean neg = false;
+		if(i<end)
+		{
+			char c = str.charAt(i);
+			if(c == '-' || c == '+')
+			{
+				neg = c == '-';
+				i++;
+			}
+		}
+
+		long mant = 0;
+		int ndig = 0;
+		int nfrac = 0;
+		boolean dot = false;
+		char c = 0;
+		for(; i<end; i++)
+		{
+			c = str.charAt(i);
+			if(c >= '0' && c <= '9')
+			{
+				mant = 10*mant + (c-'0');
+				ndig++;
+				if(dot) nfrac++;
+				if(ndig > 17) return slowParse(str, start, end, "");
+			}
+			else if(c == '.' && !dot)
+			{
+				dot = true;
+			}
+			else
+			{
+				return slowParse(str, start, end, "");
+			}
+		}
+
+		if(ndig == 0 || mant > MAX_EXACT || nfrac >= POW10.length)
+		{
+			return slowParse(str, start, end, "");
+		}
+
+		double num = mant;
+		if(nfrac > 0) num /= POW10[nfrac];
+		if(neg) num = -num;
+		return num;
+	}
+
+	/**
+	 * Same as TLE.gdi.
+	 *
+	 * @param sign
+	 * @param str
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	protected static double gdi(char sign, CharSequence str, int start, int end)
+	{
+		while(start<end && str.charAt(start) <= ' ') start++;
+		while(end>start && str.charAt(end-1) <= ' ') end--;
+
+		double num = fraction(str, start, end);
+		if(num < 0)
+		{
+			num = slowParse(str, start, end, "0.");
+		}
+		if(sign == '-') num *= -1.0d;
+		return num;
+	}
+
+	/**
+	 * Value of "0." followed by the digits in [start,end), or -1 if the range is not all digits
+	 * or is too long to convert exactly.
+	 *
+	 * @param str
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	protected static double fraction(CharSequence str, int start, int end)
+	{
+		int len = end-start;
+		if(len >= POW10.length) return -1;
+
+		long mant = 0;
+		char c = 0;
+		for(int i=start; i<end; i++)
+		{
+			c = str.charAt(i);
+			if(c < '0' || c > '9') return -1;
+			mant = 10*mant + (c-'0');
+		}
+		if(mant > MAX_EXACT) return -1;
+
+		double num = mant;
+		if(len > 0) num /= POW10[len];
+		return num;
+	}
+
+	/**
+	 * Non-negative integer from the digits in [start,end) ignoring leading spaces, -1 if
+	 * there is anything else.
+	 *
+	 * @param str
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	protected static int digits(CharSequence str, int start, int end)
+	{
+		while(start<end && str.charAt(start) == ' ') start++;
+		if(start == end) return -1;
+
+		int num = 0;
+		char c = 0;
+		for(int i=start; i<end; i++)
+		{
+			c = str.charAt(i);
+			if(c < '0' || c > '9') return -1;
+			num = 10*num + (c-'0');
+		}
+		return num;
+	}
+
+	protected static double slowParse(CharSequence str, int start, int end, String prefix)
+	{
+		double num = 0;
+		try{num = Double.parseDouble(prefix+str.subSequence(start,end).toString());}catch(Exception ex){}
+		return num;
+	}
+
+	protected static int trimmedLength(CharSequence str)
+	{
+		int s = 0;
+		int e = str.length();
+		while(s<e && str.charAt(s) <= ' ') s++;
+		while(e>s && str.charAt(e-1) <= ' ') e--;
+		return e-s;
+	}
+
+	protected static String trimmed(CharSequence str, int start, int end)
+	{
+		while(start<end && str.charAt(start) <= ' ') start++;
+		while(end>start && str.charAt(end-1) <= ' ') end--;
+		return str.subSequence(start, end).toString();
+	}
+
+	/**
+	 * Days from 1970-01-01 to the given date in the proleptic Gregorian calendar.
+	 *
+	 * @param y
+	 * @param m 1 to 12
+	 * @param d
+	 * @return
+	 */
+	public static long daysFromCivil(int y, int m, int d)
+	{
+		if(m <= 2) y--;
+		long era = (y >= 0 ? y : y-399) / 400;
+		long yoe = y - era*400;
+		long doy = (153*(m + (m > 2 ? -3 : 9)) + 2)/5 + d-1;
+		long doe = yoe*365 + yoe/4 - yoe/100 + doy;
+		return era*146097 + doe - 719468;
+	}
+
+	/**
+	 * Month and day of month for days from 1970-01-01 packed as 100*month+day.
+	 *
+	 * @param days
+	 * @return
+	 */
+	protected static int monthDayFromDays(long days)
+	{
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z-146096) / 146097;
+		long doe = z - era*146097;
+		long yoe = (doe - doe/1460 + doe/36524 - doe/146096)/365;
+		long doy = doe - (365*yoe + yoe/4 - yoe/100);
+		long mp = (5*doy + 2)/153;
+		long d = doy - (153*mp + 2)/5 + 1;
+		long m = mp + (mp < 10 ? 3 : -9);
+		return (int)(100*m + d);
+	}
+
+	/**
+	 * Year for days from 1970-01-01, the inverse of daysFromCivil.
+	 *
+	 * @param days
+	 * @return
+	 */
+	public static int yearFromDays(long days)
+	{
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z-146096) / 146097;
+		long doe = z - era*146097;
+		long yoe = (doe - doe/1460 + doe/36524 - doe/146096)/365;
+		long doy = doe - (365*yoe + yoe/4 - yoe/100);
+		long mp = (5*doy + 2)/153;
+		long y = yoe + era*400;
+		if(mp >= 10) y++;
+		return (int)y;
+	}
+
+	/**
+	 * A read only view of ASCII bytes as characters.
+	 */
+	protected static class AsciiLine implements CharSequence
+	{
+		protected final byte buf[];
+		protected final int start;
+		protected final int end;
+
+		public AsciiLine(byte buf[], int start, int end)
+		{
+			this.buf = buf;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length()
+		{
+			return end-start;
+		}
+
+		@Override
+		public char charAt(int index)
+		{
+			return (char)(buf[start+index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int s, int e)
+		{
+			return new AsciiLine(buf, start+s, start+e);
+		}
+
+		@Override
+		public String toString()
+		{
+			return new String(buf, start, end-start, StandardCharsets.ISO_8859_1);
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package sgp4;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Checks TLEParser against the substring, parseDouble and calendar parsing it replaced and
+ * times both on a synthetic 30k object catalog and a long history.  A TLE file can be passed
+ * as the first argument to use as the history instead.  Only the parsing is timed, not sgp4init.
+ *
+ * @author aholinch
+ *
+ */
+public class TLEParserTest
+{
+	public static final int NUM_FIELDS = 17;
+
+	public static void main(String args[]) throws Exception
+	{
+		byte catalog[] = buildLines(30000, 30000, 1);
+		byte history[] = null;
+		if(args.length > 0)
+		{
+			history = Files.readAllBytes(Paths.get(args[0]));
+		}
+		else
+		{
+			history = buildLines(1000000, 20000, 2);
+		}
+
+		run("catalog", catalog);
+		run("history", history);
+	}
+
+	public static void run(String name, byte buf[])
+	{
+		int starts[] = lineStarts(buf);
+		int nl = starts.length-1;
+		System.out.println(name + ": " + nl + " lines");
+
+		// identical results
+		double fast[] = new double[NUM_FIELDS];
+		double slow[] = new double[NUM_FIELDS];
+		int mismatches = 0;
+		int count = 0;
+		for(int i=0; i+1<nl; i+=2)
+		{
+			String l1 = line(buf, starts, i);
+			String l2 = line(buf, starts, i+1);
+			fastParse(buf, starts[i], lineEnd(buf, starts, i), starts[i+1], lineEnd(buf, starts, i+1), fast);
+			legacyParse(l1, l2, slow);
+			for(int j=0; j<NUM_FIELDS; j++)
+			{
+				if(Double.doubleToLongBits(fast[j]) != Double.doubleToLongBits(slow[j]))
+				{
+					if(mismatches < 10) System.out.println("field " + j + " differs " + fast[j] + " " + slow[j] + "\n" + l1 + "\n" + l2);
+					mismatches++;
+					break;
+				}
+			}
+			count++;
+		}
+		System.out.println(count + " TLEs compared, " + mismatches + " mismatches");
+
+		// speed, warm up first
+		long tfast = 0;
+		long tslow = 0;
+		long t1 = 0;
+		for(int pass=0; pass<3; pass++)
+		{
+			t1 = System.nanoTime();
+			for(int i=0; i+1<nl; i+=2)
+			{
+				fastParse(buf, starts[i], lineEnd(buf, starts, i), starts[i+1], lineEnd(buf, starts, i+1), fast);
+			}
+			tfast = System.nanoTime()-t1;
+
+			t1 = System.nanoTime();
+			for(int i=0; i+1<nl; i+=2)
+			{
+				legacyParse(line(buf, starts, i), line(buf, starts, i+1), slow);
+			}
+			tslow = System.nanoTime()-t1;
+		}
+
+		System.out.println("legacy  " + (tslow/1e6) + " ms, " + (((double)tslow)/count) + " ns per TLE");
+		System.out.println("parser  " + (tfast/1e6) + " ms, " + (((double)tfast)/count) + " ns per TLE");
+		System.out.println("speedup " + (((double)tslow)/tfast));
+	}
+
+	public static void fastParse(byte buf[], int s1, int e1, int s2, int e2, double out[])
+	{
+		TLE tle = new TLE();
+		TLEParser.parseFields(tle, new TLEParser.AsciiLine(buf, s1, e1), new TLEParser.AsciiLine(buf, s2, e2));
+		ElsetRec rec = tle.rec;
+		int i = 0;
+		out[i++] = tle.epoch.getTime();
+		out[i++] = rec.epochyr;
+		out[i++] = rec.epochdays;
+		out[i++] = rec.jdsatepoch;
+		out[i++] = rec.jdsatepochF;
+		out[i++] = tle.ndot;
+		out[i++] = tle.nddot;
+		out[i++] = tle.bstar;
+		out[i++] = tle.eltype;
+		out[i++] = tle.elnum;
+		out[i++] = tle.incDeg;
+		out[i++] = tle.raanDeg;
+		out[i++] = tle.ecc;
+		out[i++] = tle.argpDeg;
+		out[i++] = tle.maDeg;
+		out[i++] = tle.n;
+		out[i++] = tle.revnum + tle.objectID.hashCode() + 31*tle.intlid.hashCode() + rec.classification;
+	}
+
+	/**
+	 * The parsing TLE.parseLines used to do.
+	 *
+	 * @param line1
+	 * @param line2
+	 * @param out
+	 */
+	public static void legacyParse(String line1, String line2, double out[])
+	{
+		String objectID = line1.substring(2,7).trim();
+		while(objectID.startsWith("0")) objectID = objectID.substring(1);
+		char classification = line1.charAt(7);
+		String intlid = line1.substring(9, 17).trim();
+
+		String str = line1.substring(18,32).trim();
+		TimeZone.setDefault(TimeZone.getTimeZone("GMT"));
+		int year = Integer.parseInt(str.substring(0,2).trim());
+		int epochyr = year;
+		if(year > 56)
+		{
+			year += 1900;
+		}
+		else
+		{
+			year += 2000;
+		}
+
+		int doy = Integer.parseInt(str.substring(2,5).trim());
+		double dfrac = Double.parseDouble("0"+str.substring(5).trim());
+
+		double epochdays = doy;
+		epochdays += dfrac;
+
+		dfrac *= 24.0d;
+		int hr = (int)dfrac;
+		dfrac = 60.0d*(dfrac - hr);
+		int mn = (int)dfrac;
+		dfrac = 60.0d*(dfrac - mn);
+		int sc = (int)dfrac;
+
+		dfrac = 1000.d*(dfrac-sc);
+		int milli = (int)dfrac;
+
+		GregorianCalendar gc = new GregorianCalendar();
+
+		gc.set(Calendar.YEAR, year);
+		gc.set(Calendar.DAY_OF_YEAR, doy);
+		gc.set(Calendar.HOUR_OF_DAY, hr);
+		gc.set(Calendar.MINUTE, mn);
+		gc.set(Calendar.SECOND, sc);
+		gc.set(Calendar.MILLISECOND, milli);
+
+		double sec = ((double)sc)+dfrac/1000.0d;
+		int mon = gc.get(Calendar.MONTH)+1;
+		int day = gc.get(Calendar.DAY_OF_MONTH);
+		double jd[] = SGP4.jday(year, mon, day, hr, mn, sec);
+
+		int i = 0;
+		out[i++] = gc.getTimeInMillis();
+		out[i++] = epochyr;
+		out[i++] = epochdays;
+		out[i++] = jd[0];
+		out[i++] = jd[1];
+		out[i++] = gdi(line1.charAt(33),line1,35,44);
+		out[i++] = gdi(line1.charAt(44),line1,45,50)*Math.pow(10.0, gd(line1,50,52));
+		out[i++] = gdi(line1.charAt(53),line1,54,59)*Math.pow(10.0d, gd(line1,59,61));
+		out[i++] = (int)gd(line1,62,63);
+		out[i++] = (int)gd(line1,64,68);
+		out[i++] = gd(line2,8,16);
+		out[i++] = gd(line2,17,25);
+		out[i++] = gdi('+',line2,26,33);
+		out[i++] = gd(line2,34,42);
+		out[i++] = gd(line2,43,51);
+		out[i++] = gd(line2,52,63);
+		out[i++] = (int)gd(line2,63,68) + objectID.hashCode() + 31*intlid.hashCode() + classification;
+	}
+
+	protected static double gd(String str, int start, int end)
+	{
+		double num = 0;
+		try{num = Double.parseDouble(str.substring(start,end).trim());}catch(Exception ex){}
+		return num;
+	}
+
+	protected static double gdi(char sign, String str, int start, int end)
+	{
+		double num = 0;
+		try{num = Double.parseDouble("0."+str.substring(start,end).trim());}catch(Exception ex){}
+		if(sign == '-') num *= -1.0d;
+		return num;
+	}
+
+	/**
+	 * Synthetic TLEs with random fields, numObjects distinct ids repeated until numTLEs are written.
+	 *
+	 * @param numTLEs
+	 * @param numObjects
+	 * @param seed
+	 * @return
+	 */
+	public static byte[] buildLines(int numTLEs, int numObjects, long seed)
+	{
+		Random rnd = new Random(seed);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(numTLEs*142);
+		StringBuilder sb = new StringBuilder(142);
+		for(int i=0; i<numTLEs; i++)
+		{
+			int id = 1 + (i%numObjects);
+			int yy = (57 + rnd.nextInt(68))%100;
+			int doy = 1 + rnd.nextInt(yy%4==0?366:365);
+			long frac = (long)(rnd.nextDouble()*1e8);
+			char s1 = rnd.nextBoolean()?'-':' ';
+			char s2 = rnd.nextInt(4)==0?'-':' ';
+			char s3 = rnd.nextBoolean()?'-':' ';
+
+			sb.setLength(0);
+			sb.append(String.format(Locale.US, "1 %05dU %02d%03d%-3s %02d%03d.%08d %c.%08d %c%05d-%d %c%05d-%d 0 %4d",
+					id, yy, 1+rnd.nextInt(300), "A", yy, doy, frac,
+					s1, rnd.nextInt(100000), s2, rnd.nextInt(100000), rnd.nextInt(10),
+					s3, rnd.nextInt(100000), rnd.nextInt(10), rnd.nextInt(1000)));
+			sb.append(rnd.nextInt(10)).append('\n');
+			sb.append(String.format(Locale.US, "2 %05d %8.4f %8.4f %07d %8.4f %8.4f %11.8f%5d",
+					id, 180.0*rnd.nextDouble(), 360.0*rnd.nextDouble(), rnd.nextInt(10000000),
+					360.0*rnd.nextDouble(), 360.0*rnd.nextDouble(), 0.9+15.5*rnd.nextDouble(), rnd.nextInt(100000)));
+			sb.append(rnd.nextInt(10)).append('\n');
+
+			byte b[] = sb.toString().getBytes(StandardCharsets.US_ASCII);
+			out.write(b, 0, b.length);
+		}
+		return out.toByteArray();
+	}
+
+	public static int[] lineStarts(byte buf[])
+	{
+		int n = 0;
+		for(int i=0; i<buf.length; i++) if(buf[i] == '\n') n++;
+		if(buf.length > 0 && buf[buf.length-1] != '\n') n++;
+
+		int starts[] = new int[n+1];
+		int k = 1;
+		for(int i=0; i<buf.length && k<=n; i++) if(buf[i] == '\n') starts[k++] = i+1;
+		if(k <= n) starts[n] = buf.length+1;
+		return starts;
+	}
+
+	protected static int lineEnd(byte buf[], int starts[], int i)
+	{
+		int e = Math.min(starts[i+1]-1, buf.length);
+		if(e > starts[i] && buf[e-1] == '\r') e--;
+		return e;
+	}
+
+	protected static String line(byte buf[], int starts[], int i)
+	{
+		return new String(buf, starts[i], lineEnd(buf, starts, i)-starts[i], StandardCharsets.ISO_8859_1);
+	}
+}